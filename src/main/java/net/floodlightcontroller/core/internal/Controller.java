@@ -45,6 +45,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -71,6 +72,7 @@ import net.floodlightcontroller.storage.IStorageSourceListener;
 import net.floodlightcontroller.storage.IStorageSourceService;
 import net.floodlightcontroller.storage.OperatorPredicate;
 import net.floodlightcontroller.storage.StorageException;
+import net.floodlightcontroller.storage.WriteBehindTable;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
@@ -112,6 +114,7 @@ import org.openflow.protocol.OFSwitchConfig;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.OFVendor;
 import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.factory.OFMessagePool;
 import org.openflow.protocol.factory.MessageParseException;
 import org.openflow.protocol.statistics.OFDescriptionStatistics;
 import org.openflow.protocol.statistics.OFStatistics;
@@ -175,6 +178,30 @@ public class Controller implements IFloodlightProviderService,
     // Configuration options
     protected int openFlowPort = 6633;
     protected int workerThreads = 0;
+    // Keep PACKET_IN payloads as slices of the inbound frame
+    protected boolean zeroCopyPacketIn = false;
+    // Number of threads dispatching messages to listeners. If 0 listeners
+    // are called on the netty I/O thread that read the message.
+    protected int dispatchThreads = 0;
+    protected int dispatchQueueSize = 1000;
+    protected OFMessageDispatchEngine.OverflowPolicy dispatchOverflowPolicy =
+            OFMessageDispatchEngine.OverflowPolicy.DROP_PACKET_IN;
+    protected OFMessageDispatchEngine dispatchEngine;
+    // Max messages held back per switch while its channel is not writable
+    // before PACKET_OUTs are dropped
+    protected int writeQueueCapacity = OFMessageWriteQueue.DEFAULT_CAPACITY;
+    // Number of free FLOW_MODs, PACKET_OUTs and OUTPUT actions kept for
+    // reuse by the message factory. 0 disables pooling.
+    protected int messagePoolSize = 0;
+    protected boolean messagePoolLeakDetection = false;
+    // Max time a batched PACKET_OUT or FLOW_MOD waits for an explicit flush
+    protected long writeFlushDelayMs =
+            OFMessageWriteQueue.DEFAULT_FLUSH_DELAY_MS;
+    // Time switch and port updates are collected for before they are
+    // written to storage
+    protected long storageWriteWindow = 100;
+    protected WriteBehindTable switchWriter;
+    protected WriteBehindTable portWriter;
     // The id for this controller node. Should be unique for each controller
     // node in a controller cluster.
     protected String controllerId = "localhost";
@@ -373,6 +400,10 @@ public class Controller implements IFloodlightProviderService,
         this.threadPool = tp;
     }
 
+    public boolean isZeroCopyPacketIn() {
+        return zeroCopyPacketIn;
+    }
+
     @Override
     public Role getRole() {
         synchronized(roleChanger) {
@@ -435,9 +466,12 @@ public class Controller implements IFloodlightProviderService,
      * @author readams
      */
     protected class OFChannelHandler 
-        extends IdleStateAwareChannelUpstreamHandler {
+        extends IdleStateAwareChannelUpstreamHandler
+        implements OFMessageDispatchEngine.IDispatchTarget {
         protected OFSwitchImpl sw;
         protected OFChannelState state;
+        // Queue to the listener dispatch workers, if enabled
+        protected OFMessageDispatchEngine.SwitchQueue dispatchQueue;
         
         public OFChannelHandler(OFChannelState state) {
             this.state = state;
@@ -456,10 +490,17 @@ public class Controller implements IFloodlightProviderService,
             sw.setChannel(e.getChannel());
             sw.setFloodlightProvider(Controller.this);
             sw.setThreadPoolService(threadPool);
+            sw.getOutputQueue().setCapacity(writeQueueCapacity);
+            sw.getOutputQueue().setFlushDelayMs(writeFlushDelayMs);
+            if (dispatchEngine != null) {
+                dispatchQueue = dispatchEngine.createQueue(sw,
+                                                           e.getChannel(),
+                                                           this);
+            }
             
             List<OFMessage> msglist = new ArrayList<OFMessage>(1);
             msglist.add(factory.getMessage(OFType.HELLO));
-            e.getChannel().write(msglist);
+            sw.write(msglist);
 
         }
 
@@ -468,6 +509,9 @@ public class Controller implements IFloodlightProviderService,
                        explanation="The specified switch has disconnected.")
         public void channelDisconnected(ChannelHandlerContext ctx,
                                         ChannelStateEvent e) throws Exception {
+            if (dispatchQueue != null) {
+                dispatchEngine.removeQueue(dispatchQueue);
+            }
             if (sw != null && state.hsState == HandshakeState.READY) {
                 if (activeSwitches.containsKey(sw.getId())) {
                     // It's safe to call removeSwitch even though the map might
@@ -568,7 +612,18 @@ public class Controller implements IFloodlightProviderService,
                 throws Exception {
             List<OFMessage> msglist = new ArrayList<OFMessage>(1);
             msglist.add(factory.getMessage(OFType.ECHO_REQUEST));
-            e.getChannel().write(msglist);
+            sw.write(msglist);
+        }
+
+        @Override
+        public void channelInterestChanged(ChannelHandlerContext ctx,
+                                           ChannelStateEvent e)
+                throws Exception {
+            // Fired when the channel crosses its write buffer water marks
+            if (sw != null && sw.getOutputQueue() != null) {
+                sw.getOutputQueue().setWritable(e.getChannel().isWritable());
+            }
+            super.channelInterestChanged(ctx, e);
         }
 
         @Override
@@ -1090,42 +1145,58 @@ public class Controller implements IFloodlightProviderService,
             }
             
             if (shouldHandleMessage) {
-                sw.getListenerReadLock().lock();
-                try {
-                    if (sw.isConnected()) {
-                        if (!state.hsState.equals(HandshakeState.READY)) {
-                            log.debug("Ignoring message type {} received " + 
-                                      "from switch {} before switch is " + 
-                                      "fully configured.", m.getType(), sw);
-                        }
-                        // Check if the controller is in the slave role for the 
-                        // switch. If it is, then don't dispatch the message to 
-                        // the listeners.
-                        // TODO: Should we dispatch messages that we expect to 
-                        // receive when we're in the slave role, e.g. port 
-                        // status messages? Since we're "hiding" switches from 
-                        // the listeners when we're in the slave role, then it 
-                        // seems a little weird to dispatch port status messages
-                        // to them. On the other hand there might be special 
-                        // modules that care about all of the connected switches
-                        // and would like to receive port status notifications.
-                        else if (sw.getRole() == Role.SLAVE) {
-                            // Don't log message if it's a port status message 
-                            // since we expect to receive those from the switch 
-                            // and don't want to emit spurious messages.
-                            if (m.getType() != OFType.PORT_STATUS) {
-                                log.debug("Ignoring message type {} received " +
-                                        "from switch {} while in the slave role.",
-                                        m.getType(), sw);
-                            }
-                        } else {
-                            handleMessage(sw, m, null);
+                if (dispatchQueue != null) {
+                    dispatchQueue.offer(m);
+                } else {
+                    dispatchMessage(m);
+                }
+            }
+        }
+
+        /**
+         * Pass a message to the listeners if the switch is ready and we're
+         * not in the slave role for it. Called on the I/O thread, or on a
+         * dispatch worker if the dispatch engine is enabled.
+         * @param m The message to dispatch
+         * @throws IOException
+         */
+        @Override
+        public void dispatchMessage(OFMessage m) throws IOException {
+            sw.getListenerReadLock().lock();
+            try {
+                if (sw.isConnected()) {
+                    if (!state.hsState.equals(HandshakeState.READY)) {
+                        log.debug("Ignoring message type {} received " + 
+                                  "from switch {} before switch is " + 
+                                  "fully configured.", m.getType(), sw);
+                    }
+                    // Check if the controller is in the slave role for the 
+                    // switch. If it is, then don't dispatch the message to 
+                    // the listeners.
+                    // TODO: Should we dispatch messages that we expect to 
+                    // receive when we're in the slave role, e.g. port 
+                    // status messages? Since we're "hiding" switches from 
+                    // the listeners when we're in the slave role, then it 
+                    // seems a little weird to dispatch port status messages
+                    // to them. On the other hand there might be special 
+                    // modules that care about all of the connected switches
+                    // and would like to receive port status notifications.
+                    else if (sw.getRole() == Role.SLAVE) {
+                        // Don't log message if it's a port status message 
+                        // since we expect to receive those from the switch 
+                        // and don't want to emit spurious messages.
+                        if (m.getType() != OFType.PORT_STATUS) {
+                            log.debug("Ignoring message type {} received " +
+                                    "from switch {} while in the slave role.",
+                                    m.getType(), sw);
                         }
+                    } else {
+                        handleMessage(sw, m, null);
                     }
                 }
-                finally {
-                    sw.getListenerReadLock().unlock();
-                }
+            }
+            finally {
+                sw.getListenerReadLock().unlock();
             }
         }
     }
@@ -1230,7 +1301,7 @@ public class Controller implements IFloodlightProviderService,
             case PACKET_IN:
                 OFPacketIn pi = (OFPacketIn)m;
                 
-                if (pi.getPacketData().length <= 0) {
+                if (pi.getPacketDataLength() <= 0) {
                     log.error("Ignoring PacketIn (Xid = " + pi.getXid() + 
                               ") because the data field is empty.");
                     return;
@@ -1238,8 +1309,7 @@ public class Controller implements IFloodlightProviderService,
                 
                 if (Controller.ALWAYS_DECODE_ETH) {
                     eth = new Ethernet();
-                    eth.deserialize(pi.getPacketData(), 0,
-                            pi.getPacketData().length);
+                    eth.deserialize(pi.getPacketDataBuffer());
                     counterStore.updatePacketInCounters(sw, m, eth);
                 }
                 // fall through to default case...
@@ -1593,6 +1663,7 @@ public class Controller implements IFloodlightProviderService,
     @LogMessageDoc(message="Calling System.exit",
                    explanation="The controller is terminating")
     public synchronized void terminate() {
+        shutdownDispatchEngine();
         log.info("Calling System.exit");
         System.exit(1);
     }
@@ -1649,6 +1720,9 @@ public class Controller implements IFloodlightProviderService,
         if (role == Role.SLAVE) {
             return;
         }
+        // Don't let buffered updates overwrite the rows changed here
+        if (switchWriter != null) switchWriter.flush();
+        if (portWriter != null) portWriter.flush();
         String controllerId = getControllerId();
         String[] switchColumns = { SWITCH_DATAPATH_ID,
                                    SWITCH_CONTROLLER_ID,
@@ -1743,7 +1817,7 @@ public class Controller implements IFloodlightProviderService,
         switchInfo.put(SWITCH_ACTIVE, Boolean.TRUE);
         
         // Update the switch
-        storageSource.updateRowAsync(SWITCH_TABLE_NAME, switchInfo);
+        switchWriter.updateRow(switchInfo);
         
         // Update the ports
         for (OFPhysicalPort port: sw.getPorts()) {
@@ -1762,7 +1836,7 @@ public class Controller implements IFloodlightProviderService,
         switchInfo.put(SWITCH_DATAPATH_ID, datapathIdString);
         //switchInfo.put(SWITCH_CONNECTED_SINCE, null);
         switchInfo.put(SWITCH_ACTIVE, Boolean.FALSE);
-        storageSource.updateRowAsync(SWITCH_TABLE_NAME, switchInfo);
+        switchWriter.updateRow(switchInfo);
     }
 
     protected void updatePortInfo(IOFSwitch sw, OFPhysicalPort port) {
@@ -1793,7 +1867,7 @@ public class Controller implements IFloodlightProviderService,
         portInfo.put(PORT_SUPPORTED_FEATURES, supportedFeatures);
         long peerFeatures = U32.f(port.getPeerFeatures());
         portInfo.put(PORT_PEER_FEATURES, peerFeatures);
-        storageSource.updateRowAsync(PORT_TABLE_NAME, portInfo);
+        portWriter.updateRow(portInfo);
     }
     
     /**
@@ -1801,6 +1875,8 @@ public class Controller implements IFloodlightProviderService,
      * @param sw the switch to update
      */
     protected void readSwitchPortStateFromStorage(OFSwitchImpl sw) {
+        // Read our own port updates too
+        portWriter.flush();
         OperatorPredicate op = 
                 new OperatorPredicate(PORT_SWITCH, 
                                       OperatorPredicate.Operator.EQ,
@@ -1849,7 +1925,7 @@ public class Controller implements IFloodlightProviderService,
         }
         String datapathIdString = sw.getStringId();
         String id = datapathIdString + "|" + portNumber;
-        storageSource.deleteRowAsync(PORT_TABLE_NAME, id);
+        portWriter.deleteRow(id);
     }
 
     /**
@@ -1961,22 +2037,34 @@ public class Controller implements IFloodlightProviderService,
         }
 
         // main loop
-        while (true) {
-            try {
-                IUpdate update = updates.take();
-                update.dispatch();
-            } catch (InterruptedException e) {
-                return;
-            } catch (StorageException e) {
-                log.error("Storage exception in controller " + 
-                          "updates loop; terminating process", e);
-                return;
-            } catch (Exception e) {
-                log.error("Exception in controller updates loop", e);
+        try {
+            while (true) {
+                try {
+                    IUpdate update = updates.take();
+                    update.dispatch();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (StorageException e) {
+                    log.error("Storage exception in controller " + 
+                              "updates loop; terminating process", e);
+                    return;
+                } catch (Exception e) {
+                    log.error("Exception in controller updates loop", e);
+                }
             }
+        } finally {
+            shutdownDispatchEngine();
         }
     }
 
+    /**
+     * Stop the worker threads of the dispatch engine, if there is one
+     */
+    protected void shutdownDispatchEngine() {
+        if (dispatchEngine != null)
+            dispatchEngine.shutdown();
+    }
+
     private ServerBootstrap createServerBootStrap() {
         if (workerThreads == 0) {
             return new ServerBootstrap(
@@ -2002,6 +2090,56 @@ public class Controller implements IFloodlightProviderService,
             this.workerThreads = Integer.parseInt(threads);
         }
         log.debug("Number of worker threads set to {}", this.workerThreads);
+        String dispatch = configParams.get("dispatchthreads");
+        if (dispatch != null) {
+            this.dispatchThreads = Integer.parseInt(dispatch);
+        }
+        String queueSize = configParams.get("dispatchqueuesize");
+        if (queueSize != null) {
+            this.dispatchQueueSize = Integer.parseInt(queueSize);
+        }
+        String overflow = configParams.get("dispatchoverflowpolicy");
+        if (overflow != null) {
+            this.dispatchOverflowPolicy =
+                    OFMessageDispatchEngine.OverflowPolicy.valueOf(
+                            overflow.trim().toUpperCase());
+        }
+        log.debug("Dispatch threads set to {}, queue size {}, policy {}",
+                  new Object[] { this.dispatchThreads, this.dispatchQueueSize,
+                                 this.dispatchOverflowPolicy });
+        String writeCapacity = configParams.get("writequeuecapacity");
+        if (writeCapacity != null) {
+            this.writeQueueCapacity = Integer.parseInt(writeCapacity);
+        }
+        String flushDelay = configParams.get("writeflushdelayms");
+        if (flushDelay != null) {
+            this.writeFlushDelayMs = Long.parseLong(flushDelay);
+        }
+        log.debug("Write queue capacity set to {}, flush delay {} ms",
+                  this.writeQueueCapacity, this.writeFlushDelayMs);
+        String writeWindow = configParams.get("storagewritewindow");
+        if (writeWindow != null) {
+            this.storageWriteWindow = Long.parseLong(writeWindow);
+        }
+        log.debug("Storage write window set to {} ms",
+                  this.storageWriteWindow);
+        String poolSize = configParams.get("messagepoolsize");
+        if (poolSize != null) {
+            this.messagePoolSize = Integer.parseInt(poolSize);
+        }
+        String leakDetection = configParams.get("messagepoolleakdetection");
+        if (leakDetection != null) {
+            this.messagePoolLeakDetection =
+                    Boolean.parseBoolean(leakDetection);
+        }
+        log.debug("Message pool size set to {}, leak detection {}",
+                  this.messagePoolSize, this.messagePoolLeakDetection);
+        String zeroCopy = configParams.get("zerocopypacketin");
+        if (zeroCopy != null) {
+            this.zeroCopyPacketIn = Boolean.parseBoolean(zeroCopy);
+        }
+        log.debug("Zero-copy PACKET_IN decoding set to {}",
+                  this.zeroCopyPacketIn);
         String controllerId = configParams.get("controllerid");
         if (controllerId != null) {
             this.controllerId = controllerId;
@@ -2046,8 +2184,35 @@ public class Controller implements IFloodlightProviderService,
         this.factory = new BasicFactory();
         this.providerMap = new HashMap<String, List<IInfoProvider>>();
         setConfigParams(configParams);
+        if (this.messagePoolSize > 0) {
+            this.factory.setMessagePool(
+                    new OFMessagePool(messagePoolSize,
+                                      messagePoolLeakDetection));
+        }
         this.role = getInitialRole(configParams);
         this.roleChanger = new RoleChanger();
+        if (this.dispatchThreads > 0) {
+            this.dispatchEngine =
+                    new OFMessageDispatchEngine(dispatchThreads,
+                                                dispatchQueueSize,
+                                                dispatchOverflowPolicy);
+            addInfoProvider("summary", dispatchEngine);
+            addInfoProvider("dispatch", dispatchEngine);
+        }
+        addInfoProvider("writequeue", new IInfoProvider() {
+            @Override
+            public Map<String, Object> getInfo(String type) {
+                Map<String, Object> info = new HashMap<String, Object>();
+                for (IOFSwitch sw : activeSwitches.values()) {
+                    if (!(sw instanceof OFSwitchImpl)) continue;
+                    OFMessageWriteQueue queue =
+                            ((OFSwitchImpl) sw).getOutputQueue();
+                    if (queue != null)
+                        info.put(sw.getStringId(), queue.getStats());
+                }
+                return info;
+            }
+        });
         initVendorMessages();
         this.systemStartTime = System.currentTimeMillis();
     }
@@ -2063,8 +2228,13 @@ public class Controller implements IFloodlightProviderService,
     public void startupComponents() {
         // Create the table names we use
         storageSource.createTable(CONTROLLER_TABLE_NAME, null);
-        storageSource.createTable(SWITCH_TABLE_NAME, null);
-        storageSource.createTable(PORT_TABLE_NAME, null);
+        // Index the columns the switches and ports are looked up by
+        Set<String> switchIndexes = new HashSet<String>();
+        switchIndexes.add(SWITCH_CONTROLLER_ID);
+        storageSource.createTable(SWITCH_TABLE_NAME, switchIndexes);
+        Set<String> portIndexes = new HashSet<String>();
+        portIndexes.add(PORT_SWITCH);
+        storageSource.createTable(PORT_TABLE_NAME, portIndexes);
         storageSource.createTable(CONTROLLER_INTERFACE_TABLE_NAME, null);
         storageSource.createTable(SWITCH_CONFIG_TABLE_NAME, null);
         storageSource.setTablePrimaryKeyName(CONTROLLER_TABLE_NAME,
@@ -2075,6 +2245,14 @@ public class Controller implements IFloodlightProviderService,
         storageSource.setTablePrimaryKeyName(CONTROLLER_INTERFACE_TABLE_NAME, 
                                              CONTROLLER_INTERFACE_ID);
         storageSource.addListener(CONTROLLER_INTERFACE_TABLE_NAME, this);
+        ScheduledExecutorService ses = threadPool.getScheduledExecutor();
+        switchWriter = new WriteBehindTable(storageSource, SWITCH_TABLE_NAME,
+                                            SWITCH_DATAPATH_ID, ses,
+                                            storageWriteWindow);
+        portWriter = new WriteBehindTable(storageSource, PORT_TABLE_NAME,
+                                          PORT_ID, ses, storageWriteWindow);
+        addInfoProvider("storagewrites", switchWriter);
+        addInfoProvider("storagewrites", portWriter);
         
         while (true) {
             try {
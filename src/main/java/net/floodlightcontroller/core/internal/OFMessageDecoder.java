@@ -34,8 +34,24 @@ import org.openflow.protocol.factory.OFMessageFactory;
  */
 public class OFMessageDecoder extends FrameDecoder {
 
-    OFMessageFactory factory = new BasicFactory();
-    
+    OFMessageFactory factory;
+    boolean zeroCopyPacketIn;
+
+    public OFMessageDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param zeroCopyPacketIn if true, PACKET_IN payloads are not copied
+     * out of the inbound frame; see {@link BasicFactory#setZeroCopyPacketIn}
+     */
+    public OFMessageDecoder(boolean zeroCopyPacketIn) {
+        BasicFactory bf = new BasicFactory();
+        bf.setZeroCopyPacketIn(zeroCopyPacketIn);
+        this.factory = bf;
+        this.zeroCopyPacketIn = zeroCopyPacketIn;
+    }
+
     @Override
     protected Object decode(ChannelHandlerContext ctx, Channel channel,
                             ChannelBuffer buffer) throws Exception {
@@ -45,10 +61,41 @@ public class OFMessageDecoder extends FrameDecoder {
             return null;
         }
 
+        if (zeroCopyPacketIn) {
+            // FrameDecoder compacts its cumulation buffer once we return,
+            // so slices of it would not stay valid. Detach all complete
+            // messages with one bulk copy and let the parsed messages
+            // slice that buffer instead.
+            int frameLength = getCompleteMessagesLength(buffer);
+            if (frameLength > 0)
+                return factory.parseMessage(buffer.readBytes(frameLength));
+            // Nothing complete yet; malformed headers are still reported
+            // by the regular parse below
+        }
+
         List<OFMessage> message = factory.parseMessage(buffer);
         return message;
     }
 
+    /**
+     * Get the number of readable bytes in the buffer that make up
+     * complete OpenFlow messages
+     * @param buffer
+     * @return
+     */
+    protected static int getCompleteMessagesLength(ChannelBuffer buffer) {
+        int start = buffer.readerIndex();
+        int end = start;
+        int readable = buffer.readableBytes();
+        while (end + OFMessage.MINIMUM_LENGTH <= start + readable) {
+            int len = buffer.getUnsignedShort(end + 2);
+            if (len < OFMessage.MINIMUM_LENGTH || end + len > start + readable)
+                break;
+            end += len;
+        }
+        return end - start;
+    }
+
     @Override
     protected Object decodeLast(ChannelHandlerContext ctx, Channel channel,
                             ChannelBuffer buffer) throws Exception {
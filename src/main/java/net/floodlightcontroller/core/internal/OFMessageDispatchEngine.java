@@ -0,0 +1,340 @@
+/**
+*    Copyright 2012, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.IInfoProvider;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+
+import org.jboss.netty.channel.Channel;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.util.HexString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands messages received from switches to a pool of worker threads so that
+ * slow listeners don't stall the netty I/O thread that read them.
+ *
+ * Each switch connection gets its own bounded {@link SwitchQueue}. A queue is
+ * drained by at most one worker at a time, so messages from one switch are
+ * dispatched in the order they were received while different switches are
+ * processed in parallel. When a queue is full, PACKET_INs are either dropped
+ * or reads from the switch are suspended until the queue drains, depending
+ * on the {@link OverflowPolicy}. Other message types such as PORT_STATUS and
+ * FLOW_REMOVED are never dropped.
+ */
+public class OFMessageDispatchEngine implements IInfoProvider {
+    protected static Logger log =
+            LoggerFactory.getLogger(OFMessageDispatchEngine.class);
+
+    /**
+     * What to do when a message arrives for a full switch queue
+     */
+    public enum OverflowPolicy {
+        /** Drop the PACKET_IN; other messages are queued anyway */
+        DROP_PACKET_IN,
+        /** Queue the message and stop reading from the switch until
+         *  the queue has drained to half its capacity */
+        SUSPEND_READ
+    }
+
+    /**
+     * Callback used by a worker to process a message from the queue
+     */
+    public interface IDispatchTarget {
+        /**
+         * Process a message on a dispatch worker thread
+         * @param m the message
+         * @throws Exception
+         */
+        public void dispatchMessage(OFMessage m) throws Exception;
+    }
+
+    // Max messages a worker takes from one queue before yielding to others
+    protected static final int DISPATCH_BATCH_SIZE = 64;
+
+    protected ThreadPoolExecutor executor;
+    protected int queueCapacity;
+    protected OverflowPolicy overflowPolicy;
+    protected Set<SwitchQueue> queues;
+
+    /**
+     * Per switch connection queue of messages waiting to be dispatched
+     */
+    public class SwitchQueue implements Runnable {
+        protected IOFSwitch sw;
+        protected Channel channel;
+        protected IDispatchTarget target;
+        protected ArrayDeque<OFMessage> messages;
+        // true while the queue is submitted to or running on a worker
+        protected boolean scheduled = false;
+        protected boolean readSuspended = false;
+        protected boolean closed = false;
+
+        // Queue counters, protected by the queue monitor
+        protected long enqueued = 0;
+        protected long dispatched = 0;
+        protected long droppedPacketIns = 0;
+        protected long readSuspensions = 0;
+        protected int maxDepth = 0;
+
+        protected SwitchQueue(IOFSwitch sw, Channel channel,
+                              IDispatchTarget target) {
+            this.sw = sw;
+            this.channel = channel;
+            this.target = target;
+            this.messages = new ArrayDeque<OFMessage>();
+        }
+
+        /**
+         * Queue a message for dispatch
+         * @param m the message
+         * @return false if the message was dropped
+         */
+        public boolean offer(OFMessage m) {
+            boolean submit = false;
+            boolean suspend = false;
+            synchronized (this) {
+                if (closed)
+                    return false;
+                if (messages.size() >= queueCapacity) {
+                    if (overflowPolicy == OverflowPolicy.DROP_PACKET_IN) {
+                        if (m.getType() == OFType.PACKET_IN) {
+                            droppedPacketIns++;
+                            return false;
+                        }
+                    } else if (!readSuspended) {
+                        readSuspended = suspend = true;
+                        readSuspensions++;
+                    }
+                }
+                messages.add(m);
+                enqueued++;
+                if (messages.size() > maxDepth)
+                    maxDepth = messages.size();
+                if (!scheduled) {
+                    scheduled = submit = true;
+                }
+            }
+            if (suspend)
+                setReadable(false);
+            if (submit)
+                schedule();
+            return true;
+        }
+
+        @Override
+        @LogMessageDoc(level="ERROR",
+                message="Error while dispatching message from switch " +
+                        "{switch}",
+                explanation="A listener failed to process a message",
+                recommendation=LogMessageDoc.GENERIC_ACTION)
+        public void run() {
+            for (int i = 0; i < DISPATCH_BATCH_SIZE; i++) {
+                OFMessage m;
+                synchronized (this) {
+                    m = messages.poll();
+                }
+                if (m == null)
+                    break;
+                try {
+                    target.dispatchMessage(m);
+                } catch (Exception e) {
+                    log.error("Error while dispatching message from switch " +
+                              sw, e);
+                }
+                synchronized (this) {
+                    dispatched++;
+                }
+            }
+
+            // Flush all flow-mods/packet-outs generated by this batch
+            OFSwitchImpl.flush_all();
+
+            boolean resubmit;
+            boolean resume = false;
+            synchronized (this) {
+                resubmit = !closed && !messages.isEmpty();
+                scheduled = resubmit;
+                if (readSuspended &&
+                        (closed || messages.size() <= queueCapacity / 2)) {
+                    readSuspended = false;
+                    resume = true;
+                }
+            }
+            if (resume)
+                setReadable(true);
+            if (resubmit)
+                schedule();
+        }
+
+        /**
+         * Stop dispatching messages and discard the ones still queued
+         */
+        protected void close() {
+            synchronized (this) {
+                closed = true;
+                messages.clear();
+            }
+        }
+
+        protected void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The engine is shutting down
+                close();
+            }
+        }
+
+        protected void setReadable(boolean readable) {
+            if (channel != null && channel.isOpen())
+                channel.setReadable(readable);
+        }
+
+        /**
+         * Get a snapshot of the counters for this queue
+         * @return
+         */
+        public synchronized Map<String, Object> getStats() {
+            Map<String, Object> stats = new HashMap<String, Object>();
+            stats.put("depth", messages.size());
+            stats.put("max-depth", maxDepth);
+            stats.put("enqueued", enqueued);
+            stats.put("dispatched", dispatched);
+            stats.put("dropped-packet-ins", droppedPacketIns);
+            stats.put("read-suspensions", readSuspensions);
+            return stats;
+        }
+
+        public synchronized int getDepth() {
+            return messages.size();
+        }
+    }
+
+    /**
+     * Create a new dispatch engine
+     * @param threads the number of worker threads
+     * @param queueCapacity the capacity of each switch queue
+     * @param overflowPolicy what to do when a switch queue is full
+     */
+    public OFMessageDispatchEngine(int threads, int queueCapacity,
+                                   OverflowPolicy overflowPolicy) {
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.queues = Collections.newSetFromMap(
+                new ConcurrentHashMap<SwitchQueue, Boolean>());
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor =
+                new ThreadPoolExecutor(threads, threads,
+                                       0L, TimeUnit.MILLISECONDS,
+                                       new LinkedBlockingQueue<Runnable>(),
+                                       new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "OFDispatch-" +
+                                              threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Create the queue for a new switch connection
+     * @param sw the switch
+     * @param channel the switch channel. Reads from it are suspended when
+     * the queue is full and the policy is SUSPEND_READ. May be null.
+     * @param target the callback that processes the queued messages
+     * @return the new queue
+     */
+    public SwitchQueue createQueue(IOFSwitch sw, Channel channel,
+                                   IDispatchTarget target) {
+        SwitchQueue queue = new SwitchQueue(sw, channel, target);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Remove the queue of a disconnected switch, discarding any messages
+     * that have not yet been dispatched
+     * @param queue
+     */
+    public void removeQueue(SwitchQueue queue) {
+        queue.close();
+        queues.remove(queue);
+    }
+
+    /**
+     * Stop all worker threads
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    // IInfoProvider
+
+    @Override
+    public Map<String, Object> getInfo(String type) {
+        if ("summary".equals(type)) {
+            Map<String, Object> info = new HashMap<String, Object>();
+            int maxDepth = 0;
+            long dropped = 0;
+            for (SwitchQueue queue : queues) {
+                synchronized (queue) {
+                    maxDepth = Math.max(maxDepth, queue.messages.size());
+                    dropped += queue.droppedPacketIns;
+                }
+            }
+            info.put("# dispatch queue max depth", maxDepth);
+            info.put("# dispatch dropped packet-ins", dropped);
+            return info;
+        } else if ("dispatch".equals(type)) {
+            Map<String, Object> info = new HashMap<String, Object>();
+            for (SwitchQueue queue : queues) {
+                // The string ID isn't set before the features reply
+                info.put(HexString.toHexString(queue.sw.getId()),
+                         queue.getStats());
+            }
+            return info;
+        }
+        return null;
+    }
+}
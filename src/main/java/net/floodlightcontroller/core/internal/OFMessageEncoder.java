@@ -20,18 +20,26 @@ package net.floodlightcontroller.core.internal;
 import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.factory.OFMessagePool;
 
 /**
  * Encode an openflow message for output into a ChannelBuffer, for use in a
  * netty pipeline
+ * 
+ * Output buffers are carved out of large preallocated direct buffers so
+ * that a batch is written to the socket without the extra heap to direct
+ * copy the JDK does for heap buffers.
  * @author readams
  */
 public class OFMessageEncoder extends OneToOneEncoder {
+    protected static final ChannelBufferFactory bufferFactory =
+            DirectChannelBufferFactory.getInstance();
 
     @Override
     protected Object encode(ChannelHandlerContext ctx, Channel channel,
@@ -46,9 +54,11 @@ public class OFMessageEncoder extends OneToOneEncoder {
                 size += ofm.getLengthU();
         }
 
-        ChannelBuffer buf = ChannelBuffers.buffer(size);;
+        ChannelBuffer buf = bufferFactory.getBuffer(size);
         for (OFMessage ofm :  msglist) {
             ofm.writeTo(buf);
+            // The message has been serialized, recycle it if it's pooled
+            OFMessagePool.releaseIfPooled(ofm);
         }
         return buf;
     }
@@ -0,0 +1,280 @@
+/**
+*    Copyright 2012, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.core.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+
+import org.jboss.netty.channel.Channel;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.OFMessagePool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per switch queue of outgoing messages.
+ *
+ * Messages written from any thread are appended to a single pending batch
+ * that is handed to the channel as one list, so the encoder can serialize
+ * them into one buffer. The batch is written when it reaches the batch size,
+ * when a caller asks for an immediate flush, or at the latest after the
+ * flush delay. While the channel is not writable (i.e., netty's outbound
+ * buffer is above its high water mark because the switch is not reading)
+ * nothing is written and the batch is held back until the channel becomes
+ * writable again. Once the held back batch reaches its capacity, further
+ * PACKET_OUTs are dropped. Other messages can't be dropped without leaving
+ * the switch in an unknown state, so once the batch reaches twice the
+ * capacity the switch is disconnected instead; it reconnects and is
+ * resynchronized like any new switch. Either way a slow switch cannot grow
+ * the controller heap without bound.
+ *
+ * The counters of every switch's queue are exported as the "writequeue"
+ * controller info.
+ */
+public class OFMessageWriteQueue {
+    protected static Logger log =
+            LoggerFactory.getLogger(OFMessageWriteQueue.class);
+
+    protected static final int DEFAULT_BATCH_SIZE = Controller.BATCH_MAX_SIZE;
+    protected static final int DEFAULT_CAPACITY = 10000;
+    protected static final long DEFAULT_FLUSH_DELAY_MS = 2;
+
+    protected Channel channel;
+    protected ScheduledExecutorService ses;
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+    protected int capacity = DEFAULT_CAPACITY;
+    protected long flushDelayMs = DEFAULT_FLUSH_DELAY_MS;
+
+    // All of the following are protected by the queue monitor, which is
+    // also held while writing to the channel to keep writes in order
+    protected List<OFMessage> pending;
+    protected boolean writable = true;
+    protected boolean flushScheduled = false;
+    protected boolean closed = false;
+    // Set once the queue overflowed and the channel has to be closed
+    protected boolean overflowed = false;
+    protected boolean channelClosed = false;
+
+    protected long messagesWritten = 0;
+    protected long batchesWritten = 0;
+    protected long droppedPacketOuts = 0;
+    protected long deferredFlushes = 0;
+    protected long overflowDisconnects = 0;
+    protected int maxPending = 0;
+
+    protected Runnable delayedFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (OFMessageWriteQueue.this) {
+                flushScheduled = false;
+                flushPending();
+            }
+        }
+    };
+
+    public OFMessageWriteQueue(Channel channel) {
+        this.channel = channel;
+        this.pending = new ArrayList<OFMessage>();
+    }
+
+    /**
+     * Set the executor used to flush batches that were not flushed
+     * explicitly. If null, messages are only written on size or on an
+     * explicit flush.
+     * @param ses
+     */
+    public void setScheduledExecutor(ScheduledExecutorService ses) {
+        this.ses = ses;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void setFlushDelayMs(long flushDelayMs) {
+        this.flushDelayMs = flushDelayMs;
+    }
+
+    /**
+     * Queue a message
+     * @param m the message
+     * @param flushNow write the pending batch right away
+     * @return false if the message was dropped
+     */
+    public boolean write(OFMessage m, boolean flushNow) {
+        boolean queued;
+        synchronized (this) {
+            queued = enqueue(m);
+            if (flushNow || pending.size() >= batchSize) {
+                flushPending();
+            } else {
+                scheduleFlush();
+            }
+        }
+        closeIfOverflowed();
+        return queued;
+    }
+
+    /**
+     * Queue a list of messages and write the pending batch right away
+     * @param msglist the messages
+     */
+    public void write(List<OFMessage> msglist) {
+        synchronized (this) {
+            for (OFMessage m : msglist) {
+                enqueue(m);
+            }
+            flushPending();
+        }
+        closeIfOverflowed();
+    }
+
+    /**
+     * Write the pending batch if the channel is writable
+     */
+    public synchronized void flush() {
+        flushPending();
+    }
+
+    /**
+     * Called when the writability of the channel changed. Writes whatever
+     * was held back once the channel becomes writable again.
+     * @param writable
+     */
+    public synchronized void setWritable(boolean writable) {
+        this.writable = writable;
+        if (writable)
+            flushPending();
+    }
+
+    /**
+     * Discard pending messages and stop accepting new ones
+     */
+    public synchronized void close() {
+        closed = true;
+        discardPending();
+    }
+
+    protected void discardPending() {
+        for (OFMessage m : pending) {
+            OFMessagePool.releaseIfPooled(m);
+        }
+        pending.clear();
+    }
+
+    protected boolean enqueue(OFMessage m) {
+        if (closed)
+            return false;
+        if (pending.size() >= capacity && m.getType() == OFType.PACKET_OUT) {
+            droppedPacketOuts++;
+            return false;
+        }
+        if (pending.size() >= 2 * capacity) {
+            // The channel is closed once the monitor is released, since
+            // closing it runs the disconnect handlers
+            closed = true;
+            overflowed = true;
+            overflowDisconnects++;
+            discardPending();
+            return false;
+        }
+        pending.add(m);
+        if (pending.size() > maxPending)
+            maxPending = pending.size();
+        return true;
+    }
+
+    protected void flushPending() {
+        if (pending.isEmpty())
+            return;
+        if (!writable) {
+            deferredFlushes++;
+            return;
+        }
+        List<OFMessage> batch = pending;
+        pending = new ArrayList<OFMessage>(Math.min(batch.size(), batchSize));
+        messagesWritten += batch.size();
+        batchesWritten++;
+        channel.write(batch);
+    }
+
+    @LogMessageDoc(level="ERROR",
+                   message="Disconnecting switch {switch}: {count} messages " +
+                           "held back while it is not reading",
+                   explanation="The switch stopped reading from its " +
+                           "connection and the messages written to it " +
+                           "exceeded the write queue limit",
+                   recommendation="The switch reconnects and its state is " +
+                           "resynchronized. If this keeps happening, check " +
+                           "the switch or raise writequeuecapacity. " +
+                           LogMessageDoc.CHECK_SWITCH)
+    protected void closeIfOverflowed() {
+        synchronized (this) {
+            if (!overflowed || channelClosed)
+                return;
+            channelClosed = true;
+        }
+        log.error("Disconnecting switch {}: {} messages held back while " +
+                  "it is not reading", channel.getRemoteAddress(),
+                  2 * capacity);
+        channel.close();
+    }
+
+    protected void scheduleFlush() {
+        if (flushScheduled || ses == null || pending.isEmpty())
+            return;
+        try {
+            ses.schedule(delayedFlush, flushDelayMs, TimeUnit.MILLISECONDS);
+            flushScheduled = true;
+        } catch (RejectedExecutionException e) {
+            // Shutting down; the batch is still written on size or flush
+        }
+    }
+
+    /**
+     * Get a snapshot of the counters for this queue
+     * @return
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<String, Object>();
+        stats.put("pending", pending.size());
+        stats.put("max-pending", maxPending);
+        stats.put("messages-written", messagesWritten);
+        stats.put("batches-written", batchesWritten);
+        stats.put("dropped-packet-outs", droppedPacketOuts);
+        stats.put("deferred-flushes", deferredFlushes);
+        stats.put("overflow-disconnects", overflowDisconnects);
+        stats.put("writable", writable);
+        return stats;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+}
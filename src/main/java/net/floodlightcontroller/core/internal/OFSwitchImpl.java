@@ -23,10 +23,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
@@ -91,6 +92,7 @@ public class OFSwitchImpl implements IOFSwitch {
     protected Date connectedSince;
     protected String stringId;
     protected Channel channel;
+    protected OFMessageWriteQueue outputQueue;
     protected AtomicInteger transactionIdSource;
     // Lock to protect modification of the port maps. We only need to 
     // synchronize on modifications. For read operations we are fine since
@@ -130,11 +132,12 @@ public class OFSwitchImpl implements IOFSwitch {
     protected long datapathId;
 
     public static IOFSwitchFeatures switchFeatures;
-    protected static final ThreadLocal<Map<OFSwitchImpl,List<OFMessage>>> local_msg_buffer =
-            new ThreadLocal<Map<OFSwitchImpl,List<OFMessage>>>() {
+    // Switches this thread has queued messages to since its last flush_all()
+    protected static final ThreadLocal<Set<OFSwitchImpl>> local_dirty_switches =
+            new ThreadLocal<Set<OFSwitchImpl>>() {
             @Override
-            protected Map<OFSwitchImpl,List<OFMessage>> initialValue() {
-                return new HashMap<OFSwitchImpl,List<OFMessage>>();
+            protected Set<OFSwitchImpl> initialValue() {
+                return new HashSet<OFSwitchImpl>();
             }
     };
     
@@ -211,25 +214,30 @@ public class OFSwitchImpl implements IOFSwitch {
     @JsonIgnore
     public void setChannel(Channel channel) {
         this.channel = channel;
+        this.outputQueue = new OFMessageWriteQueue(channel);
+        if (threadPool != null)
+            outputQueue.setScheduledExecutor(threadPool.getScheduledExecutor());
+    }
+
+    /**
+     * Get the queue that batches messages written to this switch
+     * @return
+     */
+    @JsonIgnore
+    public OFMessageWriteQueue getOutputQueue() {
+        return outputQueue;
     }
     
     @Override
     public void write(OFMessage m, FloodlightContext bc) throws IOException {
-        Map<OFSwitchImpl,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        List<OFMessage> msg_buffer = msg_buffer_map.get(this);
-        if (msg_buffer == null) {
-            msg_buffer = new ArrayList<OFMessage>();
-            msg_buffer_map.put(this, msg_buffer);
-        }
-
         this.floodlightProvider.handleOutgoingMessage(this, m, bc);
-        msg_buffer.add(m);
-
-        if ((msg_buffer.size() >= Controller.BATCH_MAX_SIZE) ||
-            ((m.getType() != OFType.PACKET_OUT) && (m.getType() != OFType.FLOW_MOD))) {
-            this.write(msg_buffer);
-            msg_buffer.clear();
-        }
+        local_dirty_switches.get().add(this);
+        // PACKET_OUTs and FLOW_MODs are batched until flushed, the batch
+        // fills up or the flush delay expires. Everything else goes out
+        // right away together with whatever is already pending.
+        boolean flushNow = (m.getType() != OFType.PACKET_OUT) &&
+                           (m.getType() != OFType.FLOW_MOD);
+        outputQueue.write(m, flushNow);
     }
 
     @Override
@@ -261,7 +269,7 @@ public class OFSwitchImpl implements IOFSwitch {
     }
 
     public void write(List<OFMessage> msglist) throws IOException {
-        this.channel.write(msglist);
+        outputQueue.write(msglist);
     }
     
     @Override
@@ -427,7 +435,7 @@ public class OFSwitchImpl implements IOFSwitch {
         this.iofMsgListenersMap.put(xid, caller);
         List<OFMessage> msglist = new ArrayList<OFMessage>(1);
         msglist.add(request);
-        this.channel.write(msglist);
+        this.write(msglist);
         return;
     }
 
@@ -438,7 +446,7 @@ public class OFSwitchImpl implements IOFSwitch {
         this.statsFutureMap.put(request.getXid(), future);
         List<OFMessage> msglist = new ArrayList<OFMessage>(1);
         msglist.add(request);
-        this.channel.write(msglist);
+        this.write(msglist);
         return future;
     }
 
@@ -489,6 +497,8 @@ public class OFSwitchImpl implements IOFSwitch {
     @JsonIgnore
     public void setThreadPoolService(IThreadPoolService tp) {
         this.threadPool = tp;
+        if (outputQueue != null)
+            outputQueue.setScheduledExecutor(tp.getScheduledExecutor());
     }
 
     @JsonIgnore
@@ -501,6 +511,9 @@ public class OFSwitchImpl implements IOFSwitch {
     @JsonIgnore
     public synchronized void setConnected(boolean connected) {
         this.connected = connected;
+        // Drop whatever is still held back for a disconnected switch
+        if (!connected && outputQueue != null)
+            outputQueue.close();
     }
     
     @Override
@@ -540,7 +553,7 @@ public class OFSwitchImpl implements IOFSwitch {
         try {
             List<OFMessage> msglist = new ArrayList<OFMessage>(1);
             msglist.add(fm);
-            channel.write(msglist);
+            this.write(msglist);
         } catch (Exception e) {
             log.error("Failed to clear all flows on switch " + this, e);
         }
@@ -568,24 +581,18 @@ public class OFSwitchImpl implements IOFSwitch {
 
     @Override
     public void flush() {
-        Map<OFSwitchImpl,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        List<OFMessage> msglist = msg_buffer_map.get(this);
-        if ((msglist != null) && (msglist.size() > 0)) {
-            try {
-                this.write(msglist);
-            } catch (IOException e) {
-                // TODO: log exception
-                e.printStackTrace();
-            }
-            msglist.clear();
-        }
+        if (outputQueue != null)
+            outputQueue.flush();
     }
 
     public static void flush_all() {
-        Map<OFSwitchImpl,List<OFMessage>> msg_buffer_map = local_msg_buffer.get();
-        for (OFSwitchImpl sw : msg_buffer_map.keySet()) {
+        Set<OFSwitchImpl> dirty = local_dirty_switches.get();
+        if (dirty.isEmpty())
+            return;
+        for (OFSwitchImpl sw : dirty) {
             sw.flush();
         }
+        dirty.clear();
     }
 
     /**
@@ -671,9 +678,9 @@ public class OFSwitchImpl implements IOFSwitch {
             // Send it to the switch
             List<OFMessage> msglist = new ArrayList<OFMessage>(1);
             msglist.add(roleRequest);
-            // FIXME: should this use this.write() in order for messages to
-            // be processed by handleOutgoingMessage()
-            this.channel.write(msglist);
+            // FIXME: should this use this.write(msglist, bc) in order for
+            // messages to be processed by handleOutgoingMessage()
+            this.write(msglist);
             
             pendingRoleRequests.add(new PendingRoleRequestEntry(xid, role, cookie));
             return xid;
@@ -810,7 +817,7 @@ public class OFSwitchImpl implements IOFSwitch {
         this.featuresFutureMap.put(request.getXid(), future);
         List<OFMessage> msglist = new ArrayList<OFMessage>(1);
         msglist.add(request);
-        this.channel.write(msglist);
+        this.write(msglist);
         return future;
     }
 
@@ -55,7 +55,7 @@ public class OpenflowPipelineFactory implements ChannelPipelineFactory {
         OFChannelState state = new OFChannelState();
         
         ChannelPipeline pipeline = Channels.pipeline();
-        pipeline.addLast("ofmessagedecoder", new OFMessageDecoder());
+        pipeline.addLast("ofmessagedecoder", new OFMessageDecoder(controller.isZeroCopyPacketIn()));
         pipeline.addLast("ofmessageencoder", new OFMessageEncoder());
         pipeline.addLast("idle", idleHandler);
         pipeline.addLast("timeout", readTimeoutHandler);
@@ -57,6 +57,10 @@ public class CoreWebRoutable implements RestletRoutable {
                 EventHistoryTopologyClusterResource.class);
         router.attach("/storage/tables/json", StorageSourceTablesResource.class);
         router.attach("/controller/summary/json", ControllerSummaryResource.class);
+        router.attach("/controller/dispatch/json", ControllerDispatchResource.class);
+        router.attach("/controller/writequeue/json", ControllerWriteQueueResource.class);
+        router.attach("/controller/damper/json", ControllerDamperResource.class);
+        router.attach("/controller/routeinstaller/json", ControllerRouteInstallerResource.class);
         router.attach("/role/json", ControllerRoleResource.class);
         router.attach("/health/json", HealthCheckResource.class);
         router.attach("/system/uptime/json", SystemUptimeResource.class);
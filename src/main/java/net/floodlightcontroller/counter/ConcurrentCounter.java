@@ -24,31 +24,28 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import net.floodlightcontroller.counter.CounterValue.CounterType;
 
 
 /**
- * This module needs to be updated with CounterValue.
+ * A highly concurrent implementation of the Counter interface.
  * 
- * This is a crumby attempt at a highly concurrent implementation of the Counter interface.
- * 
- * (Help! Help!  Someone please re-write me!  This will almost certainly break at high loads.)
- * 
- * The gist is that this class, ConcurrentCounter, keeps an internal highly transient buffer that is occasionally flushed
- * in to a set of CountBuffers (circular buffers) which store a longer term historical view of the count values at different
- * moments in time.
- * 
- * This Counter implementation may be a bit over-engineered...  The goal here was to present an implementation that is very
- * predictable with respect to memory and CPU time and, at the same time, present a very fast increment() method.  The reasoning
- * here is that this will be a go-to class when it comes to debugging, particularly in high-load situations where logging
- * may introduce so much variability to the system that it foils the results.
+ * increment() adds to one of a small set of striped cells, chosen by the
+ * calling thread, so concurrent threads rarely contend on the same cache
+ * line and nothing is allocated. A background thread flushes the cells
+ * every 100 milliseconds: it sums and clears them and rolls the sum into a
+ * set of CountBuffers (circular buffers) which store a longer term
+ * historical view of the count values at different moments in time. The
+ * time buckets are therefore computed on the flusher side, to within the
+ * flush interval.
  * 
  * @author kyle
  *
@@ -64,13 +61,34 @@ public class ConcurrentCounter implements ICounter {
     MAX_HISTORY.put(DateSpan.DAYS, new Integer(60));
     MAX_HISTORY.put(DateSpan.WEEKS, new Integer(2)); 
   }
+
+  // Number of cells, a power of two
+  protected static final int STRIPES;
+  // Distance between used cells in the cell array so that each cell sits
+  // on its own 64 byte cache line
+  protected static final int CELL_PAD = 8;
+  static {
+    int stripes = 1;
+    int cpus = Runtime.getRuntime().availableProcessors();
+    while (stripes < cpus && stripes < 16)
+      stripes <<= 1;
+    STRIPES = stripes;
+  }
   
   protected static Set<ConcurrentCounter> liveCounters;
   
   static {
     liveCounters = Collections.newSetFromMap(new ConcurrentHashMap<ConcurrentCounter, Boolean>()); //nifty way to get concurrent hash set
     //Set a background thread to flush any liveCounters every 100 milliseconds
-    Executors.newScheduledThreadPool(1).scheduleAtFixedRate(new Runnable() {
+    ScheduledExecutorService flusher =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConcurrentCounter flusher");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    flusher.scheduleAtFixedRate(new Runnable() {
         public void run() {
             for(ConcurrentCounter c : liveCounters) {
                 c.flush();
@@ -78,29 +96,11 @@ public class ConcurrentCounter implements ICounter {
         }}, 100, 100, TimeUnit.MILLISECONDS);
   }
 
-  /**
-   * Very simple data structure to store off a single count entry at a single point in time
-   * @author kyle
-   *
-   */
-  protected static final class CountAtom {
-    protected Date date;
-    protected Long delta;
-    
-    protected CountAtom(Date date, Long delta) {
-      this.date = date;
-      this.delta = delta;
-    }
-    
-    public String toString() {
-      return "[" + this.date + ": " + this.delta + "]";
-    }
-  }
-
-  
-  protected Queue<CountAtom> unprocessedCountBuffer;
+  protected AtomicLongArray cells;
   protected Map<DateSpan, CountBuffer> counts;
   protected Date startDate;
+  // Sum of all flushed increments, protected by this
+  protected long total;
   
   /**
    * Factory method to create a new counter instance.  (Design note - 
@@ -116,41 +116,71 @@ public class ConcurrentCounter implements ICounter {
     return cc;
     
   }
+
+  /**
+   * Stop flushing a counter that is no longer used
+   * @param counter
+   */
+  public static void destroyCounter(ICounter counter) {
+    liveCounters.remove(counter);
+  }
   
   /**
    * Protected constructor - use createCounter factory method instead
    * @param startDate
    */
   protected ConcurrentCounter(Date startDate) {
+    this.cells = new AtomicLongArray(STRIPES * CELL_PAD);
     init(startDate);
   }
   
-  protected void init(Date startDate) {
+  protected synchronized void init(Date startDate) {
     this.startDate = startDate;
-    this.unprocessedCountBuffer = new ConcurrentLinkedQueue<CountAtom>();
     this.counts = new HashMap<DateSpan, CountBuffer>();
+    this.total = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * CELL_PAD, 0);
+    }
       
     for(DateSpan ds : DateSpan.values()) {
       CountBuffer cb = new CountBuffer(startDate, ds, MAX_HISTORY.get(ds));
       counts.put(ds, cb);
     }
   }
+
+  protected static int cellIndex() {
+    long id = Thread.currentThread().getId();
+    return ((int) (id ^ (id >>> 7)) & (STRIPES - 1)) * CELL_PAD;
+  }
+
   /**
    * This is the key method that has to be both fast and very thread-safe.
    */
   @Override
   public void increment() {
-    this.increment(new Date(), (long)1);
+    cells.getAndIncrement(cellIndex());
   }
   
+  /**
+   * Adds the delta at the given date right away, bypassing the cells
+   */
   @Override
-  public void increment(Date d, long delta) {
-    this.unprocessedCountBuffer.add(new CountAtom(d, delta));
+  public synchronized void increment(Date d, long delta) {
+    for(DateSpan ds : DateSpan.values()) {
+      counts.get(ds).increment(d, delta);
+    }
+    total += delta;
   }
   
+  /**
+   * Sets the current value. The time series are not changed.
+   */
   @Override
-  public void setCounter(Date d, CounterValue value) {
-      // To be done later
+  public synchronized void setCounter(Date d, CounterValue value) {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * CELL_PAD, 0);
+    }
+    total = value.getLong();
   }
   
   /**
@@ -162,31 +192,46 @@ public class ConcurrentCounter implements ICounter {
   }
   
   /**
-   * Flushes values out of the internal buffer and in to structures
+   * Flushes values out of the striped cells and in to structures
    * that can be fetched with a call to snapshot()
    */
   public synchronized void flush() {
-    for(CountAtom c = this.unprocessedCountBuffer.poll(); c != null; c = this.unprocessedCountBuffer.poll()) {
-      for(DateSpan ds : DateSpan.values()) {
-        CountBuffer cb = counts.get(ds);
-        cb.increment(c.date, c.delta);
-      }
+    long delta = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      int index = i * CELL_PAD;
+      if (cells.get(index) != 0)
+        delta += cells.getAndSet(index, 0);
+    }
+    if (delta == 0)
+      return;
+    Date now = new Date();
+    for(DateSpan ds : DateSpan.values()) {
+      counts.get(ds).increment(now, delta);
     }
+    total += delta;
+  }
+
+  protected long pending() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * CELL_PAD);
+    }
+    return sum;
   }
   
   @Override
-  public CounterValue getCounterValue() {
-      // To be done later
-      //CountSeries cs = counts.get(DateSpan.REALTIME).snapshot();
-      //return cs.getSeries()[0];
-      return new CounterValue(CounterType.LONG);
+  public synchronized CounterValue getCounterValue() {
+      CounterValue value = new CounterValue(CounterType.LONG);
+      value.setLongValue(total + pending());
+      return value;
   }
   
+  /**
+   * The counter is sampled when its value is read, so this is the
+   * current time
+   */
   @Override
   public Date getCounterDate() {
-      // To be done later
-      //CountSeries cs = counts.get(DateSpan.REALTIME).snapshot();
-      //return cs.getSeries()[0];
       return new Date();
   }
   
@@ -196,7 +241,10 @@ public class ConcurrentCounter implements ICounter {
    */
   public CountSeries snapshot(DateSpan dateSpan) {
     flush();
-    CountSeries cs = counts.get(dateSpan).snapshot();
+    CountSeries cs;
+    synchronized (this) {
+      cs = counts.get(dateSpan).snapshot();
+    }
     return cs;
   }
 
@@ -21,6 +21,7 @@
 package net.floodlightcontroller.counter;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
@@ -29,6 +30,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.annotation.PostConstruct;
 
@@ -40,9 +42,11 @@ import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.counter.CounterValue.CounterType;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.ConcurrentLongHashMap;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,204 +83,239 @@ public class CounterStore implements IFloodlightModule, ICounterStoreService {
     protected static Map<NetworkLayer, Map<String, List<String>>> layeredCategories = 
             new ConcurrentHashMap<NetworkLayer, Map<String, List<String>>> ();
 
-    public void updatePacketInCounters(IOFSwitch sw, OFMessage m, Ethernet eth) {
-        OFPacketIn packet = (OFPacketIn)m;
-        
-        // Make sure there is data
-        if (packet.getPacketData().length <= 0) return;
-        
-        /* Extract the etherType and protocol field for IPv4 packet.
-         */
-        String etherType = String.format("%04x", eth.getEtherType());
-        
-        /*
-         * Valid EtherType must be greater than or equal to 0x0600
-         * It is V1 Ethernet Frame if EtherType < 0x0600
-         */
-        if (eth.getEtherType() < 0x0600) {
-            etherType = "0599";
+    /**
+     * Counters of one switch, one port or the controller, resolved once by
+     * name and then used directly. Counters are created on first use.
+     */
+    protected class CounterGroup {
+        protected final String switchId;
+        protected final int portId;
+        protected final AtomicReferenceArray<ICounter> typeCounters =
+                new AtomicReferenceArray<ICounter>(ofTypeNames.length);
+        protected final AtomicReferenceArray<ICounter> l2Counters =
+                new AtomicReferenceArray<ICounter>(l2Names.length);
+        protected final AtomicReferenceArray<ICounter> l3Counters =
+                new AtomicReferenceArray<ICounter>(l3Names.length);
+        protected final AtomicReferenceArray<ICounter> l4Counters =
+                new AtomicReferenceArray<ICounter>(l4Names.length);
+
+        protected CounterGroup(String switchId, int portId) {
+            this.switchId = switchId;
+            this.portId = portId;
         }
 
-        if (TypeAliases.l3TypeAliasMap != null && 
-            TypeAliases.l3TypeAliasMap.containsKey(etherType)) {
-            etherType = TypeAliases.l3TypeAliasMap.get(etherType);
-        } else {
-            etherType = "L3_" + etherType;
+        protected ICounter getTypeCounter(OFType type) {
+            int i = type.ordinal();
+            ICounter c = typeCounters.get(i);
+            if (c == null) {
+                c = createCounter(createCounterName(switchId, portId,
+                                                    ofTypeNames[i]),
+                                  CounterType.LONG);
+                typeCounters.set(i, c);
+            }
+            return c;
         }
-        String switchIdHex = sw.getStringId();
-   
-        String packetName = m.getType().toClass().getName();
-        packetName = packetName.substring(packetName.lastIndexOf('.')+1); 
-        
-        // Construct controller counter for the packet_in
-        String controllerCounterName =
-            CounterStore.createCounterName(CONTROLLER_NAME, 
-                                           -1,
-                                           packetName);
-    
-        String controllerL3CategoryCounterName = 
-            CounterStore.createCounterName(CONTROLLER_NAME, 
-                                           -1,
-                                           packetName, 
-                                           etherType, 
-                                           NetworkLayer.L3);
-
-        String l2Type = null;
-        if (eth.isBroadcast()) {
-        	l2Type = BROADCAST;
-        } else if (eth.isMulticast()) {
-        	l2Type = MULTICAST;
-        } else {
-        	l2Type = UNICAST;
+
+        protected ICounter getCategoryCounter(AtomicReferenceArray<ICounter> counters,
+                                              String[] names, int i,
+                                              NetworkLayer layer) {
+            ICounter c = counters.get(i);
+            if (c == null) {
+                c = createCounter(createCounterName(switchId, portId,
+                                                    PACKET_IN_NAME,
+                                                    names[i], layer),
+                                  CounterType.LONG);
+                counters.set(i, c);
+            }
+            return c;
         }
-        
-        // Construct both port and switch L3 counter for the packet_in
-    	String controllerL2CategoryCounterName = CounterStore.createCounterName(CONTROLLER_NAME, 
-                -1,
-                packetName, 
-                l2Type, 
-                NetworkLayer.L2);
-    	String switchL2CategoryCounterName = CounterStore.createCounterName(switchIdHex, 
-                -1, 
-                packetName, 
-                l2Type, 
-                NetworkLayer.L2);
-    	String portL2CategoryCounterName = CounterStore.createCounterName(switchIdHex, 
-                packet.getInPort(),
-                packetName, 
-                l2Type, 
-                NetworkLayer.L2);
-        
-        // Construct both port and switch L3 counter for the packet_in
-        String portCounterName =
-                CounterStore.createCounterName(switchIdHex, 
-                                               packet.getInPort(),
-                                               packetName);
-        String switchCounterName =
-                CounterStore.createCounterName(switchIdHex, 
-                                               -1,
-                                               packetName);
-        
-        String portL3CategoryCounterName = 
-                CounterStore.createCounterName(switchIdHex, 
-                                               packet.getInPort(),
-                                               packetName, 
-                                               etherType, 
-                                               NetworkLayer.L3);
-        String switchL3CategoryCounterName =
-                CounterStore.createCounterName(switchIdHex, 
-                                               -1, 
-                                               packetName, 
-                                               etherType, 
-                                               NetworkLayer.L3);
-
-        // Controller counters
-        ICounter controllerCounter = getCounter(controllerCounterName);
-        if (controllerCounter == null) {
-            controllerCounter = createCounter(controllerCounterName, 
-                                              CounterType.LONG);
+
+        /**
+         * Increment the packet-in counter and its L2, L3 and L4 categories
+         * @param l2 index into l2Names
+         * @param l3 index into l3Names, or -1 if the ethertype has no alias
+         * @param l3Name name of the L3 category if l3 is -1
+         * @param l4 IPv4 protocol, or -1 if not an IPv4 packet
+         */
+        protected void updatePacketIn(int l2, int l3, String l3Name, int l4) {
+            getTypeCounter(OFType.PACKET_IN).increment();
+            getCategoryCounter(l2Counters, l2Names, l2,
+                               NetworkLayer.L2).increment();
+            if (l3 >= 0) {
+                getCategoryCounter(l3Counters, l3Names, l3,
+                                   NetworkLayer.L3).increment();
+            } else {
+                // Ethertypes without an alias are rare, look them up by name
+                createCounter(createCounterName(switchId, portId,
+                                                PACKET_IN_NAME, l3Name,
+                                                NetworkLayer.L3),
+                              CounterType.LONG).increment();
+            }
+            if (l4 >= 0) {
+                getCategoryCounter(l4Counters, l4Names, l4,
+                                   NetworkLayer.L4).increment();
+            }
+        }
+    }
+
+    /**
+     * The counters of a switch and of each of its ports
+     */
+    protected class SwitchCounters extends CounterGroup {
+        protected volatile CounterGroup[] ports = new CounterGroup[0];
+
+        protected SwitchCounters(String switchId) {
+            super(switchId, -1);
         }
-        controllerCounter.increment();
-        ICounter portCounter = getCounter(portCounterName);
-        if (portCounter == null) {
-            portCounter = createCounter(portCounterName, 
-                                        CounterType.LONG);
+
+        /**
+         * Get the counters of a port. Ports with a negative number, e.g.,
+         * OFPP_LOCAL, are counted as the switch itself.
+         * @param port
+         * @return
+         */
+        protected CounterGroup getPort(short port) {
+            if (port < 0)
+                return this;
+            CounterGroup[] p = ports;
+            if (port < p.length && p[port] != null)
+                return p[port];
+            synchronized (this) {
+                p = ports;
+                if (port >= p.length)
+                    p = Arrays.copyOf(p, port + 1);
+                if (p[port] == null) {
+                    p[port] = new CounterGroup(switchId, port);
+                    ports = p;
+                }
+                return p[port];
+            }
         }
-        portCounter.increment();
-        ICounter switchCounter = getCounter(switchCounterName);
-        if (switchCounter == null) {
-            switchCounter = createCounter(switchCounterName, 
-                                          CounterType.LONG);
+    }
+
+    protected static final String PACKET_IN_NAME =
+            OFType.PACKET_IN.toClass().getSimpleName();
+
+    /**
+     * Counter names by OFType ordinal
+     */
+    protected static final String[] ofTypeNames;
+
+    protected static final int L2_BROADCAST = 0;
+    protected static final int L2_MULTICAST = 1;
+    protected static final int L2_UNICAST = 2;
+    protected static final String[] l2Names =
+            new String[] { BROADCAST, MULTICAST, UNICAST };
+
+    /**
+     * L3 category names of the aliased ethertypes, and the index of each
+     * ethertype into them, plus one. 0 means the ethertype has no alias.
+     */
+    protected static final String[] l3Names;
+    protected static final byte[] l3Index = new byte[0x10000];
+    protected static final int V1_ETHER_TYPE = 0x0599;
+    protected static final int L3_IPV4;
+
+    /**
+     * L4 category names by IPv4 protocol
+     */
+    protected static final String[] l4Names = new String[256];
+
+    static {
+        OFType[] types = OFType.values();
+        ofTypeNames = new String[types.length];
+        for (OFType t : types) {
+            ofTypeNames[t.ordinal()] = t.toClass().getSimpleName();
         }
-        switchCounter.increment();
 
-        // L2 counters
-        ICounter controllerL2Counter = getCounter(controllerL2CategoryCounterName);
-        if (controllerL2Counter == null) {
-            controllerL2Counter = createCounter(controllerL2CategoryCounterName,
-                                                CounterType.LONG);
+        l3Names = new String[TypeAliases.l3TypeAliasMap.size()];
+        int i = 0;
+        for (Map.Entry<String, String> e :
+                TypeAliases.l3TypeAliasMap.entrySet()) {
+            l3Names[i] = e.getValue();
+            l3Index[Integer.parseInt(e.getKey(), 16)] = (byte) ++i;
         }
-        controllerL2Counter.increment();
-        ICounter switchL2Counter = getCounter(switchL2CategoryCounterName);
-        if (switchL2Counter == null) {
-            switchL2Counter = createCounter(switchL2CategoryCounterName,
-                                            CounterType.LONG);
+        L3_IPV4 = l3Index[Ethernet.TYPE_IPv4] - 1;
+
+        for (i = 0; i < l4Names.length; i++) {
+            String l4Type = String.format("%02x", i);
+            String alias = TypeAliases.l4TypeAliasMap.get(l4Type);
+            l4Names[i] = (alias != null) ? alias : "L4_" + l4Type;
         }
-        switchL2Counter.increment();
-        ICounter portL2Counter = getCounter(portL2CategoryCounterName);
-        if (portL2Counter == null) {
-            portL2Counter = createCounter(portL2CategoryCounterName,
-                                          CounterType.LONG);
+    }
+
+    protected CounterGroup controllerCounters =
+            new CounterGroup(CONTROLLER_NAME, -1);
+
+    /**
+     * Switch ID string --> counters of the switch
+     */
+    protected ConcurrentHashMap<String, SwitchCounters> switchCounters =
+            new ConcurrentHashMap<String, SwitchCounters>();
+
+    /**
+     * DPID --> counters of the switch, resolved once per switch so that
+     * the per-message updates do a primitive lookup without building the
+     * switch ID string
+     */
+    protected ConcurrentLongHashMap<SwitchCounters> switchCountersByDpid =
+            new ConcurrentLongHashMap<SwitchCounters>();
+
+    protected SwitchCounters getSwitchCounters(IOFSwitch sw) {
+        SwitchCounters counters = switchCountersByDpid.get(sw.getId());
+        if (counters != null)
+            return counters;
+        String switchId = sw.getStringId();
+        counters = switchCounters.get(switchId);
+        if (counters == null) {
+            counters = new SwitchCounters(switchId);
+            SwitchCounters old = switchCounters.putIfAbsent(switchId, counters);
+            if (old != null)
+                counters = old;
         }
-        portL2Counter.increment();
+        switchCountersByDpid.putIfAbsent(sw.getId(), counters);
+        return counters;
+    }
 
-        // L3 counters
-        ICounter controllerL3Counter = getCounter(controllerL3CategoryCounterName);
-        if (controllerL3Counter == null) {
-            controllerL3Counter = createCounter(controllerL3CategoryCounterName,
-                                                CounterType.LONG);
+    public void updatePacketInCounters(IOFSwitch sw, OFMessage m, Ethernet eth) {
+        OFPacketIn packet = (OFPacketIn)m;
+        
+        // Make sure there is data
+        if (packet.getPacketDataLength() <= 0) return;
+
+        int l2;
+        if (eth.isBroadcast()) {
+            l2 = L2_BROADCAST;
+        } else if (eth.isMulticast()) {
+            l2 = L2_MULTICAST;
+        } else {
+            l2 = L2_UNICAST;
         }
-        controllerL3Counter.increment();
-        ICounter portL3Counter = getCounter(portL3CategoryCounterName);
-        if (portL3Counter == null) {
-            portL3Counter = createCounter(portL3CategoryCounterName,
-                                          CounterType.LONG);
+
+        /*
+         * Valid EtherType must be greater than or equal to 0x0600
+         * It is V1 Ethernet Frame if EtherType < 0x0600
+         */
+        int etherType = eth.getEtherType() & 0xffff;
+        if (etherType < 0x0600) {
+            etherType = V1_ETHER_TYPE;
         }
-        portL3Counter.increment();
-        ICounter switchL3Counter = getCounter(switchL3CategoryCounterName);
-        if (switchL3Counter == null) {
-            switchL3Counter = createCounter(switchL3CategoryCounterName,
-                                            CounterType.LONG);
+        int l3 = l3Index[etherType] - 1;
+        String l3Name = null;
+        if (l3 < 0) {
+            l3Name = "L3_" + String.format("%04x", etherType);
         }
-        switchL3Counter.increment();
-
-        // L4 counters
-        if (etherType.compareTo(CounterStore.L3ET_IPV4) == 0) {
-            IPv4 ipV4 = (IPv4)eth.getPayload();
-            String l4Type = String.format("%02x", ipV4.getProtocol());
-            if (TypeAliases.l4TypeAliasMap != null && 
-                    TypeAliases.l4TypeAliasMap.containsKey(l4Type)) {
-                l4Type = TypeAliases.l4TypeAliasMap.get(l4Type);
-            } else {
-                l4Type = "L4_" + l4Type;
-            }
-            String controllerL4CategoryCounterName = 
-                    CounterStore.createCounterName(CONTROLLER_NAME, 
-                                                   -1, 
-                                                   packetName, 
-                                                   l4Type, 
-                                                   NetworkLayer.L4);
-            String portL4CategoryCounterName =
-                    CounterStore.createCounterName(switchIdHex, 
-                                                   packet.getInPort(), 
-                                                   packetName, 
-                                                   l4Type, 
-                                                   NetworkLayer.L4);
-            String switchL4CategoryCounterName = 
-                    CounterStore.createCounterName(switchIdHex, 
-                                                   -1, 
-                                                   packetName, 
-                                                   l4Type, 
-                                                   NetworkLayer.L4);
-            ICounter controllerL4Counter = getCounter(controllerL4CategoryCounterName);
-            if (controllerL4Counter == null) {
-                controllerL4Counter = createCounter(controllerL4CategoryCounterName, 
-                                                    CounterType.LONG);
-            }
-            controllerL4Counter.increment();
-            ICounter portL4Counter = getCounter(portL4CategoryCounterName);
-            if (portL4Counter == null) {
-                portL4Counter = createCounter(portL4CategoryCounterName, 
-                                              CounterType.LONG);
-            }
-            portL4Counter.increment();
-            ICounter switchL4Counter = getCounter(switchL4CategoryCounterName);
-            if (switchL4Counter == null) {
-                switchL4Counter = createCounter(switchL4CategoryCounterName, 
-                                                CounterType.LONG);
-            }
-            switchL4Counter.increment();
+
+        int l4 = -1;
+        if (l3 == L3_IPV4 && eth.getPayload() instanceof IPv4) {
+            l4 = ((IPv4)eth.getPayload()).getProtocol() & 0xff;
         }
+
+        SwitchCounters switchGroup = getSwitchCounters(sw);
+        controllerCounters.updatePacketIn(l2, l3, l3Name, l4);
+        switchGroup.getPort(packet.getInPort())
+                   .updatePacketIn(l2, l3, l3Name, l4);
+        switchGroup.updatePacketIn(l2, l3, l3Name, l4);
     }
     
     /**
@@ -286,22 +325,9 @@ public class CounterStore implements IFloodlightModule, ICounterStoreService {
      * @param ofMsg
      */
     public void updatePktOutFMCounterStore(IOFSwitch sw, OFMessage ofMsg) {
-        String packetName = ofMsg.getType().toClass().getName();
-        packetName = packetName.substring(packetName.lastIndexOf('.')+1);
         // flowmod is per switch and controller. portid = -1
-        String controllerFMCounterName = CounterStore.createCounterName(CONTROLLER_NAME, -1, packetName);  
-        ICounter counter = getCounter(controllerFMCounterName);
-        if (counter == null) {
-            counter = createCounter(controllerFMCounterName, CounterValue.CounterType.LONG);
-        }
-        counter.increment();
-
-        String switchFMCounterName = CounterStore.createCounterName(sw.getStringId(), -1, packetName);
-        counter = getCounter(switchFMCounterName);
-        if (counter == null) {
-            counter = createCounter(switchFMCounterName, CounterValue.CounterType.LONG);
-        }
-        counter.increment();
+        controllerCounters.getTypeCounter(ofMsg.getType()).increment();
+        getSwitchCounters(sw).getTypeCounter(ofMsg.getType()).increment();
     }
 
 
@@ -375,11 +401,24 @@ public class CounterStore implements IFloodlightModule, ICounterStoreService {
         CounterEntry ce;
         ICounter c;
 
-        c = SimpleCounter.createCounter(new Date(), type);
+        ce = nameToCEIndex.get(key);
+        if (ce != null) {
+            return ce.counter;
+        }
+
+        // Long counters are striped so concurrent increments don't contend
+        if (type == CounterValue.CounterType.LONG) {
+            c = ConcurrentCounter.createCounter(new Date());
+        } else {
+            c = SimpleCounter.createCounter(new Date(), type);
+        }
         ce = new CounterEntry();
         ce.counter = c;
         ce.title = key;
-        nameToCEIndex.putIfAbsent(key, ce);
+        if (nameToCEIndex.putIfAbsent(key, ce) != null) {
+            // Lost a race with another thread creating the same counter
+            ConcurrentCounter.destroyCounter(c);
+        }
         
         return nameToCEIndex.get(key).counter;
     }
@@ -0,0 +1,57 @@
+package net.floodlightcontroller.devicemanager;
+
+import java.util.EnumSet;
+
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+/**
+ * A device update event to be dispatched to {@link IDeviceListener}s
+ */
+public class DeviceUpdate {
+    public enum Change {
+        ADD, DELETE, CHANGE, MOVED;
+    }
+
+    /**
+     * The affected device
+     */
+    protected IDevice device;
+
+    /**
+     * The change that was made
+     */
+    protected Change change;
+
+    /**
+     * If changed, then this is the list of fields changed
+     */
+    protected EnumSet<DeviceField> fieldsChanged;
+
+    public DeviceUpdate(IDevice device, Change change,
+                        EnumSet<DeviceField> fieldsChanged) {
+        super();
+        this.device = device;
+        this.change = change;
+        this.fieldsChanged = fieldsChanged;
+    }
+
+    public IDevice getDevice() {
+        return device;
+    }
+
+    public Change getChange() {
+        return change;
+    }
+
+    public EnumSet<DeviceField> getFieldsChanged() {
+        return fieldsChanged;
+    }
+
+    @Override
+    public String toString() {
+        String devIdStr = device.getEntityClass().getName() + "::" +
+                device.getMACAddressString();
+        return "DeviceUpdate [device=" + devIdStr + ", change=" + change
+               + ", fieldsChanged=" + fieldsChanged + "]";
+    }
+}
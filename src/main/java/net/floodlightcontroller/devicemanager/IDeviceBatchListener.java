@@ -0,0 +1,17 @@
+package net.floodlightcontroller.devicemanager;
+
+import java.util.List;
+
+/**
+ * Device listeners that implement this interface receive the updates
+ * from DeviceManager in batches instead of one callback per update.
+ */
+public interface IDeviceBatchListener extends IDeviceListener {
+    /**
+     * Called with a batch of updates in place of the individual
+     * {@link IDeviceListener} callbacks. Updates to the same device are in
+     * the order they were made; redundant ones may have been merged.
+     * @param updates the updates, which must not be modified
+     */
+    public void devicesUpdated(List<DeviceUpdate> updates);
+}
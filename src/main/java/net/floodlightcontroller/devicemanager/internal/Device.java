@@ -411,6 +411,29 @@ entity.getLastSeenTimestamp().getTime());
         return false;
     }
 
+    /**
+     * Refresh the attachment point of a device seen again at its only
+     * attachment point. This has the same effect as
+     * {@link #updateAttachmentPoint(long, short, long)} in that case, but
+     * updates the attachment point in place instead of copying the lists.
+     * @param sw
+     * @param port
+     * @param lastSeen
+     * @return true if the attachment point was refreshed, false if nothing
+     * was changed and the general update is needed
+     */
+    protected boolean refreshAttachmentPoint(long sw, short port,
+                                             long lastSeen) {
+        List<AttachmentPoint> apList = attachmentPoints;
+        if (apList == null || apList.size() != 1) return false;
+        if (oldAPs != null && !oldAPs.isEmpty()) return false;
+        AttachmentPoint ap = apList.get(0);
+        if (ap.getSw() != sw || ap.getPort() != port) return false;
+        if (!deviceManager.isValidAttachmentPoint(sw, port)) return false;
+        ap.setLastSeen(lastSeen);
+        return true;
+    }
+
     /**
      * Delete (sw,port) from the list of list of attachment points
      * and oldAPs.
@@ -0,0 +1,184 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.devicemanager.DeviceUpdate;
+import net.floodlightcontroller.devicemanager.DeviceUpdate.Change;
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+/**
+ * Queues device updates and dispatches them to the device listeners from
+ * a task on the thread pool, so that the thread that learned a device
+ * doesn't run the listeners.
+ *
+ * Updates are collected for a short window and dispatched as one batch.
+ * Within a batch the updates of a device stay in the order they were
+ * posted; a CHANGE or MOVED update that follows another of the same kind
+ * for the same device is merged into it. Batches are dispatched one at a
+ * time, so the order also holds across batches.
+ */
+public class DeviceEventBus {
+    /**
+     * The number of queued updates at which a batch is dispatched without
+     * waiting for the window to end
+     */
+    protected static final int MAX_PENDING = 10000;
+
+    protected DeviceManagerImpl deviceManager;
+    protected long window;
+    protected SingletonTask dispatchTask;
+
+    /**
+     * The queued updates of each device, by device key, in the order the
+     * devices were first updated
+     */
+    protected Map<Long, List<DeviceUpdate>> pending;
+    protected int pendingCount;
+    protected boolean scheduled;
+
+    /**
+     * Held while taking and dispatching a batch, so that batches are
+     * dispatched in order
+     */
+    protected final Object dispatchLock = new Object();
+
+    protected long posted;
+    protected long merged;
+    protected long batches;
+
+    /**
+     * Create a new event bus
+     * @param deviceManager the device manager whose listeners to notify
+     * @param ses the executor to run the dispatch task on
+     * @param window the time in milliseconds to collect updates for before
+     * dispatching them
+     */
+    public DeviceEventBus(DeviceManagerImpl deviceManager,
+                          ScheduledExecutorService ses, long window) {
+        this.deviceManager = deviceManager;
+        this.window = window;
+        this.pending = new LinkedHashMap<Long, List<DeviceUpdate>>();
+        Runnable dispatcher = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        dispatchTask = new SingletonTask(ses, dispatcher);
+    }
+
+    /**
+     * Queue an update for dispatch
+     * @param update the update
+     */
+    public void post(DeviceUpdate update) {
+        long delay;
+        synchronized (this) {
+            posted++;
+            Long deviceKey = update.getDevice().getDeviceKey();
+            List<DeviceUpdate> updates = pending.get(deviceKey);
+            if (updates == null) {
+                updates = new ArrayList<DeviceUpdate>(2);
+                pending.put(deviceKey, updates);
+            }
+            if (merge(updates, update)) {
+                // The device has queued updates, so a dispatch is scheduled
+                merged++;
+                return;
+            }
+            updates.add(update);
+            pendingCount++;
+            if (pendingCount >= MAX_PENDING) {
+                delay = 0;
+            } else if (!scheduled) {
+                delay = window;
+            } else {
+                return;
+            }
+            scheduled = true;
+        }
+        dispatchTask.reschedule(delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Merge an update into the last queued update of the device if it
+     * makes it redundant
+     * @return true if the update was merged
+     */
+    protected boolean merge(List<DeviceUpdate> updates, DeviceUpdate update) {
+        if (updates.isEmpty()) return false;
+        int last = updates.size() - 1;
+        DeviceUpdate prev = updates.get(last);
+        if (prev.getChange() != update.getChange()) return false;
+
+        if (update.getChange() == Change.MOVED) {
+            updates.set(last, update);
+            return true;
+        }
+        if (update.getChange() == Change.CHANGE) {
+            EnumSet<DeviceField> fields =
+                    EnumSet.copyOf(prev.getFieldsChanged());
+            fields.addAll(update.getFieldsChanged());
+            updates.set(last, new DeviceUpdate(update.getDevice(),
+                                               Change.CHANGE, fields));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Dispatch the queued updates on the calling thread
+     */
+    public void flush() {
+        synchronized (dispatchLock) {
+            List<DeviceUpdate> batch;
+            synchronized (this) {
+                scheduled = false;
+                if (pendingCount == 0) return;
+                batch = new ArrayList<DeviceUpdate>(pendingCount);
+                for (List<DeviceUpdate> updates : pending.values()) {
+                    batch.addAll(updates);
+                }
+                pending = new LinkedHashMap<Long, List<DeviceUpdate>>();
+                pendingCount = 0;
+                batches++;
+            }
+            deviceManager.dispatchUpdates(batch);
+        }
+    }
+
+    /**
+     * @return the number of updates waiting to be dispatched
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the number of updates posted
+     */
+    public synchronized long getPostedCount() {
+        return posted;
+    }
+
+    /**
+     * @return the number of updates merged into an earlier update
+     */
+    public synchronized long getMergedCount() {
+        return merged;
+    }
+
+    /**
+     * @return the number of batches dispatched
+     */
+    public synchronized long getBatchCount() {
+        return batches;
+    }
+}
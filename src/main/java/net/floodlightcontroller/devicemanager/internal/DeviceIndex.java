@@ -27,11 +27,41 @@ import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
  * An index that maps key fields of an entity to device keys
  */
 public abstract class DeviceIndex {
+    /**
+     * Returned by {@link #packKey} when the key fields of an entity can't
+     * be packed into a long
+     */
+    protected static final long NOT_PACKED = -1L;
+
+    /**
+     * Returned by {@link #packKey} when all the key fields of an entity
+     * are null
+     */
+    protected static final long NO_KEY = -2L;
+
+    // The number of bits each key field takes in a packed key. The switch
+    // DPID takes a full long, so keys containing it are never packed.
+    protected static final int MAC_BITS = 48;
+    protected static final int VLAN_BITS = 13;
+    protected static final int IPV4_BITS = 33;
+    protected static final int PORT_BITS = 33;
+
     /**
      * The key fields for this index
      */
     protected EnumSet<DeviceField> keyFields;
 
+    /**
+     * Whether the key fields fit in a long, so that entities can be indexed
+     * by a packed key instead of an {@link IndexedEntity}
+     */
+    protected final boolean packable;
+    protected final boolean hasMac;
+    protected final boolean hasVlan;
+    protected final boolean hasIpv4;
+    protected final boolean hasSwitch;
+    protected final boolean hasPort;
+
     /**
      * Construct a new device index using the provided key fields
      * @param keyFields the key fields to use
@@ -39,6 +69,69 @@ public abstract class DeviceIndex {
     public DeviceIndex(EnumSet<DeviceField> keyFields) {
         super();
         this.keyFields = keyFields;
+        hasMac = keyFields.contains(DeviceField.MAC);
+        hasVlan = keyFields.contains(DeviceField.VLAN);
+        hasIpv4 = keyFields.contains(DeviceField.IPV4);
+        hasSwitch = keyFields.contains(DeviceField.SWITCH);
+        hasPort = keyFields.contains(DeviceField.PORT);
+        int bits = (hasMac ? MAC_BITS : 0) + (hasVlan ? VLAN_BITS : 0) +
+                (hasIpv4 ? IPV4_BITS : 0) + (hasPort ? PORT_BITS : 0);
+        packable = !hasSwitch && bits < 64;
+    }
+
+    /**
+     * Pack the key fields of an entity into a non-negative long. A VLAN
+     * is stored as its value plus one and an IP address or port with an
+     * extra bit set, so that null fields pack differently from any value.
+     * @return the packed key, {@link #NO_KEY} if all key fields are null
+     * or {@link #NOT_PACKED} if the key fields don't fit
+     */
+    protected long packKey(long macAddress, Short vlan, Integer ipv4Address,
+                           Long switchDPID, Integer switchPort) {
+        if (!packable) {
+            if (hasMac || (hasVlan && vlan != null) ||
+                    (hasIpv4 && ipv4Address != null) ||
+                    (hasSwitch && switchDPID != null) ||
+                    (hasPort && switchPort != null))
+                return NOT_PACKED;
+            return NO_KEY;
+        }
+        long key = 0;
+        boolean present = false;
+        if (hasMac) {
+            if ((macAddress >>> MAC_BITS) != 0) return NOT_PACKED;
+            key = macAddress;
+            present = true;
+        }
+        if (hasVlan) {
+            key <<= VLAN_BITS;
+            if (vlan != null) {
+                int v = vlan.shortValue();
+                if (v < 0 || v > 4095) return NOT_PACKED;
+                key |= v + 1;
+                present = true;
+            }
+        }
+        if (hasIpv4) {
+            key <<= IPV4_BITS;
+            if (ipv4Address != null) {
+                key |= 1L << 32 | (ipv4Address.intValue() & 0xffffffffL);
+                present = true;
+            }
+        }
+        if (hasPort) {
+            key <<= PORT_BITS;
+            if (switchPort != null) {
+                key |= 1L << 32 | (switchPort.intValue() & 0xffffffffL);
+                present = true;
+            }
+        }
+        return present ? key : NO_KEY;
+    }
+
+    protected long packKey(Entity entity) {
+        return packKey(entity.macAddress, entity.vlan, entity.ipv4Address,
+                       entity.switchDPID, entity.switchPort);
     }
 
     /**
@@ -48,6 +141,18 @@ public abstract class DeviceIndex {
      * @return an iterator over device keys
      */
     public abstract Iterator<Long> queryByEntity(Entity entity);
+
+    /**
+     * Find all device keys in the index that match the given values on all
+     * the key fields for this index
+     * @return an iterator over device keys
+     */
+    public Iterator<Long> queryByKey(long macAddress, Short vlan,
+                                     Integer ipv4Address, Long switchDPID,
+                                     Integer switchPort) {
+        return queryByEntity(new Entity(macAddress, vlan, ipv4Address,
+                                        switchDPID, switchPort, null));
+    }
     
     /**
      * Get all device keys in the index.  If certain devices exist
@@ -97,10 +202,18 @@ public abstract class DeviceIndex {
      */
     public void removeEntityIfNeeded(Entity entity, Long deviceKey,
                                      Collection<Entity> others) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        for (Entity o : others) {
-            IndexedEntity oio = new IndexedEntity(keyFields, o);
-            if (oio.equals(ie)) return;
+        long packed = packKey(entity);
+        if (packed == NOT_PACKED) {
+            IndexedEntity ie = new IndexedEntity(keyFields, entity);
+            for (Entity o : others) {
+                IndexedEntity oio = new IndexedEntity(keyFields, o);
+                if (oio.equals(ie)) return;
+            }
+        } else {
+            // Only an entity that packs to the same key can be identical
+            for (Entity o : others) {
+                if (packKey(o) == packed) return;
+            }
         }
 
         Iterator<Long> keyiter = this.queryByEntity(entity);
@@ -18,7 +18,6 @@
 package net.floodlightcontroller.devicemanager.internal;
 
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -44,11 +43,15 @@ import net.floodlightcontroller.core.IInfoProvider;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IFloodlightProviderService.Role;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+import net.floodlightcontroller.core.annotations.LogMessageDocs;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.devicemanager.DeviceUpdate;
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceBatchListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.IEntityClass;
 import net.floodlightcontroller.devicemanager.IEntityClassListener;
@@ -70,9 +73,9 @@ import net.floodlightcontroller.storage.IStorageSourceService;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyListener;
 import net.floodlightcontroller.topology.ITopologyService;
+import net.floodlightcontroller.util.ConcurrentLongHashMap;
 import net.floodlightcontroller.util.MultiIterator;
-import static net.floodlightcontroller.devicemanager.internal.
-DeviceManagerImpl.DeviceUpdate.Change.*;
+import static net.floodlightcontroller.devicemanager.DeviceUpdate.Change.*;
 
 import org.openflow.protocol.OFMatchWithSwDpid;
 import org.openflow.protocol.OFMessage;
@@ -106,16 +109,52 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
      */
     protected static final int ENTITY_TIMEOUT = 60*60*1000;
 
+    /**
+     * Default time in seconds between cleaning up old entities/devices.
+     * This bounds how long an entity can outlive its timeout.
+     */
+    protected static final int ENTITY_CLEANUP_INTERVAL = 60;
+
     /**
      * Time in seconds between cleaning up old entities/devices
      */
-    protected static final int ENTITY_CLEANUP_INTERVAL = 60*60;
+    protected int entityCleanupInterval = ENTITY_CLEANUP_INTERVAL;
+
+    /**
+     * Devices filed by the time their oldest entity expires
+     */
+    protected EntityExpiryWheel expiryWheel;
+
+    /**
+     * Default time in milliseconds to collect device updates for before
+     * notifying the device listeners
+     */
+    protected static final int NOTIFICATION_WINDOW = 20;
+
+    /**
+     * Whether device listeners are notified from the thread pool rather
+     * than from the thread that made the update
+     */
+    protected boolean asyncNotification = true;
+    protected int notificationWindow = NOTIFICATION_WINDOW;
+
+    /**
+     * Queues device updates for the listeners when notifying
+     * asynchronously
+     */
+    protected DeviceEventBus deviceEventBus;
 
     /**
      * This is the master device map that maps device IDs to {@link Device}
      * objects.
      */
-    protected ConcurrentHashMap<Long, Device> deviceMap;
+    protected ConcurrentLongHashMap<Device> deviceMap;
+
+    /**
+     * Recently learned packet sources, used to refresh known hosts without
+     * going through the indices
+     */
+    protected KnownEntityCache knownEntities;
 
     /**
      * Counter used to generate device keys
@@ -197,47 +236,6 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
      */
     protected Set<IDeviceListener> deviceListeners;
 
-    /**
-     * A device update event to be dispatched
-     */
-    protected static class DeviceUpdate {
-        public enum Change {
-            ADD, DELETE, CHANGE;
-        }
-
-        /**
-         * The affected device
-         */
-        protected IDevice device;
-
-        /**
-         * The change that was made
-         */
-        protected Change change;
-
-        /**
-         * If not added, then this is the list of fields changed
-         */
-        protected EnumSet<DeviceField> fieldsChanged;
-
-        public DeviceUpdate(IDevice device, Change change,
-                            EnumSet<DeviceField> fieldsChanged) {
-            super();
-            this.device = device;
-            this.change = change;
-            this.fieldsChanged = fieldsChanged;
-        }
-
-        @Override
-        public String toString() {
-            String devIdStr = device.getEntityClass().getName() + "::" +
-                    device.getMACAddressString();
-            return "DeviceUpdate [device=" + devIdStr + ", change=" + change
-                   + ", fieldsChanged=" + fieldsChanged + "]";
-        }
-        
-    }
-
     /**
      * AttachmentPointComparator
      * 
@@ -335,12 +333,19 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
             vlan = null;
         if (ipv4Address != null && ipv4Address == 0)
             ipv4Address = null;
-        Entity e = new Entity(macAddress, vlan, ipv4Address, switchDPID,
-                              switchPort, null);
-        if (!allKeyFieldsPresent(e, entityClassifier.getKeyFields())) {
+        if (!allKeyFieldsPresent(ipv4Address, switchDPID, switchPort,
+                                 entityClassifier.getKeyFields())) {
             throw new IllegalArgumentException("Not all key fields specified."
                       + " Required fields: " + entityClassifier.getKeyFields());
         }
+        // Known devices are found through the primary index without
+        // creating an entity
+        Long deviceKey = primaryIndex.findByKey(macAddress, vlan, ipv4Address,
+                                                switchDPID, switchPort);
+        if (deviceKey != null)
+            return deviceMap.get(deviceKey);
+        Entity e = new Entity(macAddress, vlan, ipv4Address, switchDPID,
+                              switchPort, null);
         return findDeviceByEntity(e);
     }
 
@@ -352,14 +357,19 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
             vlan = null;
         if (ipv4Address != null && ipv4Address == 0)
             ipv4Address = null;
-        Entity e = new Entity(macAddress, vlan, ipv4Address,
-                              null, null, null);
         if (source == null || 
-                !allKeyFieldsPresent(e, source.getEntityClass().getKeyFields())) {
+                !allKeyFieldsPresent(ipv4Address, null, null,
+                                     source.getEntityClass().getKeyFields())) {
             throw new IllegalArgumentException("Not all key fields and/or "
                     + " no source device specified. Required fields: " + 
                     entityClassifier.getKeyFields());
         }
+        Long deviceKey = primaryIndex.findByKey(macAddress, vlan, ipv4Address,
+                                                null, null);
+        if (deviceKey != null)
+            return deviceMap.get(deviceKey);
+        Entity e = new Entity(macAddress, vlan, ipv4Address,
+                              null, null, null);
         return findDestByEntity(source, e);
     }
 
@@ -399,14 +409,12 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
             deviceIterator = deviceMap.values().iterator();
         } else {
             // index lookup
-            Entity entity = new Entity((macAddress == null ? 0 : macAddress),
-                                       vlan,
-                                       ipv4Address,
-                                       switchDPID,
-                                       switchPort,
-                                       null);
             deviceIterator =
-                    new DeviceIndexInterator(this, index.queryByEntity(entity));
+                    new DeviceIndexInterator(this,
+                            index.queryByKey((macAddress == null ?
+                                                      0 : macAddress),
+                                             vlan, ipv4Address,
+                                             switchDPID, switchPort));
         }
 
         DeviceIterator di =
@@ -455,15 +463,10 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
             }
         } else {
             // index lookup
-            Entity entity =
-                    new Entity((macAddress == null ? 0 : macAddress),
-                               vlan,
-                               ipv4Address,
-                               switchDPID,
-                               switchPort,
-                               null);
             iter = new DeviceIndexInterator(this,
-                                            index.queryByEntity(entity));
+                    index.queryByKey((macAddress == null ? 0 : macAddress),
+                                     vlan, ipv4Address,
+                                     switchDPID, switchPort));
         }
         iterators.add(iter);
         
@@ -489,14 +492,12 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
             deviceIterator = deviceMap.values().iterator();
         } else {
             // index lookup
-            Entity entity = new Entity((macAddress == null ? 0 : macAddress),
-                                vlan,
-                                ipv4Address,
-                                switchDPID,
-                                switchPort,
-                                null);
             deviceIterator =
-                new DeviceIndexInterator(this, index.queryByEntity(entity));
+                new DeviceIndexInterator(this,
+                        index.queryByKey((macAddress == null ?
+                                                  0 : macAddress),
+                                         vlan, ipv4Address,
+                                         switchDPID, switchPort));
         }
 
         DeviceIterator di =
@@ -676,6 +677,38 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
         this.threadPool = fmc.getServiceImpl(IThreadPoolService.class);
         this.flowReconcileMgr = fmc.getServiceImpl(IFlowReconcileService.class);
         this.entityClassifier = fmc.getServiceImpl(IEntityClassifierService.class);
+
+        Map<String, String> configOptions = fmc.getConfigParams(this);
+        try {
+            String interval = configOptions.get("entitycleanupinterval");
+            if (interval != null) {
+                int i = Integer.parseInt(interval);
+                if (i > 0) entityCleanupInterval = i;
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Error parsing entity cleanup interval, " +
+                        "using default of {} seconds", entityCleanupInterval);
+        }
+        logger.debug("Entity cleanup interval {} seconds",
+                     entityCleanupInterval);
+
+        String async = configOptions.get("asyncnotification");
+        if (async != null)
+            asyncNotification = Boolean.parseBoolean(async);
+        try {
+            String window = configOptions.get("notificationwindow");
+            if (window != null) {
+                int w = Integer.parseInt(window);
+                if (w >= 0) notificationWindow = w;
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Error parsing device notification window, " +
+                        "using default of {} ms", notificationWindow);
+        }
+        logger.debug("Device listeners notified {}",
+                     asyncNotification ?
+                         "in batches every " + notificationWindow + " ms" :
+                         "synchronously");
     }
 
     @Override
@@ -683,10 +716,14 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
         primaryIndex = new DeviceUniqueIndex(entityClassifier.getKeyFields());
         secondaryIndexMap = new HashMap<EnumSet<DeviceField>, DeviceIndex>();
 
-        deviceMap = new ConcurrentHashMap<Long, Device>();
+        deviceMap = new ConcurrentLongHashMap<Device>();
+        knownEntities = new KnownEntityCache();
         classStateMap =
                 new ConcurrentHashMap<String, ClassState>();
         apComparator = new AttachmentPointComparator();
+        expiryWheel = new EntityExpiryWheel(ENTITY_TIMEOUT,
+                                            entityCleanupInterval * 1000L,
+                                            System.currentTimeMillis());
 
         floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
         floodlightProvider.addHAListener(this);
@@ -699,13 +736,15 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
             @Override
             public void run() {
                 cleanupEntities();
-                entityCleanupTask.reschedule(ENTITY_CLEANUP_INTERVAL,
+                entityCleanupTask.reschedule(entityCleanupInterval,
                                              TimeUnit.SECONDS);
             }
         };
         ScheduledExecutorService ses = threadPool.getScheduledExecutor();
+        if (asyncNotification)
+            deviceEventBus = new DeviceEventBus(this, ses, notificationWindow);
         entityCleanupTask = new SingletonTask(ses, ecr);
-        entityCleanupTask.reschedule(ENTITY_CLEANUP_INTERVAL,
+        entityCleanupTask.reschedule(entityCleanupInterval,
                                      TimeUnit.SECONDS);
 
         if (restApi != null) {
@@ -749,14 +788,8 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
                 IFloodlightProviderService.bcStore.
                 get(cntx,IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
 
-        // Extract source entity information
-        Entity srcEntity =
-                getSourceEntityFromPacket(eth, sw.getId(), pi.getInPort());
-        if (srcEntity == null)
-            return Command.STOP;
-
         // Learn/lookup device information
-        Device srcDevice = learnDeviceByEntity(srcEntity);
+        Device srcDevice = learnSourceDevice(eth, sw.getId(), pi.getInPort());
         if (srcDevice == null)
             return Command.STOP;
 
@@ -796,7 +829,8 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
                                            (short)switchPort) == false)
             return false;
 
-        if (suppressAPs.contains(new SwitchPort(switchDPID, switchPort)))
+        if (!suppressAPs.isEmpty() &&
+                suppressAPs.contains(new SwitchPort(switchDPID, switchPort)))
             return false;
 
         return true;
@@ -858,6 +892,74 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
                           new Date());
     }
 
+    /**
+     * Learn the source device of a packet. Hosts seen again with the same
+     * fields at the same attachment point are refreshed in place; anything
+     * else goes through {@link #learnDeviceByEntity(Entity)}.
+     * @param eth the packet
+     * @param swdpid the switch on which the packet arrived
+     * @param port the port on which the packet arrived
+     * @return the device, or null if the source can't be learned
+     */
+    protected Device learnSourceDevice(Ethernet eth, long swdpid, int port) {
+        // getSourceMACAddress() would copy the address
+        long dlAddr = eth.getSourceMAC().toLong();
+        // Ignore broadcast/multicast source
+        if ((dlAddr & 0x010000000000L) != 0)
+            return null;
+
+        short vlan = eth.getVlanID();
+        int nwSrc = getSrcNwAddr(eth, dlAddr);
+        Device device = learnKnownEntity(dlAddr, vlan, nwSrc, swdpid, port,
+                                         System.currentTimeMillis());
+        if (device != null)
+            return device;
+
+        Entity srcEntity = getSourceEntityFromPacket(eth, swdpid, port);
+        if (srcEntity == null)
+            return null;
+        return learnDeviceByEntity(srcEntity);
+    }
+
+    /**
+     * Refresh an entity we already know without allocating. This only
+     * handles the common case of an unchanged entity of a device with a
+     * single attachment point, where the entity is seen again at that
+     * attachment point.
+     * @param macAddress
+     * @param vlan the VLAN, or a negative number if untagged
+     * @param ipv4Address the IP address, or 0 if none
+     * @param switchDPID
+     * @param switchPort
+     * @param lastSeen the time the entity was seen
+     * @return the device, or null if the entity has to be learned through
+     * {@link #learnDeviceByEntity(Entity)}
+     */
+    protected Device learnKnownEntity(long macAddress, short vlan,
+                                      int ipv4Address, long switchDPID,
+                                      int switchPort, long lastSeen) {
+        KnownEntityCache.Slot slot =
+                knownEntities.get(macAddress, vlan, ipv4Address,
+                                  switchDPID, switchPort);
+        if (slot == null) return null;
+        Entity entity = slot.entity;
+
+        // The entity must still belong to the device
+        Device device = deviceMap.get(slot.deviceKey);
+        if (device == null) return null;
+        int entityindex = device.entityIndex(entity);
+        if (entityindex < 0 || device.entities[entityindex] != entity)
+            return null;
+        if (!isEntityAllowed(entity, device.getEntityClass()))
+            return null;
+
+        if (!device.refreshAttachmentPoint(switchDPID, (short) switchPort,
+                                           lastSeen))
+            return null;
+        entity.setLastSeen(lastSeen);
+        return device;
+    }
+
     /**
      * Get a (partial) entity for the destination from the packet.
      * @param eth
@@ -1100,6 +1202,8 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
                 }
 
                 updateSecondaryIndices(entity, entityClass, deviceKey);
+                scheduleExpiry(deviceKey, entity);
+                knownEntities.put(entity, deviceKey, deviceMap.size());
 
                 // generate new device update
                 deviceUpdates =
@@ -1120,6 +1224,8 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
                 Date lastSeen = entity.getLastSeenTimestamp();
                 if (lastSeen == null) lastSeen = new Date();
                 device.entities[entityindex].setLastSeenTimestamp(lastSeen);
+                knownEntities.put(device.entities[entityindex], deviceKey,
+                                  deviceMap.size());
                 if (device.entities[entityindex].getSwitchDPID() != null &&
                         device.entities[entityindex].getSwitchPort() != null) {
                     long sw = device.entities[entityindex].getSwitchDPID();
@@ -1182,6 +1288,8 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
                 updateSecondaryIndices(entity,
                                        device.getEntityClass(),
                                        deviceKey);
+                scheduleExpiry(deviceKey, entity);
+                knownEntities.put(entity, deviceKey, deviceMap.size());
 
                 if (moved) {
                     sendDeviceMovedNotification(device);
@@ -1263,48 +1371,117 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
     }
 
     /**
-     * Send update notifications to listeners
+     * Send update notifications to listeners, through the event bus if
+     * notifying asynchronously
      * @param updates the updates to process.
      */
     protected void processUpdates(Queue<DeviceUpdate> updates) {
-        if (updates == null) return;
-        DeviceUpdate update = null;
-        while (null != (update = updates.poll())) {
+        if (updates == null || updates.isEmpty()) return;
+        if (deviceEventBus != null) {
+            DeviceUpdate update = null;
+            while (null != (update = updates.poll())) {
+                deviceEventBus.post(update);
+            }
+        } else {
+            List<DeviceUpdate> batch = new ArrayList<DeviceUpdate>(updates);
+            updates.clear();
+            dispatchUpdates(batch);
+        }
+    }
+
+    /**
+     * Call the device listeners for a batch of updates. Listeners that
+     * implement {@link IDeviceBatchListener} get the whole batch at once.
+     * A listener that throws is logged and skipped for that update only,
+     * so the other listeners and the rest of the batch are still notified.
+     * @param updates the updates to dispatch
+     */
+    @LogMessageDocs({
+        @LogMessageDoc(level="ERROR",
+                message="Exception in device listener {listener} " +
+                        "processing update {update}",
+                explanation="A device listener failed to process a " +
+                        "device update; the other listeners and updates " +
+                        "were still dispatched",
+                recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG),
+        @LogMessageDoc(level="ERROR",
+                message="Exception in device batch listener {listener}",
+                explanation="A device listener failed to process a batch " +
+                        "of device updates; the other listeners were " +
+                        "still notified",
+                recommendation=LogMessageDoc.REPORT_CONTROLLER_BUG)
+    })
+    protected void dispatchUpdates(List<DeviceUpdate> updates) {
+        boolean batchListeners = false;
+        for (DeviceUpdate update : updates) {
             if (logger.isTraceEnabled()) {
                 logger.trace("Dispatching device update: {}", update);
             }
             for (IDeviceListener listener : deviceListeners) {
-                switch (update.change) {
-                    case ADD:
-                        listener.deviceAdded(update.device);
-                        break;
-                    case DELETE:
-                        listener.deviceRemoved(update.device);
-                        break;
-                    case CHANGE:
-                        for (DeviceField field : update.fieldsChanged) {
-                            switch (field) {
-                                case IPV4:
-                                    listener.deviceIPV4AddrChanged(update.device);
-                                    break;
-                                case SWITCH:
-                                case PORT:
-                                    //listener.deviceMoved(update.device);
-                                    break;
-                                case VLAN:
-                                    listener.deviceVlanChanged(update.device);
-                                    break;
-                                default:
-                                    logger.debug("Unknown device field changed {}",
-                                                update.fieldsChanged.toString());
-                                    break;
-                            }
-                        }
-                        break;
+                if (listener instanceof IDeviceBatchListener) {
+                    batchListeners = true;
+                    continue;
+                }
+                try {
+                    dispatchUpdate(listener, update);
+                } catch (Exception e) {
+                    logger.error("Exception in device listener {} " +
+                                 "processing update {}",
+                                 new Object[] { listener, update, e });
+                }
+            }
+        }
+        if (batchListeners) {
+            List<DeviceUpdate> batch = Collections.unmodifiableList(updates);
+            for (IDeviceListener listener : deviceListeners) {
+                if (!(listener instanceof IDeviceBatchListener)) continue;
+                try {
+                    ((IDeviceBatchListener) listener).devicesUpdated(batch);
+                } catch (Exception e) {
+                    logger.error("Exception in device batch listener {}",
+                                 new Object[] { listener, e });
                 }
             }
         }
     }
+
+    /**
+     * Call a device listener for an update
+     */
+    protected void dispatchUpdate(IDeviceListener listener,
+                                  DeviceUpdate update) {
+        switch (update.getChange()) {
+            case ADD:
+                listener.deviceAdded(update.getDevice());
+                break;
+            case DELETE:
+                listener.deviceRemoved(update.getDevice());
+                break;
+            case MOVED:
+                listener.deviceMoved(update.getDevice());
+                break;
+            case CHANGE:
+                for (DeviceField field : update.getFieldsChanged()) {
+                    switch (field) {
+                        case IPV4:
+                            listener.deviceIPV4AddrChanged(update.getDevice());
+                            break;
+                        case SWITCH:
+                        case PORT:
+                            //listener.deviceMoved(update.device);
+                            break;
+                        case VLAN:
+                            listener.deviceVlanChanged(update.getDevice());
+                            break;
+                        default:
+                            logger.debug("Unknown device field changed {}",
+                                        update.getFieldsChanged().toString());
+                            break;
+                    }
+                }
+                break;
+        }
+    }
     
     /**
      * Check if the entity e has all the keyFields set. Returns false if not
@@ -1313,31 +1490,28 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
      * @return
      */
     protected boolean allKeyFieldsPresent(Entity e, EnumSet<DeviceField> keyFields) {
-        for (DeviceField f : keyFields) {
-            switch (f) {
-                case MAC:
-                    // MAC address is always present
-                    break;
-                case IPV4:
-                    if (e.ipv4Address == null) return false;
-                    break;
-                case SWITCH:
-                    if (e.switchDPID == null) return false;
-                    break;
-                case PORT:
-                    if (e.switchPort == null) return false;
-                    break;
-                case VLAN:
-                    // FIXME: vlan==null is ambiguous: it can mean: not present
-                    // or untagged
-                    //if (e.vlan == null) return false;
-                    break;
-                default:
-                    // we should never get here. unless somebody extended 
-                    // DeviceFields
-                    throw new IllegalStateException();
-            }
-        }
+        return allKeyFieldsPresent(e.ipv4Address, e.switchDPID,
+                                   e.switchPort, keyFields);
+    }
+
+    /**
+     * Check if the given values are set for all the keyFields. The MAC
+     * address is always present and a null VLAN means untagged.
+     * @param keyFields the key fields to check the values against
+     * @return false if a value for a key field is null
+     */
+    protected boolean allKeyFieldsPresent(Integer ipv4Address,
+                                          Long switchDPID,
+                                          Integer switchPort,
+                                          EnumSet<DeviceField> keyFields) {
+        // FIXME: vlan==null is ambiguous: it can mean: not present
+        // or untagged
+        if (ipv4Address == null && keyFields.contains(DeviceField.IPV4))
+            return false;
+        if (switchDPID == null && keyFields.contains(DeviceField.SWITCH))
+            return false;
+        if (switchPort == null && keyFields.contains(DeviceField.PORT))
+            return false;
         return true;
     }
 
@@ -1429,31 +1603,42 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
     }
 
     /**
-     * Clean up expired entities/devices
+     * File a device in the expiry wheel so it's looked at again when the
+     * given entity expires
+     * @param deviceKey the device key
+     * @param entity an entity of the device
      */
-    protected void cleanupEntities () {
+    protected void scheduleExpiry(Long deviceKey, Entity entity) {
+        long lastSeen = entity.getLastSeen();
+        if (lastSeen == Entity.NO_TIMESTAMP) return;
+        expiryWheel.schedule(deviceKey, lastSeen + ENTITY_TIMEOUT);
+    }
 
-        Calendar c = Calendar.getInstance();
-        c.add(Calendar.MILLISECOND, -ENTITY_TIMEOUT);
-        Date cutoff = c.getTime();
+    /**
+     * Clean up expired entities/devices. Only the devices that are due in
+     * the expiry wheel are looked at; the ones that are still around
+     * afterwards are filed again by the time their oldest entity expires.
+     */
+    protected void cleanupEntities () {
+        long now = System.currentTimeMillis();
+        long cutoff = now - ENTITY_TIMEOUT;
 
         ArrayList<Entity> toRemove = new ArrayList<Entity>();
         ArrayList<Entity> toKeep = new ArrayList<Entity>();
 
-        Iterator<Device> diter = deviceMap.values().iterator();
         LinkedList<DeviceUpdate> deviceUpdates =
                 new LinkedList<DeviceUpdate>();
 
-        while (diter.hasNext()) {
-            Device d = diter.next();
+        for (long deviceKey : expiryWheel.advance(now)) {
+            Device d = deviceMap.get(deviceKey);
 
-            while (true) {
+            while (d != null) {
                 deviceUpdates.clear();
                 toRemove.clear();
                 toKeep.clear();
                 for (Entity e : d.getEntities()) {
-                    if (e.getLastSeenTimestamp() != null &&
-                         0 > e.getLastSeenTimestamp().compareTo(cutoff)) {
+                    if (e.getLastSeen() != Entity.NO_TIMESTAMP &&
+                         e.getLastSeen() < cutoff) {
                         // individual entity needs to be removed
                         toRemove.add(e);
                     } else {
@@ -1491,22 +1676,32 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
                         // need to use device that is the map now for the next
                         // iteration
                         d = deviceMap.get(d.getDeviceKey());
-                        if (null != d)
-                            continue;
+                        continue;
                     }
                 } else {
                     deviceUpdates.add(new DeviceUpdate(d, DELETE, null));
-                    if (!deviceMap.remove(d.getDeviceKey(), d))
+                    if (!deviceMap.remove(d.getDeviceKey(), d)) {
                         // concurrent modification; try again
                         // need to use device that is the map now for the next
                         // iteration
                         d = deviceMap.get(d.getDeviceKey());
-                        if (null != d)
-                            continue;
+                        continue;
+                    }
                 }
                 processUpdates(deviceUpdates);
                 break;
             }
+
+            // File the device again by its oldest remaining entity
+            d = deviceMap.get(deviceKey);
+            if (d == null) continue;
+            long oldest = Long.MAX_VALUE;
+            for (Entity e : d.getEntities()) {
+                if (e.getLastSeen() != Entity.NO_TIMESTAMP)
+                    oldest = Math.min(oldest, e.getLastSeen());
+            }
+            if (oldest != Long.MAX_VALUE)
+                expiryWheel.schedule(deviceKey, oldest + ENTITY_TIMEOUT);
         }
     }
 
@@ -1661,13 +1856,13 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
     }
 
     /**
-     * Send update notifications to listeners
-     * @param updates the updates to process.
+     * Send a device moved notification to listeners
+     * @param d the device that moved
      */
     protected void sendDeviceMovedNotification(Device d) {
-        for (IDeviceListener listener : deviceListeners) {
-            listener.deviceMoved(d);
-        }
+        LinkedList<DeviceUpdate> updates = new LinkedList<DeviceUpdate>();
+        updates.add(new DeviceUpdate(d, MOVED, null));
+        processUpdates(updates);
     }
     
     /**
@@ -1706,7 +1901,7 @@ IFlowReconcileListener, IInfoProvider, IHAListener {
         // delete this device and then re-learn all the entities
         this.deleteDevice(device);
         deviceUpdates.add(new DeviceUpdate(device, 
-                DeviceUpdate.Change.DELETE, null));
+                DELETE, null));
         if (!deviceUpdates.isEmpty())
             processUpdates(deviceUpdates);
         for (Entity entity: device.entities ) {
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.devicemanager.internal;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -25,15 +26,23 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+import net.floodlightcontroller.util.ConcurrentLongHashMap;
 import net.floodlightcontroller.util.IterableIterator;
+import net.floodlightcontroller.util.MultiIterator;
 
 /**
  * An index that maps key fields of an entity to device keys, with multiple
- * device keys allowed per entity
+ * device keys allowed per entity. Entities whose key fields pack into a
+ * long are looked up by that long, without creating an IndexedEntity.
  */
 public class DeviceMultiIndex extends DeviceIndex {
     /**
-     * The index
+     * The index, for entities whose key fields pack into a long
+     */
+    private ConcurrentLongHashMap<Collection<Long>> packedIndex;
+
+    /**
+     * The index, for all other entities
      */
     private ConcurrentHashMap<IndexedEntity, Collection<Long>> index;
 
@@ -42,6 +51,7 @@ public class DeviceMultiIndex extends DeviceIndex {
      */
     public DeviceMultiIndex(EnumSet<DeviceField> keyFields) {
         super(keyFields);
+        packedIndex = new ConcurrentLongHashMap<Collection<Long>>();
         index = new ConcurrentHashMap<IndexedEntity, Collection<Long>>();
     }
 
@@ -51,17 +61,32 @@ public class DeviceMultiIndex extends DeviceIndex {
 
     @Override
     public Iterator<Long> queryByEntity(Entity entity) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        Collection<Long> devices = index.get(ie);
-        if (devices != null)
-            return devices.iterator();
-        
-        return Collections.<Long>emptySet().iterator();
+        return iterator(getDevices(packKey(entity), entity));
+    }
+
+    @Override
+    public Iterator<Long> queryByKey(long macAddress, Short vlan,
+                                     Integer ipv4Address, Long switchDPID,
+                                     Integer switchPort) {
+        long key = packKey(macAddress, vlan, ipv4Address,
+                           switchDPID, switchPort);
+        if (key == NOT_PACKED)
+            return super.queryByKey(macAddress, vlan, ipv4Address,
+                                    switchDPID, switchPort);
+        return iterator(getDevices(key, null));
     }
     
+    @SuppressWarnings("unchecked")
     @Override
     public Iterator<Long> getAll() {
-        Iterator<Collection<Long>> iter = index.values().iterator();
+        Iterator<Collection<Long>> iter;
+        if (index.isEmpty()) {
+            iter = packedIndex.values().iterator();
+        } else {
+            iter = new MultiIterator<Collection<Long>>(Arrays.asList(
+                    packedIndex.values().iterator(),
+                    index.values().iterator()).iterator());
+        }
         return new IterableIterator<Long>(iter);
     }
     
@@ -75,16 +100,20 @@ public class DeviceMultiIndex extends DeviceIndex {
     
     @Override
     public void updateIndex(Entity entity, Long deviceKey) {
-        Collection<Long> devices = null;
+        long key = packKey(entity);
+        if (key == NO_KEY) return;
 
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        if (!ie.hasNonNullKeys()) return;
-
-        devices = index.get(ie);
+        Collection<Long> devices = getDevices(key, entity);
         if (devices == null) {
             Map<Long,Boolean> chm = new ConcurrentHashMap<Long,Boolean>();
             devices = Collections.newSetFromMap(chm);
-            Collection<Long> r = index.putIfAbsent(ie, devices);
+            Collection<Long> r;
+            if (key != NOT_PACKED) {
+                r = packedIndex.putIfAbsent(key, devices);
+            } else {
+                r = index.putIfAbsent(new IndexedEntity(keyFields, entity),
+                                      devices);
+            }
             if (r != null)
                 devices = r;
         }
@@ -94,15 +123,35 @@ public class DeviceMultiIndex extends DeviceIndex {
 
     @Override
     public void removeEntity(Entity entity) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        index.remove(ie);        
+        long key = packKey(entity);
+        if (key == NO_KEY) return;
+        if (key != NOT_PACKED)
+            packedIndex.remove(key);
+        else
+            index.remove(new IndexedEntity(keyFields, entity));
     }
 
     @Override
     public void removeEntity(Entity entity, Long deviceKey) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        Collection<Long> devices = index.get(ie);
+        Collection<Long> devices = getDevices(packKey(entity), entity);
         if (devices != null)
             devices.remove(deviceKey);
     }
+
+    /**
+     * Get the devices for a packed key, or for the key fields of the
+     * entity if they don't pack
+     */
+    private Collection<Long> getDevices(long key, Entity entity) {
+        if (key == NO_KEY) return null;
+        if (key != NOT_PACKED) return packedIndex.get(key);
+        return index.get(new IndexedEntity(keyFields, entity));
+    }
+
+    private static Iterator<Long> iterator(Collection<Long> devices) {
+        if (devices != null)
+            return devices.iterator();
+        
+        return Collections.<Long>emptySet().iterator();
+    }
 }
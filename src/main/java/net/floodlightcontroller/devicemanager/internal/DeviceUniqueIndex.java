@@ -17,19 +17,29 @@
 
 package net.floodlightcontroller.devicemanager.internal;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+import net.floodlightcontroller.util.ConcurrentLongHashMap;
+import net.floodlightcontroller.util.MultiIterator;
 
 /**
- * An index that maps key fields of an entity uniquely to a device key
+ * An index that maps key fields of an entity uniquely to a device key.
+ * Entities whose key fields pack into a long are looked up by that long,
+ * without creating an IndexedEntity.
  */
 public class DeviceUniqueIndex extends DeviceIndex {
     /**
-     * The index
+     * The index, for entities whose key fields pack into a long
+     */
+    private ConcurrentLongHashMap<Long> packedIndex;
+
+    /**
+     * The index, for all other entities
      */
     private ConcurrentHashMap<IndexedEntity, Long> index;
 
@@ -39,6 +49,7 @@ public class DeviceUniqueIndex extends DeviceIndex {
      */
     public DeviceUniqueIndex(EnumSet<DeviceField> keyFields) {
         super(keyFields);
+        packedIndex = new ConcurrentLongHashMap<Long>();
         index = new ConcurrentHashMap<IndexedEntity, Long>();
     }
 
@@ -54,19 +65,42 @@ public class DeviceUniqueIndex extends DeviceIndex {
         
         return Collections.<Long>emptySet().iterator();
     }
+
+    @Override
+    public Iterator<Long> queryByKey(long macAddress, Short vlan,
+                                     Integer ipv4Address, Long switchDPID,
+                                     Integer switchPort) {
+        final Long deviceKey = findByKey(macAddress, vlan, ipv4Address,
+                                         switchDPID, switchPort);
+        if (deviceKey != null)
+            return Collections.<Long>singleton(deviceKey).iterator();
+
+        return Collections.<Long>emptySet().iterator();
+    }
     
+    @SuppressWarnings("unchecked")
     @Override
     public Iterator<Long> getAll() {
-        return index.values().iterator();
+        if (index.isEmpty())
+            return packedIndex.values().iterator();
+        return new MultiIterator<Long>(Arrays.asList(
+                packedIndex.values().iterator(),
+                index.values().iterator()).iterator());
     }
 
     @Override
     public boolean updateIndex(Device device, Long deviceKey) {
         for (Entity e : device.entities) {
-            IndexedEntity ie = new IndexedEntity(keyFields, e);
-            if (!ie.hasNonNullKeys()) continue;
+            long key = packKey(e);
+            if (key == NO_KEY) continue;
 
-            Long ret = index.putIfAbsent(ie, deviceKey);
+            Long ret;
+            if (key != NOT_PACKED) {
+                ret = packedIndex.putIfAbsent(key, deviceKey);
+            } else {
+                ret = index.putIfAbsent(new IndexedEntity(keyFields, e),
+                                        deviceKey);
+            }
             if (ret != null && !ret.equals(deviceKey)) {
                 // If the return value is non-null, then fail the insert 
                 // (this implies that a device using this entity has 
@@ -79,21 +113,32 @@ public class DeviceUniqueIndex extends DeviceIndex {
     
     @Override
     public void updateIndex(Entity entity, Long deviceKey) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        if (!ie.hasNonNullKeys()) return;
-        index.put(ie, deviceKey);
+        long key = packKey(entity);
+        if (key == NO_KEY) return;
+        if (key != NOT_PACKED)
+            packedIndex.put(key, deviceKey);
+        else
+            index.put(new IndexedEntity(keyFields, entity), deviceKey);
     }
 
     @Override
     public void removeEntity(Entity entity) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        index.remove(ie);
+        long key = packKey(entity);
+        if (key == NO_KEY) return;
+        if (key != NOT_PACKED)
+            packedIndex.remove(key);
+        else
+            index.remove(new IndexedEntity(keyFields, entity));
     }
 
     @Override
     public void removeEntity(Entity entity, Long deviceKey) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        index.remove(ie, deviceKey);
+        long key = packKey(entity);
+        if (key == NO_KEY) return;
+        if (key != NOT_PACKED)
+            packedIndex.remove(key, deviceKey);
+        else
+            index.remove(new IndexedEntity(keyFields, entity), deviceKey);
     }
 
     // **************
@@ -106,11 +151,26 @@ public class DeviceUniqueIndex extends DeviceIndex {
      * @return The key for the {@link Device} object if found
      */
     public Long findByEntity(Entity entity) {
-        IndexedEntity ie = new IndexedEntity(keyFields, entity);
-        Long deviceKey = index.get(ie);
-        if (deviceKey == null)
-            return null;
-        return deviceKey;
+        long key = packKey(entity);
+        if (key == NO_KEY) return null;
+        if (key != NOT_PACKED) return packedIndex.get(key);
+        return index.get(new IndexedEntity(keyFields, entity));
+    }
+
+    /**
+     * Look up a {@link Device} based on the values of its key fields.
+     * Doesn't allocate when the key fields pack into a long.
+     * @return The key for the {@link Device} object if found
+     */
+    public Long findByKey(long macAddress, Short vlan, Integer ipv4Address,
+                          Long switchDPID, Integer switchPort) {
+        long key = packKey(macAddress, vlan, ipv4Address,
+                           switchDPID, switchPort);
+        if (key == NO_KEY) return null;
+        if (key != NOT_PACKED) return packedIndex.get(key);
+        Entity entity = new Entity(macAddress, vlan, ipv4Address,
+                                   switchDPID, switchPort, null);
+        return index.get(new IndexedEntity(keyFields, entity));
     }
 
 }
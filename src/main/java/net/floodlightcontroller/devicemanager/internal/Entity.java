@@ -24,6 +24,7 @@ import net.floodlightcontroller.core.web.serializers.MACSerializer;
 import net.floodlightcontroller.core.web.serializers.DPIDSerializer;
 import net.floodlightcontroller.packet.IPv4;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.codehaus.jackson.map.annotate.JsonSerialize;
 import org.openflow.util.HexString;
 
@@ -47,6 +48,12 @@ public class Entity implements Comparable<Entity> {
      * @see {@link Entity#activeSince}
      */
     protected static int ACTIVITY_TIMEOUT = 30000;
+
+    /**
+     * Stands for a missing timestamp in {@link Entity#lastSeenTimestamp}
+     * and {@link Entity#activeSince}
+     */
+    protected static final long NO_TIMESTAMP = Long.MIN_VALUE;
     
     /**
      * The MAC address associated with this entity
@@ -77,9 +84,11 @@ public class Entity implements Comparable<Entity> {
     protected Integer switchPort;
     
     /**
-     * The last time we observed this entity on the network
+     * The last time we observed this entity on the network, in
+     * milliseconds. Kept as a primitive so that it can be refreshed in
+     * place without allocating.
      */
-    protected Date lastSeenTimestamp;
+    protected volatile long lastSeenTimestamp;
 
     /**
      * The time between {@link Entity#activeSince} and 
@@ -89,7 +98,7 @@ public class Entity implements Comparable<Entity> {
      * {@link Entity#lastSeenTimestamp} and {@link Entity#activeSince} will 
      * be set to the current time.
      */
-    protected Date activeSince;
+    protected volatile long activeSince;
     
     private int hashCode = 0;
 
@@ -115,8 +124,9 @@ public class Entity implements Comparable<Entity> {
         this.vlan = vlan;
         this.switchDPID = switchDPID;
         this.switchPort = switchPort;
-        this.lastSeenTimestamp = lastSeenTimestamp;
-        this.activeSince = lastSeenTimestamp;
+        this.lastSeenTimestamp = (lastSeenTimestamp == null) ?
+                NO_TIMESTAMP : lastSeenTimestamp.getTime();
+        this.activeSince = this.lastSeenTimestamp;
     }
 
     // ***************
@@ -147,6 +157,17 @@ public class Entity implements Comparable<Entity> {
     }
 
     public Date getLastSeenTimestamp() {
+        long t = lastSeenTimestamp;
+        return (t == NO_TIMESTAMP) ? null : new Date(t);
+    }
+
+    /**
+     * Get the last seen timestamp without allocating a {@link Date}
+     * @return the timestamp in milliseconds, or
+     * {@link Entity#NO_TIMESTAMP} if there is none
+     */
+    @JsonIgnore
+    public long getLastSeen() {
         return lastSeenTimestamp;
     }
 
@@ -157,19 +178,56 @@ public class Entity implements Comparable<Entity> {
      * @see {@link Entity#activeSince}
      */
     public void setLastSeenTimestamp(Date lastSeenTimestamp) {
-        if (activeSince == null ||
-            (activeSince.getTime() +  ACTIVITY_TIMEOUT) <
-                lastSeenTimestamp.getTime())
-            this.activeSince = lastSeenTimestamp;
-        this.lastSeenTimestamp = lastSeenTimestamp;
+        setLastSeen(lastSeenTimestamp.getTime());
+    }
+
+    /**
+     * Set the last seen timestamp and also update {@link Entity#activeSince}
+     * if appropriate
+     * @param lastSeen the new last seen timestamp in milliseconds
+     * @see {@link Entity#activeSince}
+     */
+    public void setLastSeen(long lastSeen) {
+        if (activeSince == NO_TIMESTAMP ||
+            (activeSince +  ACTIVITY_TIMEOUT) < lastSeen)
+            this.activeSince = lastSeen;
+        this.lastSeenTimestamp = lastSeen;
     }
 
     public Date getActiveSince() {
-        return activeSince;
+        long t = activeSince;
+        return (t == NO_TIMESTAMP) ? null : new Date(t);
     }
 
     public void setActiveSince(Date activeSince) {
-        this.activeSince = activeSince;
+        this.activeSince = (activeSince == null) ?
+                NO_TIMESTAMP : activeSince.getTime();
+    }
+
+    /**
+     * Check whether this entity has the given fields, without boxing them
+     * @param macAddress
+     * @param vlan the VLAN, or a negative number if untagged
+     * @param ipv4Address the IP address, or 0 if none
+     * @param switchDPID
+     * @param switchPort
+     * @return
+     */
+    public boolean matches(long macAddress, short vlan, int ipv4Address,
+                           long switchDPID, int switchPort) {
+        if (this.macAddress != macAddress) return false;
+        if (this.switchDPID == null ||
+                this.switchDPID.longValue() != switchDPID) return false;
+        if (this.switchPort == null ||
+                this.switchPort.intValue() != switchPort) return false;
+        if (this.vlan == null) {
+            if (vlan >= 0) return false;
+        } else if (vlan < 0 || this.vlan.shortValue() != vlan) return false;
+        if (this.ipv4Address == null) {
+            if (ipv4Address != 0) return false;
+        } else if (ipv4Address == 0 ||
+                this.ipv4Address.intValue() != ipv4Address) return false;
+        return true;
     }
     
     @Override
@@ -228,9 +286,10 @@ public class Entity implements Comparable<Entity> {
         builder.append(", switchPort=");
         builder.append(switchPort);
         builder.append(", lastSeenTimestamp=");
-        builder.append(lastSeenTimestamp == null? "null" : lastSeenTimestamp.getTime());
+        builder.append(lastSeenTimestamp == NO_TIMESTAMP ?
+                       "null" : lastSeenTimestamp);
         builder.append(", activeSince=");
-        builder.append(activeSince == null? "null" : activeSince.getTime());
+        builder.append(activeSince == NO_TIMESTAMP ? "null" : activeSince);
         builder.append("]");
         return builder.toString();
     }
@@ -0,0 +1,129 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A timing wheel of device keys, filed by the time at which the oldest
+ * entity of the device will expire.
+ *
+ * Time is divided into ticks of a fixed resolution and the wheel has one
+ * slot per tick up to the horizon. Advancing the wheel only touches the
+ * slots of the ticks that have passed, so the cost of expiry depends on the
+ * number of devices that are due rather than on the number of devices.
+ *
+ * A device is filed at most once, at the earliest deadline it has been
+ * scheduled for. Refreshing an entity doesn't move its device; the device
+ * comes due at the old deadline and the caller files it again at its new
+ * earliest deadline.
+ */
+public class EntityExpiryWheel {
+    protected final long resolution;
+    protected final long[][] slots;
+    protected final int[] sizes;
+
+    /**
+     * The next tick to be processed; all earlier ticks have been drained
+     */
+    protected long currentTick;
+
+    /**
+     * The tick each filed device is due at
+     */
+    protected Map<Long, Long> scheduled;
+
+    /**
+     * Create a new wheel
+     * @param horizon the furthest in the future a deadline can be, in
+     * milliseconds. Later deadlines come due at the horizon.
+     * @param resolution the length of a tick in milliseconds
+     * @param now the current time in milliseconds
+     */
+    public EntityExpiryWheel(long horizon, long resolution, long now) {
+        if (resolution <= 0)
+            throw new IllegalArgumentException("Resolution must be positive");
+        this.resolution = resolution;
+        int n = (int) (horizon / resolution) + 2;
+        slots = new long[n][];
+        sizes = new int[n];
+        currentTick = now / resolution;
+        scheduled = new HashMap<Long, Long>();
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * File a device to come due at the given deadline, unless it's already
+     * filed to come due earlier
+     * @param deviceKey the device key
+     * @param deadline the time in milliseconds at which the oldest entity
+     * of the device expires
+     */
+    public synchronized void schedule(long deviceKey, long deadline) {
+        long tick = deadline / resolution;
+        if (tick < currentTick)
+            tick = currentTick;
+        else if (tick >= currentTick + slots.length)
+            tick = currentTick + slots.length - 1;
+
+        Long prev = scheduled.get(deviceKey);
+        if (prev != null && prev.longValue() <= tick) return;
+        // An entry left in the slot of the previous tick is ignored when
+        // that slot is drained
+        scheduled.put(deviceKey, tick);
+
+        int slot = (int) (tick % slots.length);
+        long[] keys = slots[slot];
+        if (keys == null) {
+            keys = slots[slot] = new long[4];
+        } else if (sizes[slot] == keys.length) {
+            keys = slots[slot] = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keys[sizes[slot]++] = deviceKey;
+    }
+
+    /**
+     * Advance the wheel to the given time and remove the devices whose
+     * tick has been reached. A device may be returned shortly before its
+     * deadline if the deadline falls within the current tick.
+     * @param now the current time in milliseconds
+     * @return the keys of the devices that are due
+     */
+    public synchronized long[] advance(long now) {
+        long nowTick = now / resolution;
+        long[] due = new long[0];
+        int count = 0;
+        long end = Math.min(nowTick, currentTick + slots.length - 1);
+        for (long tick = currentTick; tick <= end; tick++) {
+            int slot = (int) (tick % slots.length);
+            long[] keys = slots[slot];
+            int size = sizes[slot];
+            if (size == 0) continue;
+            for (int i = 0; i < size; i++) {
+                Long t = scheduled.get(keys[i]);
+                if (t == null || t.longValue() != tick) continue;
+                scheduled.remove(keys[i]);
+                if (count == due.length)
+                    due = Arrays.copyOf(due, Math.max(16, count * 2));
+                due[count++] = keys[i];
+            }
+            sizes[slot] = 0;
+            // Let a slot that held a burst of devices shrink again
+            if (keys.length > 64 && size < keys.length / 4)
+                slots[slot] = null;
+        }
+        if (nowTick >= currentTick)
+            currentTick = nowTick + 1;
+        return (count == due.length) ? due : Arrays.copyOf(due, count);
+    }
+
+    /**
+     * @return the number of devices filed in the wheel
+     */
+    public synchronized int size() {
+        return scheduled.size();
+    }
+}
@@ -0,0 +1,110 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+/**
+ * A set-associative cache from the fields of a packet's source to the
+ * {@link Entity} they were last learned as and the key of its device.
+ *
+ * Lookups hash primitive fields and don't allocate, which lets the device
+ * manager refresh hosts it already knows in place. A source can be in any
+ * of the WAYS slots of its bucket. Entries are only hints: sources that
+ * hash to a full bucket evict each other, and callers must check that the
+ * entity still matches and still belongs to the device before using it.
+ */
+public class KnownEntityCache {
+    protected static final int INITIAL_SIZE = 1024;
+    protected static final int MAX_SIZE = 1 << 20;
+    protected static final int WAYS = 4;
+
+    protected static class Slot {
+        protected final Entity entity;
+        protected final Long deviceKey;
+
+        protected Slot(Entity entity, Long deviceKey) {
+            this.entity = entity;
+            this.deviceKey = deviceKey;
+        }
+    }
+
+    // Slots are immutable, so they can be stored and read without locking
+    protected volatile Slot[] slots = new Slot[INITIAL_SIZE];
+
+    protected static int hash(long macAddress, short vlan, int ipv4Address,
+                              long switchDPID, int switchPort) {
+        if (vlan < 0) vlan = -1;
+        long h = macAddress * 0x9E3779B97F4A7C15L;
+        h ^= switchDPID + 0x632BE59BD9B4E019L + (h << 6) + (h >>> 2);
+        h ^= ((long) switchPort << 32 | (vlan & 0xffffL) << 16) +
+                ipv4Address + (h << 6) + (h >>> 2);
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Find the slot for a source
+     * @param macAddress
+     * @param vlan the VLAN, or a negative number if untagged
+     * @param ipv4Address the IP address, or 0 if none
+     * @param switchDPID
+     * @param switchPort
+     * @return the slot with an entity matching the source, or null if
+     * there is none
+     */
+    public Slot get(long macAddress, short vlan, int ipv4Address,
+                    long switchDPID, int switchPort) {
+        Slot[] s = slots;
+        int h = hash(macAddress, vlan, ipv4Address, switchDPID, switchPort);
+        int bucket = h & (s.length - WAYS);
+        for (int i = bucket; i < bucket + WAYS; i++) {
+            Slot slot = s[i];
+            if (slot != null &&
+                    slot.entity.matches(macAddress, vlan, ipv4Address,
+                                        switchDPID, switchPort))
+                return slot;
+        }
+        return null;
+    }
+
+    /**
+     * Remember the entity learned for a source
+     * @param entity an entity with an attachment point
+     * @param deviceKey the key of the device the entity belongs to
+     * @param population the number of known devices, used to size the
+     * cache
+     */
+    public void put(Entity entity, Long deviceKey, int population) {
+        if (entity.getSwitchDPID() == null || entity.getSwitchPort() == null)
+            return;
+        Slot[] s = slots;
+        if (population > s.length / 2 && s.length < MAX_SIZE) {
+            // Start over with a larger table; it fills up again as the
+            // known hosts send traffic
+            s = new Slot[s.length * 2];
+            slots = s;
+        }
+        int h = hash(entity.getMacAddress(),
+                     (entity.getVlan() == null) ?
+                             -1 : entity.getVlan().shortValue(),
+                     (entity.getIpv4Address() == null) ?
+                             0 : entity.getIpv4Address().intValue(),
+                     entity.getSwitchDPID().longValue(),
+                     entity.getSwitchPort().intValue());
+        int bucket = h & (s.length - WAYS);
+        // Take the slot of the same source, or else an empty slot, or
+        // else evict one picked by the high bits of the hash
+        int victim = bucket + ((h >>> 28) & (WAYS - 1));
+        for (int i = bucket; i < bucket + WAYS; i++) {
+            Slot slot = s[i];
+            if (slot == null) {
+                victim = i;
+            } else if (slot.entity.equals(entity)) {
+                victim = i;
+                break;
+            }
+        }
+        s[victim] = new Slot(entity, deviceKey);
+    }
+
+    public void clear() {
+        slots = new Slot[INITIAL_SIZE];
+    }
+}
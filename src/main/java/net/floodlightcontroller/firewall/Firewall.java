@@ -20,6 +20,7 @@ import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.counter.ICounterStoreService;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 
 import java.util.ArrayList;
@@ -49,9 +50,16 @@ public class Firewall implements IFirewallService, IOFMessageListener,
     protected IFloodlightProviderService floodlightProvider;
     protected IStorageSourceService storageSource;
     protected IRestApiService restApi;
+    protected ICounterStoreService counterStore;
     protected static Logger logger;
 
-    protected List<FirewallRule> rules; // protected by synchronized
+    // Replaced rather than modified, under the Firewall monitor
+    protected volatile List<FirewallRule> rules;
+    // Compiled from rules, so packet-ins match without locking
+    protected volatile FirewallRuleClassifier classifier;
+    // Verdicts of recent flows, or null if caching is disabled
+    protected FirewallVerdictCache verdictCache;
+    protected int verdictCacheSize = FirewallVerdictCache.DEFAULT_CAPACITY;
     protected boolean enabled;
     protected int subnet_mask = IPv4.toIPv4Address("255.255.255.0");
 
@@ -129,6 +137,7 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         l.add(IFloodlightProviderService.class);
         l.add(IStorageSourceService.class);
         l.add(IRestApiService.class);
+        l.add(ICounterStoreService.class);
         return l;
     }
 
@@ -324,9 +333,26 @@ public class Firewall implements IFirewallService, IOFMessageListener,
                 .getServiceImpl(IFloodlightProviderService.class);
         storageSource = context.getServiceImpl(IStorageSourceService.class);
         restApi = context.getServiceImpl(IRestApiService.class);
+        counterStore = context.getServiceImpl(ICounterStoreService.class);
         rules = new ArrayList<FirewallRule>();
+        classifier = new FirewallRuleClassifier(rules);
         logger = LoggerFactory.getLogger(Firewall.class);
 
+        Map<String, String> configOptions = context.getConfigParams(this);
+        try {
+            String size = configOptions.get("verdictcachesize");
+            if (size != null) {
+                verdictCacheSize = Integer.parseInt(size);
+            }
+        } catch (NumberFormatException e) {
+            logger.warn("Error parsing verdict cache size, using default of {}",
+                        verdictCacheSize);
+        }
+        if (verdictCacheSize > 0) {
+            verdictCache =
+                    new FirewallVerdictCache(verdictCacheSize, counterStore);
+        }
+
         // start disabled
         enabled = false;
     }
@@ -342,9 +368,7 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // storage, create table and read rules
         storageSource.createTable(TABLE_NAME, null);
         storageSource.setTablePrimaryKeyName(TABLE_NAME, COLUMN_RULEID);
-        synchronized (rules) {
-            this.rules = readRulesFromStorage();
-        }
+        setRules(readRulesFromStorage());
     }
 
     @Override
@@ -414,6 +438,19 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         this.subnet_mask = IPv4.toIPv4Address(newMask.trim());
     }
 
+    /**
+     * Publish a new list of rules along with its classifier
+     * @param newRules the sorted rules, which must not be modified later
+     */
+    protected synchronized void setRules(List<FirewallRule> newRules) {
+        FirewallRuleClassifier newClassifier =
+                new FirewallRuleClassifier(newRules);
+        this.rules = newRules;
+        this.classifier = newClassifier;
+        if (verdictCache != null)
+            verdictCache.invalidate();
+    }
+
     @Override
     public synchronized void addRule(FirewallRule rule) {
         
@@ -422,18 +459,20 @@ public class Firewall implements IFirewallService, IOFMessageListener,
         // may want to check conflict
         rule.ruleid = rule.genID();
         
+        List<FirewallRule> newRules = new ArrayList<FirewallRule>(this.rules);
         int i = 0;
         // locate the position of the new rule in the sorted arraylist
-        for (i = 0; i < this.rules.size(); i++) {
-            if (this.rules.get(i).priority >= rule.priority)
+        for (i = 0; i < newRules.size(); i++) {
+            if (newRules.get(i).priority >= rule.priority)
                 break;
         }
         // now, add rule to the list
-        if (i <= this.rules.size()) {
-            this.rules.add(i, rule);
+        if (i <= newRules.size()) {
+            newRules.add(i, rule);
         } else {
-            this.rules.add(rule);
+            newRules.add(rule);
         }
+        setRules(newRules);
         // add rule to database
         Map<String, Object> entry = new HashMap<String, Object>();
         entry.put(COLUMN_RULEID, Integer.toString(rule.ruleid));
@@ -476,7 +515,8 @@ public class Firewall implements IFirewallService, IOFMessageListener,
 
     @Override
     public synchronized void deleteRule(int ruleid) {
-        Iterator<FirewallRule> iter = this.rules.iterator();
+        List<FirewallRule> newRules = new ArrayList<FirewallRule>(this.rules);
+        Iterator<FirewallRule> iter = newRules.iterator();
         while (iter.hasNext()) {
             FirewallRule r = iter.next();
             if (r.ruleid == ruleid) {
@@ -485,13 +525,18 @@ public class Firewall implements IFirewallService, IOFMessageListener,
                 break;
             }
         }
+        setRules(newRules);
         // delete from database
         storageSource.deleteRow(TABLE_NAME, Integer.toString(ruleid));
     }
 
     /**
-     * Iterates over the firewall rules and tries to match them with the
-     * incoming packet (flow). Uses the FirewallRule class's matchWithFlow
+     * Finds the first firewall rule that matches the incoming packet (flow)
+     * with the compiled classifier, which narrows the rules down to those
+     * that can match the packet and tries them in order, without taking a
+     * lock. The verdicts of recent flows are cached until the rules change,
+     * so repeated packet-ins of a flow skip matching. Uses the FirewallRule
+     * class's matchWithFlow
      * method to perform matching. It maintains a pair of wildcards (allow and
      * deny) which are assigned later to the firewall's decision, where 'allow'
      * wildcards are applied if the matched rule turns out to be an ALLOW rule
@@ -522,34 +567,20 @@ public class Firewall implements IFirewallService, IOFMessageListener,
      */
     protected RuleWildcardsPair matchWithRule(IOFSwitch sw, OFPacketIn pi,
             FloodlightContext cntx) {
-        FirewallRule matched_rule = null;
         Ethernet eth = IFloodlightProviderService.bcStore.get(cntx,
                 IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
-        WildcardsPair wildcards = new WildcardsPair();
-
-        synchronized (rules) {
-            Iterator<FirewallRule> iter = this.rules.iterator();
-            FirewallRule rule = null;
-            // iterate through list to find a matching firewall rule
-            while (iter.hasNext()) {
-                // get next rule from list
-                rule = iter.next();
-
-                // check if rule matches
-                if (rule.matchesFlow(sw.getId(), pi.getInPort(), eth, wildcards) == true) {
-                    matched_rule = rule;
-                    break;
-                }
-            }
-        }
-
-        // make a pair of rule and wildcards, then return it
-        RuleWildcardsPair ret = new RuleWildcardsPair();
-        ret.rule = matched_rule;
-        if (matched_rule == null || matched_rule.action == FirewallRule.FirewallAction.DENY) {
-            ret.wildcards = wildcards.drop;
-        } else {
-            ret.wildcards = wildcards.allow;
+        if (verdictCache == null)
+            return classifier.match(sw.getId(), pi.getInPort(), eth);
+
+        // Read the version before the classifier, so a verdict found with
+        // rules replaced meanwhile is tagged as stale
+        long version = verdictCache.getVersion();
+        FirewallVerdictCache.FlowKey key =
+                new FirewallVerdictCache.FlowKey(sw.getId(), pi.getInPort(), eth);
+        RuleWildcardsPair ret = verdictCache.get(key, version);
+        if (ret == null) {
+            ret = classifier.match(sw.getId(), pi.getInPort(), eth);
+            verdictCache.put(key, version, ret);
         }
         return ret;
     }
@@ -0,0 +1,318 @@
+package net.floodlightcontroller.firewall;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openflow.protocol.OFMatch;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * An immutable decision tree over a list of firewall rules that finds the
+ * first rule matching a packet without trying every rule.
+ *
+ * Each inner node cuts the rules on one exact-match field: the switch,
+ * the input port, the ethertype, the IP protocol or the transport
+ * destination port. A child holds the rules that require the value of the
+ * child plus the rules that don't look at the field, in their original
+ * order. The rules in the leaf the packet reaches are tried in order with
+ * {@link FirewallRule#matchesFlow}, so the rule found is the one a scan of
+ * the whole list would find. Every rule left out of the leaf fails on a
+ * field the packet was sorted by, so the fields the tree looked at are not
+ * wildcarded in the decision.
+ */
+public class FirewallRuleClassifier {
+    /**
+     * The number of rules at which a node isn't cut further
+     */
+    protected static final int LEAF_SIZE = 8;
+
+    /**
+     * The most rules the children of a node may hold together, as a
+     * multiple of the rules of the node, since the rules that don't look
+     * at the field are copied into every child
+     */
+    protected static final int SPACE_FACTOR = 4;
+
+    /**
+     * The value of a field the packet doesn't have, which no rule requires
+     */
+    protected static final long NONE = Long.MIN_VALUE;
+
+    protected static final int DPID = 0;
+    protected static final int IN_PORT = 1;
+    protected static final int DL_TYPE = 2;
+    protected static final int NW_PROTO = 3;
+    protected static final int TP_DST = 4;
+    protected static final int FIELDS = 5;
+
+    /**
+     * The wildcard bits of the flow match that cover each field
+     */
+    protected static final int[] FIELD_WILDCARDS = {
+        0,
+        OFMatch.OFPFW_IN_PORT,
+        OFMatch.OFPFW_DL_TYPE,
+        OFMatch.OFPFW_DL_TYPE | OFMatch.OFPFW_NW_PROTO,
+        OFMatch.OFPFW_DL_TYPE | OFMatch.OFPFW_NW_PROTO | OFMatch.OFPFW_TP_DST
+    };
+
+    protected static class Node {
+        /**
+         * The field this node cuts on, or -1 for a leaf
+         */
+        int field = -1;
+        /**
+         * The values with their own child, sorted
+         */
+        long[] values;
+        Node[] children;
+        /**
+         * The child for the other values
+         */
+        Node other;
+        /**
+         * The rules of a leaf, in order
+         */
+        FirewallRule[] rules;
+    }
+
+    protected final Node root;
+    protected final int ruleCount;
+    protected int nodeCount;
+    protected int leafCount;
+    protected int maxLeafSize;
+
+    /**
+     * Compile a list of rules
+     * @param rules the rules, in the order they are tried
+     */
+    public FirewallRuleClassifier(List<FirewallRule> rules) {
+        ruleCount = rules.size();
+        root = build(new ArrayList<FirewallRule>(rules), new boolean[FIELDS]);
+    }
+
+    /**
+     * Get the value a rule requires in a field
+     * @return the value, or NONE if the rule doesn't look at the field
+     */
+    protected static long getRuleValue(FirewallRule rule, int field) {
+        switch (field) {
+            case DPID:
+                return rule.wildcard_dpid ? NONE : rule.dpid;
+            case IN_PORT:
+                return rule.wildcard_in_port ? NONE : rule.in_port;
+            case DL_TYPE:
+                // A rule for another type fails on any packet, but only
+                // after narrowing the wildcards, so every packet checks it
+                if (rule.wildcard_dl_type ||
+                    (rule.dl_type != Ethernet.TYPE_ARP &&
+                     rule.dl_type != Ethernet.TYPE_IPv4))
+                    return NONE;
+                return rule.dl_type;
+            case NW_PROTO:
+                if (rule.wildcard_dl_type || rule.dl_type != Ethernet.TYPE_IPv4 ||
+                    rule.wildcard_nw_proto)
+                    return NONE;
+                if (rule.nw_proto == IPv4.PROTOCOL_TCP ||
+                    rule.nw_proto == IPv4.PROTOCOL_UDP ||
+                    rule.nw_proto == IPv4.PROTOCOL_ICMP)
+                    return rule.nw_proto;
+                return NONE;
+            case TP_DST:
+                if (rule.tp_dst == 0)
+                    return NONE;
+                long proto = getRuleValue(rule, NW_PROTO);
+                if (proto == IPv4.PROTOCOL_TCP || proto == IPv4.PROTOCOL_UDP)
+                    return rule.tp_dst;
+                return NONE;
+            default:
+                return NONE;
+        }
+    }
+
+    /**
+     * Get the value of a field of a packet
+     * @return the value, or NONE if the packet doesn't have the field
+     */
+    protected static long getPacketValue(long dpid, short inPort,
+                                         Ethernet eth, int field) {
+        switch (field) {
+            case DPID:
+                return dpid;
+            case IN_PORT:
+                return inPort;
+            case DL_TYPE:
+                return eth.getEtherType();
+            case NW_PROTO:
+                if (eth.getEtherType() != Ethernet.TYPE_IPv4 ||
+                    !(eth.getPayload() instanceof IPv4))
+                    return NONE;
+                return ((IPv4) eth.getPayload()).getProtocol();
+            case TP_DST:
+                if (eth.getEtherType() != Ethernet.TYPE_IPv4 ||
+                    !(eth.getPayload() instanceof IPv4))
+                    return NONE;
+                IPv4 ip = (IPv4) eth.getPayload();
+                if (ip.getProtocol() == IPv4.PROTOCOL_TCP &&
+                    ip.getPayload() instanceof TCP)
+                    return ((TCP) ip.getPayload()).getDestinationPort();
+                if (ip.getProtocol() == IPv4.PROTOCOL_UDP &&
+                    ip.getPayload() instanceof UDP)
+                    return ((UDP) ip.getPayload()).getDestinationPort();
+                return NONE;
+            default:
+                return NONE;
+        }
+    }
+
+    protected Node build(List<FirewallRule> rules, boolean[] used) {
+        nodeCount++;
+        Node node = new Node();
+        int field = (rules.size() > LEAF_SIZE) ? chooseField(rules, used) : -1;
+        if (field < 0) {
+            node.rules = rules.toArray(new FirewallRule[rules.size()]);
+            leafCount++;
+            maxLeafSize = Math.max(maxLeafSize, rules.size());
+            return node;
+        }
+
+        // Split the rules by the value they require; the rules that don't
+        // look at the field go to every child
+        TreeMap<Long, List<FirewallRule>> split =
+                new TreeMap<Long, List<FirewallRule>>();
+        List<FirewallRule> other = new ArrayList<FirewallRule>();
+        for (FirewallRule rule : rules) {
+            long value = getRuleValue(rule, field);
+            if (value == NONE)
+                continue;
+            if (!split.containsKey(value))
+                split.put(value, new ArrayList<FirewallRule>());
+        }
+        for (FirewallRule rule : rules) {
+            long value = getRuleValue(rule, field);
+            if (value == NONE) {
+                other.add(rule);
+                for (List<FirewallRule> child : split.values())
+                    child.add(rule);
+            } else {
+                split.get(value).add(rule);
+            }
+        }
+
+        used[field] = true;
+        node.field = field;
+        node.values = new long[split.size()];
+        node.children = new Node[split.size()];
+        int i = 0;
+        for (Map.Entry<Long, List<FirewallRule>> e :
+                split.entrySet()) {
+            node.values[i] = e.getKey();
+            node.children[i] = build(e.getValue(), used);
+            i++;
+        }
+        node.other = build(other, used);
+        used[field] = false;
+        return node;
+    }
+
+    /**
+     * Choose the field that leaves the fewest rules in the largest child
+     * @return the field, or -1 if no field makes the children smaller
+     * within the space limit
+     */
+    protected int chooseField(List<FirewallRule> rules, boolean[] used) {
+        int best = -1;
+        int bestSize = rules.size();
+        for (int field = 0; field < FIELDS; field++) {
+            if (used[field]) continue;
+            TreeMap<Long, Integer> counts = new TreeMap<Long, Integer>();
+            int wildcards = 0;
+            for (FirewallRule rule : rules) {
+                long value = getRuleValue(rule, field);
+                if (value == NONE) {
+                    wildcards++;
+                } else {
+                    Integer count = counts.get(value);
+                    counts.put(value, (count == null) ? 1 : count + 1);
+                }
+            }
+            if (counts.isEmpty()) continue;
+            int largest = 0;
+            int total = wildcards;
+            for (int count : counts.values()) {
+                largest = Math.max(largest, count);
+                total += count + wildcards;
+            }
+            int size = largest + wildcards;
+            if (size < bestSize && total <= SPACE_FACTOR * rules.size()) {
+                best = field;
+                bestSize = size;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Find the first rule that matches a packet
+     * @param dpid the switch the packet came from
+     * @param inPort the port the packet came in on
+     * @param eth the packet
+     * @return the matched rule, or null, and the wildcards of the decision
+     */
+    public RuleWildcardsPair match(long dpid, short inPort, Ethernet eth) {
+        WildcardsPair wildcards = new WildcardsPair();
+        int examined = 0;
+        Node node = root;
+        while (node.field >= 0) {
+            long value = getPacketValue(dpid, inPort, eth, node.field);
+            examined |= FIELD_WILDCARDS[node.field];
+            int i = (value == NONE) ? -1 :
+                    Arrays.binarySearch(node.values, value);
+            node = (i >= 0) ? node.children[i] : node.other;
+        }
+
+        FirewallRule matched = null;
+        for (FirewallRule rule : node.rules) {
+            if (rule.matchesFlow(dpid, inPort, eth, wildcards)) {
+                matched = rule;
+                break;
+            }
+        }
+
+        RuleWildcardsPair ret = new RuleWildcardsPair();
+        ret.rule = matched;
+        if (matched == null ||
+            matched.action == FirewallRule.FirewallAction.DENY) {
+            ret.wildcards = wildcards.drop & ~examined;
+        } else {
+            ret.wildcards = wildcards.allow & ~examined;
+        }
+        return ret;
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * @return the most rules a lookup tries
+     */
+    public int getMaxLeafSize() {
+        return maxLeafSize;
+    }
+}
@@ -0,0 +1,221 @@
+package net.floodlightcontroller.firewall;
+
+import net.floodlightcontroller.counter.CounterStore;
+import net.floodlightcontroller.counter.CounterValue;
+import net.floodlightcontroller.counter.ICounter;
+import net.floodlightcontroller.counter.ICounterStoreService;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
+/**
+ * A bounded cache of firewall verdicts keyed by the packet headers the
+ * rules look at, safe to use from any number of threads, so that the
+ * packet-ins of a flow after the first one don't evaluate the rules again.
+ *
+ * Every verdict is tagged with the version of the rule set it was found
+ * with. Changing the rules bumps the version, which invalidates every
+ * cached verdict at once; stale verdicts count as misses and are replaced,
+ * or evicted as the least recently used.
+ */
+public class FirewallVerdictCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    public static final String HIT_COUNTER_NAME =
+            "FirewallVerdictCacheHit";
+    public static final String MISS_COUNTER_NAME =
+            "FirewallVerdictCacheMiss";
+    public static final String STALE_COUNTER_NAME =
+            "FirewallVerdictCacheStale";
+    public static final String EVICTION_COUNTER_NAME =
+            "FirewallVerdictCacheEviction";
+
+    /**
+     * The headers of a packet that firewall rules can match on
+     */
+    protected static class FlowKey {
+        protected final long dpid;
+        protected final long dlSrc;
+        protected final long dlDst;
+        protected final int nwSrc;
+        protected final int nwDst;
+        protected final short inPort;
+        protected final short dlType;
+        protected final short tpSrc;
+        protected final short tpDst;
+        protected final byte nwProto;
+        protected final int hash;
+
+        protected FlowKey(long dpid, short inPort, Ethernet eth) {
+            this.dpid = dpid;
+            this.inPort = inPort;
+            this.dlSrc = eth.getSourceMAC().toLong();
+            this.dlDst = eth.getDestinationMAC().toLong();
+            this.dlType = eth.getEtherType();
+            int nwSrc = 0, nwDst = 0;
+            short tpSrc = 0, tpDst = 0;
+            byte nwProto = 0;
+            if (eth.getPayload() instanceof IPv4) {
+                IPv4 ip = (IPv4) eth.getPayload();
+                nwSrc = ip.getSourceAddress();
+                nwDst = ip.getDestinationAddress();
+                nwProto = ip.getProtocol();
+                if (ip.getPayload() instanceof TCP) {
+                    tpSrc = ((TCP) ip.getPayload()).getSourcePort();
+                    tpDst = ((TCP) ip.getPayload()).getDestinationPort();
+                } else if (ip.getPayload() instanceof UDP) {
+                    tpSrc = ((UDP) ip.getPayload()).getSourcePort();
+                    tpDst = ((UDP) ip.getPayload()).getDestinationPort();
+                }
+            }
+            this.nwSrc = nwSrc;
+            this.nwDst = nwDst;
+            this.nwProto = nwProto;
+            this.tpSrc = tpSrc;
+            this.tpDst = tpDst;
+
+            long h = dpid * 31 + dlSrc;
+            h = h * 31 + dlDst;
+            h = h * 31 + (((long) nwSrc << 32) | (nwDst & 0xffffffffL));
+            h = h * 31 + (((long) inPort << 48) |
+                          ((long) (dlType & 0xffff) << 32) |
+                          ((tpSrc & 0xffff) << 16) | (tpDst & 0xffff));
+            h = h * 31 + nwProto;
+            this.hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof FlowKey)) return false;
+            FlowKey other = (FlowKey) obj;
+            return hash == other.hash && dpid == other.dpid &&
+                   dlSrc == other.dlSrc && dlDst == other.dlDst &&
+                   nwSrc == other.nwSrc && nwDst == other.nwDst &&
+                   inPort == other.inPort && dlType == other.dlType &&
+                   tpSrc == other.tpSrc && tpDst == other.tpDst &&
+                   nwProto == other.nwProto;
+        }
+    }
+
+    /**
+     * A verdict and the version of the rules it was found with
+     */
+    protected static class Verdict {
+        protected final long version;
+        protected final RuleWildcardsPair result;
+
+        protected Verdict(long version, RuleWildcardsPair result) {
+            this.version = version;
+            this.result = result;
+        }
+    }
+
+    protected int capacity;
+    protected volatile long version;
+    protected ConcurrentLinkedHashMap<FlowKey, Verdict> cache;
+
+    protected ICounter hitCounter;
+    protected ICounter missCounter;
+    protected ICounter staleCounter;
+    protected ICounter evictionCounter;
+
+    /**
+     * @param capacity the maximum number of verdicts
+     * @param counterStore the counter store to count hits and misses in,
+     * or null to not count them
+     */
+    public FirewallVerdictCache(int capacity,
+                                ICounterStoreService counterStore) {
+        this.capacity = capacity;
+        if (counterStore != null) {
+            hitCounter = createCounter(counterStore, HIT_COUNTER_NAME);
+            missCounter = createCounter(counterStore, MISS_COUNTER_NAME);
+            staleCounter = createCounter(counterStore, STALE_COUNTER_NAME);
+            evictionCounter =
+                    createCounter(counterStore, EVICTION_COUNTER_NAME);
+        }
+        final ICounter evictions = evictionCounter;
+        cache = new ConcurrentLinkedHashMap.Builder<FlowKey, Verdict>()
+                .maximumWeightedCapacity(capacity)
+                .listener(new EvictionListener<FlowKey, Verdict>() {
+                    @Override
+                    public void onEviction(FlowKey key, Verdict value) {
+                        if (evictions != null) evictions.increment();
+                    }
+                })
+                .build();
+    }
+
+    protected static ICounter createCounter(ICounterStoreService counterStore,
+                                            String name) {
+        return counterStore.createCounter(
+                CounterStore.createCounterName(
+                        ICounterStoreService.CONTROLLER_NAME, -1, name),
+                CounterValue.CounterType.LONG);
+    }
+
+    /**
+     * Get the version of the rules to tag the verdicts with. Read it
+     * before reading the rules a verdict is found with.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Invalidate every cached verdict. Call it after publishing new rules.
+     */
+    public synchronized void invalidate() {
+        version++;
+    }
+
+    /**
+     * Get the cached verdict for a packet
+     * @param key the key of the packet
+     * @param version the current version of the rules
+     * @return the verdict, or null on a miss
+     */
+    public RuleWildcardsPair get(FlowKey key, long version) {
+        Verdict verdict = cache.get(key);
+        if (verdict != null && verdict.version == version) {
+            if (hitCounter != null) hitCounter.increment();
+            return verdict.result;
+        }
+        if (verdict != null && staleCounter != null)
+            staleCounter.increment();
+        if (missCounter != null) missCounter.increment();
+        return null;
+    }
+
+    /**
+     * Cache a verdict
+     * @param key the key of the packet
+     * @param version the version of the rules the verdict was found with
+     * @param result the verdict, which must not be modified later
+     */
+    public void put(FlowKey key, long version, RuleWildcardsPair result) {
+        cache.put(key, new Verdict(version, result));
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -44,6 +44,7 @@ import net.floodlightcontroller.routing.ForwardingBase;
 import net.floodlightcontroller.routing.IRoutingDecision;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
 
 import org.openflow.protocol.OFFlowMod;
@@ -164,6 +165,10 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
         OFMatch match = new OFMatch();
         match.loadFromPacket(pi.getPacketData(), pi.getInPort());
 
+        // Skip the lookups if the route of the flow is being pushed
+        if (pushInFlightPacket(sw, match, pi, cntx))
+            return;
+
         // Check if we have the location of the destination
         IDevice dstDevice = 
                 IDeviceService.fcStore.
@@ -390,6 +395,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
         l.add(IRoutingService.class);
         l.add(ITopologyService.class);
         l.add(ICounterStoreService.class);
+        l.add(IThreadPoolService.class);
         return l;
     }
 
@@ -417,6 +423,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
         this.routingEngine = context.getServiceImpl(IRoutingService.class);
         this.topology = context.getServiceImpl(ITopologyService.class);
         this.counterStore = context.getServiceImpl(ICounterStoreService.class);
+        this.threadPool = context.getServiceImpl(IThreadPoolService.class);
         
         // read our config options
         Map<String, String> configOptions = context.getConfigParams(this);
@@ -440,6 +447,28 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule {
             		 "using default of {} seconds",
                      FLOWMOD_DEFAULT_HARD_TIMEOUT);
         }
+        String barriers = configOptions.get("routebarriers");
+        if (barriers != null) {
+            routeBarriers = Boolean.parseBoolean(barriers);
+        }
+        try {
+            String barrierTimeout = configOptions.get("routebarriertimeout");
+            if (barrierTimeout != null) {
+                routeBarrierTimeout = Long.parseLong(barrierTimeout);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing route barrier timeout, " +
+                     "using default of {} ms", routeBarrierTimeout);
+        }
+        try {
+            String coalesceTimeout = configOptions.get("flowcoalescetimeout");
+            if (coalesceTimeout != null) {
+                flowCoalesceTimeout = Long.parseLong(coalesceTimeout);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing flow coalesce timeout, " +
+                     "using default of {} ms", flowCoalesceTimeout);
+        }
         log.debug("FlowMod idle timeout set to {} seconds", 
                   FLOWMOD_DEFAULT_IDLE_TIMEOUT);
         log.debug("FlowMod hard timeout set to {} seconds", 
@@ -15,6 +15,8 @@
 
 package net.floodlightcontroller.linkdiscovery;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LinkType;
 
 import org.openflow.protocol.OFPhysicalPort.OFPortState;
@@ -34,11 +36,18 @@ public class LinkInfo {
         this.lastBddpReceivedTime = lastBddpReceivedTime;
     }
 
-    protected Integer srcPortState;
-    protected Integer dstPortState;
-    protected Long firstSeenTime;
-    protected Long lastLldpReceivedTime; /* Standard LLLDP received time */
-    protected Long lastBddpReceivedTime; /* Modified LLDP received time  */
+    protected volatile Integer srcPortState;
+    protected volatile Integer dstPortState;
+    protected volatile Long firstSeenTime;
+    protected volatile Long lastLldpReceivedTime; /* Standard LLLDP received time */
+    protected volatile Long lastBddpReceivedTime; /* Modified LLDP received time  */
+
+    private static final AtomicReferenceFieldUpdater<LinkInfo, Long>
+            lldpTimeUpdater = AtomicReferenceFieldUpdater.
+                newUpdater(LinkInfo.class, Long.class, "lastLldpReceivedTime");
+    private static final AtomicReferenceFieldUpdater<LinkInfo, Long>
+            bddpTimeUpdater = AtomicReferenceFieldUpdater.
+                newUpdater(LinkInfo.class, Long.class, "lastBddpReceivedTime");
 
     /** The port states stored here are topology's last knowledge of
      * the state of the port. This mostly mirrors the state
@@ -73,6 +82,15 @@ public class LinkInfo {
         this.lastLldpReceivedTime = unicastValidTime;
     }
 
+    /**
+     * Atomically set the unicast valid time if it is still the expected
+     * instance
+     * @return true if the valid time was set
+     */
+    public boolean compareAndSetUnicastValidTime(Long expect, Long update) {
+        return lldpTimeUpdater.compareAndSet(this, expect, update);
+    }
+
     public Long getMulticastValidTime() {
         return lastBddpReceivedTime;
     }
@@ -81,6 +99,15 @@ public class LinkInfo {
         this.lastBddpReceivedTime = multicastValidTime;
     }
 
+    /**
+     * Atomically set the multicast valid time if it is still the expected
+     * instance
+     * @return true if the valid time was set
+     */
+    public boolean compareAndSetMulticastValidTime(Long expect, Long update) {
+        return bddpTimeUpdater.compareAndSet(this, expect, update);
+    }
+
     public Integer getSrcPortState() {
         return srcPortState;
     }
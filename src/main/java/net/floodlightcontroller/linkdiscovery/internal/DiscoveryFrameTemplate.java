@@ -0,0 +1,65 @@
+package net.floodlightcontroller.linkdiscovery.internal;
+
+import java.util.Arrays;
+
+/**
+ * A serialized LLDP or BDDP frame used as a template for the discovery
+ * messages sent out of every port.
+ *
+ * The frames sent out of different ports only differ in the source MAC
+ * address, the chassis ID, the port ID and the DPID TLV, which sit at
+ * fixed offsets as long as the frame is untagged and starts with those
+ * TLVs. Building a frame copies the template and writes those bytes.
+ */
+public class DiscoveryFrameTemplate {
+    protected static final int ETHERNET_HEADER_LENGTH = 14;
+    protected static final int TLV_HEADER_LENGTH = 2;
+
+    // Source MAC address in the Ethernet header
+    protected static final int SRC_MAC_OFFSET = 6;
+    // Chassis ID TLV: subtype 4 followed by the low 6 bytes of the DPID
+    protected static final int CHASSIS_ID_OFFSET =
+            ETHERNET_HEADER_LENGTH + TLV_HEADER_LENGTH + 1;
+    // Port ID TLV: subtype 2 followed by the port number
+    protected static final int PORT_ID_OFFSET =
+            CHASSIS_ID_OFFSET + 6 + TLV_HEADER_LENGTH + 1;
+    // TTL TLV, then the DPID TLV: OpenFlow OUI, subtype 0 and the DPID
+    protected static final int DPID_OFFSET =
+            PORT_ID_OFFSET + 2 + TLV_HEADER_LENGTH + 2 +
+            TLV_HEADER_LENGTH + 4;
+
+    protected final byte[] template;
+
+    /**
+     * @param template the serialized frame, with zeros in the fields that
+     * differ between ports
+     */
+    public DiscoveryFrameTemplate(byte[] template) {
+        if (template.length < DPID_OFFSET + 8)
+            throw new IllegalArgumentException("Discovery frame too short");
+        this.template = template;
+    }
+
+    /**
+     * Build the frame to send out of a switch port
+     * @param sw the DPID of the switch
+     * @param port the port number
+     * @param srcMac the source MAC address
+     * @return a new serialized frame
+     */
+    public byte[] build(long sw, short port, byte[] srcMac) {
+        byte[] data = Arrays.copyOf(template, template.length);
+        System.arraycopy(srcMac, 0, data, SRC_MAC_OFFSET, 6);
+        for (int i = 0; i < 8; i++) {
+            data[DPID_OFFSET + i] = (byte) (sw >>> (56 - 8 * i));
+        }
+        System.arraycopy(data, DPID_OFFSET + 2, data, CHASSIS_ID_OFFSET, 6);
+        data[PORT_ID_OFFSET] = (byte) (port >>> 8);
+        data[PORT_ID_OFFSET + 1] = (byte) port;
+        return data;
+    }
+
+    public int getLength() {
+        return template.length;
+    }
+}
@@ -31,9 +31,11 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -76,10 +78,12 @@ import net.floodlightcontroller.storage.IStorageSourceService;
 import net.floodlightcontroller.storage.IStorageSourceListener;
 import net.floodlightcontroller.storage.OperatorPredicate;
 import net.floodlightcontroller.storage.StorageException;
+import net.floodlightcontroller.storage.WriteBehindTable;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.util.EventHistory;
 import net.floodlightcontroller.util.EventHistory.EvAction;
+import net.floodlightcontroller.util.PersistentHashMap;
 
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
@@ -117,6 +121,11 @@ import org.slf4j.LoggerFactory;
  *  -Each LinkTuple will be indexed into switchLinks for both
  *   src.id and dst.id, and portLinks for each src and dst
  *  -The updates queue is only added to from within a held write lock
+ *  -links, switchLinks, portLinks and portBroadcastDomainLinks are only
+ *   accessed with the write lock held. Readers use the linkState snapshot,
+ *   which is republished when the write lock is released after a change.
+ *  -A link's valid times may be refreshed without the lock; everything
+ *   else about a known link changes with the write lock held
  */
 @LogMessageCategory("Network Topology")
 public class LinkDiscoveryManager
@@ -187,6 +196,46 @@ IFloodlightModule, IInfoProvider, IHAListener {
 
     protected LLDPTLV controllerTLV;
     protected ReentrantReadWriteLock lock;
+
+    /**
+     * Serialized discovery messages, indexed by standard (bit 0) and
+     * reverse (bit 1); rebuilt when the controller TLV changes
+     */
+    protected volatile DiscoveryFrameTemplate[] discoveryTemplates;
+
+    /**
+     * The number of shards the switches are split into when sending
+     * LLDPs to all switch-ports
+     */
+    protected static final int DISCOVERY_SHARDS = 4;
+    protected int discoveryShards = DISCOVERY_SHARDS;
+
+    // Rounds of LLDPs to all switch-ports
+    protected long discoveryRounds;
+    protected long lastDiscoveryRoundNanos;
+    protected long maxDiscoveryRoundNanos;
+    protected int lastDiscoveryRoundSwitches;
+    protected int lastDiscoveryRoundPorts;
+
+    /**
+     * Links by the time their oldest valid time times out
+     */
+    protected LinkTimeoutQueue linkTimeouts;
+
+    /**
+     * The time in milliseconds link updates are collected for before they
+     * are written to storage
+     */
+    protected static final int STORAGE_WRITE_WINDOW = 100;
+    protected int storageWriteWindow = STORAGE_WRITE_WINDOW;
+    protected WriteBehindTable linkWriter;
+
+    // Runs of timeoutLinks
+    protected long timeoutRuns;
+    protected long lastTimeoutNanos;
+    protected long maxTimeoutNanos;
+    protected long timeoutLinksChecked;
+    protected long timeoutLinksExpired;
     int lldpTimeCount = 0;
 
     /**
@@ -216,6 +265,92 @@ IFloodlightModule, IInfoProvider, IHAListener {
      */
     protected Map<NodePortTuple, Set<Link>> portBroadcastDomainLinks;
 
+    /**
+     * An immutable snapshot of the links and their indexes. A new snapshot
+     * shares everything with the previous one except the entries of the
+     * links that changed.
+     */
+    protected static class LinkState {
+        protected final PersistentHashMap<Link, LinkInfo> links;
+        protected final PersistentHashMap<Long, Set<Link>> switchLinks;
+        protected final PersistentHashMap<NodePortTuple, Set<Link>> portLinks;
+        protected final PersistentHashMap<NodePortTuple, Set<Link>> portBroadcastDomainLinks;
+
+        public LinkState() {
+            this(PersistentHashMap.<Link, LinkInfo>empty(),
+                 PersistentHashMap.<Long, Set<Link>>empty(),
+                 PersistentHashMap.<NodePortTuple, Set<Link>>empty(),
+                 PersistentHashMap.<NodePortTuple, Set<Link>>empty());
+        }
+
+        protected LinkState(PersistentHashMap<Link, LinkInfo> links,
+                            PersistentHashMap<Long, Set<Link>> switchLinks,
+                            PersistentHashMap<NodePortTuple, Set<Link>> portLinks,
+                            PersistentHashMap<NodePortTuple, Set<Link>> portBroadcastDomainLinks) {
+            this.links = links;
+            this.switchLinks = switchLinks;
+            this.portLinks = portLinks;
+            this.portBroadcastDomainLinks = portBroadcastDomainLinks;
+        }
+
+        /**
+         * Build the snapshot that follows this one after some links
+         * changed
+         * @param changed the links that were added, updated or removed
+         * @return the new snapshot, reading the changed entries from the
+         * working maps
+         */
+        public LinkState update(Collection<Link> changed,
+                                Map<Link, LinkInfo> links,
+                                Map<Long, Set<Link>> switchLinks,
+                                Map<NodePortTuple, Set<Link>> portLinks,
+                                Map<NodePortTuple, Set<Link>> portBroadcastDomainLinks) {
+            PersistentHashMap<Link, LinkInfo> newLinks = this.links;
+            Set<Long> switches = new HashSet<Long>();
+            Set<NodePortTuple> ports = new HashSet<NodePortTuple>();
+            for (Link lt : changed) {
+                LinkInfo info = links.get(lt);
+                newLinks = (info == null) ? newLinks.minus(lt)
+                                          : newLinks.plus(lt, info);
+                switches.add(lt.getSrc());
+                switches.add(lt.getDst());
+                ports.add(new NodePortTuple(lt.getSrc(), lt.getSrcPort()));
+                ports.add(new NodePortTuple(lt.getDst(), lt.getDstPort()));
+            }
+            return new LinkState(newLinks,
+                    updateIndex(this.switchLinks, switchLinks, switches),
+                    updateIndex(this.portLinks, portLinks, ports),
+                    updateIndex(this.portBroadcastDomainLinks,
+                                portBroadcastDomainLinks, ports));
+        }
+
+        protected static <K> PersistentHashMap<K, Set<Link>>
+                updateIndex(PersistentHashMap<K, Set<Link>> snapshot,
+                            Map<K, Set<Link>> index, Set<K> keys) {
+            for (K key : keys) {
+                Set<Link> set = index.get(key);
+                if (set == null || set.isEmpty()) {
+                    snapshot = snapshot.minus(key);
+                } else if (!set.equals(snapshot.get(key))) {
+                    snapshot = snapshot.plus(key, Collections.unmodifiableSet(
+                            new HashSet<Link>(set)));
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * The link state as of the last release of the write lock
+     */
+    protected volatile LinkState linkState;
+
+    /**
+     * The links added, updated or removed with the write lock held since
+     * the snapshot was last published
+     */
+    protected Set<Link> changedLinks;
+
     protected volatile boolean shuttingDown = false;
 
     /* topology aware components are called in the order they were added to the
@@ -265,7 +400,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
     }
 
     public Map<NodePortTuple, Set<Link>> getPortLinks() {
-        return portLinks;
+        return linkState.portLinks;
     }
 
     public Set<NodePortTuple> getSuppressLLDPsInfo() {
@@ -488,7 +623,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
     protected void discoverOnKnownLinkPorts() {
         // Copy the port set.
         Set<NodePortTuple> nptSet = new HashSet<NodePortTuple>();
-        nptSet.addAll(portLinks.keySet());
+        nptSet.addAll(linkState.portLinks.keySet());
 
         // Send LLDP from each of them.
         for(NodePortTuple npt: nptSet) {
@@ -505,66 +640,30 @@ IFloodlightModule, IInfoProvider, IHAListener {
     }
 
     /**
-     * Send link discovery message out of a given switch port.
-     * The discovery message may be a standard LLDP or a modified
-     * LLDP, where the dst mac address is set to :ff.  
-     * 
+     * Build the discovery packet sent out of every switch port, with
+     * zeros in place of the source MAC address, switch DPID and port.
+     * The packet may be a standard LLDP or a modified LLDP, where the dst
+     * mac address is set to :ff.
+     *
      * TODO: The modified LLDP will updated in the future and may
      * use a different eth-type.
-     * @param sw
-     * @param port
      * @param isStandard   indicates standard or modified LLDP
      * @param isReverse    indicates whether the LLDP was sent as a response
      */
-    @LogMessageDoc(level="ERROR",
-            message="Failure sending LLDP out port {port} on switch {switch}",
-            explanation="An I/O error occured while sending LLDP message " +
-            		"to the switch.",
-            recommendation=LogMessageDoc.CHECK_SWITCH)
-    protected void sendDiscoveryMessage(long sw, short port,
-                             boolean isStandard,
-                             boolean isReverse) {
-
-        IOFSwitch iofSwitch = floodlightProvider.getSwitches().get(sw);
-        if (iofSwitch == null) {
-            return;
-        }
-        OFPhysicalPort ofpPort = iofSwitch.getPort(port);
-
-        if (ofpPort == null) {
-            if (log.isTraceEnabled()) {
-                log.trace("Null physical port. sw={}, port={}", sw, port);
-            }
-            return;
-        }
-
-        if (isLinkDiscoverySuppressed(sw, port)) {
-            /* Dont send LLDPs out of this port as suppressLLDPs set
-             * 
-             */
-            return;
-        }
-
-        // For fast ports, do not send forward LLDPs or BDDPs.
-        if (!isReverse && autoPortFastFeature && isFastPort(sw, port))
-            return;
-
-        if (log.isTraceEnabled()) {
-            log.trace("Sending LLDP packet out of swich: {}, port: {}",
-                      sw, port);
-        }
+    protected Ethernet createDiscoveryPacket(boolean isStandard,
+                                             boolean isReverse) {
         LLDP lldp;
         Ethernet ethernet;
 
         if (isStandard) {
             ethernet = new Ethernet()
-            .setSourceMACAddress(ofpPort.getHardwareAddress())
+            .setSourceMACAddress(new byte[6])
             .setDestinationMACAddress(LLDP_STANDARD_DST_MAC_STRING)
             .setEtherType(Ethernet.TYPE_LLDP);
             lldp = new LLDP();
         } else {
             ethernet = new Ethernet()
-            .setSourceMACAddress(ofpPort.getHardwareAddress())
+            .setSourceMACAddress(new byte[6])
             .setDestinationMACAddress(LLDP_BSN_DST_MAC_STRING)
             .setEtherType(Ethernet.TYPE_BDDP);
             lldp = new BDDP();
@@ -593,40 +692,116 @@ IFloodlightModule, IInfoProvider, IHAListener {
         }else {
             lldp.getOptionalTLVList().add(forwardTLV);
         }
+        return ethernet;
+    }
+
+    /**
+     * Serialize the discovery packets for each kind of discovery message.
+     * Needs to be redone whenever the controller TLV changes.
+     */
+    protected void createDiscoveryTemplates() {
+        DiscoveryFrameTemplate[] templates = new DiscoveryFrameTemplate[4];
+        for (int i = 0; i < templates.length; i++) {
+            Ethernet ethernet = createDiscoveryPacket((i & 1) != 0,
+                                                      (i & 2) != 0);
+            templates[i] = new DiscoveryFrameTemplate(ethernet.serialize());
+        }
+        discoveryTemplates = templates;
+    }
+
+    protected DiscoveryFrameTemplate getDiscoveryTemplate(boolean isStandard,
+                                                          boolean isReverse) {
+        return discoveryTemplates[(isStandard ? 1 : 0) | (isReverse ? 2 : 0)];
+    }
+
+    /**
+     * Send link discovery message out of a given switch port.
+     * @param sw
+     * @param port
+     * @param isStandard   indicates standard or modified LLDP
+     * @param isReverse    indicates whether the LLDP was sent as a response
+     */
+    @LogMessageDoc(level="ERROR",
+            message="Failure sending LLDP out port {port} on switch {switch}",
+            explanation="An I/O error occured while sending LLDP message " +
+            		"to the switch.",
+            recommendation=LogMessageDoc.CHECK_SWITCH)
+    protected void sendDiscoveryMessage(long sw, short port,
+                             boolean isStandard,
+                             boolean isReverse) {
+
+        IOFSwitch iofSwitch = floodlightProvider.getSwitches().get(sw);
+        if (iofSwitch == null) {
+            return;
+        }
+        OFPacketOut po = createDiscoveryMessage(iofSwitch, port,
+                                                isStandard, isReverse);
+        if (po == null) return;
+
+        // send
+        try {
+            iofSwitch.write(po, null);
+            iofSwitch.flush();
+        } catch (IOException e) {
+            log.error("Failure sending LLDP out port {} on switch {}",
+                      new Object[]{ port, iofSwitch.getStringId() }, e);
+        }
 
-        byte[] dpidArray = new byte[8];
-        ByteBuffer dpidBB = ByteBuffer.wrap(dpidArray);
-        ByteBuffer portBB = ByteBuffer.wrap(portId, 1, 2);
+    }
 
+    /**
+     * Create the packet out that sends a discovery message out of a given
+     * switch port.
+     * @param iofSwitch
+     * @param port
+     * @param isStandard   indicates standard or modified LLDP
+     * @param isReverse    indicates whether the LLDP was sent as a response
+     * @return the packet out, or null if no discovery message should be
+     * sent out of the port
+     */
+    protected OFPacketOut createDiscoveryMessage(IOFSwitch iofSwitch,
+                                                 short port,
+                                                 boolean isStandard,
+                                                 boolean isReverse) {
+        long sw = iofSwitch.getId();
+        OFPhysicalPort ofpPort = iofSwitch.getPort(port);
+
+        if (ofpPort == null) {
+            if (log.isTraceEnabled()) {
+                log.trace("Null physical port. sw={}, port={}", sw, port);
+            }
+            return null;
+        }
 
-        Long dpid = sw;
-        dpidBB.putLong(dpid);
+        if (isLinkDiscoverySuppressed(sw, port)) {
+            /* Dont send LLDPs out of this port as suppressLLDPs set
+             * 
+             */
+            return null;
+        }
 
-        // set the ethernet source mac to last 6 bytes of dpid
-        System.arraycopy(dpidArray, 2, ethernet.getSourceMACAddress(), 0, 6);
-        // set the chassis id's value to last 6 bytes of dpid
-        System.arraycopy(dpidArray, 2, chassisId, 1, 6);
-        // set the optional tlv to the full dpid
-        System.arraycopy(dpidArray, 0, dpidTLVValue, 4, 8);
+        // For fast ports, do not send forward LLDPs or BDDPs.
+        if (!isReverse && autoPortFastFeature && isFastPort(sw, port))
+            return null;
 
         if (port == OFPort.OFPP_LOCAL.getValue())
-            return;
+            return null;
 
-        // set the portId to the outgoing port
-        portBB.putShort(port);
         if (log.isTraceEnabled()) {
             log.trace("Sending LLDP out of interface: {}/{}",
                       HexString.toHexString(sw), port);
         }
 
-        // serialize and wrap in a packet out
-        byte[] data = ethernet.serialize();
+        // The source MAC address is the port's; the chassis ID, port ID
+        // and DPID TLV are patched into the serialized template
+        byte[] data = getDiscoveryTemplate(isStandard, isReverse).
+                build(sw, port, ofpPort.getHardwareAddress());
         OFPacketOut po = (OFPacketOut) floodlightProvider.getOFMessageFactory().getMessage(OFType.PACKET_OUT);
         po.setBufferId(OFPacketOut.BUFFER_ID_NONE);
         po.setInPort(OFPort.OFPP_NONE);
 
         // set actions
-        List<OFAction> actions = new ArrayList<OFAction>();
+        List<OFAction> actions = new ArrayList<OFAction>(1);
         actions.add(new OFActionOutput(port, (short) 0));
         po.setActions(actions);
         po.setActionsLength((short) OFActionOutput.MINIMUM_LENGTH);
@@ -634,47 +809,153 @@ IFloodlightModule, IInfoProvider, IHAListener {
         // set data
         po.setLengthU(OFPacketOut.MINIMUM_LENGTH + po.getActionsLength() + data.length);
         po.setPacketData(data);
-
-        // send
-        try {
-            iofSwitch.write(po, null);
-            iofSwitch.flush();
-        } catch (IOException e) {
-            log.error("Failure sending LLDP out port {} on switch {}",
-                      new Object[]{ port, iofSwitch.getStringId() }, e);
-        }
-
+        return po;
     }
 
     /**
-     * Send LLDPs to all switch-ports
+     * Send LLDPs to all switch-ports. The switches are split into shards
+     * that are handled in parallel on the thread pool, and each switch
+     * gets its LLDPs in a single write.
      */
+    @LogMessageDoc(level="ERROR",
+            message="Failure sending LLDPs to a shard of switches",
+            explanation="An error occured while sending LLDP messages " +
+                    "to some of the switches.",
+            recommendation=LogMessageDoc.GENERIC_ACTION)
     protected void discoverOnAllPorts() {
         if (log.isTraceEnabled()) {
             log.trace("Sending LLDP packets out of all the enabled ports on switch {}");
         }
-        Set<Long> switches = floodlightProvider.getSwitches().keySet();
-        // Send standard LLDPs
-        for (long sw: switches) {
-            IOFSwitch iofSwitch = floodlightProvider.getSwitches().get(sw);
-            if (iofSwitch == null) continue;
-            if (iofSwitch.getEnabledPorts() != null) {
-                for (OFPhysicalPort ofp: iofSwitch.getEnabledPorts()) {
-                    if (isLinkDiscoverySuppressed(sw, ofp.getPortNumber()))
-                        continue;
-                    if (autoPortFastFeature && isFastPort(sw, ofp.getPortNumber()))
-                        continue;
-
-                    // sends forward LLDP only non-fastports.
-                    sendDiscoveryMessage(sw, ofp.getPortNumber(), true, false);
-
-                    // If the switch port is not alreayd in the maintenance
-                    // queue, add it.
-                    NodePortTuple npt = new NodePortTuple(sw, ofp.getPortNumber());
-                    addToMaintenanceQueue(npt);
+        long start = System.nanoTime();
+        final List<IOFSwitch> switches =
+                new ArrayList<IOFSwitch>(floodlightProvider.getSwitches().values());
+        int shards = Math.min(discoveryShards, switches.size());
+        int ports = 0;
+
+        if (shards <= 1) {
+            ports = discoverOnSwitches(switches, 0, 1);
+        } else {
+            ScheduledExecutorService ses = threadPool.getScheduledExecutor();
+            List<Future<Integer>> futures =
+                    new ArrayList<Future<Integer>>(shards - 1);
+            for (int i = 1; i < shards; i++) {
+                final int shard = i;
+                final int count = shards;
+                futures.add(ses.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return discoverOnSwitches(switches, shard, count);
+                    }
+                }));
+            }
+            // This thread takes the first shard
+            ports = discoverOnSwitches(switches, 0, shards);
+            for (Future<Integer> f : futures) {
+                try {
+                    ports += f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    log.error("Failure sending LLDPs to a shard of switches",
+                              e.getCause());
                 }
             }
         }
+        recordDiscoveryRound(System.nanoTime() - start,
+                             switches.size(), ports);
+    }
+
+    /**
+     * Send LLDPs out of the enabled ports of every shards-th switch of
+     * the list, starting with the given one
+     * @return the number of LLDPs sent
+     */
+    protected int discoverOnSwitches(List<IOFSwitch> switches,
+                                     int shard, int shards) {
+        int count = 0;
+        for (int i = shard; i < switches.size(); i += shards) {
+            count += discoverOnSwitch(switches.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * Send LLDPs out of all the enabled ports of a switch in one write
+     * @return the number of LLDPs sent
+     */
+    protected int discoverOnSwitch(IOFSwitch iofSwitch) {
+        long sw = iofSwitch.getId();
+        Collection<OFPhysicalPort> enabledPorts = iofSwitch.getEnabledPorts();
+        if (enabledPorts == null) return 0;
+
+        List<OFMessage> msglist = new ArrayList<OFMessage>(enabledPorts.size());
+        for (OFPhysicalPort ofp: enabledPorts) {
+            if (isLinkDiscoverySuppressed(sw, ofp.getPortNumber()))
+                continue;
+            if (autoPortFastFeature && isFastPort(sw, ofp.getPortNumber()))
+                continue;
+
+            // sends forward LLDP only non-fastports.
+            OFPacketOut po = createDiscoveryMessage(iofSwitch,
+                                                    ofp.getPortNumber(),
+                                                    true, false);
+            if (po != null)
+                msglist.add(po);
+
+            // If the switch port is not alreayd in the maintenance
+            // queue, add it.
+            NodePortTuple npt = new NodePortTuple(sw, ofp.getPortNumber());
+            addToMaintenanceQueue(npt);
+        }
+        if (msglist.isEmpty()) return 0;
+
+        try {
+            iofSwitch.write(msglist, null);
+            iofSwitch.flush();
+        } catch (IOException e) {
+            log.error("Failure sending LLDP out port {} on switch {}",
+                      new Object[]{ "(all)", iofSwitch.getStringId() }, e);
+        }
+        return msglist.size();
+    }
+
+    /**
+     * Record the duration and size of a round of LLDPs to all switch-ports
+     * @param nanos the duration of the round in nanoseconds
+     * @param switches the number of switches
+     * @param ports the number of LLDPs sent
+     */
+    protected synchronized void recordDiscoveryRound(long nanos,
+                                                     int switches,
+                                                     int ports) {
+        discoveryRounds++;
+        lastDiscoveryRoundNanos = nanos;
+        if (nanos > maxDiscoveryRoundNanos)
+            maxDiscoveryRoundNanos = nanos;
+        lastDiscoveryRoundSwitches = switches;
+        lastDiscoveryRoundPorts = ports;
+    }
+
+    /**
+     * Get the number and duration of the rounds of LLDPs to all
+     * switch-ports and of the runs of link timeouts
+     */
+    protected synchronized Map<String, Object> getDiscoveryRoundStats() {
+        Map<String, Object> info = new HashMap<String, Object>();
+        info.put("shards", discoveryShards);
+        info.put("rounds", discoveryRounds);
+        info.put("last-round-ms", lastDiscoveryRoundNanos / 1000000.0);
+        info.put("max-round-ms", maxDiscoveryRoundNanos / 1000000.0);
+        info.put("last-round-switches", lastDiscoveryRoundSwitches);
+        info.put("last-round-ports", lastDiscoveryRoundPorts);
+        info.put("timeout-runs", timeoutRuns);
+        info.put("timeout-last-ms", lastTimeoutNanos / 1000000.0);
+        info.put("timeout-max-ms", maxTimeoutNanos / 1000000.0);
+        info.put("timeout-links-checked", timeoutLinksChecked);
+        info.put("timeout-links-expired", timeoutLinksExpired);
+        info.put("timeout-queue-size", linkTimeouts.size());
+        return info;
     }
 
     protected void setControllerTLV() {
@@ -710,6 +991,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
         bb.get(controllerTLVValue, 0, 8);
 
         this.controllerTLV = new LLDPTLV().setType((byte) 0x0c).setLength((short) controllerTLVValue.length).setValue(controllerTLVValue);
+        createDiscoveryTemplates();
     }
 
     @Override
@@ -855,11 +1137,12 @@ IFloodlightModule, IInfoProvider, IHAListener {
         // first seen within a small interval, send probe on the 
         // reverse link.
 
-        newLinkInfo = links.get(lt);
+        LinkState state = linkState;
+        newLinkInfo = state.links.get(lt);
         if (newLinkInfo != null && isStandard && isReverse == false) {
             Link reverseLink = new Link(lt.getDst(), lt.getDstPort(),
                                         lt.getSrc(), lt.getSrcPort());
-            LinkInfo reverseInfo = links.get(reverseLink);
+            LinkInfo reverseInfo = state.links.get(reverseLink);
             if (reverseInfo == null) {
                 // the reverse link does not exist.
                 if (newLinkInfo.getFirstSeenTime() > System.currentTimeMillis() - LINK_TIMEOUT) {
@@ -952,10 +1235,13 @@ IFloodlightModule, IInfoProvider, IHAListener {
         NodePortTuple srcNpt, dstNpt;
         boolean linkChanged = false;
 
+        if (refreshLink(lt, newInfo)) return false;
+
         lock.writeLock().lock();
         try {
             // put the new info.  if an old info exists, it will be returned.
             LinkInfo oldInfo = links.put(lt, newInfo);
+            changedLinks.add(lt);
             if (oldInfo != null &&
                     oldInfo.getFirstSeenTime() < newInfo.getFirstSeenTime())
                 newInfo.setFirstSeenTime(oldInfo.getFirstSeenTime());
@@ -1071,6 +1357,10 @@ IFloodlightModule, IInfoProvider, IHAListener {
                 }
             }
 
+            Long deadline = getLinkDeadline(newInfo);
+            if (deadline != null)
+                linkTimeouts.schedule(lt, deadline);
+
             if (linkChanged) {
                 // find out if the link was added or removed here.
                 updates.add(new LDUpdate(lt.getSrc(), lt.getSrcPort(),
@@ -1079,14 +1369,78 @@ IFloodlightModule, IInfoProvider, IHAListener {
                                          updateOperation));
             }
         } finally {
-            lock.writeLock().unlock();
+            unlockAndPublish();
         }
 
         return linkChanged;
     }
 
+    /**
+     * Refresh the valid time of a known link without taking the lock if
+     * that is all the update changes: the link is in the snapshot with
+     * the same port states, and has an older valid time of the kind being
+     * refreshed.
+     * @param lt The link
+     * @param newInfo The link info from the received LLDP
+     * @return true if the link was refreshed
+     */
+    protected boolean refreshLink(Link lt, LinkInfo newInfo) {
+        LinkInfo oldInfo = linkState.links.get(lt);
+        if (oldInfo == null) return false;
+        if (!oldInfo.getSrcPortState().equals(newInfo.getSrcPortState()) ||
+                !oldInfo.getDstPortState().equals(newInfo.getDstPortState()))
+            return false;
+
+        Long newTime = newInfo.getUnicastValidTime();
+        if (newTime != null) {
+            if (newInfo.getMulticastValidTime() != null) return false;
+            Long oldTime = oldInfo.getUnicastValidTime();
+            // A valid time that timed out is a link type change, and one
+            // that goes back moves the link's timeout
+            if (oldTime == null || newTime < oldTime ||
+                    !oldInfo.compareAndSetUnicastValidTime(oldTime, newTime))
+                return false;
+        } else {
+            newTime = newInfo.getMulticastValidTime();
+            if (newTime == null) return false;
+            Long oldTime = oldInfo.getMulticastValidTime();
+            if (oldTime == null || newTime < oldTime ||
+                    !oldInfo.compareAndSetMulticastValidTime(oldTime, newTime))
+                return false;
+        }
+
+        // The link may have been deleted or replaced in the meantime, in
+        // which case it has to be added back
+        if (linkState.links.get(lt) != oldInfo) return false;
+
+        if (log.isTraceEnabled()) {
+            log.trace("refreshLink: {} {}", lt,
+                      (newInfo.getMulticastValidTime()!=null) ? "multicast" : "unicast");
+        }
+        writeLinkToStorage(lt, oldInfo);
+        return true;
+    }
+
+    /**
+     * Release the write lock. If this is the outermost hold and links
+     * changed, first publish a new snapshot of the link state with the
+     * entries of the changed links replaced.
+     */
+    protected void unlockAndPublish() {
+        try {
+            if (!changedLinks.isEmpty() && lock.getWriteHoldCount() == 1) {
+                linkState = linkState.update(changedLinks, links, switchLinks,
+                                             portLinks,
+                                             portBroadcastDomainLinks);
+                changedLinks.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public Map<Long, Set<Link>> getSwitchLinks() {
-        return this.switchLinks;
+        return linkState.switchLinks;
     }
 
     /**
@@ -1099,6 +1453,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
         lock.writeLock().lock();
         try {
             for (Link lt : links) {
+                changedLinks.add(lt);
                 srcNpt = new NodePortTuple(lt.getSrc(), lt.getSrcPort());
                 dstNpt  =new NodePortTuple(lt.getDst(), lt.getDstPort());
 
@@ -1148,7 +1503,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
                 }
             }
         } finally {
-            lock.writeLock().unlock();
+            unlockAndPublish();
         }
     }
 
@@ -1249,7 +1604,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
                 }
             }
         } finally {
-            lock.writeLock().unlock();
+            unlockAndPublish();
         }
 
         if (!linkDeleted) {
@@ -1339,7 +1694,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
                 updates.add(update);
             }
         } finally {
-            lock.writeLock().unlock();
+            unlockAndPublish();
         }
     }
     
@@ -1360,43 +1715,78 @@ IFloodlightModule, IInfoProvider, IHAListener {
      */
     protected void deleteLinksOnPort(NodePortTuple npt, String reason) {
         List<Link> eraseList = new ArrayList<Link>();
-        if (this.portLinks.containsKey(npt)) {
-            if (log.isTraceEnabled()) {
-                log.trace("handlePortStatus: Switch {} port #{} " +
-                        "removing links {}",
-                        new Object[] {HexString.toHexString(npt.getNodeId()),
-                                      npt.getPortId(),
-                                      this.portLinks.get(npt)});
+        lock.writeLock().lock();
+        try {
+            if (this.portLinks.containsKey(npt)) {
+                if (log.isTraceEnabled()) {
+                    log.trace("handlePortStatus: Switch {} port #{} " +
+                            "removing links {}",
+                            new Object[] {HexString.toHexString(npt.getNodeId()),
+                                          npt.getPortId(),
+                                          this.portLinks.get(npt)});
+                }
+                eraseList.addAll(this.portLinks.get(npt));
+                deleteLinks(eraseList, reason);
             }
-            eraseList.addAll(this.portLinks.get(npt));
-            deleteLinks(eraseList, reason);
+        } finally {
+            unlockAndPublish();
         }
     }
 
-    /** 
-     * Iterates through the list of links and deletes if the
+    /**
+     * Get the time at which the oldest valid time of a link times out
+     * @param info The link info
+     * @return the deadline in milliseconds, or null if the link has no
+     * valid time
+     */
+    protected Long getLinkDeadline(LinkInfo info) {
+        Long uTime = info.getUnicastValidTime();
+        Long mTime = info.getMulticastValidTime();
+        Long time;
+        if (uTime == null) time = mTime;
+        else if (mTime == null) time = uTime;
+        else time = Math.min(uTime, mTime);
+        if (time == null) return null;
+        // A valid time times out once it is more than LINK_TIMEOUT old
+        return time + (this.LINK_TIMEOUT * 1000) + 1;
+    }
+
+    /**
+     * Deletes the links that are due in the timeout queue if their
      * last discovery message reception time exceeds timeout values.
+     * Links that are still valid are filed again by their oldest
+     * valid time.
      */
     protected void timeoutLinks() {
-        List<Link> eraseList = new ArrayList<Link>();
-        Long curTime = System.currentTimeMillis();
-        boolean linkChanged = false;
+        long start = System.nanoTime();
+        long curTime = System.currentTimeMillis();
+        int checked = 0;
+        int expired = 0;
+
+        // Nothing is due; don't bother the writers
+        if (!linkTimeouts.hasDue(curTime)) {
+            recordLinkTimeouts(System.nanoTime() - start, 0, 0);
+            return;
+        }
 
+        List<Link> eraseList = new ArrayList<Link>();
         // reentrant required here because deleteLink also write locks
         lock.writeLock().lock();
         try {
-            Iterator<Entry<Link, LinkInfo>> it =
-                    this.links.entrySet().iterator();
-            while (it.hasNext()) {
-                Entry<Link, LinkInfo> entry = it.next();
-                Link lt = entry.getKey();
-                LinkInfo info = entry.getValue();
+            for (Link lt : linkTimeouts.poll(curTime)) {
+                LinkInfo info = this.links.get(lt);
+                // The link was deleted since it was filed
+                if (info == null) continue;
+                checked++;
+                boolean linkChanged = false;
 
                 // Timeout the unicast and multicast LLDP valid times
-                // independently.
-                if ((info.getUnicastValidTime() != null) && 
-                        (info.getUnicastValidTime() + (this.LINK_TIMEOUT * 1000) < curTime)){
-                    info.setUnicastValidTime(null);
+                // independently. A valid time is only cleared if it
+                // wasn't refreshed in the meantime.
+                Long uTime = info.getUnicastValidTime();
+                if ((uTime != null) && 
+                        (uTime + (this.LINK_TIMEOUT * 1000) < curTime) &&
+                        info.compareAndSetUnicastValidTime(uTime, null)){
 
                     if (info.getMulticastValidTime() != null)
                         addLinkToBroadcastDomain(lt);
@@ -1404,9 +1794,10 @@ IFloodlightModule, IInfoProvider, IHAListener {
                     // the link would be deleted, which would trigger updateClusters().
                     linkChanged = true;
                 }
-                if ((info.getMulticastValidTime()!= null) && 
-                        (info.getMulticastValidTime()+ (this.LINK_TIMEOUT * 1000) < curTime)) {
-                    info.setMulticastValidTime(null);
+                Long mTime = info.getMulticastValidTime();
+                if ((mTime != null) && 
+                        (mTime + (this.LINK_TIMEOUT * 1000) < curTime) &&
+                        info.compareAndSetMulticastValidTime(mTime, null)) {
                     // if uTime is not null, then link will remain as openflow
                     // link. If uTime is null, it will be deleted.  So, we
                     // don't care about linkChanged flag here.
@@ -1415,27 +1806,49 @@ IFloodlightModule, IInfoProvider, IHAListener {
                 }
                 // Add to the erase list only if the unicast
                 // time is null.
-                if (info.getUnicastValidTime() == null && 
-                        info.getMulticastValidTime() == null){
-                    eraseList.add(entry.getKey());
-                } else if (linkChanged) {
-                    UpdateOperation operation;
-                    operation = getUpdateOperation(info.getSrcPortState(),
-                                                   info.getDstPortState());
-                    updates.add(new LDUpdate(lt.getSrc(), lt.getSrcPort(),
-                                             lt.getDst(), lt.getDstPort(),
-                                             getLinkType(lt, info),
-                                             operation));
+                Long deadline = getLinkDeadline(info);
+                if (deadline == null) {
+                    eraseList.add(lt);
+                    expired++;
+                } else {
+                    linkTimeouts.schedule(lt, deadline);
+                    if (linkChanged) {
+                        expired++;
+                        UpdateOperation operation;
+                        operation = getUpdateOperation(info.getSrcPortState(),
+                                                       info.getDstPortState());
+                        updates.add(new LDUpdate(lt.getSrc(), lt.getSrcPort(),
+                                                 lt.getDst(), lt.getDstPort(),
+                                                 getLinkType(lt, info),
+                                                 operation));
+                    }
                 }
             }
 
-            // if any link was deleted or any link was changed.
-            if ((eraseList.size() > 0) || linkChanged) {
+            // if any link was deleted
+            if (eraseList.size() > 0) {
                 deleteLinks(eraseList, "LLDP timeout");
             }
         } finally {
-            lock.writeLock().unlock();
+            unlockAndPublish();
         }
+        recordLinkTimeouts(System.nanoTime() - start, checked, expired);
+    }
+
+    /**
+     * Record the duration and size of a run of timeoutLinks
+     * @param nanos the duration of the run in nanoseconds
+     * @param checked the number of links that were due
+     * @param expired the number of links that had a valid time time out
+     */
+    protected synchronized void recordLinkTimeouts(long nanos, int checked,
+                                                   int expired) {
+        timeoutRuns++;
+        lastTimeoutNanos = nanos;
+        if (nanos > maxTimeoutNanos)
+            maxTimeoutNanos = nanos;
+        timeoutLinksChecked += checked;
+        timeoutLinksExpired += expired;
     }
 
     private boolean portEnabled(OFPhysicalPort port) {
@@ -1452,22 +1865,20 @@ IFloodlightModule, IInfoProvider, IHAListener {
     }
 
     public Map<NodePortTuple, Set<Link>> getPortBroadcastDomainLinks() {
-        return portBroadcastDomainLinks;
+        return linkState.portBroadcastDomainLinks;
     }
 
+    /**
+     * Get the links as of the last change. The map is an unmodifiable
+     * snapshot; the valid times of its links keep being refreshed.
+     */
     @Override
     public Map<Link, LinkInfo> getLinks() {
-        lock.readLock().lock();
-        Map<Link, LinkInfo> result;
-        try {
-            result = new HashMap<Link, LinkInfo>(links);
-        } finally {
-            lock.readLock().unlock();
-        }
-        return result;
+        return linkState.links;
     }
 
     protected void addLinkToBroadcastDomain(Link lt) {
+        changedLinks.add(lt);
 
         NodePortTuple srcNpt, dstNpt;
         srcNpt = new NodePortTuple(lt.getSrc(), lt.getSrcPort());
@@ -1483,6 +1894,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
     }
 
     protected void removeLinkFromBroadcastDomain(Link lt) {
+        changedLinks.add(lt);
 
         NodePortTuple srcNpt, dstNpt;
         srcNpt = new NodePortTuple(lt.getSrc(), lt.getSrcPort());
@@ -1506,6 +1918,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
      * Deletes all links from storage
      */
     void clearAllLinks() {
+        linkWriter.clear();
         storageSource.deleteRowsAsync(LINK_TABLE_NAME, null);
     }
 
@@ -1582,7 +1995,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
             }
             rowValues.put(LINK_DST_PORT_STATE, linkInfo.getDstPortState());
         }
-        storageSource.updateRowAsync(LINK_TABLE_NAME, rowValues);
+        linkWriter.updateRow(rowValues);
     }
 
     public Long readLinkValidTime(Link lt) {
@@ -1594,6 +2007,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
         // use asynchronous storage calls.
         Long validTime = null;
         IResultSet resultSet = null;
+        linkWriter.flush();
         try {
             String[] columns = { LINK_VALID_TIME };
             String id = getLinkId(lt);
@@ -1615,7 +2029,7 @@ IFloodlightModule, IInfoProvider, IHAListener {
      */
     protected void removeLinkFromStorage(Link lt) {
         String id = getLinkId(lt);
-        storageSource.deleteRowAsync(LINK_TABLE_NAME, id);
+        linkWriter.deleteRow(id);
     }
 
     @Override
@@ -1776,6 +2190,26 @@ IFloodlightModule, IInfoProvider, IHAListener {
         // Set the autoportfast feature to false.
         this.autoPortFastFeature = false;
 
+        Map<String, String> configOptions = context.getConfigParams(this);
+        try {
+            String shards = configOptions.get("lldpshards");
+            if (shards != null) {
+                discoveryShards = Integer.parseInt(shards);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing LLDP shards, using default of {}",
+                     discoveryShards);
+        }
+        try {
+            String window = configOptions.get("storagewritewindow");
+            if (window != null) {
+                storageWriteWindow = Integer.parseInt(window);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing storage write window, using default of {}",
+                     storageWriteWindow);
+        }
+
         // We create this here because there is no ordering guarantee
         this.linkDiscoveryAware = new ArrayList<ILinkDiscoveryListener>();
         this.lock = new ReentrantReadWriteLock();
@@ -1786,6 +2220,9 @@ IFloodlightModule, IInfoProvider, IHAListener {
                 Collections.synchronizedSet(new HashSet<NodePortTuple>());
         this.portBroadcastDomainLinks = new HashMap<NodePortTuple, Set<Link>>();
         this.switchLinks = new HashMap<Long, Set<Link>>();
+        this.linkState = new LinkState();
+        this.changedLinks = new HashSet<Link>();
+        this.linkTimeouts = new LinkTimeoutQueue();
         this.quarantineQueue = new LinkedBlockingQueue<NodePortTuple>();
         this.maintenanceQueue = new LinkedBlockingQueue<NodePortTuple>();
 
@@ -1841,6 +2278,9 @@ IFloodlightModule, IInfoProvider, IHAListener {
 
         ScheduledExecutorService ses = threadPool.getScheduledExecutor();
 
+        linkWriter = new WriteBehindTable(storageSource, LINK_TABLE_NAME,
+                                          LINK_ID, ses, storageWriteWindow);
+
         // To be started by the first switch connection
         discoveryTask = new SingletonTask(ses, new Runnable() {
             @Override
@@ -1905,6 +2345,8 @@ IFloodlightModule, IInfoProvider, IHAListener {
         floodlightProvider.addOFSwitchListener(this);
         floodlightProvider.addHAListener(this);
         floodlightProvider.addInfoProvider("summary", this);
+        floodlightProvider.addInfoProvider("lldp", this);
+        floodlightProvider.addInfoProvider("storagewrites", linkWriter);
         if (restApi != null)
             restApi.addRestletRoutable(new LinkDiscoveryWebRoutable());
         setControllerTLV();
@@ -1991,12 +2433,13 @@ IFloodlightModule, IInfoProvider, IHAListener {
 
     @Override
     public Map<String, Object> getInfo(String type) {
+        if ("lldp".equals(type)) return getDiscoveryRoundStats();
         if (!"summary".equals(type)) return null;
 
         Map<String, Object> info = new HashMap<String, Object>();
 
         int num_links = 0;
-        for (Set<Link> links : switchLinks.values())
+        for (Set<Link> links : linkState.switchLinks.values())
             num_links += links.size();
         info.put("# inter-switch links", num_links / 2);
 
@@ -2023,10 +2466,17 @@ IFloodlightModule, IInfoProvider, IHAListener {
                     log.trace("Clearing links due to " +
                             "HA change to SLAVE");
                 }
-                switchLinks.clear();
-                links.clear();
-                portLinks.clear();
-                portBroadcastDomainLinks.clear();
+                lock.writeLock().lock();
+                try {
+                    changedLinks.addAll(links.keySet());
+                    switchLinks.clear();
+                    links.clear();
+                    portLinks.clear();
+                    portBroadcastDomainLinks.clear();
+                    linkTimeouts.clear();
+                } finally {
+                    unlockAndPublish();
+                }
                 discoverOnAllPorts();
                 break;
             default:
@@ -0,0 +1,103 @@
+package net.floodlightcontroller.linkdiscovery.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * A priority queue of links keyed by the time the oldest valid time in
+ * their LinkInfo times out, so the link discovery manager only looks at
+ * the links that are due. A link that is refreshed keeps its old entry;
+ * when that entry comes due the manager files the link again at its new
+ * deadline.
+ */
+public class LinkTimeoutQueue {
+    protected static class Deadline implements Comparable<Deadline> {
+        protected final long time;
+        protected final Link link;
+
+        public Deadline(long time, Link link) {
+            this.time = time;
+            this.link = link;
+        }
+
+        @Override
+        public int compareTo(Deadline o) {
+            return (time < o.time) ? -1 : ((time == o.time) ? 0 : 1);
+        }
+    }
+
+    protected PriorityQueue<Deadline> queue;
+
+    /**
+     * The deadline each filed link is due at
+     */
+    protected Map<Link, Long> scheduled;
+
+    public LinkTimeoutQueue() {
+        queue = new PriorityQueue<Deadline>();
+        scheduled = new HashMap<Link, Long>();
+    }
+
+    /**
+     * File a link to come due at the given deadline, unless it's already
+     * filed to come due earlier
+     * @param link the link
+     * @param deadline the time in milliseconds at which the oldest valid
+     * time of the link times out
+     */
+    public synchronized void schedule(Link link, long deadline) {
+        Long prev = scheduled.get(link);
+        if (prev != null && prev.longValue() <= deadline) return;
+        // An entry left in the queue for the previous deadline is ignored
+        // when it comes due
+        scheduled.put(link, deadline);
+        queue.add(new Deadline(deadline, link));
+    }
+
+    /**
+     * @param now the current time in milliseconds
+     * @return true if a link is due at the given time
+     */
+    public synchronized boolean hasDue(long now) {
+        Deadline head = queue.peek();
+        return head != null && head.time <= now;
+    }
+
+    /**
+     * Remove the links whose deadline has been reached
+     * @param now the current time in milliseconds
+     * @return the links that are due, earliest first
+     */
+    public synchronized List<Link> poll(long now) {
+        List<Link> due = new ArrayList<Link>();
+        Deadline head;
+        while ((head = queue.peek()) != null && head.time <= now) {
+            queue.poll();
+            Long t = scheduled.get(head.link);
+            if (t == null || t.longValue() != head.time) continue;
+            scheduled.remove(head.link);
+            due.add(head.link);
+        }
+        return due;
+    }
+
+    /**
+     * Remove all the links
+     */
+    public synchronized void clear() {
+        queue.clear();
+        scheduled.clear();
+    }
+
+    /**
+     * @return the number of links filed in the queue
+     */
+    public synchronized int size() {
+        return scheduled.size();
+    }
+}
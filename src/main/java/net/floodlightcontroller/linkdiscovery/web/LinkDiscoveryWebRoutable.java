@@ -13,6 +13,7 @@ public class LinkDiscoveryWebRoutable implements RestletRoutable {
     public Router getRestlet(Context context) {
         Router router = new Router(context);
         router.attach("/autoportfast/{state}/json", AutoPortFast.class); // enable/true or disable/false
+        router.attach("/lldp/json", LldpStatsResource.class);
         return router;
     }
 
@@ -0,0 +1,23 @@
+package net.floodlightcontroller.linkdiscovery.web;
+
+import java.util.Map;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Get the number and duration of the rounds of LLDPs to all switch-ports
+ * and of the runs of link timeouts
+ */
+public class LldpStatsResource extends ServerResource {
+    @Get("json")
+    public Map<String, Object> retrieve() {
+        IFloodlightProviderService floodlightProvider = 
+                (IFloodlightProviderService)getContext().getAttributes().
+                    get(IFloodlightProviderService.class.getCanonicalName());
+
+        return floodlightProvider.getControllerInfo("lldp");
+    }
+}
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 
 /**
 *
@@ -60,6 +61,26 @@ public abstract class BasePacket implements IPacket {
         return this;
     }
     
+    /**
+     * Deserializes this packet layer and all possible payloads from the
+     * readable bytes of the given buffer. Array-backed buffers are parsed
+     * in place; other buffers are copied once.
+     * @param data the buffer to deserialize from; its indexes are not
+     * modified
+     * @return the deserialized data
+     */
+    public IPacket deserialize(ChannelBuffer data) {
+        int length = data.readableBytes();
+        if (data.hasArray()) {
+            return deserialize(data.array(),
+                               data.arrayOffset() + data.readerIndex(),
+                               length);
+        }
+        byte[] bytes = new byte[length];
+        data.getBytes(data.readerIndex(), bytes);
+        return deserialize(bytes, 0, length);
+    }
+
     @Override
     public void resetChecksum() {
         if (this.parent != null)
@@ -1,25 +1,83 @@
 package net.floodlightcontroller.perfmon;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.codehaus.jackson.map.annotate.JsonSerialize;
 
 import net.floodlightcontroller.core.IOFMessageListener;
 
+/**
+ * Packet-in processing times, in total, per listener and per switch.
+ *
+ * Each thread that processes packet-ins records into its own set of
+ * {@link LatencyHistogram}s, so recording takes no locks and the threads
+ * don't share any cache lines. {@link #computeAverages()} merges the
+ * histograms of all threads and updates the reported values. A reset
+ * remembers the merged totals and subtracts them from later reports.
+ */
 @JsonSerialize(using=CumulativeTimeBucketJSONSerializer.class)
 public class CumulativeTimeBucket {
     private long startTime_ns; // First pkt time-stamp in this bucket
     private Map<Integer, OneComponentTime> compStats;
     private long totalPktCnt;
-    private long totalProcTimeNs; // total processing time for one pkt in
-    private long sumSquaredProcTimeNs2;
     private long maxTotalProcTimeNs;
     private long minTotalProcTimeNs;
     private long avgTotalProcTimeNs;
     private long sigmaTotalProcTimeNs; // std. deviation
+    private long p50TotalProcTimeNs;
+    private long p99TotalProcTimeNs;
+    private long p999TotalProcTimeNs;
+    private List<OneSwitchTime> switchStats;
+
+    /**
+     * The histograms written by one thread
+     */
+    protected class ThreadHistograms {
+        protected LatencyHistogram total = new LatencyHistogram();
+        protected LatencyHistogram[] components =
+                new LatencyHistogram[listeners.length];
+        protected Map<Long, LatencyHistogram> switches =
+                new ConcurrentHashMap<Long, LatencyHistogram>();
+        // Last switch looked up, packet-ins tend to come in runs
+        protected long lastSwitchId;
+        protected LatencyHistogram lastSwitch;
+
+        protected ThreadHistograms() {
+            for (int i = 0; i < components.length; i++) {
+                components[i] = new LatencyHistogram();
+            }
+        }
+
+        protected LatencyHistogram getSwitch(long switchId) {
+            if (lastSwitch != null && lastSwitchId == switchId)
+                return lastSwitch;
+            LatencyHistogram h = switches.get(switchId);
+            if (h == null) {
+                h = new LatencyHistogram();
+                switches.put(switchId, h);
+            }
+            lastSwitchId = switchId;
+            lastSwitch = h;
+            return h;
+        }
+    }
+
+    private IOFMessageListener[] listeners;
+    private Map<IOFMessageListener, Integer> listenerIndex;
+    private List<ThreadHistograms> allThreads;
+    private ThreadLocal<ThreadHistograms> localThread;
+
+    // Merged totals at the last reset, protected by this
+    private LatencyHistogram.Totals totalBaseline;
+    private LatencyHistogram.Totals[] componentBaselines;
+    private Map<Long, LatencyHistogram.Totals> switchBaselines;
 
     public long getStartTimeNs() {
         return startTime_ns;
@@ -28,7 +86,7 @@ public class CumulativeTimeBucket {
     public long getTotalPktCnt() {
         return totalPktCnt;
     }
-    
+
     public long getAverageProcTimeNs() {
         return avgTotalProcTimeNs;
     }
@@ -36,87 +94,182 @@ public class CumulativeTimeBucket {
     public long getMinTotalProcTimeNs() {
         return minTotalProcTimeNs;
     }
-    
+
     public long getMaxTotalProcTimeNs() {
         return maxTotalProcTimeNs;
     }
-    
+
     public long getTotalSigmaProcTimeNs() {
         return sigmaTotalProcTimeNs;
     }
-    
+
+    public long getP50TotalProcTimeNs() {
+        return p50TotalProcTimeNs;
+    }
+
+    public long getP99TotalProcTimeNs() {
+        return p99TotalProcTimeNs;
+    }
+
+    public long getP999TotalProcTimeNs() {
+        return p999TotalProcTimeNs;
+    }
+
     public int getNumComps() {
         return compStats.values().size();
     }
-    
+
     public Collection<OneComponentTime> getModules() {
         return compStats.values();
     }
 
+    public Collection<OneSwitchTime> getSwitches() {
+        return switchStats;
+    }
+
     public CumulativeTimeBucket(List<IOFMessageListener> listeners) {
         compStats = new ConcurrentHashMap<Integer, OneComponentTime>(listeners.size());
+        this.listeners = new IOFMessageListener[listeners.size()];
+        this.listenerIndex = new IdentityHashMap<IOFMessageListener, Integer>();
+        int i = 0;
         for (IOFMessageListener l : listeners) {
             OneComponentTime oct = new OneComponentTime(l);
             compStats.put(oct.hashCode(), oct);
+            this.listeners[i] = l;
+            listenerIndex.put(l, i++);
         }
+        switchStats = new ArrayList<OneSwitchTime>();
+        allThreads = new CopyOnWriteArrayList<ThreadHistograms>();
+        localThread = new ThreadLocal<ThreadHistograms>() {
+            @Override
+            protected ThreadHistograms initialValue() {
+                ThreadHistograms th = new ThreadHistograms();
+                allThreads.add(th);
+                return th;
+            }
+        };
+        totalBaseline = new LatencyHistogram.Totals();
+        componentBaselines = newTotals(this.listeners.length);
+        switchBaselines = new HashMap<Long, LatencyHistogram.Totals>();
         startTime_ns = System.nanoTime();
     }
 
-    private void updateSquaredProcessingTime(long curTimeNs) {
-        sumSquaredProcTimeNs2 += (Math.pow(curTimeNs, 2));
+    private static LatencyHistogram.Totals[] newTotals(int n) {
+        LatencyHistogram.Totals[] totals = new LatencyHistogram.Totals[n];
+        for (int i = 0; i < n; i++) {
+            totals[i] = new LatencyHistogram.Totals();
+        }
+        return totals;
     }
-    
+
     /**
      * Resets all counters and counters for each component time
      */
-    public void reset() {
+    public synchronized void reset() {
         startTime_ns = System.nanoTime();
-        totalPktCnt = 0;
-        totalProcTimeNs = 0;
-        avgTotalProcTimeNs = 0;
-        sumSquaredProcTimeNs2 = 0;
-        maxTotalProcTimeNs = Long.MIN_VALUE;
-        minTotalProcTimeNs = Long.MAX_VALUE;
-        sigmaTotalProcTimeNs = 0;
-        for (OneComponentTime oct : compStats.values()) {
-            oct.resetAllCounters();
+        totalBaseline = new LatencyHistogram.Totals();
+        componentBaselines = newTotals(listeners.length);
+        switchBaselines = new HashMap<Long, LatencyHistogram.Totals>();
+        for (ThreadHistograms th : allThreads) {
+            totalBaseline.add(th.total);
+            for (int i = 0; i < listeners.length; i++) {
+                componentBaselines[i].add(th.components[i]);
+            }
+            for (Map.Entry<Long, LatencyHistogram> e : th.switches.entrySet()) {
+                getTotals(switchBaselines, e.getKey()).add(e.getValue());
+            }
         }
+        computeAverages();
     }
-    
-    private void computeSigma() {
-        // Computes std. deviation from the sum of count numbers and from
-        // the sum of the squares of count numbers
-        double temp = totalProcTimeNs;
-        temp = Math.pow(temp, 2) / totalPktCnt;
-        temp = (sumSquaredProcTimeNs2 - temp) / totalPktCnt;
-        sigmaTotalProcTimeNs = (long) Math.sqrt(temp);
-    }
-    
-    public void computeAverages() {
-        // Must be called last to, needs latest info
-        computeSigma();
-        
-        for (OneComponentTime oct : compStats.values()) {
-            oct.computeSigma();
+
+    private static LatencyHistogram.Totals
+            getTotals(Map<Long, LatencyHistogram.Totals> map, Long key) {
+        LatencyHistogram.Totals totals = map.get(key);
+        if (totals == null) {
+            totals = new LatencyHistogram.Totals();
+            map.put(key, totals);
         }
+        return totals;
     }
-    
-    public void updatePerPacketCounters(long procTimeNs) {
-        totalPktCnt++;
-        totalProcTimeNs += procTimeNs;
-        avgTotalProcTimeNs = totalProcTimeNs / totalPktCnt;
-        updateSquaredProcessingTime(procTimeNs);
-        
-        if (procTimeNs > maxTotalProcTimeNs) {
-            maxTotalProcTimeNs = procTimeNs;
+
+    /**
+     * Merge the histograms of all threads and update the reported values
+     */
+    public synchronized void computeAverages() {
+        LatencyHistogram.Totals total = new LatencyHistogram.Totals();
+        LatencyHistogram.Totals[] components = newTotals(listeners.length);
+        Map<Long, LatencyHistogram.Totals> switches =
+                new HashMap<Long, LatencyHistogram.Totals>();
+        for (ThreadHistograms th : allThreads) {
+            total.add(th.total);
+            for (int i = 0; i < listeners.length; i++) {
+                components[i].add(th.components[i]);
+            }
+            for (Map.Entry<Long, LatencyHistogram> e : th.switches.entrySet()) {
+                getTotals(switches, e.getKey()).add(e.getValue());
+            }
+        }
+
+        total.subtract(totalBaseline);
+        totalPktCnt = total.getCount();
+        avgTotalProcTimeNs = total.getMean();
+        minTotalProcTimeNs = total.getMin();
+        maxTotalProcTimeNs = total.getMax();
+        sigmaTotalProcTimeNs = total.getStdDev();
+        p50TotalProcTimeNs = total.getValueAtPercentile(50);
+        p99TotalProcTimeNs = total.getValueAtPercentile(99);
+        p999TotalProcTimeNs = total.getValueAtPercentile(99.9);
+
+        for (int i = 0; i < listeners.length; i++) {
+            components[i].subtract(componentBaselines[i]);
+            compStats.get(listeners[i].hashCode())
+                     .setFromTotals(components[i]);
         }
-        
-        if (procTimeNs < minTotalProcTimeNs) {
-            minTotalProcTimeNs = procTimeNs;
+
+        List<OneSwitchTime> newSwitchStats = new ArrayList<OneSwitchTime>();
+        for (Map.Entry<Long, LatencyHistogram.Totals> e : switches.entrySet()) {
+            LatencyHistogram.Totals baseline = switchBaselines.get(e.getKey());
+            if (baseline != null)
+                e.getValue().subtract(baseline);
+            if (e.getValue().getCount() == 0)
+                continue;
+            OneSwitchTime ost = new OneSwitchTime(e.getKey());
+            ost.setFromTotals(e.getValue());
+            newSwitchStats.add(ost);
         }
+        switchStats = newSwitchStats;
     }
-    
+
+    /**
+     * Record the total processing time of a packet-in. Called by the
+     * thread that processed it.
+     * @param procTimeNs
+     */
+    public void updatePerPacketCounters(long procTimeNs) {
+        localThread.get().total.record(procTimeNs);
+    }
+
+    /**
+     * Record the total processing time of a packet-in from a switch.
+     * Called by the thread that processed it.
+     * @param switchId
+     * @param procTimeNs
+     */
+    public void updatePerPacketCounters(long switchId, long procTimeNs) {
+        ThreadHistograms th = localThread.get();
+        th.total.record(procTimeNs);
+        th.getSwitch(switchId).record(procTimeNs);
+    }
+
+    /**
+     * Record the time a listener took to process a packet-in. Called by
+     * the thread that called the listener.
+     * @param l
+     * @param procTimeNs
+     */
     public void updateOneComponent(IOFMessageListener l, long procTimeNs) {
-        compStats.get(l.hashCode()).updatePerPacketCounters(procTimeNs);
+        Integer i = listenerIndex.get(l);
+        if (i != null)
+            localThread.get().components[i].record(procTimeNs);
     }
-}
\ No newline at end of file
+}
@@ -29,11 +29,19 @@ public class CumulativeTimeBucketJSONSerializer
        jGen.writeNumberField("min", ctb.getMinTotalProcTimeNs());
        jGen.writeNumberField("max", ctb.getMaxTotalProcTimeNs());
        jGen.writeNumberField("std-dev", ctb.getTotalSigmaProcTimeNs());
+       jGen.writeNumberField("p50", ctb.getP50TotalProcTimeNs());
+       jGen.writeNumberField("p99", ctb.getP99TotalProcTimeNs());
+       jGen.writeNumberField("p99.9", ctb.getP999TotalProcTimeNs());
        jGen.writeArrayFieldStart("modules");
        for (OneComponentTime oct : ctb.getModules()) {
            serializer.defaultSerializeValue(oct, jGen);
        }
        jGen.writeEndArray();
+       jGen.writeArrayFieldStart("switches");
+       for (OneSwitchTime ost : ctb.getSwitches()) {
+           serializer.defaultSerializeValue(ost, jGen);
+       }
+       jGen.writeEndArray();
        jGen.writeEndObject();
    }
 
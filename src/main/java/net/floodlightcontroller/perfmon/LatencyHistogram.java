@@ -0,0 +1,185 @@
+package net.floodlightcontroller.perfmon;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-bucketed histogram of latencies in nanoseconds.
+ *
+ * Every power of two range is split into 16 linear sub-buckets, so a
+ * recorded value is known to within about 6% regardless of its magnitude,
+ * up to 2^40 ns (about 18 minutes). Larger values are clamped.
+ *
+ * A histogram has a single writer: only the thread that owns it may call
+ * {@link #record(long)}. Updates are published with lazySet, so recording
+ * costs no locks or CAS, and any other thread may merge the histogram into
+ * a {@link Totals} at any time.
+ */
+public class LatencyHistogram {
+    protected static final int SUB_BUCKET_BITS = 4;
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    protected static final long MAX_VALUE = (1L << 40) - 1;
+    public static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    protected AtomicLongArray counts;
+    protected AtomicLong sum;
+    protected AtomicLong min;
+    protected AtomicLong max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        sum = new AtomicLong();
+        min = new AtomicLong(Long.MAX_VALUE);
+        max = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    /**
+     * Record a value. Must only be called by the owning thread.
+     * @param valueNs
+     */
+    public void record(long valueNs) {
+        if (valueNs < 0)
+            valueNs = 0;
+        else if (valueNs > MAX_VALUE)
+            valueNs = MAX_VALUE;
+        int i = bucketIndex(valueNs);
+        counts.lazySet(i, counts.get(i) + 1);
+        sum.lazySet(sum.get() + valueNs);
+        if (valueNs < min.get())
+            min.lazySet(valueNs);
+        if (valueNs > max.get())
+            max.lazySet(valueNs);
+    }
+
+    protected static int bucketIndex(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        if (bits <= SUB_BUCKET_BITS + 1)
+            return (int) value;
+        int shift = bits - (SUB_BUCKET_BITS + 1);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    protected static long lowestValue(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return ((long) (index - (shift << SUB_BUCKET_BITS))) << shift;
+    }
+
+    protected static long highestValue(int index) {
+        return lowestValue(index + 1) - 1;
+    }
+
+    /**
+     * Histogram totals merged from one or more histograms
+     */
+    public static class Totals {
+        protected long[] counts = new long[BUCKET_COUNT];
+        protected long count = 0;
+        protected long sum = 0;
+        protected long min = Long.MAX_VALUE;
+        protected long max = Long.MIN_VALUE;
+
+        /**
+         * Add the current contents of a histogram
+         * @param h
+         */
+        public void add(LatencyHistogram h) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                long c = h.counts.get(i);
+                counts[i] += c;
+                count += c;
+            }
+            sum += h.sum.get();
+            min = Math.min(min, h.min.get());
+            max = Math.max(max, h.max.get());
+        }
+
+        /**
+         * Remove the values that were already counted in an earlier
+         * snapshot, e.g., at the last reset
+         * @param baseline
+         */
+        public void subtract(Totals baseline) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] -= baseline.counts[i];
+            }
+            count -= baseline.count;
+            sum -= baseline.sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMean() {
+            return (count == 0) ? 0 : sum / count;
+        }
+
+        /**
+         * The smallest value, to within the bucket precision
+         * @return
+         */
+        public long getMin() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (counts[i] > 0)
+                    return Math.max(lowestValue(i), min);
+            }
+            return 0;
+        }
+
+        /**
+         * The largest value, to within the bucket precision
+         * @return
+         */
+        public long getMax() {
+            for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+                if (counts[i] > 0)
+                    return Math.min(highestValue(i), max);
+            }
+            return 0;
+        }
+
+        /**
+         * The value below which the given percentage of values fall
+         * @param percentile between 0 and 100
+         * @return the highest value of the bucket holding the percentile
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count <= 0)
+                return 0;
+            long target = (long) Math.ceil(count * percentile / 100.0);
+            if (target < 1)
+                target = 1;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= target)
+                    return Math.min(highestValue(i), getMax());
+            }
+            return getMax();
+        }
+
+        /**
+         * Standard deviation computed from the bucket midpoints
+         * @return
+         */
+        public long getStdDev() {
+            if (count <= 0)
+                return 0;
+            double mean = (double) sum / count;
+            double squares = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (counts[i] > 0) {
+                    double mid = (lowestValue(i) + highestValue(i)) / 2.0;
+                    squares += counts[i] * (mid - mean) * (mid - mean);
+                }
+            }
+            return (long) Math.sqrt(squares / count);
+        }
+    }
+}
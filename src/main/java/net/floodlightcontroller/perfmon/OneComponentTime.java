@@ -6,34 +6,44 @@ import net.floodlightcontroller.core.IOFMessageListener;
 
 /**
  * Holds OF message processing time information for one IFloodlightModule.
+ * The values are a snapshot of the merged per-thread histograms taken by
+ * {@link CumulativeTimeBucket#computeAverages()}.
  * @author Subrata
  */
 public class OneComponentTime {
     private int compId; // hascode of IOFMessageListener
     private String compName;
-    private int pktCnt;
+    private long pktCnt;
     // all times in nanoseconds
     private long totalProcTimeNs;
-    private long sumSquaredProcTimeNs2; // squared
     private long maxProcTimeNs;
     private long minProcTimeNs;
     private long avgProcTimeNs;
     private long sigmaProcTimeNs;  // std. deviation
+    private long p50ProcTimeNs;
+    private long p99ProcTimeNs;
+    private long p999ProcTimeNs;
 
     public OneComponentTime(IOFMessageListener module) {
-        compId = module.hashCode();
-        compName = module.getClass().getCanonicalName();
+        this(module.hashCode(), module.getClass().getCanonicalName());
+    }
+
+    protected OneComponentTime(int compId, String compName) {
+        this.compId = compId;
+        this.compName = compName;
         resetAllCounters();
     }
     
     public void resetAllCounters() {
-        maxProcTimeNs = Long.MIN_VALUE;
-        minProcTimeNs = Long.MAX_VALUE;
+        maxProcTimeNs = 0;
+        minProcTimeNs = 0;
         pktCnt = 0;
         totalProcTimeNs = 0;
-        sumSquaredProcTimeNs2 = 0;
         avgProcTimeNs = 0;
         sigmaProcTimeNs = 0;
+        p50ProcTimeNs = 0;
+        p99ProcTimeNs = 0;
+        p999ProcTimeNs = 0;
     }
     
     @JsonProperty("module-name")
@@ -42,7 +52,7 @@ public class OneComponentTime {
     }
 
     @JsonProperty("num-packets")
-    public int getPktCnt() {
+    public long getPktCnt() {
         return pktCnt;
     }
 
@@ -70,60 +80,40 @@ public class OneComponentTime {
     public long getSigmaProcTimeNs() {
         return sigmaProcTimeNs;
     }
-    
-    @JsonProperty("average-squared")
-    public long getSumSquaredProcTimeNs() {
-        return sumSquaredProcTimeNs2;
-    }
 
-    // Methods used to update the counters
-    
-    private void increasePktCount() {
-        pktCnt++;
+    @JsonProperty("p50")
+    public long getP50ProcTimeNs() {
+        return p50ProcTimeNs;
     }
-    
-    private void updateTotalProcessingTime(long procTimeNs) {
-        totalProcTimeNs += procTimeNs;
-    }
-    
-    private void updateAvgProcessTime() {
-        avgProcTimeNs = totalProcTimeNs / pktCnt;
-    }
-    
-    private void updateSquaredProcessingTime(long procTimeNs) {
-        sumSquaredProcTimeNs2 += (Math.pow(procTimeNs, 2));
-    }
-    
-    private void calculateMinProcTime(long curTimeNs) {
-        if (curTimeNs < minProcTimeNs)
-            minProcTimeNs = curTimeNs;
-    }
-    
-    private void calculateMaxProcTime(long curTimeNs) {
-        if (curTimeNs > maxProcTimeNs)
-            maxProcTimeNs = curTimeNs;
+
+    @JsonProperty("p99")
+    public long getP99ProcTimeNs() {
+        return p99ProcTimeNs;
     }
-    
-    public void computeSigma() {
-        // Computes std. deviation from the sum of count numbers and from
-        // the sum of the squares of count numbers
-        double temp = totalProcTimeNs;
-        temp = Math.pow(temp, 2) / pktCnt;
-        temp = (sumSquaredProcTimeNs2 - temp) / pktCnt;
-        sigmaProcTimeNs = (long) Math.sqrt(temp);
+
+    @JsonProperty("p99.9")
+    public long getP999ProcTimeNs() {
+        return p999ProcTimeNs;
     }
-    
-    public void updatePerPacketCounters(long procTimeNs) {
-        increasePktCount();
-        updateTotalProcessingTime(procTimeNs);
-        calculateMinProcTime(procTimeNs);
-        calculateMaxProcTime(procTimeNs);
-        updateAvgProcessTime();
-        updateSquaredProcessingTime(procTimeNs);
+
+    /**
+     * Update the reported values from merged histogram totals
+     * @param totals
+     */
+    public void setFromTotals(LatencyHistogram.Totals totals) {
+        pktCnt = totals.getCount();
+        totalProcTimeNs = totals.getSum();
+        avgProcTimeNs = totals.getMean();
+        minProcTimeNs = totals.getMin();
+        maxProcTimeNs = totals.getMax();
+        sigmaProcTimeNs = totals.getStdDev();
+        p50ProcTimeNs = totals.getValueAtPercentile(50);
+        p99ProcTimeNs = totals.getValueAtPercentile(99);
+        p999ProcTimeNs = totals.getValueAtPercentile(99.9);
     }
     
     @Override
     public int hashCode() {
         return compId;
     }
-}
\ No newline at end of file
+}
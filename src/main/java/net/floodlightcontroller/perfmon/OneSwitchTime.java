@@ -0,0 +1,29 @@
+package net.floodlightcontroller.perfmon;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.openflow.util.HexString;
+
+/**
+ * Holds packet-in processing time information for one switch
+ */
+public class OneSwitchTime extends OneComponentTime {
+    private long switchId;
+
+    public OneSwitchTime(long switchId) {
+        super((int) (switchId ^ (switchId >>> 32)),
+              HexString.toHexString(switchId));
+        this.switchId = switchId;
+    }
+
+    @Override
+    @JsonIgnore
+    public String getCompName() {
+        return super.getCompName();
+    }
+
+    @JsonProperty("switch")
+    public String getSwitchId() {
+        return HexString.toHexString(switchId);
+    }
+}
@@ -25,13 +25,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class contains a set of buckets (called time buckets as the
- * primarily contain 'times' that are used in a circular way to 
- * store information on packet in processing time.
- * Each bucket is meant to store the various processing time 
- * related data for a fixed duration.
- * Buckets are reused to reduce garbage generation! Once the
- * last bucket is used up the LRU bucket is reused.
+ * This class records packet-in processing times into per-thread latency
+ * histograms (see {@link CumulativeTimeBucket}) that are merged when the
+ * data is read, so it's cheap enough to leave enabled. Processing times
+ * are kept in total, per IOFMessageListener and per switch.
  * 
  * Naming convention for variable or constants
  * variable_s : value in seconds
@@ -105,19 +102,28 @@ public class PktInProcessingTime
         return ctb;
     }
     
-    private long startTimePktNs;
-    private long startTimeCompNs;
+    // Start times of the packet-in and of the current listener, per thread
+    // since every I/O or dispatch thread processes its own packet-ins
+    private static final int START_PKT = 0;
+    private static final int START_COMP = 1;
+    private final ThreadLocal<long[]> startTimesNs = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
     @Override
     public void recordStartTimeComp(IOFMessageListener listener) {
         if (isEnabled()) {
-            startTimeCompNs = System.nanoTime();
+            startTimesNs.get()[START_COMP] = System.nanoTime();
         }
     }
     
     @Override
     public void recordEndTimeComp(IOFMessageListener listener) {
         if (isEnabled()) {
-            long procTime = System.nanoTime() - startTimeCompNs;
+            long procTime = System.nanoTime() - startTimesNs.get()[START_COMP];
             ctb.updateOneComponent(listener, procTime);
         }
     }
@@ -125,7 +131,7 @@ public class PktInProcessingTime
     @Override
     public void recordStartTimePktIn() {
         if (isEnabled()) {
-            startTimePktNs = System.nanoTime();
+            startTimesNs.get()[START_PKT] = System.nanoTime();
         }
     }
     
@@ -137,8 +143,12 @@ public class PktInProcessingTime
             recommendation=LogMessageDoc.CHECK_CONTROLLER)
     public void recordEndTimePktIn(IOFSwitch sw, OFMessage m, FloodlightContext cntx) {
         if (isEnabled()) {
-            long procTimeNs = System.nanoTime() - startTimePktNs;
-            ctb.updatePerPacketCounters(procTimeNs);
+            long procTimeNs = System.nanoTime() - startTimesNs.get()[START_PKT];
+            if (sw != null) {
+                ctb.updatePerPacketCounters(sw.getId(), procTimeNs);
+            } else {
+                ctb.updatePerPacketCounters(procTimeNs);
+            }
             
             if (ptWarningThresholdInNano > 0 && 
                     procTimeNs > ptWarningThresholdInNano) {
@@ -19,49 +19,98 @@ package net.floodlightcontroller.routing;
 import java.util.HashMap;
 
 import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.topology.ClusterGraph;
 
 import org.openflow.util.HexString;
 
+/**
+ * A shortest path tree over a {@link ClusterGraph}, rooted at one switch.
+ * For every switch of the graph it holds the index of the link towards
+ * the root, or -1, and the cost to reach the root.
+ */
 public class BroadcastTree {
-    protected HashMap<Long, Link> links;
-    protected HashMap<Long, Integer> costs;
+    protected ClusterGraph graph;
+    protected int root;
+    protected int[] nexthops;
+    protected int[] costs;
 
-    public BroadcastTree() {
-        links = new HashMap<Long, Link>();
-        costs = new HashMap<Long, Integer>();
+    public BroadcastTree(ClusterGraph graph, int root,
+                         int[] nexthops, int[] costs) {
+        this.graph = graph;
+        this.root = root;
+        this.nexthops = nexthops;
+        this.costs = costs;
     }
 
-    public BroadcastTree(HashMap<Long, Link> links, HashMap<Long, Integer> costs) {
-        this.links = links;
-        this.costs = costs;
+    public ClusterGraph getGraph() {
+        return graph;
+    }
+
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * Index of the tree link of each switch of the graph, or -1
+     */
+    public int[] getNexthops() {
+        return nexthops;
+    }
+
+    /**
+     * Cost to reach the root from each switch of the graph
+     */
+    public int[] getCostArray() {
+        return costs;
     }
 
     public Link getTreeLink(long node) {
-        return links.get(node);
+        int i = graph.getIndex(node);
+        if (i < 0 || nexthops[i] < 0) return null;
+        return graph.getLink(nexthops[i]);
     }
 
     public int getCost(long node) {
-        if (costs.get(node) == null) return -1;
-        return (costs.get(node));
+        int i = graph.getIndex(node);
+        if (i < 0) return -1;
+        return costs[i];
     }
 
+    /**
+     * Map of every switch to its tree link. Built on each call, meant
+     * for debugging.
+     * @return
+     */
     public HashMap<Long, Link> getLinks() {
+        HashMap<Long, Link> links = new HashMap<Long, Link>();
+        for (int i = 0; i < nexthops.length; i++) {
+            links.put(graph.getNode(i),
+                      (nexthops[i] < 0) ? null : graph.getLink(nexthops[i]));
+        }
         return links;
     }
 
-    public void addTreeLink(long myNode, Link link) {
-        links.put(myNode, link);
-    }
-
     public String toString() {
         StringBuffer sb = new StringBuffer();
-        for(long n: links.keySet()) {
-            sb.append("[" + HexString.toHexString(n) + ": cost=" + costs.get(n) + ", " + links.get(n) + "]");
+        for (int i = 0; i < nexthops.length; i++) {
+            sb.append("[" + HexString.toHexString(graph.getNode(i)) +
+                      ": cost=" + costs[i] + ", " +
+                      ((nexthops[i] < 0) ? null : graph.getLink(nexthops[i])) +
+                      "]");
         }
         return sb.toString();
     }
 
+    /**
+     * Map of every switch to its cost. Built on each call, meant for
+     * debugging.
+     * @return
+     */
     public HashMap<Long, Integer> getCosts() {
-        return costs;
+        HashMap<Long, Integer> result = new HashMap<Long, Integer>();
+        for (int i = 0; i < costs.length; i++) {
+            result.put(graph.getNode(i), costs[i]);
+        }
+        return result;
     }
 }
@@ -0,0 +1,282 @@
+package net.floodlightcontroller.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketIn;
+
+/**
+ * Tracks the flows whose routes were just pushed, so that the packet-ins
+ * a switch sends for a flow before its flow mods are in place are sent
+ * along the route already computed for the flow instead of computing the
+ * route again.
+ *
+ * A flow is keyed by its switch and the exact match of its first packet,
+ * including the input port. Its entry lives until its route is installed
+ * plus a short window for the packet-ins already on their way, or until
+ * the install timeout if the route is never confirmed. Packet-ins that
+ * come in before the route is installed wait for it, and are sent when it
+ * is. At most {@link #MAX_WAITING} packet-ins wait per flow; later ones
+ * are processed as usual. If the route times out, the flow is removed
+ * and the packet-ins waiting for it are dropped and counted.
+ */
+public class FlowCoalescer {
+    /**
+     * The most packet-ins that wait for the route of a flow
+     */
+    public static final int MAX_WAITING = 32;
+
+    /**
+     * What became of a packet-in offered to a flow
+     */
+    public enum QueueResult {
+        /** The packet-in waits for the route to be installed */
+        QUEUED,
+        /** The route is installed, send the packet-in along it now */
+        INSTALLED,
+        /** The flow can't take the packet-in, process it as usual */
+        REJECTED
+    }
+
+    /**
+     * A flow whose route is being installed, or was installed a moment ago
+     */
+    public static class InFlightFlow {
+        protected final FlowKey key;
+        protected final IOFSwitch sw;
+        protected final OFMatch match;
+        protected final short outPort;
+        protected final long window;
+        protected volatile long expires;
+        protected boolean installed;
+        protected boolean timedOut;
+        protected List<OFPacketIn> waiting;
+
+        protected InFlightFlow(FlowKey key, IOFSwitch sw, OFMatch match,
+                               short outPort, long window, long expires) {
+            this.key = key;
+            this.sw = sw;
+            this.match = match;
+            this.outPort = outPort;
+            this.window = window;
+            this.expires = expires;
+        }
+
+        public IOFSwitch getSwitch() {
+            return sw;
+        }
+
+        public OFMatch getMatch() {
+            return match;
+        }
+
+        /**
+         * @return the port the packets of the flow are sent out of on the
+         * switch
+         */
+        public short getOutPort() {
+            return outPort;
+        }
+    }
+
+    protected static class FlowKey {
+        protected final long dpid;
+        protected final OFMatch match;
+
+        protected FlowKey(long dpid, OFMatch match) {
+            this.dpid = dpid;
+            this.match = match;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (dpid ^ (dpid >>> 32)) * 31 + match.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof FlowKey)) return false;
+            FlowKey other = (FlowKey) obj;
+            return dpid == other.dpid && match.equals(other.match);
+        }
+    }
+
+    protected ConcurrentHashMap<FlowKey, InFlightFlow> flows;
+    // In order of registration, which is the order of expiry up to the
+    // install timeout, since routes are installed within it
+    protected ConcurrentLinkedQueue<InFlightFlow> expiry;
+
+    protected AtomicLong registered = new AtomicLong();
+    protected AtomicLong coalesced = new AtomicLong();
+    protected AtomicLong rejected = new AtomicLong();
+    protected AtomicLong dropped = new AtomicLong();
+
+    public FlowCoalescer() {
+        flows = new ConcurrentHashMap<FlowKey, InFlightFlow>();
+        expiry = new ConcurrentLinkedQueue<InFlightFlow>();
+    }
+
+    /**
+     * Record a flow whose route is being pushed
+     * @param sw the switch the flow's packet-ins come from
+     * @param match the match of the flow's packets, which must not be
+     * modified later
+     * @param outPort the port to send the packets out of
+     * @param installTimeout the time in milliseconds to keep the flow for
+     * if its route isn't installed
+     * @param window the time in milliseconds to keep the flow for once
+     * its route is installed
+     * @return the new flow
+     */
+    public InFlightFlow register(IOFSwitch sw, OFMatch match, short outPort,
+                                 long installTimeout, long window) {
+        long now = System.nanoTime();
+        expire(now);
+        FlowKey key = new FlowKey(sw.getId(), match);
+        InFlightFlow flow = new InFlightFlow(key, sw, match, outPort,
+                                             window * 1000000L,
+                                             now + installTimeout * 1000000L);
+        flows.put(key, flow);
+        expiry.add(flow);
+        registered.incrementAndGet();
+        return flow;
+    }
+
+    /**
+     * Find the flow a packet-in belongs to
+     * @param sw the switch the packet-in came from
+     * @param match the match of the packet
+     * @return the flow, or null if its route isn't being pushed
+     */
+    public InFlightFlow get(IOFSwitch sw, OFMatch match) {
+        FlowKey key = new FlowKey(sw.getId(), match);
+        InFlightFlow flow = flows.get(key);
+        if (flow == null) return null;
+        if (System.nanoTime() - flow.expires > 0) {
+            flows.remove(key, flow);
+            return null;
+        }
+        return flow;
+    }
+
+    /**
+     * Hold a packet-in until the route of its flow is installed
+     * @return whether the packet-in was queued, can be sent right away or
+     * has to be processed as usual
+     */
+    public QueueResult queue(InFlightFlow flow, OFPacketIn pi) {
+        synchronized (flow) {
+            if (flow.installed) {
+                coalesced.incrementAndGet();
+                return QueueResult.INSTALLED;
+            }
+            if (flow.timedOut ||
+                (flow.waiting != null &&
+                 flow.waiting.size() >= MAX_WAITING)) {
+                rejected.incrementAndGet();
+                return QueueResult.REJECTED;
+            }
+            if (flow.waiting == null)
+                flow.waiting = new ArrayList<OFPacketIn>(2);
+            flow.waiting.add(pi);
+            coalesced.incrementAndGet();
+            return QueueResult.QUEUED;
+        }
+    }
+
+    /**
+     * Mark the route of a flow installed, keeping the flow for the window
+     * from now on
+     * @return the packet-ins that were waiting for it, to be sent now
+     */
+    public List<OFPacketIn> installed(InFlightFlow flow) {
+        synchronized (flow) {
+            flow.installed = true;
+            flow.expires = System.nanoTime() + flow.window;
+            List<OFPacketIn> waiting = flow.waiting;
+            flow.waiting = null;
+            if (waiting == null)
+                return Collections.emptyList();
+            return waiting;
+        }
+    }
+
+    /**
+     * Remove a flow whose route timed out, dropping the packet-ins that
+     * were waiting for it
+     * @return the number of packet-ins dropped
+     */
+    public int timedOut(InFlightFlow flow) {
+        int n = 0;
+        synchronized (flow) {
+            if (flow.installed) return 0;
+            flow.timedOut = true;
+            if (flow.waiting != null) n = flow.waiting.size();
+            flow.waiting = null;
+        }
+        flows.remove(flow.key, flow);
+        dropped.addAndGet(n);
+        return n;
+    }
+
+    /**
+     * Remove the expired flows from the head of the queue. A flow that was
+     * replaced by a newer flow of the same key is dropped from the queue
+     * without looking at its time.
+     */
+    protected void expire(long now) {
+        InFlightFlow flow;
+        while ((flow = expiry.peek()) != null) {
+            if (flows.get(flow.key) == flow && now - flow.expires <= 0)
+                break;
+            if (!expiry.remove(flow)) continue;
+            flows.remove(flow.key, flow);
+        }
+    }
+
+    /**
+     * @return the number of flows being tracked
+     */
+    public int size() {
+        return flows.size();
+    }
+
+    /**
+     * @return the number of flows whose routes were pushed
+     */
+    public long getRegisteredCount() {
+        return registered.get();
+    }
+
+    /**
+     * @return the number of packet-ins sent along a route already pushed,
+     * or queued to be
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of packet-ins processed as usual because their
+     * flow had too many waiting or its route timed out
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of waiting packet-ins dropped because the route
+     * of their flow timed out
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
@@ -21,18 +21,24 @@ import java.io.IOException;
 import java.util.EnumSet;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IInfoProvider;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.annotations.LogMessageCategory;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.core.annotations.LogMessageDocs;
 import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.counter.ICounterStoreService;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceListener;
@@ -43,6 +49,7 @@ import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.routing.IRoutingService;
 import net.floodlightcontroller.routing.IRoutingDecision;
 import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.util.OFMessageDamper;
@@ -56,6 +63,9 @@ import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionType;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.factory.OFMessagePool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,7 +76,7 @@ import org.slf4j.LoggerFactory;
  */
 @LogMessageCategory("Flow Programming")
 public abstract class ForwardingBase 
-    implements IOFMessageListener, IDeviceListener {
+    implements IOFMessageListener, IDeviceListener, IInfoProvider {
     
     protected static Logger log =
             LoggerFactory.getLogger(ForwardingBase.class);
@@ -82,8 +92,21 @@ public abstract class ForwardingBase
     protected IRoutingService routingEngine;
     protected ITopologyService topology;
     protected ICounterStoreService counterStore;
+    protected IThreadPoolService threadPool;
     
     protected OFMessageDamper messageDamper;
+    protected RouteInstaller routeInstaller;
+    // drops the routes whose barriers timed out
+    protected SingletonTask routeExpiryTask;
+
+    // wait for barrier replies before pushing the packet of a new route
+    protected boolean routeBarriers = false;
+    protected long routeBarrierTimeout = RouteInstaller.DEFAULT_BARRIER_TIMEOUT;
+
+    // send the packet-ins of a flow whose route was just pushed along that
+    // route for this long in ms after it is installed, 0 to disable
+    protected long flowCoalesceTimeout = OFMESSAGE_DAMPER_TIMEOUT;
+    protected FlowCoalescer flowCoalescer;
     
     // for broadcast loop suppression
     protected boolean broadcastCacheFeature = true;
@@ -121,11 +144,85 @@ public abstract class ForwardingBase
     }
 
     /**
-     * Adds a listener for devicemanager and registers for PacketIns.
+     * Adds a listener for devicemanager and registers for PacketIns, for
+     * the barrier replies of route installations and as the provider of
+     * the "damper" and "routeinstaller" info, served at
+     * /wm/core/controller/damper/json and
+     * /wm/core/controller/routeinstaller/json. Routes whose barriers timed
+     * out are dropped every barrier timeout, or every 100 ms if it is
+     * shorter.
      */
     protected void startUp() {
+        routeInstaller =
+                new RouteInstaller(floodlightProvider.getOFMessageFactory(),
+                                   messageDamper, counterStore);
+        routeInstaller.setUseBarriers(routeBarriers);
+        routeInstaller.setBarrierTimeout(routeBarrierTimeout);
+        if (flowCoalesceTimeout > 0)
+            flowCoalescer = new FlowCoalescer();
         deviceManager.addListener(this);
         floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
+        floodlightProvider.addOFMessageListener(OFType.BARRIER_REPLY, this);
+        floodlightProvider.addInfoProvider("damper", this);
+        floodlightProvider.addInfoProvider("routeinstaller", this);
+
+        if (threadPool != null) {
+            final long interval = Math.max(routeBarrierTimeout, 100);
+            routeExpiryTask = new SingletonTask(
+                    threadPool.getScheduledExecutor(), new Runnable() {
+                @Override
+                public void run() {
+                    routeInstaller.expire();
+                    routeExpiryTask.reschedule(interval,
+                                               TimeUnit.MILLISECONDS);
+                }
+            });
+            routeExpiryTask.reschedule(interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public OFMessageDamper getMessageDamper() {
+        return messageDamper;
+    }
+
+    // *************
+    // IInfoProvider
+    // *************
+
+    @Override
+    public Map<String, Object> getInfo(String type) {
+        Map<String, Object> info = new HashMap<String, Object>();
+        if ("damper".equals(type)) {
+            info.put("damped", messageDamper.getDampedCount());
+            info.put("passed", messageDamper.getPassedCount());
+        } else if ("routeinstaller".equals(type)) {
+            info.put("routes", routeInstaller.getRouteCount());
+            info.put("flow-mods", routeInstaller.getFlowModCount());
+            info.put("barriers", routeInstaller.getBarrierCount());
+            info.put("pending", routeInstaller.getPendingCount());
+            info.put("confirmed", routeInstaller.getConfirmedCount());
+            info.put("timed-out", routeInstaller.getTimedOutCount());
+            info.put("mean-confirm-ms", routeInstaller.getMeanConfirmMs());
+            if (flowCoalescer != null) {
+                info.put("packet-ins-coalesced",
+                         flowCoalescer.getCoalescedCount());
+                info.put("packet-ins-rejected",
+                         flowCoalescer.getRejectedCount());
+                info.put("packet-ins-dropped",
+                         flowCoalescer.getDroppedCount());
+            }
+        } else {
+            return null;
+        }
+        return info;
+    }
+
+    public RouteInstaller getRouteInstaller() {
+        return routeInstaller;
+    }
+
+    public FlowCoalescer getFlowCoalescer() {
+        return flowCoalescer;
     }
 
     /**
@@ -167,6 +264,9 @@ public abstract class ForwardingBase
                                                    (OFPacketIn) msg,
                                                    decision,
                                                    cntx);
+            case BARRIER_REPLY:
+                routeInstaller.barrierReplied(sw, msg);
+                break;
             default:
                 break;
         }
@@ -174,7 +274,10 @@ public abstract class ForwardingBase
     }
 
     /**
-     * Push routes from back to front
+     * Push routes from back to front. The flow mods of all hops are built
+     * first and then written to all switches at once; the packet-out is
+     * pushed once they are written, or once every switch answered a
+     * barrier if route barriers are enabled.
      * @param route Route to push
      * @param match OpenFlow fields to match on
      * @param srcSwPort Source switch port for the first hop
@@ -189,48 +292,33 @@ public abstract class ForwardingBase
      *        OFFlowMod.OFPFC_MODIFY etc.
      * @return srcSwitchIincluded True if the source switch is included in this route
      */
-    @LogMessageDocs({
-        @LogMessageDoc(level="WARN",
-            message="Unable to push route, switch at DPID {dpid} not available",
-            explanation="A switch along the calculated path for the " +
-                        "flow has disconnected.",
-            recommendation=LogMessageDoc.CHECK_SWITCH),
-        @LogMessageDoc(level="ERROR",
-            message="Failure writing flow mod",
-            explanation="An I/O error occurred while writing a " +
-                        "flow modification to a switch",
-            recommendation=LogMessageDoc.CHECK_SWITCH),            
-    })
+    @LogMessageDoc(level="WARN",
+        message="Unable to push route, switch at DPID {dpid} not available",
+        explanation="A switch along the calculated path for the " +
+                    "flow has disconnected.",
+        recommendation=LogMessageDoc.CHECK_SWITCH)
     public boolean pushRoute(Route route, OFMatch match, 
                              Integer wildcard_hints,
-                             OFPacketIn pi,
+                             final OFPacketIn pi,
                              long pinSwitch,
                              long cookie, 
-                             FloodlightContext cntx,
+                             final FloodlightContext cntx,
                              boolean reqeustFlowRemovedNotifn,
                              boolean doFlush,
                              short   flowModCommand) {
 
         boolean srcSwitchIncluded = false;
-        OFFlowMod fm =
-                (OFFlowMod) floodlightProvider.getOFMessageFactory()
-                                              .getMessage(OFType.FLOW_MOD);
-        OFActionOutput action = new OFActionOutput();
-        action.setMaxLength((short)0xffff);
-        List<OFAction> actions = new ArrayList<OFAction>();
-        actions.add(action);
-
-        fm.setIdleTimeout(FLOWMOD_DEFAULT_IDLE_TIMEOUT)
-            .setHardTimeout(FLOWMOD_DEFAULT_HARD_TIMEOUT)
-            .setBufferId(OFPacketOut.BUFFER_ID_NONE)
-            .setCookie(cookie)
-            .setCommand(flowModCommand)
-            .setMatch(match)
-            .setActions(actions)
-            .setLengthU(OFFlowMod.MINIMUM_LENGTH+OFActionOutput.MINIMUM_LENGTH);
-
+        BasicFactory factory = floodlightProvider.getOFMessageFactory();
         List<NodePortTuple> switchPortList = route.getPath();
-
+        // The match of the packet, before the wildcards are set below
+        OFMatch flowMatch = (flowCoalescer != null) ? match.clone() : null;
+
+        // Build the flow mods of every hop before writing any of them, so
+        // they can be written to all switches at once
+        Map<IOFSwitch, List<OFFlowMod>> switchFlowMods =
+                new LinkedHashMap<IOFSwitch, List<OFFlowMod>>();
+        IOFSwitch pinSw = null;
+        short pinOutPort = 0;
         for (int indx = switchPortList.size()-1; indx > 0; indx -= 2) {
             // indx and indx-1 will always have the same switch DPID.
             long switchDPID = switchPortList.get(indx).getNodeId();
@@ -240,9 +328,28 @@ public abstract class ForwardingBase
                     log.warn("Unable to push route, switch at DPID {} " +
                             "not available", switchDPID);
                 }
-                return srcSwitchIncluded;
+                break;
             }
 
+            // Each hop gets its own flow mod. It belongs to the switch's
+            // write queue once written and is recycled if it's pooled.
+            OFFlowMod fm =
+                    (OFFlowMod) factory.getPooledMessage(OFType.FLOW_MOD);
+            OFActionOutput action = (OFActionOutput)
+                    factory.getPooledAction(OFActionType.OUTPUT);
+            action.setMaxLength((short)0xffff);
+            List<OFAction> actions = new ArrayList<OFAction>(1);
+            actions.add(action);
+
+            fm.setIdleTimeout(FLOWMOD_DEFAULT_IDLE_TIMEOUT)
+                .setHardTimeout(FLOWMOD_DEFAULT_HARD_TIMEOUT)
+                .setBufferId(OFPacketOut.BUFFER_ID_NONE)
+                .setCookie(cookie)
+                .setCommand(flowModCommand)
+                .setActions(actions)
+                .setLengthU(OFFlowMod.MINIMUM_LENGTH +
+                            OFActionOutput.MINIMUM_LENGTH);
+
             // set the match.
             fm.setMatch(wildcard(match, sw, wildcard_hints));
 
@@ -264,42 +371,114 @@ public abstract class ForwardingBase
             fm.getMatch().setInputPort(inPort);
             ((OFActionOutput)fm.getActions().get(0)).setPort(outPort);
 
-            try {
-                counterStore.updatePktOutFMCounterStore(sw, fm);
-                if (log.isTraceEnabled()) {
-                    log.trace("Pushing Route flowmod routeIndx={} " + 
-                            "sw={} inPort={} outPort={}",
-                            new Object[] {indx,
-                                          sw,
-                                          fm.getMatch().getInputPort(),
-                                          outPort });
-                }
-                messageDamper.write(sw, fm, cntx);
-                if (doFlush) {
-                    sw.flush();
-                }
+            if (log.isTraceEnabled()) {
+                log.trace("Pushing Route flowmod routeIndx={} " + 
+                        "sw={} inPort={} outPort={}",
+                        new Object[] {indx,
+                                      sw,
+                                      fm.getMatch().getInputPort(),
+                                      outPort });
+            }
+            List<OFFlowMod> fms = switchFlowMods.get(sw);
+            if (fms == null) {
+                fms = new ArrayList<OFFlowMod>(1);
+                switchFlowMods.put(sw, fms);
+            }
+            fms.add(fm);
 
-                // Push the packet out the source switch
-                if (sw.getId() == pinSwitch) {
-                    // TODO: Instead of doing a packetOut here we could also 
-                    // send a flowMod with bufferId set.... 
-                    pushPacket(sw, match, pi, outPort, cntx);
-                    srcSwitchIncluded = true;
-                }
-            } catch (IOException e) {
-                log.error("Failure writing flow mod", e);
+            if (sw.getId() == pinSwitch) {
+                pinSw = sw;
+                pinOutPort = outPort;
+                srcSwitchIncluded = true;
             }
+        }
 
-            try {
-                fm = fm.clone();
-            } catch (CloneNotSupportedException e) {
-                log.error("Failure cloning flow mod", e);
+        // Push the packet out the source switch once the route is in place
+        // TODO: Instead of doing a packetOut here we could also 
+        // send a flowMod with bufferId set.... 
+        Runnable packetOut = null;
+        Runnable timedOut = null;
+        if (pinSw != null) {
+            final IOFSwitch sw = pinSw;
+            final short outPort = pinOutPort;
+            final OFMatch pktMatch = match;
+            // A packet-out deferred to a barrier reply is written after
+            // the packet-in was processed, when its context is gone and
+            // nothing flushes the switch for it
+            final boolean deferred = routeInstaller.isUseBarriers();
+            // Later packet-ins of the flow follow this route until it's
+            // installed and a moment after
+            final FlowCoalescer.InFlightFlow flow = (flowCoalescer == null) ?
+                    null :
+                    flowCoalescer.register(sw, flowMatch, outPort,
+                            deferred ? routeBarrierTimeout :
+                                       flowCoalesceTimeout,
+                            flowCoalesceTimeout);
+            packetOut = new Runnable() {
+                @Override
+                public void run() {
+                    pushPacket(sw, pktMatch, pi, outPort,
+                               deferred ? null : cntx);
+                    if (flow != null) {
+                        for (OFPacketIn waiting : flowCoalescer.installed(flow))
+                            pushPacket(sw, pktMatch, waiting, outPort, null);
+                    }
+                    if (deferred) sw.flush();
+                }
+            };
+            if (flow != null) {
+                timedOut = new Runnable() {
+                    @Override
+                    public void run() {
+                        int dropped = flowCoalescer.timedOut(flow);
+                        if (dropped > 0 && log.isDebugEnabled()) {
+                            log.debug("Route of flow {} timed out, dropped " +
+                                      "{} waiting packet-ins",
+                                      pktMatch, dropped);
+                        }
+                    }
+                };
             }
         }
+        routeInstaller.install(switchFlowMods, cntx, doFlush, packetOut,
+                               timedOut);
 
         return srcSwitchIncluded;
     }
 
+    /**
+     * Send a packet-in along the route of its flow if that route was just
+     * pushed, instead of computing it again. If the route isn't installed
+     * yet the packet is sent once it is, unless too many packets of the
+     * flow are already waiting.
+     * @param sw the switch the packet-in came from
+     * @param match the match of the packet
+     * @param pi the packet-in
+     * @param cntx the floodlight context
+     * @return true if the packet was taken care of
+     */
+    protected boolean pushInFlightPacket(IOFSwitch sw, OFMatch match,
+                                         OFPacketIn pi,
+                                         FloodlightContext cntx) {
+        if (flowCoalescer == null) return false;
+        FlowCoalescer.InFlightFlow flow = flowCoalescer.get(sw, match);
+        if (flow == null) return false;
+        switch (flowCoalescer.queue(flow, pi)) {
+            case INSTALLED:
+                pushPacket(sw, match, pi, flow.getOutPort(), cntx);
+                break;
+            case REJECTED:
+                return false;
+            default:
+                break;
+        }
+        if (log.isTraceEnabled()) {
+            log.trace("Route of flow {} is being pushed, sending " +
+                      "packet-in {} along it", match, pi);
+        }
+        return true;
+    }
+
     protected OFMatch wildcard(OFMatch match, IOFSwitch sw,
                                Integer wildcard_hints) {
         if (wildcard_hints != null) {
@@ -349,13 +528,17 @@ public abstract class ForwardingBase
                       new Object[] {sw, inPort, outPort});
         }
 
+        BasicFactory factory = floodlightProvider.getOFMessageFactory();
         OFPacketOut po =
-                (OFPacketOut) floodlightProvider.getOFMessageFactory()
-                                                .getMessage(OFType.PACKET_OUT);
+                (OFPacketOut) factory.getPooledMessage(OFType.PACKET_OUT);
 
         // set actions
-        List<OFAction> actions = new ArrayList<OFAction>();
-        actions.add(new OFActionOutput(outPort, (short) 0xffff));
+        OFActionOutput action = (OFActionOutput)
+                factory.getPooledAction(OFActionType.OUTPUT);
+        action.setPort(outPort);
+        action.setMaxLength((short) 0xffff);
+        List<OFAction> actions = new ArrayList<OFAction>(1);
+        actions.add(action);
 
         po.setActions(actions)
           .setActionsLength((short) OFActionOutput.MINIMUM_LENGTH);
@@ -373,6 +556,7 @@ public abstract class ForwardingBase
                           "Cannot send packetOut. " +
                         "srcSwitch={} inPort={} outPort={}",
                         new Object[] {sw, inPort, outPort});
+                OFMessagePool.releaseIfPooled(po);
                 return;
             }
             byte[] packetData = packet.serialize();
@@ -430,13 +614,17 @@ public abstract class ForwardingBase
                       new Object[] {sw, match, pi});
         }
 
+        BasicFactory factory = floodlightProvider.getOFMessageFactory();
         OFPacketOut po =
-                (OFPacketOut) floodlightProvider.getOFMessageFactory()
-                                                .getMessage(OFType.PACKET_OUT);
+                (OFPacketOut) factory.getPooledMessage(OFType.PACKET_OUT);
 
         // set actions
-        List<OFAction> actions = new ArrayList<OFAction>();
-        actions.add(new OFActionOutput(outport, (short) 0xffff));
+        OFActionOutput action = (OFActionOutput)
+                factory.getPooledAction(OFActionType.OUTPUT);
+        action.setPort(outport);
+        action.setMaxLength((short) 0xffff);
+        List<OFAction> actions = new ArrayList<OFAction>(1);
+        actions.add(action);
 
         po.setActions(actions)
           .setActionsLength((short) OFActionOutput.MINIMUM_LENGTH);
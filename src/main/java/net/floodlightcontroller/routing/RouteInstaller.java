@@ -0,0 +1,309 @@
+package net.floodlightcontroller.routing;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.annotations.LogMessageCategory;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+import net.floodlightcontroller.counter.ICounterStoreService;
+import net.floodlightcontroller.util.OFMessageDamper;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.BasicFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Installs the flow-mods of a route on all of its switches at once.
+ *
+ * The flow-mods of every hop are built before any is written. They are
+ * then written to each switch, followed by a single flush per switch, so
+ * the switches program the route in parallel instead of one hop after
+ * the other.
+ *
+ * With barriers enabled a barrier request follows the flow-mods on every
+ * switch, and the completion action, usually the packet-out of the packet
+ * that triggered the route, runs once all switches have answered. A
+ * switch answers a barrier only after it processed the messages sent
+ * before it, so the packet doesn't overtake its flow-mods downstream.
+ * Routes whose barriers aren't all answered within the timeout are
+ * dropped without running their completion action, when the next route
+ * is installed or when the owner calls {@link #expire()} periodically;
+ * their timeout action runs instead.
+ */
+@LogMessageCategory("Flow Programming")
+public class RouteInstaller {
+    protected static Logger log =
+            LoggerFactory.getLogger(RouteInstaller.class);
+
+    public static final long DEFAULT_BARRIER_TIMEOUT = 1000; // ms
+
+    /**
+     * A barrier request sent to a switch
+     */
+    protected static class BarrierId {
+        protected final long dpid;
+        protected final int xid;
+
+        protected BarrierId(long dpid, int xid) {
+            this.dpid = dpid;
+            this.xid = xid;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (dpid ^ (dpid >>> 32)) * 31 + xid;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof BarrierId)) return false;
+            BarrierId other = (BarrierId) obj;
+            return dpid == other.dpid && xid == other.xid;
+        }
+    }
+
+    /**
+     * A route waiting for its barrier replies
+     */
+    protected static class PendingRoute {
+        /**
+         * The number of switches that haven't answered, or -1 once the
+         * route timed out
+         */
+        protected final AtomicInteger remaining;
+        protected final Runnable onInstalled;
+        protected final Runnable onTimedOut;
+        protected final long start;
+
+        protected PendingRoute(int switches, Runnable onInstalled,
+                               Runnable onTimedOut) {
+            this.remaining = new AtomicInteger(switches);
+            this.onInstalled = onInstalled;
+            this.onTimedOut = onTimedOut;
+            this.start = System.nanoTime();
+        }
+    }
+
+    /**
+     * A barrier and the time its route times out at
+     */
+    protected static class Deadline {
+        protected final BarrierId id;
+        protected final long deadline;
+
+        protected Deadline(BarrierId id, long deadline) {
+            this.id = id;
+            this.deadline = deadline;
+        }
+    }
+
+    protected BasicFactory factory;
+    protected OFMessageDamper messageDamper;
+    protected ICounterStoreService counterStore;
+    protected volatile boolean useBarriers;
+    protected volatile long barrierTimeout = DEFAULT_BARRIER_TIMEOUT;
+
+    protected ConcurrentHashMap<BarrierId, PendingRoute> pending;
+    // All barriers have the same timeout, so this is in deadline order
+    protected ConcurrentLinkedQueue<Deadline> deadlines;
+
+    protected AtomicLong routes = new AtomicLong();
+    protected AtomicLong flowMods = new AtomicLong();
+    protected AtomicLong barriers = new AtomicLong();
+    protected AtomicLong confirmed = new AtomicLong();
+    protected AtomicLong timedOut = new AtomicLong();
+    protected AtomicLong confirmNanos = new AtomicLong();
+
+    /**
+     * @param factory the factory to create barrier requests with
+     * @param messageDamper the damper to write the flow-mods through
+     * @param counterStore the counter store to count the flow-mods in, or
+     * null
+     */
+    public RouteInstaller(BasicFactory factory,
+                          OFMessageDamper messageDamper,
+                          ICounterStoreService counterStore) {
+        this.factory = factory;
+        this.messageDamper = messageDamper;
+        this.counterStore = counterStore;
+        this.pending = new ConcurrentHashMap<BarrierId, PendingRoute>();
+        this.deadlines = new ConcurrentLinkedQueue<Deadline>();
+    }
+
+    public boolean isUseBarriers() {
+        return useBarriers;
+    }
+
+    public void setUseBarriers(boolean useBarriers) {
+        this.useBarriers = useBarriers;
+    }
+
+    public long getBarrierTimeout() {
+        return barrierTimeout;
+    }
+
+    /**
+     * @param barrierTimeout the time in milliseconds to wait for the
+     * barrier replies of a route
+     */
+    public void setBarrierTimeout(long barrierTimeout) {
+        this.barrierTimeout = barrierTimeout;
+    }
+
+    /**
+     * Install a route without an action on timeout
+     * @see #install(Map, FloodlightContext, boolean, Runnable, Runnable)
+     */
+    public void install(Map<IOFSwitch, List<OFFlowMod>> switchFlowMods,
+                        FloodlightContext cntx, boolean flush,
+                        Runnable onInstalled) {
+        install(switchFlowMods, cntx, flush, onInstalled, null);
+    }
+
+    /**
+     * Write the flow-mods of a route to its switches and flush each switch
+     * once
+     * @param switchFlowMods the flow-mods of each switch, in the order to
+     * write them
+     * @param cntx the floodlight context
+     * @param flush if set to false, switches are only flushed when a
+     * barrier is sent to them
+     * @param onInstalled run once every switch confirmed its flow-mods, or
+     * right after writing them without barriers; may be null
+     * @param onTimedOut run instead of onInstalled if the barriers aren't
+     * all answered within the timeout; may be null
+     */
+    @LogMessageDoc(level="ERROR",
+                   message="Failure writing route to switch {dpid}",
+                   explanation="An I/O error occurred while writing the " +
+                               "flow modifications of a route to a switch",
+                   recommendation=LogMessageDoc.CHECK_SWITCH)
+    public void install(Map<IOFSwitch, List<OFFlowMod>> switchFlowMods,
+                        FloodlightContext cntx, boolean flush,
+                        Runnable onInstalled, Runnable onTimedOut) {
+        expire();
+        routes.incrementAndGet();
+        boolean barrier = useBarriers && onInstalled != null &&
+                          !switchFlowMods.isEmpty();
+        PendingRoute route = barrier ?
+                new PendingRoute(switchFlowMods.size(), onInstalled,
+                                 onTimedOut) : null;
+        long deadline = System.nanoTime() + barrierTimeout * 1000000L;
+
+        for (Map.Entry<IOFSwitch, List<OFFlowMod>> e :
+                switchFlowMods.entrySet()) {
+            IOFSwitch sw = e.getKey();
+            try {
+                for (OFFlowMod fm : e.getValue()) {
+                    if (counterStore != null)
+                        counterStore.updatePktOutFMCounterStore(sw, fm);
+                    messageDamper.write(sw, fm, cntx);
+                    flowMods.incrementAndGet();
+                }
+                if (barrier) {
+                    OFMessage br =
+                            factory.getMessage(OFType.BARRIER_REQUEST);
+                    br.setXid(sw.getNextTransactionId());
+                    BarrierId id = new BarrierId(sw.getId(), br.getXid());
+                    // Register first, the reply may come back right away
+                    pending.put(id, route);
+                    deadlines.add(new Deadline(id, deadline));
+                    sw.write(br, cntx);
+                    barriers.incrementAndGet();
+                }
+                if (flush || barrier)
+                    sw.flush();
+            } catch (IOException ex) {
+                // The route won't be confirmed and times out
+                log.error("Failure writing route to switch {}",
+                          new Object[] { sw.getStringId(), ex });
+            }
+        }
+
+        if (!barrier && onInstalled != null)
+            onInstalled.run();
+    }
+
+    /**
+     * Process a barrier reply from a switch
+     * @return true if the reply answered a barrier of a route
+     */
+    public boolean barrierReplied(IOFSwitch sw, OFMessage reply) {
+        PendingRoute route =
+                pending.remove(new BarrierId(sw.getId(), reply.getXid()));
+        if (route == null) {
+            expire();
+            return false;
+        }
+        if (route.remaining.decrementAndGet() == 0) {
+            confirmed.incrementAndGet();
+            confirmNanos.addAndGet(System.nanoTime() - route.start);
+            route.onInstalled.run();
+        }
+        return true;
+    }
+
+    /**
+     * Drop the routes whose barriers timed out
+     */
+    public void expire() {
+        long now = System.nanoTime();
+        Deadline d;
+        while ((d = deadlines.peek()) != null && now - d.deadline > 0) {
+            if (!deadlines.remove(d)) continue;
+            PendingRoute route = pending.remove(d.id);
+            if (route != null && route.remaining.getAndSet(-1) > 0) {
+                timedOut.incrementAndGet();
+                if (route.onTimedOut != null) route.onTimedOut.run();
+            }
+        }
+    }
+
+    /**
+     * @return the number of barriers waiting for replies
+     */
+    public int getPendingCount() {
+        expire();
+        return pending.size();
+    }
+
+    public long getRouteCount() {
+        return routes.get();
+    }
+
+    public long getFlowModCount() {
+        return flowMods.get();
+    }
+
+    public long getBarrierCount() {
+        return barriers.get();
+    }
+
+    public long getConfirmedCount() {
+        return confirmed.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    /**
+     * @return the mean time in milliseconds from writing a route to the
+     * last barrier reply
+     */
+    public double getMeanConfirmMs() {
+        long n = confirmed.get();
+        return (n == 0) ? 0 : confirmNanos.get() / 1000000.0 / n;
+    }
+}
@@ -0,0 +1,305 @@
+package net.floodlightcontroller.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IInfoProvider;
+import net.floodlightcontroller.core.annotations.LogMessageCategory;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+import net.floodlightcontroller.core.util.SingletonTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers the row updates and deletes of one table and writes them to the
+ * storage source in batches, from a task on the thread pool.
+ *
+ * Writes are collected for a short window. Updates to the same row within
+ * the window are merged into one row, with later values replacing earlier
+ * ones, and a delete drops the updates queued before it. A flush deletes
+ * the deleted rows with one deleteRows call and then writes the updated
+ * rows with one updateRows call. Since the batch calls don't notify the
+ * storage listeners, the flush sends them one notification for the
+ * deleted rows and one for the updated rows instead of one per write.
+ *
+ * Reads from the storage source don't see queued writes; callers that need
+ * to read their own writes flush first.
+ */
+@LogMessageCategory("System Database")
+public class WriteBehindTable implements IInfoProvider {
+    protected static Logger log =
+            LoggerFactory.getLogger(WriteBehindTable.class);
+
+    /**
+     * The number of queued rows at which a batch is written without
+     * waiting for the window to end
+     */
+    protected static final int MAX_PENDING = 10000;
+
+    /**
+     * The queued writes to a row
+     */
+    protected static class PendingRow {
+        /**
+         * The row is deleted before it is updated
+         */
+        protected boolean delete;
+
+        /**
+         * The merged updates, or null if there are none
+         */
+        protected Map<String, Object> values;
+    }
+
+    protected IStorageSourceService storageSource;
+    protected String tableName;
+    protected String primaryKeyName;
+    protected long window;
+    protected SingletonTask flushTask;
+
+    /**
+     * The queued writes by row key, in the order the rows were first
+     * written
+     */
+    protected Map<Object, PendingRow> pending;
+    protected boolean scheduled;
+
+    /**
+     * Held while taking and writing a batch, so that batches are written
+     * in order
+     */
+    protected final Object flushLock = new Object();
+
+    protected long queued;
+    protected long coalesced;
+    protected long flushes;
+    protected long rowsWritten;
+    protected long lastFlushNanos;
+    protected long maxFlushNanos;
+
+    /**
+     * Create a new write-behind buffer for a table
+     * @param storageSource the storage source to write to
+     * @param tableName the table to write to
+     * @param primaryKeyName the name of the primary key column
+     * @param ses the executor to run the flush task on
+     * @param window the time in milliseconds to collect writes for before
+     * writing them
+     */
+    public WriteBehindTable(IStorageSourceService storageSource,
+                            String tableName, String primaryKeyName,
+                            ScheduledExecutorService ses, long window) {
+        this.storageSource = storageSource;
+        this.tableName = tableName;
+        this.primaryKeyName = primaryKeyName;
+        this.window = window;
+        this.pending = new LinkedHashMap<Object, PendingRow>();
+        Runnable flusher = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        flushTask = new SingletonTask(ses, flusher);
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * Queue an update to a row
+     * @param values the column values, including the primary key
+     */
+    public void updateRow(Map<String, Object> values) {
+        Object rowKey = values.get(primaryKeyName);
+        if (rowKey == null)
+            throw new IllegalArgumentException("Row has no primary key");
+        long delay;
+        synchronized (this) {
+            queued++;
+            PendingRow row = pending.get(rowKey);
+            if (row == null) {
+                row = new PendingRow();
+                pending.put(rowKey, row);
+            }
+            if (row.values == null) {
+                row.values = new HashMap<String, Object>(values);
+            } else {
+                row.values.putAll(values);
+                coalesced++;
+                return;
+            }
+            delay = getFlushDelay();
+            if (delay < 0) return;
+        }
+        flushTask.reschedule(delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue the deletion of a row
+     * @param rowKey the primary key of the row
+     */
+    public void deleteRow(Object rowKey) {
+        long delay;
+        synchronized (this) {
+            queued++;
+            PendingRow row = pending.get(rowKey);
+            if (row != null) {
+                // The delete replaces the queued writes to the row
+                row.values = null;
+                row.delete = true;
+                coalesced++;
+                return;
+            }
+            row = new PendingRow();
+            row.delete = true;
+            pending.put(rowKey, row);
+            delay = getFlushDelay();
+            if (delay < 0) return;
+        }
+        flushTask.reschedule(delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the delay of the flush to schedule after a row was added to the
+     * queue. Must be called with the lock held.
+     * @return the delay in milliseconds, or -1 if a flush is already
+     * scheduled
+     */
+    protected long getFlushDelay() {
+        long delay;
+        if (pending.size() >= MAX_PENDING) {
+            delay = 0;
+        } else if (!scheduled) {
+            delay = window;
+        } else {
+            return -1;
+        }
+        scheduled = true;
+        return delay;
+    }
+
+    /**
+     * Drop the queued writes
+     */
+    public synchronized void clear() {
+        pending = new LinkedHashMap<Object, PendingRow>();
+    }
+
+    /**
+     * Write the queued writes on the calling thread
+     */
+    @LogMessageDoc(level="ERROR",
+                   message="Failed to write {count} rows to table {table}",
+                   explanation="The storage source failed to write a batch " +
+                               "of buffered rows; the rows were dropped",
+                   recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    public void flush() {
+        synchronized (flushLock) {
+            Map<Object, PendingRow> batch;
+            synchronized (this) {
+                scheduled = false;
+                if (pending.isEmpty()) return;
+                batch = pending;
+                pending = new LinkedHashMap<Object, PendingRow>();
+            }
+
+            long start = System.nanoTime();
+            Set<Object> deletes = new HashSet<Object>();
+            Set<Object> updates = new HashSet<Object>();
+            List<Map<String, Object>> rows =
+                    new ArrayList<Map<String, Object>>(batch.size());
+            for (Map.Entry<Object, PendingRow> e : batch.entrySet()) {
+                PendingRow row = e.getValue();
+                if (row.delete)
+                    deletes.add(e.getKey());
+                if (row.values != null) {
+                    updates.add(e.getKey());
+                    rows.add(row.values);
+                }
+            }
+            try {
+                List<StorageSourceNotification> notifications =
+                        new ArrayList<StorageSourceNotification>(2);
+                if (!deletes.isEmpty()) {
+                    storageSource.deleteRows(tableName, deletes);
+                    notifications.add(new StorageSourceNotification(
+                            tableName, StorageSourceNotification.Action.DELETE,
+                            deletes));
+                }
+                if (!rows.isEmpty()) {
+                    storageSource.updateRows(tableName, rows);
+                    notifications.add(new StorageSourceNotification(
+                            tableName, StorageSourceNotification.Action.MODIFY,
+                            updates));
+                }
+                storageSource.notifyListeners(notifications);
+            } catch (StorageException e) {
+                log.error("Failed to write {} rows to table {}",
+                          new Object[] { batch.size(), tableName, e });
+            }
+            long nanos = System.nanoTime() - start;
+            synchronized (this) {
+                flushes++;
+                rowsWritten += batch.size();
+                lastFlushNanos = nanos;
+                if (nanos > maxFlushNanos)
+                    maxFlushNanos = nanos;
+            }
+        }
+    }
+
+    /**
+     * @return the number of rows waiting to be written
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of writes queued
+     */
+    public synchronized long getQueuedCount() {
+        return queued;
+    }
+
+    /**
+     * @return the number of writes merged into an earlier write to the
+     * same row
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * @return the number of batches written
+     */
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    // IInfoProvider
+
+    @Override
+    public synchronized Map<String, Object> getInfo(String type) {
+        Map<String, Object> info = new HashMap<String, Object>();
+        String prefix = tableName + "-";
+        info.put(prefix + "pending", pending.size());
+        info.put(prefix + "queued", queued);
+        info.put(prefix + "coalesced", coalesced);
+        info.put(prefix + "flushes", flushes);
+        info.put(prefix + "rows-written", rowsWritten);
+        info.put(prefix + "last-flush-ms", lastFlushNanos / 1000000.0);
+        info.put(prefix + "max-flush-ms", maxFlushNanos / 1000000.0);
+        return info;
+    }
+}
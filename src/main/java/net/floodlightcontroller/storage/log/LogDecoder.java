@@ -0,0 +1,222 @@
+package net.floodlightcontroller.storage.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the records of a log or snapshot file, which is mapped into
+ * memory a window at a time.
+ *
+ * Reading stops at the end of the file or at the first record that is
+ * incomplete or fails its checksum, which is what a crash while the
+ * record was written leaves behind.
+ * @see LogFormat
+ */
+public class LogDecoder {
+    /**
+     * The size of the part of the file mapped at a time
+     */
+    protected static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    protected File file;
+    protected RandomAccessFile raf;
+    protected FileChannel channel;
+    protected long fileSize;
+
+    protected MappedByteBuffer window;
+    protected long windowStart;
+
+    /**
+     * The file offset of the next record
+     */
+    protected long position;
+    protected boolean truncated;
+    protected int records;
+
+    protected byte[] body = new byte[256];
+    protected ByteBuffer record;
+    protected CRC32 crc = new CRC32();
+
+    /**
+     * The column names read so far, so that the rows share one copy of
+     * each name
+     */
+    protected Map<String, String> names = new HashMap<String, String>();
+
+    public LogDecoder(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        fileSize = channel.size();
+    }
+
+    /**
+     * Read the next record
+     * @return the type of the record, or -1 if there are no more valid
+     * records
+     */
+    public int next() throws IOException {
+        long remaining = fileSize - position;
+        if (remaining < LogFormat.HEADER_LENGTH) {
+            truncated = (remaining > 0);
+            return -1;
+        }
+        map(position, LogFormat.HEADER_LENGTH);
+        int offset = (int) (position - windowStart);
+        int length = window.getInt(offset);
+        int checksum = window.getInt(offset + 4);
+        if ((length <= 0) ||
+            (length > remaining - LogFormat.HEADER_LENGTH)) {
+            truncated = true;
+            return -1;
+        }
+
+        map(position, LogFormat.HEADER_LENGTH + length);
+        offset = (int) (position - windowStart) + LogFormat.HEADER_LENGTH;
+        if (body.length < length)
+            body = new byte[Math.max(length, body.length * 2)];
+        window.position(offset);
+        window.get(body, 0, length);
+        crc.reset();
+        crc.update(body, 0, length);
+        if ((int) crc.getValue() != checksum) {
+            truncated = true;
+            return -1;
+        }
+
+        position += LogFormat.HEADER_LENGTH + length;
+        records++;
+        record = ByteBuffer.wrap(body, 0, length);
+        return record.get();
+    }
+
+    /**
+     * Map the part of the file starting at an offset, if it isn't mapped
+     */
+    protected void map(long start, int length) throws IOException {
+        if ((window != null) && (start >= windowStart) &&
+            (start + length <= windowStart + window.capacity()))
+            return;
+        long size = Math.min(Math.max(WINDOW_SIZE, length), fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+    }
+
+    public int readInt() {
+        return record.getInt();
+    }
+
+    public String readString() {
+        int length = record.getInt();
+        String value = new String(body, record.position(), length,
+                                  LogFormat.UTF8);
+        record.position(record.position() + length);
+        return value;
+    }
+
+    public Object readValue() throws IOException {
+        byte type = record.get();
+        switch (type) {
+            case LogFormat.NULL:
+                return null;
+            case LogFormat.STRING:
+                return readString();
+            case LogFormat.INTEGER:
+                return record.getInt();
+            case LogFormat.LONG:
+                return record.getLong();
+            case LogFormat.SHORT:
+                return record.getShort();
+            case LogFormat.BYTE:
+                return record.get();
+            case LogFormat.BOOLEAN:
+                return (record.get() != 0);
+            case LogFormat.FLOAT:
+                return record.getFloat();
+            case LogFormat.DOUBLE:
+                return record.getDouble();
+            case LogFormat.BYTES: {
+                byte[] bytes = new byte[record.getInt()];
+                record.get(bytes);
+                return bytes;
+            }
+            case LogFormat.DATE:
+                return new Date(record.getLong());
+            case LogFormat.SERIALIZED: {
+                int length = record.getInt();
+                ObjectInputStream ois = new ObjectInputStream(
+                        new ByteArrayInputStream(body, record.position(),
+                                                 length));
+                record.position(record.position() + length);
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown class in " + file + ": " +
+                                          e.getMessage());
+                }
+            }
+            default:
+                throw new IOException("Unknown value type " + type +
+                                      " in " + file);
+        }
+    }
+
+    public Map<String, Object> readRow() throws IOException {
+        int columns = record.getInt();
+        Map<String, Object> row = new HashMap<String, Object>(columns * 2);
+        for (int i = 0; i < columns; i++) {
+            String name = readString();
+            String shared = names.get(name);
+            if (shared == null) {
+                names.put(name, name);
+                shared = name;
+            }
+            row.put(shared, readValue());
+        }
+        return row;
+    }
+
+    public Set<Object> readKeys() throws IOException {
+        int count = record.getInt();
+        Set<Object> keys = new HashSet<Object>(count * 2);
+        for (int i = 0; i < count; i++) {
+            keys.add(readValue());
+        }
+        return keys;
+    }
+
+    /**
+     * @return the length of the valid records read so far
+     */
+    public long getValidLength() {
+        return position;
+    }
+
+    /**
+     * @return true if reading stopped at an incomplete or corrupt record
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int getRecordCount() {
+        return records;
+    }
+
+    public void close() throws IOException {
+        window = null;
+        raf.close();
+    }
+}
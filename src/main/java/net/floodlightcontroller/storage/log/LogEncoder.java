@@ -0,0 +1,158 @@
+package net.floodlightcontroller.storage.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Builds a record of the log in memory and writes it framed
+ * @see LogFormat
+ */
+public class LogEncoder {
+    /**
+     * A byte array stream that gives access to its buffer
+     */
+    protected static class Buffer extends ByteArrayOutputStream {
+        public Buffer(int size) {
+            super(size);
+        }
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    protected Buffer buffer;
+    protected DataOutputStream out;
+    protected CRC32 crc = new CRC32();
+
+    public LogEncoder() {
+        buffer = new Buffer(256);
+        out = new DataOutputStream(buffer);
+    }
+
+    /**
+     * Start a new record, dropping the current one
+     * @param type the record type
+     * @param tableName the table the record applies to
+     */
+    public void begin(byte type, String tableName) throws IOException {
+        buffer.reset();
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(type);
+        writeString(tableName);
+    }
+
+    public void writeInt(int value) throws IOException {
+        out.writeInt(value);
+    }
+
+    public void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(LogFormat.UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public void writeValue(Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(LogFormat.NULL);
+        } else if (value instanceof String) {
+            out.writeByte(LogFormat.STRING);
+            writeString((String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(LogFormat.INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LogFormat.LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Short) {
+            out.writeByte(LogFormat.SHORT);
+            out.writeShort((Short) value);
+        } else if (value instanceof Byte) {
+            out.writeByte(LogFormat.BYTE);
+            out.writeByte((Byte) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(LogFormat.BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Float) {
+            out.writeByte(LogFormat.FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(LogFormat.DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(LogFormat.BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Date) {
+            out.writeByte(LogFormat.DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(value);
+            oos.close();
+            out.writeByte(LogFormat.SERIALIZED);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        } else {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+    }
+
+    /**
+     * Write the columns of a row, in no particular order
+     */
+    public void writeRow(Map<String, Object> row) throws IOException {
+        out.writeInt(row.size());
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            writeString(entry.getKey());
+            writeValue(entry.getValue());
+        }
+    }
+
+    public void writeKeys(Collection<Object> keys) throws IOException {
+        out.writeInt(keys.size());
+        for (Object key : keys) {
+            writeValue(key);
+        }
+    }
+
+    /**
+     * @return the length of the record including the frame header
+     */
+    public int size() {
+        return buffer.size();
+    }
+
+    /**
+     * Fill in the frame header and write the record
+     * @param os the stream to write to
+     */
+    public void writeTo(OutputStream os) throws IOException {
+        byte[] buf = buffer.getBuffer();
+        int length = buffer.size() - LogFormat.HEADER_LENGTH;
+        crc.reset();
+        crc.update(buf, LogFormat.HEADER_LENGTH, length);
+        putInt(buf, 0, length);
+        putInt(buf, 4, (int) crc.getValue());
+        os.write(buf, 0, buffer.size());
+    }
+
+    protected static void putInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,54 @@
+package net.floodlightcontroller.storage.log;
+
+import java.nio.charset.Charset;
+
+/**
+ * The format of the log and snapshot files of {@link LogStorageSource}.
+ *
+ * Both are a sequence of records. Each record is framed by the length of
+ * its body and the CRC32 of the body, as ints, so that a record torn by a
+ * crash is detected. The body starts with the record type, followed by the
+ * name of the table and the fields of the type. A snapshot is the records
+ * that recreate the tables as they were when it was taken.
+ */
+public final class LogFormat {
+    public static final int HEADER_LENGTH = 8;
+
+    // Record types
+
+    /** A table was created: table */
+    public static final byte TABLE = 1;
+    /** The primary key of a table was set: table, column */
+    public static final byte PRIMARY_KEY = 2;
+    /** The index mode of a column was set: table, column, mode */
+    public static final byte INDEX = 3;
+    /** Rows were inserted or replaced: table, count, rows */
+    public static final byte PUT = 4;
+    /** Columns were set in rows: table, count, rows with their keys */
+    public static final byte MERGE = 5;
+    /** The same columns were set in rows: table, count, keys, columns */
+    public static final byte MERGE_KEYS = 6;
+    /** Rows were deleted: table, count, keys */
+    public static final byte DELETE = 7;
+
+    // Value types
+
+    public static final byte NULL = 0;
+    public static final byte STRING = 1;
+    public static final byte INTEGER = 2;
+    public static final byte LONG = 3;
+    public static final byte SHORT = 4;
+    public static final byte BYTE = 5;
+    public static final byte BOOLEAN = 6;
+    public static final byte FLOAT = 7;
+    public static final byte DOUBLE = 8;
+    public static final byte BYTES = 9;
+    public static final byte DATE = 10;
+    /** Any other serializable value, in Java serialization */
+    public static final byte SERIALIZED = 11;
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private LogFormat() {
+    }
+}
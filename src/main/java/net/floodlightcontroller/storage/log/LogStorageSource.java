@@ -0,0 +1,700 @@
+package net.floodlightcontroller.storage.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.annotations.LogMessageCategory;
+import net.floodlightcontroller.core.annotations.LogMessageDoc;
+import net.floodlightcontroller.core.annotations.LogMessageDocs;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.core.util.SingletonTask;
+import net.floodlightcontroller.storage.StorageException;
+import net.floodlightcontroller.storage.memory.MemoryStorageSource;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A storage source that keeps the tables in memory like
+ * {@link MemoryStorageSource} and makes them survive a restart by writing
+ * every change to an append-only log on the local disk.
+ *
+ * The log is a sequence of numbered segment files. When the current
+ * segment grows larger than the last snapshot, and at least the minimum
+ * compaction size, a new segment is started and the tables are written
+ * to a snapshot file numbered like the new segment, after which the
+ * older segments and snapshots are deleted. Each byte written to the log
+ * is therefore copied into a snapshot about twice at most. At startup
+ * the latest snapshot is read through a memory mapping and the segments
+ * written after it are replayed, so recovery takes time proportional to
+ * the size of the snapshot plus at most one segment.
+ *
+ * The log records the changes made to the tables rather than the calls
+ * made, and replaying a change that the snapshot already contains leaves
+ * the table unchanged, so the snapshot doesn't need to stop the writes.
+ */
+@LogMessageCategory("System Database")
+public class LogStorageSource extends MemoryStorageSource {
+    protected static Logger log =
+            LoggerFactory.getLogger(LogStorageSource.class);
+
+    protected static final String SEGMENT_PREFIX = "log-";
+    protected static final String SNAPSHOT_PREFIX = "snapshot-";
+    protected static final String FILE_SUFFIX = ".dat";
+    protected static final String TEMP_SUFFIX = ".tmp";
+
+    protected static final String DEFAULT_DIRECTORY = "floodlight-db";
+    protected static final long COMPACT_BYTES = 16 * 1024 * 1024;
+    /**
+     * The number of rows in each record of a snapshot
+     */
+    protected static final int SNAPSHOT_BATCH = 1024;
+
+    /**
+     * What the log knows about a table, to write into snapshots
+     */
+    protected static class TableInfo {
+        boolean created;
+        String primaryKeyName;
+        Map<String, ColumnIndexMode> indexModes =
+                new LinkedHashMap<String, ColumnIndexMode>();
+    }
+
+    protected IThreadPoolService threadPool;
+
+    protected File directory;
+    protected long compactBytes = COMPACT_BYTES;
+    protected boolean syncWrites = false;
+
+    protected Map<String, TableInfo> tableInfoMap =
+            new LinkedHashMap<String, TableInfo>();
+
+    /**
+     * Held while writing to the log or switching to a new segment
+     */
+    protected final Object logLock = new Object();
+    /**
+     * The current segment, or null while recovering
+     */
+    protected volatile LogWriter logWriter;
+    protected long segment;
+    protected long snapshotBytes;
+    protected boolean compactScheduled;
+
+    /**
+     * Held while compacting, so that one snapshot is written at a time
+     */
+    protected final Object compactLock = new Object();
+    protected SingletonTask compactTask;
+
+    protected long recoveryNanos;
+    protected int recoveredRecords;
+    protected int compactions;
+    protected long lastCompactNanos;
+
+    public LogStorageSource() {
+        super();
+    }
+
+    protected File getSegmentFile(long number) {
+        return new File(directory, SEGMENT_PREFIX + number + FILE_SUFFIX);
+    }
+
+    protected File getSnapshotFile(long number) {
+        return new File(directory, SNAPSHOT_PREFIX + number + FILE_SUFFIX);
+    }
+
+    /**
+     * Get the number of a log or snapshot file
+     * @return the number, or -1 if the file isn't one
+     */
+    protected static long getFileNumber(String name, String prefix) {
+        if (!name.startsWith(prefix) || !name.endsWith(FILE_SUFFIX))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(prefix.length(),
+                    name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    protected TableInfo getTableInfo(String tableName) {
+        TableInfo info = tableInfoMap.get(tableName);
+        if (info == null) {
+            info = new TableInfo();
+            tableInfoMap.put(tableName, info);
+        }
+        return info;
+    }
+
+    // Recovery
+
+    /**
+     * Load the tables from the latest snapshot and the log segments
+     * written after it, and start a new segment
+     */
+    @LogMessageDocs({
+        @LogMessageDoc(level="WARN",
+                message="Dropped the incomplete end of storage log {file}",
+                explanation="The controller stopped while writing to the " +
+                            "storage log; the last change it was writing " +
+                            "was lost"),
+        @LogMessageDoc(level="INFO",
+                message="Recovered {count} records from {directory} in {ms} ms",
+                explanation="The tables were loaded from the disk")
+    })
+    protected void recover() throws IOException {
+        long start = System.nanoTime();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+
+        long snapshot = -1;
+        TreeSet<Long> segments = new TreeSet<Long>();
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Could not list " + directory);
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // A snapshot that wasn't finished
+                file.delete();
+                continue;
+            }
+            long number = getFileNumber(name, SEGMENT_PREFIX);
+            if (number >= 0)
+                segments.add(number);
+            number = getFileNumber(name, SNAPSHOT_PREFIX);
+            if (number > snapshot)
+                snapshot = number;
+        }
+
+        int records = 0;
+        if (snapshot >= 0) {
+            File file = getSnapshotFile(snapshot);
+            LogDecoder decoder = new LogDecoder(file);
+            try {
+                replay(decoder);
+                if (decoder.isTruncated())
+                    throw new IOException("Snapshot " + file + " is corrupt");
+            } finally {
+                decoder.close();
+            }
+            records += decoder.getRecordCount();
+            snapshotBytes = file.length();
+        }
+        long last = -1;
+        for (long number : segments) {
+            File file = getSegmentFile(number);
+            if (number < snapshot) {
+                file.delete();
+                continue;
+            }
+            LogDecoder decoder = new LogDecoder(file);
+            try {
+                replay(decoder);
+            } finally {
+                decoder.close();
+            }
+            records += decoder.getRecordCount();
+            if (decoder.isTruncated()) {
+                log.warn("Dropped the incomplete end of storage log {}", file);
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(decoder.getValidLength());
+                } finally {
+                    raf.close();
+                }
+            }
+            last = number;
+        }
+        deleteOlderFiles(snapshot);
+
+        segment = Math.max(Math.max(snapshot, last + 1), 0);
+        logWriter = new LogWriter(getSegmentFile(segment));
+        recoveredRecords = records;
+        recoveryNanos = System.nanoTime() - start;
+        log.info("Recovered {} records from {} in {} ms",
+                 new Object[] { records, directory,
+                                recoveryNanos / 1000000 });
+    }
+
+    /**
+     * Apply the records read by a decoder to the tables
+     */
+    protected void replay(LogDecoder decoder) throws IOException {
+        int type;
+        while ((type = decoder.next()) >= 0) {
+            String tableName = decoder.readString();
+            switch (type) {
+                case LogFormat.TABLE:
+                    createTable(tableName, null);
+                    break;
+                case LogFormat.PRIMARY_KEY:
+                    setTablePrimaryKeyName(tableName, decoder.readString());
+                    break;
+                case LogFormat.INDEX: {
+                    String columnName = decoder.readString();
+                    setColumnIndexMode(tableName, columnName,
+                            ColumnIndexMode.valueOf(decoder.readString()));
+                    break;
+                }
+                case LogFormat.PUT:
+                    insertRows(tableName, readRows(decoder));
+                    break;
+                case LogFormat.MERGE:
+                    updateRowsImpl(tableName, readRows(decoder));
+                    break;
+                case LogFormat.MERGE_KEYS: {
+                    Set<Object> rowKeys = decoder.readKeys();
+                    updateRows(tableName, rowKeys, decoder.readRow());
+                    break;
+                }
+                case LogFormat.DELETE:
+                    deleteRowsImpl(tableName, decoder.readKeys());
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type);
+            }
+        }
+    }
+
+    protected List<Map<String,Object>> readRows(LogDecoder decoder)
+            throws IOException {
+        int count = decoder.readInt();
+        List<Map<String,Object>> rows =
+                new ArrayList<Map<String,Object>>(count);
+        for (int i = 0; i < count; i++) {
+            rows.add(decoder.readRow());
+        }
+        return rows;
+    }
+
+    /**
+     * Delete the segments and snapshots that a snapshot replaces
+     */
+    protected void deleteOlderFiles(long snapshot) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            long number = getFileNumber(name, SEGMENT_PREFIX);
+            if (number < 0)
+                number = getFileNumber(name, SNAPSHOT_PREFIX);
+            if ((number >= 0) && (number < snapshot))
+                file.delete();
+        }
+    }
+
+    // Logging
+
+    /**
+     * Write a record to the current segment, and schedule a compaction if
+     * the segment grew large enough
+     */
+    protected void append(LogEncoder record) {
+        boolean compact = false;
+        synchronized (logLock) {
+            LogWriter writer = logWriter;
+            try {
+                writer.write(record);
+                if (syncWrites)
+                    writer.sync();
+                else
+                    writer.flush();
+            } catch (IOException e) {
+                throw new StorageException("Failed to write to " +
+                                           writer.getFile(), e);
+            }
+            if (!compactScheduled && (compactTask != null) &&
+                (writer.getSize() >= Math.max(compactBytes, snapshotBytes))) {
+                compactScheduled = true;
+                compact = true;
+            }
+        }
+        if (compact)
+            compactTask.reschedule(0, TimeUnit.MILLISECONDS);
+    }
+
+    protected LogEncoder newRecord(byte type, String tableName) {
+        LogEncoder record = new LogEncoder();
+        try {
+            record.begin(type, tableName);
+        } catch (IOException e) {
+            throw new StorageException("Failed to encode log record", e);
+        }
+        return record;
+    }
+
+    protected void appendRows(byte type, String tableName,
+                              List<Map<String,Object>> rows) {
+        if ((logWriter == null) || rows.isEmpty()) return;
+        LogEncoder record = newRecord(type, tableName);
+        try {
+            record.writeInt(rows.size());
+            for (Map<String,Object> row : rows) {
+                record.writeRow(row);
+            }
+        } catch (IOException e) {
+            throw new StorageException("Failed to encode log record", e);
+        }
+        append(record);
+    }
+
+    @Override
+    protected void rowsInserted(String tableName,
+                                List<Map<String,Object>> insertedRows) {
+        appendRows(LogFormat.PUT, tableName, insertedRows);
+    }
+
+    @Override
+    protected void rowsUpdated(String tableName,
+                               List<Map<String,Object>> updateRowList) {
+        appendRows(LogFormat.MERGE, tableName, updateRowList);
+    }
+
+    @Override
+    protected void rowsUpdated(String tableName, Set<Object> rowKeys,
+                               Map<String,Object> updateColumnMap) {
+        if ((logWriter == null) || rowKeys.isEmpty()) return;
+        LogEncoder record = newRecord(LogFormat.MERGE_KEYS, tableName);
+        try {
+            record.writeKeys(rowKeys);
+            record.writeRow(updateColumnMap);
+        } catch (IOException e) {
+            throw new StorageException("Failed to encode log record", e);
+        }
+        append(record);
+    }
+
+    @Override
+    protected void rowsDeleted(String tableName, Set<Object> rowKeys) {
+        if ((logWriter == null) || rowKeys.isEmpty()) return;
+        LogEncoder record = newRecord(LogFormat.DELETE, tableName);
+        try {
+            record.writeKeys(rowKeys);
+        } catch (IOException e) {
+            throw new StorageException("Failed to encode log record", e);
+        }
+        append(record);
+    }
+
+    @Override
+    public void createTable(String tableName, Set<String> indexedColumnNames) {
+        boolean created;
+        synchronized (tableInfoMap) {
+            TableInfo info = getTableInfo(tableName);
+            created = info.created;
+            info.created = true;
+        }
+        // Log the table before the index modes set while creating it
+        if (!created && (logWriter != null))
+            append(newRecord(LogFormat.TABLE, tableName));
+        super.createTable(tableName, indexedColumnNames);
+    }
+
+    @Override
+    public void setTablePrimaryKeyName(String tableName,
+                                       String primaryKeyName) {
+        super.setTablePrimaryKeyName(tableName, primaryKeyName);
+        synchronized (tableInfoMap) {
+            TableInfo info = getTableInfo(tableName);
+            if (primaryKeyName.equals(info.primaryKeyName)) return;
+            info.primaryKeyName = primaryKeyName;
+        }
+        if (logWriter == null) return;
+        LogEncoder record = newRecord(LogFormat.PRIMARY_KEY, tableName);
+        try {
+            record.writeString(primaryKeyName);
+        } catch (IOException e) {
+            throw new StorageException("Failed to encode log record", e);
+        }
+        append(record);
+    }
+
+    @Override
+    public void setColumnIndexMode(String tableName, String columnName,
+                                   ColumnIndexMode indexMode) {
+        super.setColumnIndexMode(tableName, columnName, indexMode);
+        synchronized (tableInfoMap) {
+            TableInfo info = getTableInfo(tableName);
+            if (info.indexModes.get(columnName) == indexMode) return;
+            info.indexModes.put(columnName, indexMode);
+        }
+        if (logWriter == null) return;
+        append(newIndexRecord(tableName, columnName, indexMode));
+    }
+
+    protected LogEncoder newIndexRecord(String tableName, String columnName,
+                                        ColumnIndexMode indexMode) {
+        LogEncoder record = newRecord(LogFormat.INDEX, tableName);
+        try {
+            record.writeString(columnName);
+            record.writeString(indexMode.name());
+        } catch (IOException e) {
+            throw new StorageException("Failed to encode log record", e);
+        }
+        return record;
+    }
+
+    // Compaction
+
+    /**
+     * Start a new segment and write a snapshot of the tables, then delete
+     * the segments and snapshots it replaces
+     */
+    @LogMessageDoc(level="ERROR",
+            message="Failed to compact storage log in {directory}",
+            explanation="The tables could not be written to a snapshot; " +
+                        "the log keeps growing until a snapshot succeeds",
+            recommendation=LogMessageDoc.CHECK_CONTROLLER)
+    public void compact() {
+        synchronized (compactLock) {
+            long start = System.nanoTime();
+            long snapshot;
+            try {
+                synchronized (logLock) {
+                    compactScheduled = false;
+                    LogWriter oldWriter = logWriter;
+                    if (oldWriter == null) return;
+                    logWriter = new LogWriter(getSegmentFile(segment + 1));
+                    segment += 1;
+                    snapshot = segment;
+                    oldWriter.close();
+                }
+                snapshotBytes = writeSnapshot(snapshot);
+            } catch (IOException e) {
+                log.error("Failed to compact storage log in {}",
+                          new Object[] { directory, e });
+                return;
+            } catch (StorageException e) {
+                log.error("Failed to compact storage log in {}",
+                          new Object[] { directory, e });
+                return;
+            }
+            deleteOlderFiles(snapshot);
+            compactions += 1;
+            lastCompactNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Write the tables to a snapshot file
+     * @return the size of the snapshot
+     */
+    protected long writeSnapshot(long snapshot) throws IOException {
+        File temp = new File(directory,
+                             SNAPSHOT_PREFIX + snapshot + TEMP_SUFFIX);
+        temp.delete();
+        Map<String, TableInfo> tables = new LinkedHashMap<String, TableInfo>();
+        synchronized (tableInfoMap) {
+            for (Map.Entry<String, TableInfo> e : tableInfoMap.entrySet()) {
+                TableInfo info = new TableInfo();
+                info.created = e.getValue().created;
+                info.primaryKeyName = e.getValue().primaryKeyName;
+                info.indexModes.putAll(e.getValue().indexModes);
+                tables.put(e.getKey(), info);
+            }
+        }
+
+        final LogWriter writer = new LogWriter(temp);
+        try {
+            for (Map.Entry<String, TableInfo> e : tables.entrySet()) {
+                final String tableName = e.getKey();
+                TableInfo info = e.getValue();
+                if (info.created)
+                    writer.write(newRecord(LogFormat.TABLE, tableName));
+                if (info.primaryKeyName != null) {
+                    LogEncoder record =
+                            newRecord(LogFormat.PRIMARY_KEY, tableName);
+                    record.writeString(info.primaryKeyName);
+                    writer.write(record);
+                }
+                for (Map.Entry<String, ColumnIndexMode> index :
+                        info.indexModes.entrySet()) {
+                    writer.write(newIndexRecord(tableName, index.getKey(),
+                                                index.getValue()));
+                }
+                if (info.created)
+                    writeSnapshotRows(writer, tableName);
+            }
+            writer.sync();
+        } finally {
+            writer.close();
+        }
+        File file = getSnapshotFile(snapshot);
+        if (!temp.renameTo(file))
+            throw new IOException("Could not rename " + temp + " to " + file);
+        return file.length();
+    }
+
+    /**
+     * Write the rows of a table to a snapshot in batches
+     */
+    protected void writeSnapshotRows(final LogWriter writer,
+                                     final String tableName)
+            throws IOException {
+        final LogEncoder record = new LogEncoder();
+        final List<Map<String,Object>> batch =
+                new ArrayList<Map<String,Object>>(SNAPSHOT_BATCH);
+        try {
+            visitRows(tableName, new IRowVisitor() {
+                @Override
+                public void visitRow(Map<String,Object> row) {
+                    batch.add(row);
+                    if (batch.size() == SNAPSHOT_BATCH)
+                        writeSnapshotBatch(writer, record, tableName, batch);
+                }
+            });
+            writeSnapshotBatch(writer, record, tableName, batch);
+        } catch (StorageException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Write a batch of rows as one record and clear the batch. Called with
+     * the table locked, since the rows are the live rows of the table.
+     */
+    protected void writeSnapshotBatch(LogWriter writer, LogEncoder record,
+                                      String tableName,
+                                      List<Map<String,Object>> batch) {
+        if (batch.isEmpty()) return;
+        try {
+            record.begin(LogFormat.PUT, tableName);
+            record.writeInt(batch.size());
+            for (Map<String,Object> row : batch) {
+                record.writeRow(row);
+            }
+            writer.write(record);
+        } catch (IOException e) {
+            throw new StorageException("Failed to write snapshot", e);
+        }
+        batch.clear();
+    }
+
+    /**
+     * @return the time the last recovery took in nanoseconds
+     */
+    public long getRecoveryNanos() {
+        return recoveryNanos;
+    }
+
+    /**
+     * @return the number of records read by the last recovery
+     */
+    public int getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    /**
+     * @return the number of compactions since startup
+     */
+    public int getCompactionCount() {
+        synchronized (compactLock) {
+            return compactions;
+        }
+    }
+
+    /**
+     * @return the size of the current log segment
+     */
+    public long getLogBytes() {
+        synchronized (logLock) {
+            return (logWriter == null) ? 0 : logWriter.getSize();
+        }
+    }
+
+    /**
+     * @return the size of the latest snapshot
+     */
+    public long getSnapshotBytes() {
+        return snapshotBytes;
+    }
+
+    /**
+     * Stop writing to the log. The tables stay readable, but changes
+     * made afterwards aren't persisted.
+     */
+    public void close() throws IOException {
+        synchronized (compactLock) {
+            synchronized (logLock) {
+                if (logWriter == null) return;
+                logWriter.sync();
+                logWriter.close();
+                logWriter = null;
+            }
+        }
+    }
+
+    // IFloodlightModule methods
+
+    @Override
+    public Collection<Class<? extends IFloodlightService>> getModuleDependencies() {
+        Collection<Class<? extends IFloodlightService>> l =
+                super.getModuleDependencies();
+        l.add(IThreadPoolService.class);
+        return l;
+    }
+
+    @Override
+    public void init(FloodlightModuleContext context)
+            throws FloodlightModuleException {
+        super.init(context);
+        threadPool = context.getServiceImpl(IThreadPoolService.class);
+
+        Map<String, String> configOptions = context.getConfigParams(this);
+        String dir = configOptions.get("dir");
+        directory = new File((dir != null) ? dir : DEFAULT_DIRECTORY);
+        try {
+            String bytes = configOptions.get("compactbytes");
+            if (bytes != null) {
+                compactBytes = Long.parseLong(bytes);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing compaction size, using default of {}",
+                     compactBytes);
+        }
+        String sync = configOptions.get("syncwrites");
+        if (sync != null) {
+            syncWrites = Boolean.parseBoolean(sync);
+        }
+
+        // Load the tables now, so that they're there when the other
+        // modules start
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new FloodlightModuleException("Failed to recover storage " +
+                    "from " + directory + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void startUp(FloodlightModuleContext context) {
+        super.startUp(context);
+        if (threadPool != null) {
+            compactTask = new SingletonTask(threadPool.getScheduledExecutor(),
+                                            new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package net.floodlightcontroller.storage.log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Appends records to a log or snapshot file
+ */
+public class LogWriter {
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected File file;
+    protected FileOutputStream fos;
+    protected OutputStream out;
+    protected long size;
+
+    /**
+     * Open a file for appending, creating it if it doesn't exist
+     */
+    public LogWriter(File file) throws IOException {
+        this.file = file;
+        fos = new FileOutputStream(file, true);
+        out = new BufferedOutputStream(fos, BUFFER_SIZE);
+        size = file.length();
+    }
+
+    /**
+     * Write a record into the buffer
+     */
+    public void write(LogEncoder record) throws IOException {
+        record.writeTo(out);
+        size += record.size();
+    }
+
+    /**
+     * Write the buffered records to the file
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Write the buffered records to the file and wait until they are on
+     * the disk
+     */
+    public void sync() throws IOException {
+        out.flush();
+        fos.getChannel().force(false);
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the file including the buffered records
+     */
+    public long getSize() {
+        return size;
+    }
+}
@@ -65,8 +65,12 @@ public class MemoryStorageSource extends NoSqlStorageSource {
     protected List<Map<String,Object>> executeEqualityQuery(String tableName,
             String[] columnNameList, String predicateColumnName, Comparable<?> value) {
         MemoryTable table = getTable(tableName, false);
-        List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+        List<Map<String,Object>> result;
         synchronized (table) {
+            result = table.getIndexedRows(predicateColumnName, value);
+            if (result != null)
+                return result;
+            result = new ArrayList<Map<String,Object>>();
             Collection<Map<String,Object>> allRows = table.getAllRows();
             for (Map<String,Object> row : allRows) {
                 Object v = row.get(predicateColumnName);
@@ -84,19 +88,28 @@ public class MemoryStorageSource extends NoSqlStorageSource {
             String[] columnNameList, String predicateColumnName,
             Comparable<?> startValue, boolean startInclusive, Comparable<?> endValue, boolean endInclusive) {
         MemoryTable table = getTable(tableName, false);
-        List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+        List<Map<String,Object>> result;
         synchronized (table) {
+            result = table.getIndexedRows(predicateColumnName,
+                    startValue, startInclusive, endValue, endInclusive);
+            if (result != null)
+                return result;
+            result = new ArrayList<Map<String,Object>>();
             Collection<Map<String,Object>> allRows = table.getAllRows();
             for (Map<String,Object> row : allRows) {
                 Comparable value = (Comparable) row.get(predicateColumnName);
                 if (value != null) {
-                    int compareResult = value.compareTo(startValue);
-                    if ((compareResult > 0) || (startInclusive && (compareResult >= 0))) {
-                        compareResult = value.compareTo(endValue);
-                        if ((compareResult < 0) || (startInclusive && (compareResult <= 0))) {
-                            result.add(row);
-                        }
+                    if (startValue != null) {
+                        int compareResult = value.compareTo(startValue);
+                        if ((compareResult < 0) || (!startInclusive && (compareResult == 0)))
+                            continue;
                     }
+                    if (endValue != null) {
+                        int compareResult = value.compareTo(endValue);
+                        if ((compareResult > 0) || (!endInclusive && (compareResult == 0)))
+                            continue;
+                    }
+                    result.add(row);
                 }
             }
         }
@@ -108,6 +121,8 @@ public class MemoryStorageSource extends NoSqlStorageSource {
         MemoryTable table = getTable(tableName, false);
         String primaryKeyName = getTablePrimaryKeyName(tableName);
         synchronized (table) {
+            List<Map<String,Object>> insertedRows =
+                    new ArrayList<Map<String,Object>>(insertRowList.size());
             for (Map<String,Object> row : insertRowList) {
                 Object primaryKey = row.get(primaryKeyName);
                 if (primaryKey == null) {
@@ -118,7 +133,9 @@ public class MemoryStorageSource extends NoSqlStorageSource {
                     }
                 }
                 table.insertRow(primaryKey, row);
+                insertedRows.add(row);
             }
+            rowsInserted(tableName, insertedRows);
         }
     }
     
@@ -127,13 +144,9 @@ public class MemoryStorageSource extends NoSqlStorageSource {
         MemoryTable table = getTable(tableName, false);
         synchronized (table) {
             for (Object rowKey : rowKeys) {
-                Map<String,Object> row = table.getRow(rowKey);
-                if (row == null)
-                    row = table.newRow(rowKey);
-                for (Map.Entry<String,Object> entry: updateRowList.entrySet()) {
-                    row.put(entry.getKey(), entry.getValue());
-                }
+                table.updateRow(rowKey, updateRowList);
             }
+            rowsUpdated(tableName, rowKeys, updateRowList);
         }
     }
     
@@ -146,13 +159,9 @@ public class MemoryStorageSource extends NoSqlStorageSource {
                 Object rowKey = updateRow.get(primaryKeyName);
                 if (rowKey == null)
                     throw new StorageException("Primary key not found.");
-                Map<String,Object> row = table.getRow(rowKey);
-                if (row == null)
-                    row = table.newRow(rowKey);
-                for (Map.Entry<String,Object> entry: updateRow.entrySet()) {
-                    row.put(entry.getKey(), entry.getValue());
-                }
+                table.updateRow(rowKey, updateRow);
             }
+            rowsUpdated(tableName, updateRowList);
         }
     }
     
@@ -163,13 +172,93 @@ public class MemoryStorageSource extends NoSqlStorageSource {
             for (Object rowKey : rowKeys) {
                 table.deleteRow(rowKey);
             }
+            rowsDeleted(tableName, rowKeys);
+        }
+    }
+    
+    // Hooks for subclasses that persist the tables. They're called with
+    // the table locked, so they see the writes to a table in the order
+    // they were applied.
+    
+    /**
+     * Called after rows were inserted or replaced
+     * @param insertedRows the rows as stored, including generated keys
+     */
+    protected void rowsInserted(String tableName,
+                                List<Map<String,Object>> insertedRows) {
+    }
+    
+    /**
+     * Called after the same column values were set in a set of rows
+     */
+    protected void rowsUpdated(String tableName, Set<Object> rowKeys,
+                               Map<String,Object> updateColumnMap) {
+    }
+    
+    /**
+     * Called after column values were set in rows
+     * @param updateRowList the updates, each including the primary key
+     */
+    protected void rowsUpdated(String tableName,
+                               List<Map<String,Object>> updateRowList) {
+    }
+    
+    /**
+     * Called after rows were deleted
+     */
+    protected void rowsDeleted(String tableName, Set<Object> rowKeys) {
+    }
+    
+    /**
+     * Visits the rows of a table
+     */
+    protected interface IRowVisitor {
+        /**
+         * Called for each row of the table, in primary key order
+         * @param row the row, which must not be modified or kept
+         */
+        public void visitRow(Map<String,Object> row);
+    }
+    
+    /**
+     * Pass each row of a table to a visitor, with the table locked so that
+     * the rows don't change while they are visited
+     */
+    protected void visitRows(String tableName, IRowVisitor visitor) {
+        MemoryTable table = getTable(tableName, false);
+        synchronized (table) {
+            for (Map<String,Object> row : table.getAllRows()) {
+                visitor.visitRow(row);
+            }
         }
     }
     
     @Override
     public void createTable(String tableName, Set<String> indexedColumnNames) {
         super.createTable(tableName, indexedColumnNames);
-        getTable(tableName, true);
+        MemoryTable table = getTable(tableName, true);
+        if (indexedColumnNames == null) return;
+        synchronized (table) {
+            for (String columnName : indexedColumnNames) {
+                table.setColumnIndexMode(columnName,
+                                         getColumnIndexMode(tableName, columnName));
+            }
+        }
+    }
+    
+    @Override
+    public void setColumnIndexMode(String tableName, String columnName,
+                                   ColumnIndexMode indexMode) {
+        super.setColumnIndexMode(tableName, columnName, indexMode);
+        MemoryTable table;
+        synchronized (this) {
+            table = tableMap.get(tableName);
+        }
+        // Tables created later pick up the mode in createTable
+        if (table == null) return;
+        synchronized (table) {
+            table.setColumnIndexMode(columnName, indexMode);
+        }
     }
     
     public void setPktinProcessingTime(
@@ -17,20 +17,71 @@
 
 package net.floodlightcontroller.storage.memory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
 
+import net.floodlightcontroller.storage.nosql.NoSqlStorageSource.ColumnIndexMode;
+
 public class MemoryTable {
 
+    /**
+     * An index of the rows of the table by the value of one column. Rows
+     * with no value in the column aren't indexed. The rows with the same
+     * value are kept in primary key order, like the rows of the table.
+     */
+    static class ColumnIndex {
+        String columnName;
+        ColumnIndexMode indexMode;
+        Map<Object,Map<Object,Map<String,Object>>> entries;
+
+        ColumnIndex(String columnName, ColumnIndexMode indexMode) {
+            this.columnName = columnName;
+            this.indexMode = indexMode;
+            if (indexMode == ColumnIndexMode.RANGE_INDEXED)
+                entries = new TreeMap<Object,Map<Object,Map<String,Object>>>();
+            else
+                entries = new HashMap<Object,Map<Object,Map<String,Object>>>();
+        }
+
+        void add(Object key, Map<String,Object> row) {
+            Object value = row.get(columnName);
+            if (value == null)
+                return;
+            Map<Object,Map<String,Object>> rows = entries.get(value);
+            if (rows == null) {
+                rows = new TreeMap<Object,Map<String,Object>>();
+                entries.put(value, rows);
+            }
+            rows.put(key, row);
+        }
+
+        void remove(Object key, Map<String,Object> row) {
+            Object value = row.get(columnName);
+            if (value == null)
+                return;
+            Map<Object,Map<String,Object>> rows = entries.get(value);
+            if (rows == null)
+                return;
+            rows.remove(key);
+            if (rows.isEmpty())
+                entries.remove(value);
+        }
+    }
+
     private String tableName;
     private Map<Object,Map<String,Object>> rowMap;
+    private Map<String,ColumnIndex> indexMap;
     private int nextId;
     
     MemoryTable(String tableName) {
         this.tableName = tableName;
         rowMap = new TreeMap<Object,Map<String,Object>>();
+        indexMap = new HashMap<String,ColumnIndex>();
         nextId = 0;
     }
     
@@ -54,19 +105,145 @@ public class MemoryTable {
         Map<String,Object> row = new HashMap<String, Object>();
         row.put("id", key);
         rowMap.put(key, row);
+        indexRow(key, row);
         return row;
     }
     
     void insertRow(Object key, Map<String,Object> rowValues) {
         assert(key != null);
-        rowMap.put(key, rowValues);
+        // Keep generated keys clear of keys inserted explicitly, such as
+        // rows restored from disk
+        if ((key instanceof Integer) && ((Integer) key > nextId))
+            nextId = (Integer) key;
+        Map<String,Object> oldRow = rowMap.put(key, rowValues);
+        if (oldRow != null)
+            unindexRow(key, oldRow);
+        indexRow(key, rowValues);
+    }
+    
+    /**
+     * Set the columns of a row, creating the row if it doesn't exist
+     * @param key the primary key of the row
+     * @param rowValues the column values to set
+     */
+    void updateRow(Object key, Map<String,Object> rowValues) {
+        Map<String,Object> row = getRow(key);
+        if (row == null)
+            row = newRow(key);
+        unindexRow(key, row);
+        row.putAll(rowValues);
+        indexRow(key, row);
     }
     
     void deleteRow(Object rowKey) {
-        rowMap.remove(rowKey);
+        Map<String,Object> row = rowMap.remove(rowKey);
+        if (row != null)
+            unindexRow(rowKey, row);
     }
     
     Integer getNextId() {
         return new Integer(++nextId);
     }
+    
+    /**
+     * Index the rows by the values of a column, or stop indexing them
+     * @param columnName the column
+     * @param indexMode the kind of index to keep
+     */
+    void setColumnIndexMode(String columnName, ColumnIndexMode indexMode) {
+        if ((indexMode == null) || (indexMode == ColumnIndexMode.NOT_INDEXED)) {
+            indexMap.remove(columnName);
+            return;
+        }
+        ColumnIndex index = indexMap.get(columnName);
+        if ((index != null) && (index.indexMode == indexMode))
+            return;
+        index = new ColumnIndex(columnName, indexMode);
+        try {
+            for (Map.Entry<Object,Map<String,Object>> entry: rowMap.entrySet()) {
+                index.add(entry.getKey(), entry.getValue());
+            }
+        } catch (ClassCastException e) {
+            // The values aren't comparable to each other; queries on the
+            // column scan the table instead
+            indexMap.remove(columnName);
+            return;
+        }
+        indexMap.put(columnName, index);
+    }
+    
+    private void indexRow(Object key, Map<String,Object> row) {
+        if (indexMap.isEmpty())
+            return;
+        for (ColumnIndex index: new ArrayList<ColumnIndex>(indexMap.values())) {
+            try {
+                index.add(key, row);
+            } catch (ClassCastException e) {
+                // A value that can't be ordered against the others; drop
+                // the range index rather than fail the write
+                indexMap.remove(index.columnName);
+            }
+        }
+    }
+    
+    private void unindexRow(Object key, Map<String,Object> row) {
+        for (ColumnIndex index: indexMap.values()) {
+            index.remove(key, row);
+        }
+    }
+    
+    /**
+     * Get the rows with a value in a column from the index of the column
+     * @return the rows in primary key order, or null if the column isn't
+     * indexed
+     */
+    List<Map<String,Object>> getIndexedRows(String columnName, Object value) {
+        ColumnIndex index = indexMap.get(columnName);
+        if (index == null)
+            return null;
+        Map<Object,Map<String,Object>> rows;
+        try {
+            rows = index.entries.get(value);
+        } catch (ClassCastException e) {
+            // Not comparable to the indexed values, so it matches none
+            rows = null;
+        }
+        if (rows == null)
+            return new ArrayList<Map<String,Object>>();
+        return new ArrayList<Map<String,Object>>(rows.values());
+    }
+    
+    /**
+     * Get the rows with a value in a column within a range from the range
+     * index of the column
+     * @param startValue the lower bound, or null for no lower bound
+     * @param endValue the upper bound, or null for no upper bound
+     * @return the rows in order of the column value, or null if the column
+     * doesn't have a range index
+     */
+    List<Map<String,Object>> getIndexedRows(String columnName,
+            Object startValue, boolean startInclusive,
+            Object endValue, boolean endInclusive) {
+        ColumnIndex index = indexMap.get(columnName);
+        if ((index == null) || (index.indexMode != ColumnIndexMode.RANGE_INDEXED))
+            return null;
+        NavigableMap<Object,Map<Object,Map<String,Object>>> range =
+                (NavigableMap<Object,Map<Object,Map<String,Object>>>) index.entries;
+        List<Map<String,Object>> result = new ArrayList<Map<String,Object>>();
+        try {
+            if (startValue != null)
+                range = range.tailMap(startValue, startInclusive);
+            if (endValue != null)
+                range = range.headMap(endValue, endInclusive);
+        } catch (ClassCastException e) {
+            return result;
+        } catch (IllegalArgumentException e) {
+            // The start of the range is after the end
+            return result;
+        }
+        for (Map<Object,Map<String,Object>> rows: range.values()) {
+            result.addAll(rows.values());
+        }
+        return result;
+    }
 }
@@ -39,6 +39,7 @@ public class StorageWebRoutable implements RestletRoutable {
     public Restlet getRestlet(Context context) {
         Router router = new Router(context);
         router.attach("/notify/json", StorageNotifyResource.class);
+        router.attach("/writes/json", StorageWritesResource.class);
         return router;
     }
 
@@ -0,0 +1,23 @@
+package net.floodlightcontroller.storage.web;
+
+import java.util.Map;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Get the number of buffered storage writes and of the batches they were
+ * written in, by table
+ */
+public class StorageWritesResource extends ServerResource {
+    @Get("json")
+    public Map<String, Object> retrieve() {
+        IFloodlightProviderService floodlightProvider = 
+                (IFloodlightProviderService)getContext().getAttributes().
+                    get(IFloodlightProviderService.class.getCanonicalName());
+
+        return floodlightProvider.getControllerInfo("storagewrites");
+    }
+}
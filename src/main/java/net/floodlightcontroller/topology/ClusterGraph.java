@@ -0,0 +1,291 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.BroadcastTree;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Compact, immutable graph of the links within a cluster.
+ *
+ * The switches of the cluster are numbered 0..n-1 in the order of their
+ * IDs, and the links 0..m-1. The links into each switch are stored in
+ * compressed sparse row form: the links into switch i are
+ * inLinks[inOffsets[i]] .. inLinks[inOffsets[i+1]-1]. Shortest path trees
+ * over the graph are plain int arrays, so computing and walking them
+ * doesn't box or hash anything.
+ */
+public class ClusterGraph {
+    protected final long[] nodes;
+    protected final Link[] links;
+    protected final int[] linkSrc;
+    protected final int[] linkDst;
+    protected final int[] linkCost;
+    protected final int[] inOffsets;
+    protected final int[] inLinks;
+    protected Map<Link, Integer> linkIndex;
+
+    /**
+     * Build the graph of a cluster
+     * @param c the cluster
+     * @param linkCost link costs, links not in the map have a cost of 1
+     */
+    public ClusterGraph(Cluster c, Map<Link, Integer> linkCost) {
+        Set<Long> nodeSet = c.getNodes();
+        nodes = new long[nodeSet.size()];
+        int n = 0;
+        int m = 0;
+        for (Map.Entry<Long, Set<Link>> e : c.getLinks().entrySet()) {
+            nodes[n++] = e.getKey();
+            for (Link link : e.getValue()) {
+                // Every link is in the set of both its ends
+                if (link.getSrc() == e.getKey()) m++;
+            }
+        }
+        Arrays.sort(nodes);
+
+        links = new Link[m];
+        linkSrc = new int[m];
+        linkDst = new int[m];
+        this.linkCost = new int[m];
+        inOffsets = new int[n + 1];
+        inLinks = new int[m];
+        linkIndex = new HashMap<Link, Integer>(m * 2);
+
+        int l = 0;
+        for (Map.Entry<Long, Set<Link>> e : c.getLinks().entrySet()) {
+            for (Link link : e.getValue()) {
+                if (link.getSrc() != e.getKey()) continue;
+                links[l] = link;
+                linkSrc[l] = getIndex(link.getSrc());
+                linkDst[l] = getIndex(link.getDst());
+                Integer w = (linkCost == null) ? null : linkCost.get(link);
+                this.linkCost[l] = (w == null) ? 1 : w;
+                linkIndex.put(link, l);
+                inOffsets[linkDst[l] + 1]++;
+                l++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            inOffsets[i + 1] += inOffsets[i];
+        }
+        int[] fill = Arrays.copyOf(inOffsets, n);
+        for (l = 0; l < m; l++) {
+            inLinks[fill[linkDst[l]]++] = l;
+        }
+    }
+
+    /**
+     * Get the index of a switch
+     * @param sw the switch ID
+     * @return the index, or a negative number if the switch is not in
+     * the cluster
+     */
+    public int getIndex(long sw) {
+        return Arrays.binarySearch(nodes, sw);
+    }
+
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    public long getNode(int index) {
+        return nodes[index];
+    }
+
+    public int getLinkCount() {
+        return links.length;
+    }
+
+    public Link getLink(int index) {
+        return links[index];
+    }
+
+    public int getLinkSrc(int index) {
+        return linkSrc[index];
+    }
+
+    public int getLinkDst(int index) {
+        return linkDst[index];
+    }
+
+    public int getLinkCost(int index) {
+        return linkCost[index];
+    }
+
+    /**
+     * Get the index of a link with the same cost in this graph
+     * @param other another graph
+     * @param index a link index in the other graph
+     * @return the index in this graph, or -1 if this graph doesn't have
+     * the link or it has a different cost
+     */
+    public int translateLink(ClusterGraph other, int index) {
+        Integer l = linkIndex.get(other.links[index]);
+        if (l == null || linkCost[l] != other.linkCost[index])
+            return -1;
+        return l;
+    }
+
+    /**
+     * Compute the shortest path tree rooted at a switch, with the links
+     * pointing towards it
+     * @param root index of the root switch
+     * @return
+     */
+    public BroadcastTree dijkstra(int root) {
+        int n = nodes.length;
+        int[] nexthop = new int[n];
+        int[] cost = new int[n];
+        Arrays.fill(nexthop, -1);
+        Arrays.fill(cost, TopologyInstance.MAX_PATH_WEIGHT);
+        cost[root] = 0;
+
+        NodeQueue queue = new NodeQueue(n);
+        queue.add(0, root);
+        propagate(queue, nexthop, cost);
+        return new BroadcastTree(this, root, nexthop, cost);
+    }
+
+    /**
+     * Relax the links into the switches in the queue until all shortest
+     * distances are final
+     */
+    protected void propagate(NodeQueue queue, int[] nexthop, int[] cost) {
+        boolean[] seen = new boolean[nodes.length];
+        while (!queue.isEmpty()) {
+            long head = queue.poll();
+            int cnode = NodeQueue.node(head);
+            int cdist = NodeQueue.dist(head);
+            if (cdist >= TopologyInstance.MAX_PATH_WEIGHT) break;
+            if (seen[cnode] || cdist > cost[cnode]) continue;
+            seen[cnode] = true;
+
+            for (int i = inOffsets[cnode]; i < inOffsets[cnode + 1]; i++) {
+                int link = inLinks[i];
+                int neighbor = linkSrc[link];
+                int ndist = cdist + linkCost[link];
+                if (ndist < cost[neighbor]) {
+                    cost[neighbor] = ndist;
+                    nexthop[neighbor] = link;
+                    queue.add(ndist, neighbor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring the tree of a previous graph of the same switches up to date
+     * with the links of this graph.
+     *
+     * A tree that doesn't use any link missing from this graph is still a
+     * valid tree, and its costs only change if a new link gives a shorter
+     * path to the root. Such decreases are propagated from the sources of
+     * the new links.
+     * @param prevTree tree over a graph with the same switches
+     * @param added indexes of the links not in the previous graph
+     * @return the tree, or null if it uses a removed link and has to be
+     * computed again
+     */
+    public BroadcastTree repair(BroadcastTree prevTree, int[] added) {
+        ClusterGraph prev = prevTree.getGraph();
+        int n = nodes.length;
+        int[] prevNexthop = prevTree.getNexthops();
+        int[] prevCost = prevTree.getCostArray();
+        int[] nexthop = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (prevNexthop[i] < 0) {
+                nexthop[i] = -1;
+                continue;
+            }
+            nexthop[i] = translateLink(prev, prevNexthop[i]);
+            if (nexthop[i] < 0) return null;
+        }
+
+        int[] cost = null;
+        NodeQueue queue = null;
+        for (int link : added) {
+            int dstCost = (cost == null) ? prevCost[linkDst[link]]
+                                         : cost[linkDst[link]];
+            if (dstCost >= TopologyInstance.MAX_PATH_WEIGHT) continue;
+            int ndist = dstCost + linkCost[link];
+            int src = linkSrc[link];
+            if (ndist >= ((cost == null) ? prevCost[src] : cost[src]))
+                continue;
+            if (cost == null) {
+                cost = Arrays.copyOf(prevCost, n);
+                queue = new NodeQueue(n);
+            }
+            cost[src] = ndist;
+            nexthop[src] = link;
+            queue.add(ndist, src);
+        }
+        if (cost == null) {
+            if (prev == this)
+                return prevTree;
+            // Same tree, but over this graph so the previous graph can go
+            return new BroadcastTree(this, prevTree.getRoot(), nexthop,
+                                     prevCost);
+        }
+        propagate(queue, nexthop, cost);
+        return new BroadcastTree(this, prevTree.getRoot(), nexthop, cost);
+    }
+
+    /**
+     * Binary min-heap of (distance, switch index) pairs packed into longs
+     */
+    protected static class NodeQueue {
+        protected long[] heap;
+        protected int size;
+
+        protected NodeQueue(int capacity) {
+            heap = new long[Math.max(capacity, 4)];
+        }
+
+        protected static int dist(long entry) {
+            return (int) (entry >>> 32);
+        }
+
+        protected static int node(long entry) {
+            return (int) entry;
+        }
+
+        protected boolean isEmpty() {
+            return size == 0;
+        }
+
+        protected void add(int dist, int node) {
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+            long entry = ((long) dist << 32) | node;
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent] <= entry) break;
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = entry;
+        }
+
+        protected long poll() {
+            long result = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && heap[child + 1] < heap[child])
+                    child++;
+                if (last <= heap[child]) break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package net.floodlightcontroller.topology;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+
+/**
+ * A bounded cache of the routes of a {@link TopologyInstance}, safe to
+ * use from any number of threads. Routes are built on a miss and the
+ * least recently used routes are evicted when the cache is full.
+ */
+public class RouteCache {
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    // Marks a pair of switches without a route, the map can't hold nulls
+    protected static final Route NO_ROUTE = new Route(0L, 0L);
+
+    /**
+     * Counters that live across the caches of successive instances
+     */
+    public static class Counters {
+        protected AtomicLong hits = new AtomicLong();
+        protected AtomicLong misses = new AtomicLong();
+        protected AtomicLong evictions = new AtomicLong();
+        protected AtomicLong precomputed = new AtomicLong();
+
+        public long getHits() {
+            return hits.get();
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        public long getPrecomputed() {
+            return precomputed.get();
+        }
+    }
+
+    protected TopologyInstance instance;
+    protected int capacity;
+    protected Counters counters;
+    protected ConcurrentLinkedHashMap<RouteId, Route> cache;
+
+    /**
+     * @param instance the instance the routes are built from
+     * @param capacity the maximum number of routes
+     * @param counters counters to update, or null to keep new ones
+     */
+    public RouteCache(TopologyInstance instance, int capacity,
+                      Counters counters) {
+        this.instance = instance;
+        this.capacity = capacity;
+        this.counters = (counters != null) ? counters : new Counters();
+        final AtomicLong evictions = this.counters.evictions;
+        cache = new ConcurrentLinkedHashMap.Builder<RouteId, Route>()
+                .maximumWeightedCapacity(capacity)
+                .listener(new EvictionListener<RouteId, Route>() {
+                    @Override
+                    public void onEviction(RouteId key, Route value) {
+                        evictions.incrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Get the route between two switches, building it on a miss
+     * @param srcId
+     * @param dstId
+     * @return the route, or null if there is none
+     */
+    public Route getRoute(long srcId, long dstId) {
+        RouteId id = new RouteId(srcId, dstId);
+        Route result = cache.get(id);
+        if (result != null) {
+            counters.hits.incrementAndGet();
+        } else {
+            counters.misses.incrementAndGet();
+            result = load(id);
+        }
+        return (result == NO_ROUTE) ? null : result;
+    }
+
+    protected Route load(RouteId id) {
+        Route result = instance.buildroute(id, id.getSrc(), id.getDst());
+        if (result == null) result = NO_ROUTE;
+        // Another thread may have built the same route meanwhile
+        Route prev = cache.putIfAbsent(id, result);
+        return (prev != null) ? prev : result;
+    }
+
+    /**
+     * Build the routes between the given pairs of switches ahead of use
+     * @param ids
+     */
+    public void precompute(Collection<RouteId> ids) {
+        for (RouteId id : ids) {
+            if (cache.containsKey(id)) continue;
+            load(id);
+            counters.precomputed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the pairs of switches of the most recently used routes
+     * @param limit the maximum number of pairs
+     * @return
+     */
+    public Set<RouteId> getHotRouteIds(int limit) {
+        return cache.descendingKeySetWithLimit(limit);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Counters getCounters() {
+        return counters;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> info = new HashMap<String, Object>();
+        info.put("size", size());
+        info.put("capacity", capacity);
+        info.put("hits", counters.getHits());
+        info.put("misses", counters.getMisses());
+        info.put("evictions", counters.getEvictions());
+        info.put("precomputed", counters.getPrecomputed());
+        return info;
+    }
+}
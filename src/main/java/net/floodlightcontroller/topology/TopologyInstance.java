@@ -1,13 +1,12 @@
 package net.floodlightcontroller.topology;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Set;
 
 
@@ -21,7 +20,6 @@ import net.floodlightcontroller.routing.BroadcastTree;
 import net.floodlightcontroller.routing.Link;
 import net.floodlightcontroller.routing.Route;
 import net.floodlightcontroller.routing.RouteId;
-import net.floodlightcontroller.util.LRUHashMap;
 
 /**
  * A representation of a network topology.  Used internally by 
@@ -36,7 +34,7 @@ public class TopologyInstance {
 
     public static final int MAX_LINK_WEIGHT = 10000;
     public static final int MAX_PATH_WEIGHT = Integer.MAX_VALUE - MAX_LINK_WEIGHT - 1;
-    public static final int PATH_CACHE_SIZE = 1000;
+    public static final int PATH_CACHE_SIZE = RouteCache.DEFAULT_CAPACITY;
 
     protected static Logger log = LoggerFactory.getLogger(TopologyInstance.class);
 
@@ -58,10 +56,23 @@ public class TopologyInstance {
     protected Map<Long, Cluster> switchClusterMap; // switch to OF domain map
 
     // States for routing
-    protected Map<Long, BroadcastTree> destinationRootedTrees;
+    protected Map<Long, ClusterGraph> clusterGraphs; // cluster id to graph
+    // IDs of the switches in clusters, sorted, and the graph and
+    // destination rooted tree of each
+    protected long[] treeSwitches;
+    protected BroadcastTree[] destinationRootedTrees;
     protected Map<Long, Set<NodePortTuple>> clusterBroadcastNodePorts;
     protected Map<Long, BroadcastTree> clusterBroadcastTrees;
-    protected LRUHashMap<RouteId, Route> pathcache;
+    protected RouteCache pathcache;
+    // Link costs used for the shortest path trees, links not in the map
+    // have a cost of 1
+    protected Map<Link, Integer> linkCost;
+
+    // Number of trees computed from scratch, repaired and reused by the
+    // last compute
+    protected int treesComputed;
+    protected int treesRepaired;
+    protected int treesReused;
 
     public TopologyInstance() {
         this.switches = new HashSet<Long>();
@@ -113,13 +124,26 @@ public class TopologyInstance {
         blockedLinks = new HashSet<Link>();
         clusters = new HashSet<Cluster>();
         switchClusterMap = new HashMap<Long, Cluster>();
-        destinationRootedTrees = new HashMap<Long, BroadcastTree>();
+        clusterGraphs = new HashMap<Long, ClusterGraph>();
+        treeSwitches = new long[0];
+        destinationRootedTrees = new BroadcastTree[0];
         clusterBroadcastTrees = new HashMap<Long, BroadcastTree>();
         clusterBroadcastNodePorts = new HashMap<Long, Set<NodePortTuple>>();
-        pathcache = new LRUHashMap<RouteId, Route>(PATH_CACHE_SIZE);
+        pathcache = new RouteCache(this, PATH_CACHE_SIZE, null);
     }
 
     public void compute() {
+        compute(null);
+    }
+
+    /**
+     * Compute the clusters and the routing state of this topology. If a
+     * previous instance is given, the shortest path trees of clusters that
+     * have the same switches as in the previous instance are repaired from
+     * the previous trees instead of being computed from scratch.
+     * @param previous the previously computed instance, or null
+     */
+    public void compute(TopologyInstance previous) {
 
         // Step 1: Compute clusters ignoring broadcast domain links
         // Create nodes for clusters in the higher level topology
@@ -137,7 +161,7 @@ public class TopologyInstance {
         // Step 2. Compute shortest path trees in each cluster for 
         // unicast routing.  The trees are rooted at the destination.
         // Cost for tunnel links and direct links are the same.
-        calculateShortestPathTreeInClusters();
+        calculateShortestPathTreeInClusters(previous);
 
         // Step 3. Compute broadcast tree in each cluster.
         // Cost for tunnel links are high to discourage use of 
@@ -156,7 +180,7 @@ public class TopologyInstance {
         log.trace("broadcastDomainPorts: {}", broadcastDomainPorts);
         log.trace("tunnelPorts: {}", tunnelPorts);
         log.trace("clusters: {}", clusters);
-        log.trace("destinationRootedTrees: {}", destinationRootedTrees);
+        log.trace("clusterBroadcastTrees: {}", clusterBroadcastTrees);
         log.trace("clusterBroadcastNodePorts: {}", clusterBroadcastNodePorts);
         log.trace("-----------------------------------------------");
     }
@@ -413,87 +437,15 @@ public class TopologyInstance {
         return broadcastDomainPorts.contains(npt);
     }
 
-    class NodeDist implements Comparable<NodeDist> {
-        private Long node;
-        public Long getNode() {
-            return node;
-        }
-
-        private int dist; 
-        public int getDist() {
-            return dist;
-        }
-
-        public NodeDist(Long node, int dist) {
-            this.node = node;
-            this.dist = dist;
-        }
-
-        public int compareTo(NodeDist o) {
-            if (o.dist == this.dist) {
-                return (int)(o.node - this.node);
-            }
-            return o.dist - this.dist;
-        }
-    }
-
-    protected BroadcastTree dijkstra(Cluster c, Long root, 
-                                     Map<Link, Integer> linkCost,
-                                     boolean isDstRooted) {
-        HashMap<Long, Link> nexthoplinks = new HashMap<Long, Link>();
-        //HashMap<Long, Long> nexthopnodes = new HashMap<Long, Long>();
-        HashMap<Long, Integer> cost = new HashMap<Long, Integer>();
-        int w;
-
-        for (Long node: c.links.keySet()) {
-            nexthoplinks.put(node, null);
-            //nexthopnodes.put(node, null);
-            cost.put(node, MAX_PATH_WEIGHT);
-        }
-
-        HashMap<Long, Boolean> seen = new HashMap<Long, Boolean>();
-        PriorityQueue<NodeDist> nodeq = new PriorityQueue<NodeDist>();
-        nodeq.add(new NodeDist(root, 0));
-        cost.put(root, 0);
-        while (nodeq.peek() != null) {
-            NodeDist n = nodeq.poll();
-            Long cnode = n.getNode();
-            int cdist = n.getDist();
-            if (cdist >= MAX_PATH_WEIGHT) break;
-            if (seen.containsKey(cnode)) continue;
-            seen.put(cnode, true);
-
-            for (Link link: c.links.get(cnode)) {
-                Long neighbor;
-                
-                if (isDstRooted == true) neighbor = link.getSrc();
-                else neighbor = link.getDst();
-                
-                // links directed toward cnode will result in this condition
-                // if (neighbor == cnode) continue;
-                
-                if (linkCost == null || linkCost.get(link)==null) w = 1;
-                else w = linkCost.get(link);
-
-                int ndist = cdist + w; // the weight of the link, always 1 in current version of floodlight.
-                if (ndist < cost.get(neighbor)) {
-                    cost.put(neighbor, ndist);
-                    nexthoplinks.put(neighbor, link);
-                    //nexthopnodes.put(neighbor, cnode);
-                    nodeq.add(new NodeDist(neighbor, ndist));
-                }
-            }
-        }
-
-        BroadcastTree ret = new BroadcastTree(nexthoplinks, cost);
-        return ret;
+    protected void calculateShortestPathTreeInClusters() {
+        calculateShortestPathTreeInClusters(null);
     }
 
-    protected void calculateShortestPathTreeInClusters() {
+    protected void calculateShortestPathTreeInClusters(TopologyInstance previous) {
         pathcache.clear();
-        destinationRootedTrees.clear();
+        treesComputed = treesRepaired = treesReused = 0;
 
-        Map<Link, Integer> linkCost = new HashMap<Link, Integer>();
+        linkCost = new HashMap<Link, Integer>();
         int tunnel_weight = switchPorts.size() + 1;
 
         for(NodePortTuple npt: tunnelPorts) {
@@ -504,18 +456,77 @@ public class TopologyInstance {
             }
         }
 
+        clusterGraphs = new HashMap<Long, ClusterGraph>();
+        treeSwitches = new long[switchClusterMap.size()];
+        int n = 0;
+        for (long sw : switchClusterMap.keySet()) {
+            treeSwitches[n++] = sw;
+        }
+        Arrays.sort(treeSwitches);
+        destinationRootedTrees = new BroadcastTree[n];
+
         for(Cluster c: clusters) {
-            for (Long node : c.links.keySet()) {
-                BroadcastTree tree = dijkstra(c, node, linkCost, true);
-                destinationRootedTrees.put(node, tree);
+            ClusterGraph graph = new ClusterGraph(c, linkCost);
+            clusterGraphs.put(c.id, graph);
+
+            // Trees of a cluster with the same switches as in the previous
+            // instance are repaired from the previous trees
+            ClusterGraph prevGraph = null;
+            if (previous != null && previous.clusterGraphs != null)
+                prevGraph = previous.clusterGraphs.get(c.id);
+            int[] added = null;
+            if (prevGraph != null &&
+                    Arrays.equals(prevGraph.nodes, graph.nodes)) {
+                int[] links = new int[graph.getLinkCount()];
+                int count = 0;
+                for (int l = 0; l < links.length; l++) {
+                    if (prevGraph.translateLink(graph, l) < 0)
+                        links[count++] = l;
+                }
+                added = Arrays.copyOf(links, count);
+            }
+
+            for (int i = 0; i < graph.getNodeCount(); i++) {
+                long node = graph.getNode(i);
+                BroadcastTree tree = null;
+                if (added != null) {
+                    BroadcastTree prevTree =
+                            previous.getDestinationRootedTree(node);
+                    if (prevTree != null)
+                        tree = graph.repair(prevTree, added);
+                    if (tree != null) {
+                        if (tree.getCostArray() == prevTree.getCostArray())
+                            treesReused++;
+                        else
+                            treesRepaired++;
+                    }
+                }
+                if (tree == null) {
+                    tree = graph.dijkstra(i);
+                    treesComputed++;
+                }
+                destinationRootedTrees[Arrays.binarySearch(treeSwitches,
+                                                           node)] = tree;
             }
         }
     }
 
+    /**
+     * Get the shortest path tree rooted at a switch
+     * @param dstId
+     * @return the tree, or null if the switch is not in a cluster
+     */
+    protected BroadcastTree getDestinationRootedTree(long dstId) {
+        if (treeSwitches == null) return null;
+        int i = Arrays.binarySearch(treeSwitches, dstId);
+        if (i < 0) return null;
+        return destinationRootedTrees[i];
+    }
+
     protected void calculateBroadcastTreeInClusters() {
         for(Cluster c: clusters) {
             // c.id is the smallest node that's in the cluster
-            BroadcastTree tree = destinationRootedTrees.get(c.id);
+            BroadcastTree tree = getDestinationRootedTree(c.id);
             clusterBroadcastTrees.put(c.id, tree);
         }
     }
@@ -532,11 +543,10 @@ public class TopologyInstance {
             //log.info("Broadcast Tree {}", tree);
 
             Set<NodePortTuple> nptSet = new HashSet<NodePortTuple>();
-            Map<Long, Link> links = tree.getLinks();
-            if (links == null) continue;
-            for(long nodeId: links.keySet()) {
-                Link l = links.get(nodeId);
-                if (l == null) continue;
+            if (tree == null) continue;
+            for (int nexthop : tree.getNexthops()) {
+                if (nexthop < 0) continue;
+                Link l = tree.getGraph().getLink(nexthop);
                 NodePortTuple npt1 = new NodePortTuple(l.getSrc(), l.getSrcPort());
                 NodePortTuple npt2 = new NodePortTuple(l.getDst(), l.getDstPort());
                 nptSet.add(npt1);
@@ -547,42 +557,30 @@ public class TopologyInstance {
     }
 
     protected Route buildroute(RouteId id, long srcId, long dstId) {
-        NodePortTuple npt;
-
-        LinkedList<NodePortTuple> switchPorts =
-                new LinkedList<NodePortTuple>();
-
-        if (destinationRootedTrees == null) return null;
-        if (destinationRootedTrees.get(dstId) == null) return null;
-
-        Map<Long, Link> nexthoplinks =
-                destinationRootedTrees.get(dstId).getLinks();
-
-        if (!switches.contains(srcId) || !switches.contains(dstId)) {
-            // This is a switch that is not connected to any other switch
-            // hence there was no update for links (and hence it is not
-            // in the network)
-            log.debug("buildroute: Standalone switch: {}", srcId);
-
-            // The only possible non-null path for this case is
-            // if srcId equals dstId --- and that too is an 'empty' path []
-
-        } else if ((nexthoplinks!=null) && (nexthoplinks.get(srcId)!=null)) {
-            while (srcId != dstId) {
-                Link l = nexthoplinks.get(srcId);
-
-                npt = new NodePortTuple(l.getSrc(), l.getSrcPort());
-                switchPorts.addLast(npt);
-                npt = new NodePortTuple(l.getDst(), l.getDstPort());
-                switchPorts.addLast(npt);
-                srcId = nexthoplinks.get(srcId).getDst();
-            }
-        }
-        // else, no path exists, and path equals null
+        BroadcastTree tree = getDestinationRootedTree(dstId);
+        if (tree == null) return null;
 
+        // Walk the tree links from the source to the root. A source that
+        // is not in the cluster of the destination has no path, and the
+        // path from the destination to itself is empty.
         Route result = null;
-        if (switchPorts != null && !switchPorts.isEmpty()) 
+        ClusterGraph graph = tree.getGraph();
+        int[] nexthops = tree.getNexthops();
+        int node = graph.getIndex(srcId);
+        if (node >= 0 && nexthops[node] >= 0) {
+            List<NodePortTuple> switchPorts =
+                    new ArrayList<NodePortTuple>();
+            while (node != tree.getRoot()) {
+                int l = nexthops[node];
+                Link link = graph.getLink(l);
+                switchPorts.add(new NodePortTuple(link.getSrc(),
+                                                  link.getSrcPort()));
+                switchPorts.add(new NodePortTuple(link.getDst(),
+                                                  link.getDstPort()));
+                node = graph.getLinkDst(l);
+            }
             result = new Route(id, switchPorts);
+        }
         if (log.isTraceEnabled()) {
             log.trace("buildroute: {}", result);
         }
@@ -590,7 +588,7 @@ public class TopologyInstance {
     }
 
     protected int getCost(long srcId, long dstId) {
-        BroadcastTree bt = destinationRootedTrees.get(dstId);
+        BroadcastTree bt = getDestinationRootedTree(dstId);
         if (bt == null) return -1;
         return (bt.getCost(srcId));
     }
@@ -605,9 +603,9 @@ public class TopologyInstance {
 
     // IRoutingEngineService interfaces
     protected boolean routeExists(long srcId, long dstId) {
-        BroadcastTree bt = destinationRootedTrees.get(dstId);
+        BroadcastTree bt = getDestinationRootedTree(dstId);
         if (bt == null) return false;
-        Link link = bt.getLinks().get(srcId);
+        Link link = bt.getTreeLink(srcId);
         if (link == null) return false;
         return true;
     }
@@ -642,20 +640,27 @@ public class TopologyInstance {
     }
 
     protected Route getRoute(long srcId, long dstId) {
-        RouteId id = new RouteId(srcId, dstId);
-        Route result = null;
-        if (pathcache.containsKey(id)) {
-            result = pathcache.get(id);
-        } else {
-            result = buildroute(id, srcId, dstId);
-            pathcache.put(id, result);
-        }
+        Route result = pathcache.getRoute(srcId, dstId);
         if (log.isTraceEnabled()) {
-            log.trace("getRoute: {} -> {}", id, result);
+            log.trace("getRoute: {} -> {}", 
+                      new RouteId(srcId, dstId), result);
         }
         return result;
     }
 
+    protected RouteCache getPathCache() {
+        return pathcache;
+    }
+
+    /**
+     * Replace the route cache, e.g., to size it or to keep its counters
+     * across instances. Must be called before the instance is in use.
+     * @param pathcache
+     */
+    public void setPathCache(RouteCache pathcache) {
+        this.pathcache = pathcache;
+    }
+
     protected BroadcastTree getBroadcastTreeForCluster(long clusterId){
         Cluster c = switchClusterMap.get(clusterId);
         if (c == null) return null;
@@ -20,6 +20,7 @@ import net.floodlightcontroller.core.IFloodlightProviderService.Role;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IHAListener;
+import net.floodlightcontroller.core.IInfoProvider;
 import net.floodlightcontroller.core.annotations.LogMessageCategory;
 import net.floodlightcontroller.core.annotations.LogMessageDoc;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
@@ -57,7 +58,7 @@ import org.slf4j.LoggerFactory;
 public class TopologyManager implements 
         IFloodlightModule, ITopologyService, 
         IRoutingService, ILinkDiscoveryListener,
-        IOFMessageListener, IHAListener {
+        IOFMessageListener, IHAListener, IInfoProvider {
 
     protected static Logger log = LoggerFactory.getLogger(TopologyManager.class);
 
@@ -107,6 +108,16 @@ public class TopologyManager implements
     protected SingletonTask newInstanceTask;
     private Date lastUpdateTime;
 
+    /**
+     * Size of the route cache of each instance, and the number of most
+     * recently used routes of the current instance to build ahead in a
+     * new instance. 0 turns precomputation off.
+     */
+    protected int routeCacheSize = RouteCache.DEFAULT_CAPACITY;
+    protected int routeCachePrecompute = 0;
+    protected RouteCache.Counters routeCacheCounters =
+            new RouteCache.Counters();
+
     /**
      * Flag that indicates if links (direct/tunnel/multihop links) were
      * updated as part of LDUpdate.
@@ -650,6 +661,29 @@ public class TopologyManager implements
         topologyAware = new ArrayList<ITopologyListener>();
         ldUpdates = new LinkedBlockingQueue<LDUpdate>();
         appliedUpdates = new ArrayList<LDUpdate>();
+
+        Map<String, String> configOptions = context.getConfigParams(this);
+        try {
+            String size = configOptions.get("routecachesize");
+            if (size != null) {
+                routeCacheSize = Integer.parseInt(size);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing route cache size, using default of {}",
+                     routeCacheSize);
+        }
+        try {
+            String precompute = configOptions.get("routecacheprecompute");
+            if (precompute != null) {
+                routeCachePrecompute = Integer.parseInt(precompute);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Error parsing number of routes to precompute, " +
+                     "using default of {}", routeCachePrecompute);
+        }
+        log.debug("Route cache size {}, precomputing {} routes",
+                  routeCacheSize, routeCachePrecompute);
+
         clearCurrentTopology();
     }
 
@@ -660,6 +694,7 @@ public class TopologyManager implements
         linkDiscovery.addListener(this);
         floodlightProvider.addOFMessageListener(OFType.PACKET_IN, this);
         floodlightProvider.addHAListener(this);
+        floodlightProvider.addInfoProvider("routecache", this);
         addRestletRoutable();
     }
 
@@ -908,7 +943,22 @@ public class TopologyManager implements
                                                    openflowLinks, 
                                                    portBroadcastDomainLinks.keySet(), 
                                                    tunnelLinks.keySet());
-        nt.compute();
+        nt.setPathCache(new RouteCache(nt, routeCacheSize,
+                                       routeCacheCounters));
+        // Trees of clusters that didn't change are repaired from the
+        // current instance rather than computed from scratch
+        nt.compute(currentInstance);
+        if (routeCachePrecompute > 0 && currentInstance != null &&
+                currentInstance.getPathCache() != null) {
+            nt.getPathCache().precompute(currentInstance.getPathCache()
+                    .getHotRouteIds(routeCachePrecompute));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("New topology instance: {} trees computed, " +
+                      "{} repaired, {} reused",
+                      new Object[] { nt.treesComputed, nt.treesRepaired,
+                                     nt.treesReused });
+        }
         // We set the instances with and without tunnels to be identical.
         // If needed, we may compute them differently.
         currentInstance = nt;
@@ -1137,6 +1187,19 @@ public class TopologyManager implements
         return this.getCurrentInstance(true);
     }
 
+    // *************
+    // IInfoProvider
+    // *************
+
+    @Override
+    public Map<String, Object> getInfo(String type) {
+        if (!"routecache".equals(type)) return null;
+        TopologyInstance ti = getCurrentInstance();
+        if (ti == null || ti.getPathCache() == null)
+            return new HashMap<String, Object>();
+        return ti.getPathCache().getStats();
+    }
+
     /**
      *  Switch methods
      */
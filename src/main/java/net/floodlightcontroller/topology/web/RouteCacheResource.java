@@ -0,0 +1,22 @@
+package net.floodlightcontroller.topology.web;
+
+import java.util.Map;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+/**
+ * Get the size and the hit, miss and eviction counters of the route cache
+ */
+public class RouteCacheResource extends ServerResource {
+    @Get("json")
+    public Map<String, Object> retrieve() {
+        IFloodlightProviderService floodlightProvider = 
+                (IFloodlightProviderService)getContext().getAttributes().
+                    get(IFloodlightProviderService.class.getCanonicalName());
+
+        return floodlightProvider.getControllerInfo("routecache");
+    }
+}
@@ -20,6 +20,7 @@ public class TopologyWebRoutable implements RestletRoutable {
         router.attach("/enabledports/json", EnabledPortsResource.class);
         router.attach("/blockedports/json", BlockedPortsResource.class);
         router.attach("/route/{src-dpid}/{src-port}/{dst-dpid}/{dst-port}/json", RouteResource.class);
+        router.attach("/routecache/json", RouteCacheResource.class);
         return router;
     }
 
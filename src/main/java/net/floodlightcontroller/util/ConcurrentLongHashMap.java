@@ -0,0 +1,380 @@
+package net.floodlightcontroller.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map from primitive longs to objects.
+ *
+ * The map is split into segments, each an open addressing table with
+ * linear probing. Lookups don't lock or allocate; updates lock the segment
+ * of the key. Compared to a ConcurrentHashMap with boxed keys, an entry
+ * costs a long and a reference instead of an entry object and a Long.
+ *
+ * A removed entry leaves its key in the table with a null value, so that
+ * lookups never see a slot change from one key to another. Such keys are
+ * reused if they come back, and dropped when the table is rebuilt.
+ *
+ * Long.MIN_VALUE marks free slots and can't be used as a key. Null values
+ * aren't allowed. Iteration is weakly consistent, as for
+ * ConcurrentHashMap.
+ *
+ * @param <V> the type of the values
+ */
+public class ConcurrentLongHashMap<V> {
+    protected static final long FREE = Long.MIN_VALUE;
+    protected static final int DEFAULT_SEGMENTS = 16;
+    protected static final int MIN_CAPACITY = 8;
+
+    protected static class Table<V> {
+        protected final AtomicLongArray keys;
+        protected final AtomicReferenceArray<V> values;
+        protected final int mask;
+
+        protected Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<V>(capacity);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                keys.lazySet(i, FREE);
+            }
+        }
+    }
+
+    protected static class Segment<V> {
+        protected volatile Table<V> table;
+        // Number of live entries
+        protected volatile int size;
+        // Number of slots holding a key, including removed entries
+        protected int used;
+
+        protected Segment(int capacity) {
+            table = new Table<V>(capacity);
+        }
+
+        /**
+         * @return the index of the key, or -1 if it isn't in the table
+         */
+        protected int indexOf(Table<V> t, long key, int hash) {
+            int i = hash & t.mask;
+            while (true) {
+                long k = t.keys.get(i);
+                if (k == key) return i;
+                if (k == FREE) return -1;
+                i = (i + 1) & t.mask;
+            }
+        }
+
+        /**
+         * Insert a new key into a table that has room for it
+         */
+        protected static <V> void insert(Table<V> t, long key, int hash,
+                                         V value) {
+            int i = hash & t.mask;
+            while (t.keys.get(i) != FREE) {
+                i = (i + 1) & t.mask;
+            }
+            // The value goes first so that a lookup that finds the key
+            // finds its value
+            t.values.set(i, value);
+            t.keys.set(i, key);
+        }
+
+        /**
+         * Put a value under the segment lock
+         */
+        protected V put(long key, int hash, V value, boolean onlyIfAbsent) {
+            Table<V> t = table;
+            int i = indexOf(t, key, hash);
+            if (i >= 0) {
+                V old = t.values.get(i);
+                if (old == null) {
+                    size++;
+                } else if (onlyIfAbsent) {
+                    return old;
+                }
+                t.values.set(i, value);
+                return old;
+            }
+            if ((used + 1) * 2 > t.mask + 1) {
+                t = rebuild(t, size + 1);
+            }
+            insert(t, key, hash, value);
+            used++;
+            size++;
+            return null;
+        }
+
+        /**
+         * Copy the live entries into a new table with room for at least
+         * the given number of entries and publish it
+         */
+        protected Table<V> rebuild(Table<V> old, int entries) {
+            int capacity = MIN_CAPACITY;
+            while (capacity < entries * 4) {
+                capacity <<= 1;
+            }
+            Table<V> t = new Table<V>(capacity);
+            int live = 0;
+            for (int i = 0; i <= old.mask; i++) {
+                long k = old.keys.get(i);
+                V v = old.values.get(i);
+                if (k == FREE || v == null) continue;
+                insert(t, k, hash(k), v);
+                live++;
+            }
+            used = live;
+            table = t;
+            return t;
+        }
+
+        protected V remove(long key, int hash, Object value) {
+            Table<V> t = table;
+            int i = indexOf(t, key, hash);
+            if (i < 0) return null;
+            V old = t.values.get(i);
+            if (old == null) return null;
+            if (value != null && old != value && !old.equals(value))
+                return null;
+            t.values.set(i, null);
+            size--;
+            return old;
+        }
+
+        protected boolean replace(long key, int hash, V oldValue,
+                                  V newValue) {
+            Table<V> t = table;
+            int i = indexOf(t, key, hash);
+            if (i < 0) return false;
+            V v = t.values.get(i);
+            if (v == null || (v != oldValue && !v.equals(oldValue)))
+                return false;
+            t.values.set(i, newValue);
+            return true;
+        }
+    }
+
+    protected final Segment<V>[] segments;
+    protected final int segmentShift;
+
+    public ConcurrentLongHashMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param concurrencyLevel the expected number of concurrent writers
+     */
+    public ConcurrentLongHashMap(int concurrencyLevel) {
+        int n = 1;
+        int bits = 0;
+        while (n < concurrencyLevel) {
+            n <<= 1;
+            bits++;
+        }
+        @SuppressWarnings("unchecked")
+        Segment<V>[] s = (Segment<V>[]) new Segment<?>[n];
+        for (int i = 0; i < n; i++) {
+            s[i] = new Segment<V>(MIN_CAPACITY);
+        }
+        segments = s;
+        segmentShift = 32 - bits;
+    }
+
+    protected static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    protected Segment<V> segmentFor(int hash) {
+        // The high bits pick the segment, the low bits the slot
+        return (segmentShift == 32) ?
+                segments[0] : segments[hash >>> segmentShift];
+    }
+
+    protected static void checkKey(long key) {
+        if (key == FREE)
+            throw new IllegalArgumentException("Long.MIN_VALUE is reserved");
+    }
+
+    public V get(long key) {
+        int hash = hash(key);
+        Segment<V> s = segmentFor(hash);
+        Table<V> t = s.table;
+        int i = s.indexOf(t, key, hash);
+        return (i < 0) ? null : t.values.get(i);
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public V put(long key, V value) {
+        checkKey(key);
+        if (value == null) throw new NullPointerException();
+        int hash = hash(key);
+        Segment<V> s = segmentFor(hash);
+        synchronized (s) {
+            return s.put(key, hash, value, false);
+        }
+    }
+
+    public V putIfAbsent(long key, V value) {
+        checkKey(key);
+        if (value == null) throw new NullPointerException();
+        int hash = hash(key);
+        Segment<V> s = segmentFor(hash);
+        synchronized (s) {
+            return s.put(key, hash, value, true);
+        }
+    }
+
+    /**
+     * Replace the value of a key if it's equal to the given value
+     * @return true if the value was replaced
+     */
+    public boolean replace(long key, V oldValue, V newValue) {
+        if (oldValue == null || newValue == null)
+            throw new NullPointerException();
+        int hash = hash(key);
+        Segment<V> s = segmentFor(hash);
+        synchronized (s) {
+            return s.replace(key, hash, oldValue, newValue);
+        }
+    }
+
+    /**
+     * @return the previous value, or null if there was none
+     */
+    public V remove(long key) {
+        int hash = hash(key);
+        Segment<V> s = segmentFor(hash);
+        synchronized (s) {
+            return s.remove(key, hash, null);
+        }
+    }
+
+    /**
+     * Remove a key if its value is equal to the given value
+     * @return true if the key was removed
+     */
+    public boolean remove(long key, Object value) {
+        if (value == null) return false;
+        int hash = hash(key);
+        Segment<V> s = segmentFor(hash);
+        synchronized (s) {
+            return s.remove(key, hash, value) != null;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> s : segments) {
+            size += s.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (Segment<V> s : segments) {
+            if (s.size != 0) return false;
+        }
+        return true;
+    }
+
+    public void clear() {
+        for (Segment<V> s : segments) {
+            synchronized (s) {
+                s.table = new Table<V>(MIN_CAPACITY);
+                s.used = 0;
+                s.size = 0;
+            }
+        }
+    }
+
+    /**
+     * Get a view of the values. Removing through its iterator removes the
+     * entry from the map.
+     * @return
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+
+            @Override
+            public int size() {
+                return ConcurrentLongHashMap.this.size();
+            }
+
+            @Override
+            public boolean isEmpty() {
+                return ConcurrentLongHashMap.this.isEmpty();
+            }
+        };
+    }
+
+    protected class ValueIterator implements Iterator<V> {
+        protected int segment = -1;
+        protected Table<V> table;
+        protected int index;
+        protected long nextKey;
+        protected V nextValue;
+        protected long lastKey;
+        protected V lastValue;
+
+        protected ValueIterator() {
+            advance();
+        }
+
+        protected void advance() {
+            nextValue = null;
+            while (true) {
+                if (table == null || index > table.mask) {
+                    if (++segment >= segments.length) return;
+                    table = segments[segment].table;
+                    index = 0;
+                    continue;
+                }
+                long k = table.keys.get(index);
+                V v = table.values.get(index);
+                index++;
+                if (k != FREE && v != null) {
+                    nextKey = k;
+                    nextValue = v;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextValue != null;
+        }
+
+        @Override
+        public V next() {
+            if (nextValue == null) throw new NoSuchElementException();
+            lastKey = nextKey;
+            lastValue = nextValue;
+            advance();
+            return lastValue;
+        }
+
+        @Override
+        public void remove() {
+            if (lastValue == null) throw new IllegalStateException();
+            ConcurrentLongHashMap.this.remove(lastKey, lastValue);
+            lastValue = null;
+        }
+    }
+}
@@ -6,18 +6,32 @@ package net.floodlightcontroller.util;
 
 import java.io.IOException;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IOFSwitch;
 
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.OFMessagePool;
 
 /**
  * Dampens OFMessages sent to an OF switch. A message is only written to 
  * a switch if the same message (as defined by .equals()) has not been written
  * in the last n milliseconds. Timer granularity is based on TimedCache
+ * 
+ * Flow mods are recognized by a 64-bit fingerprint of the switch and of
+ * every field of the message, kept in a {@link TimedFingerprintCache}, so
+ * dampening one costs a hash over its fields and a compare-and-set and
+ * allocates nothing. Only flow mods with the same fingerprint, not just
+ * the same bucket, are taken for the same. Other types are compared with
+ * .equals().
  * @author gregor
  *
  */
@@ -76,7 +90,10 @@ public class OFMessageDamper {
       
     }
     TimedCache<DamperEntry> cache;
+    TimedFingerprintCache flowModCache;
     EnumSet<OFType> msgTypesToCache;
+    AtomicLong damped = new AtomicLong();
+    AtomicLong passed = new AtomicLong();
     /**
      * 
      * @param capacity the maximum number of messages that should be 
@@ -91,9 +108,88 @@ public class OFMessageDamper {
                            Set<OFType> typesToDampen,  
                            int timeout) {
         cache = new TimedCache<DamperEntry>(capacity, timeout);
+        flowModCache = new TimedFingerprintCache(capacity, timeout);
         msgTypesToCache = EnumSet.copyOf(typesToDampen);
     }        
     
+    protected static long mix(long h, long value) {
+        h = (h ^ value) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 31);
+    }
+    
+    protected static long toLong(byte[] mac) {
+        long value = 0;
+        if (mac != null) {
+            for (int i = 0; i < mac.length; i++)
+                value = (value << 8) | (mac[i] & 0xff);
+        }
+        return value;
+    }
+    
+    /**
+     * Compute the fingerprint of a flow mod written to a switch. Flow mods
+     * that are equal as defined by .equals() and are written to the same
+     * switch object have the same fingerprint. The switch object is part
+     * of it, so flow mods aren't dampened after a switch reconnected.
+     * @param sw the switch
+     * @param fm the flow mod
+     * @return the fingerprint
+     */
+    public static long fingerprint(IOFSwitch sw, OFFlowMod fm) {
+        long h = mix(sw.getId(), System.identityHashCode(sw));
+        h = mix(h, ((long) fm.getVersion() << 56) |
+                   ((long) (fm.getLength() & 0xffff) << 32) |
+                   (fm.getXid() & 0xffffffffL));
+        h = mix(h, fm.getCookie());
+        h = mix(h, ((long) fm.getCommand() << 48) |
+                   ((long) (fm.getFlags() & 0xffff) << 32) |
+                   ((long) (fm.getPriority() & 0xffff) << 16) |
+                   (fm.getOutPort() & 0xffff));
+        h = mix(h, ((long) fm.getBufferId() << 32) |
+                   ((long) (fm.getIdleTimeout() & 0xffff) << 16) |
+                   (fm.getHardTimeout() & 0xffff));
+        
+        OFMatch match = fm.getMatch();
+        if (match != null) {
+            h = mix(h, ((long) match.getWildcards() << 32) |
+                       ((long) (match.getInputPort() & 0xffff) << 16) |
+                       (match.getDataLayerVirtualLan() & 0xffff));
+            h = mix(h, toLong(match.getDataLayerSource()));
+            h = mix(h, toLong(match.getDataLayerDestination()));
+            h = mix(h, ((long) match.getDataLayerType() << 48) |
+                       ((long) (match.getDataLayerVirtualLanPriorityCodePoint()
+                                & 0xff) << 40) |
+                       ((long) (match.getNetworkTypeOfService() & 0xff) << 32) |
+                       ((long) (match.getNetworkProtocol() & 0xff) << 24) |
+                       (match.getTransportSource() & 0xffff));
+            h = mix(h, ((long) match.getNetworkSource() << 32) |
+                       (match.getNetworkDestination() & 0xffffffffL));
+            h = mix(h, match.getTransportDestination() & 0xffff);
+        }
+        
+        List<OFAction> actions = fm.getActions();
+        if (actions != null) {
+            for (int i = 0; i < actions.size(); i++) {
+                OFAction action = actions.get(i);
+                long value = ((long) action.getType().getTypeValue() << 48) |
+                             ((long) (action.getLength() & 0xffff) << 32);
+                if (action instanceof OFActionOutput) {
+                    OFActionOutput output = (OFActionOutput) action;
+                    value |= ((long) (output.getPort() & 0xffff) << 16) |
+                             (output.getMaxLength() & 0xffff);
+                } else {
+                    value |= action.hashCode() & 0xffffffffL;
+                }
+                h = mix(h, value);
+            }
+        }
+        
+        // Spread the last fields into the bucket bits
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+    
     /**
      * write the messag to the switch according to our dampening settings
      * @param sw
@@ -129,11 +225,25 @@ public class OFMessageDamper {
             return true;
         }
         
-        DamperEntry entry = new DamperEntry(msg, sw);
-        if (cache.update(entry)) {
-            // entry exists in cache. Dampening.
+        boolean dampen;
+        if (msg instanceof OFFlowMod) {
+            // Only the fingerprint is kept, so a pooled message can still
+            // be recycled once it is written
+            dampen = flowModCache.update(fingerprint(sw, (OFFlowMod) msg));
+        } else {
+            dampen = cache.update(new DamperEntry(msg, sw));
+            // The cache keeps a reference to the message
+            if (!dampen) OFMessagePool.detachIfPooled(msg);
+        }
+        
+        if (dampen) {
+            // entry exists in cache. Dampening. The message won't be
+            // written, so a pooled message can be recycled right away.
+            damped.incrementAndGet();
+            OFMessagePool.releaseIfPooled(msg);
             return false; 
         } else {
+            passed.incrementAndGet();
             sw.write(msg, cntx);
             if (flush) {
                 sw.flush();
@@ -141,4 +251,20 @@ public class OFMessageDamper {
             return true;
         }
     }
+    
+    /**
+     * @return the number of messages of the dampened types that were
+     * dropped
+     */
+    public long getDampedCount() {
+        return damped.get();
+    }
+    
+    /**
+     * @return the number of messages of the dampened types that were
+     * written
+     */
+    public long getPassedCount() {
+        return passed.get();
+    }
 }
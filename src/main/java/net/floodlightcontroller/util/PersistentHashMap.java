@@ -0,0 +1,399 @@
+package net.floodlightcontroller.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash map whose updates return a new map sharing all but
+ * the changed path with the old one, so a snapshot can be updated in
+ * O(log n) instead of being copied.
+ *
+ * The map is a hash array mapped trie: every level consumes 5 bits of the
+ * key's hash and stores its entries and child nodes in an array indexed
+ * by a bitmap. Keys whose hashes are equal share a collision node.
+ * The map is read-only through the Map interface.
+ */
+public class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+    protected static final int BITS = 5;
+    protected static final int MASK = (1 << BITS) - 1;
+
+    @SuppressWarnings("rawtypes")
+    protected static final PersistentHashMap EMPTY =
+            new PersistentHashMap(new BitmapNode(0, new Object[0]), 0);
+
+    protected static class Leaf<K, V> implements Map.Entry<K, V> {
+        protected final int hash;
+        protected final K key;
+        protected final V value;
+
+        protected Leaf(int hash, K key, V value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^
+                   (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Map.Entry)) return false;
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+            return eq(key, other.getKey()) && eq(value, other.getValue());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * An inner node. Its slots hold leaves and nodes.
+     */
+    protected static abstract class Node {
+        protected final Object[] slots;
+
+        protected Node(Object[] slots) {
+            this.slots = slots;
+        }
+
+        abstract Leaf<?, ?> find(int shift, int hash, Object key);
+
+        /**
+         * @return the node with the key added or replaced, or this node if
+         * the key already maps to the value
+         */
+        abstract Node put(int shift, Leaf<?, ?> leaf);
+
+        /**
+         * @return the node without the key, a leaf if a single one is
+         * left, null if nothing is left, or this node if the key isn't in
+         * it
+         */
+        abstract Object remove(int shift, int hash, Object key);
+    }
+
+    protected static class BitmapNode extends Node {
+        protected final int bitmap;
+
+        protected BitmapNode(int bitmap, Object[] slots) {
+            super(slots);
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Leaf<?, ?> find(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) return null;
+            Object slot = slots[Integer.bitCount(bitmap & (bit - 1))];
+            if (slot instanceof Node)
+                return ((Node) slot).find(shift + BITS, hash, key);
+            Leaf<?, ?> leaf = (Leaf<?, ?>) slot;
+            return (leaf.hash == hash && eq(leaf.key, key)) ? leaf : null;
+        }
+
+        @Override
+        Node put(int shift, Leaf<?, ?> leaf) {
+            int bit = 1 << ((leaf.hash >>> shift) & MASK);
+            int i = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) == 0) {
+                Object[] copy = new Object[slots.length + 1];
+                System.arraycopy(slots, 0, copy, 0, i);
+                copy[i] = leaf;
+                System.arraycopy(slots, i, copy, i + 1, slots.length - i);
+                return new BitmapNode(bitmap | bit, copy);
+            }
+            Object slot = slots[i];
+            Object updated;
+            if (slot instanceof Node) {
+                updated = ((Node) slot).put(shift + BITS, leaf);
+            } else {
+                Leaf<?, ?> old = (Leaf<?, ?>) slot;
+                if (old.hash == leaf.hash && eq(old.key, leaf.key)) {
+                    if (old.value == leaf.value) return this;
+                    updated = leaf;
+                } else {
+                    updated = merge(shift + BITS, old, old.hash, leaf);
+                }
+            }
+            if (updated == slot) return this;
+            Object[] copy = slots.clone();
+            copy[i] = updated;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        @Override
+        Object remove(int shift, int hash, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0) return this;
+            int i = Integer.bitCount(bitmap & (bit - 1));
+            Object slot = slots[i];
+            Object updated;
+            if (slot instanceof Node) {
+                updated = ((Node) slot).remove(shift + BITS, hash, key);
+                if (updated == slot) return this;
+            } else {
+                Leaf<?, ?> leaf = (Leaf<?, ?>) slot;
+                if (leaf.hash != hash || !eq(leaf.key, key)) return this;
+                updated = null;
+            }
+            if (updated != null) {
+                if (slots.length == 1 && shift > 0 && updated instanceof Leaf)
+                    return updated;
+                Object[] copy = slots.clone();
+                copy[i] = updated;
+                return new BitmapNode(bitmap, copy);
+            }
+            if (shift > 0) {
+                if (slots.length == 1) return null;
+                if (slots.length == 2 && slots[1 - i] instanceof Leaf)
+                    return slots[1 - i];
+            }
+            Object[] copy = new Object[slots.length - 1];
+            System.arraycopy(slots, 0, copy, 0, i);
+            System.arraycopy(slots, i + 1, copy, i, slots.length - i - 1);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+    }
+
+    protected static class CollisionNode extends Node {
+        protected final int hash;
+
+        protected CollisionNode(int hash, Object[] leaves) {
+            super(leaves);
+            this.hash = hash;
+        }
+
+        @Override
+        Leaf<?, ?> find(int shift, int hash, Object key) {
+            for (Object slot : slots) {
+                Leaf<?, ?> leaf = (Leaf<?, ?>) slot;
+                if (leaf.hash == hash && eq(leaf.key, key)) return leaf;
+            }
+            return null;
+        }
+
+        @Override
+        Node put(int shift, Leaf<?, ?> leaf) {
+            if (leaf.hash != hash)
+                return merge(shift, this, hash, leaf);
+            for (int i = 0; i < slots.length; i++) {
+                Leaf<?, ?> old = (Leaf<?, ?>) slots[i];
+                if (eq(old.key, leaf.key)) {
+                    if (old.value == leaf.value) return this;
+                    Object[] copy = slots.clone();
+                    copy[i] = leaf;
+                    return new CollisionNode(hash, copy);
+                }
+            }
+            Object[] copy = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, copy, 0, slots.length);
+            copy[slots.length] = leaf;
+            return new CollisionNode(hash, copy);
+        }
+
+        @Override
+        Object remove(int shift, int hash, Object key) {
+            for (int i = 0; i < slots.length; i++) {
+                Leaf<?, ?> leaf = (Leaf<?, ?>) slots[i];
+                if (leaf.hash == hash && eq(leaf.key, key)) {
+                    if (slots.length == 2) return slots[1 - i];
+                    Object[] copy = new Object[slots.length - 1];
+                    System.arraycopy(slots, 0, copy, 0, i);
+                    System.arraycopy(slots, i + 1, copy, i,
+                                     slots.length - i - 1);
+                    return new CollisionNode(hash, copy);
+                }
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Build the node holding an existing leaf or collision node and a new
+     * leaf whose hash agrees with it on the bits below the shift
+     */
+    protected static Node merge(int shift, Object old, int oldHash,
+                                Leaf<?, ?> leaf) {
+        if (oldHash == leaf.hash)
+            return new CollisionNode(oldHash, new Object[] { old, leaf });
+        int oldIndex = (oldHash >>> shift) & MASK;
+        int index = (leaf.hash >>> shift) & MASK;
+        if (oldIndex == index)
+            return new BitmapNode(1 << index, new Object[] {
+                    merge(shift + BITS, old, oldHash, leaf) });
+        Object[] slots = (oldIndex < index) ?
+                new Object[] { old, leaf } : new Object[] { leaf, old };
+        return new BitmapNode((1 << oldIndex) | (1 << index), slots);
+    }
+
+    protected static boolean eq(Object a, Object b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    protected static int hash(Object key) {
+        if (key == null) return 0;
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    protected final Node root;
+    protected final int size;
+    protected Set<Map.Entry<K, V>> entrySet;
+
+    protected PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    /**
+     * @return a map with the key mapped to the value, or this map if the
+     * key already maps to the same value object
+     */
+    public PersistentHashMap<K, V> plus(K key, V value) {
+        int hash = hash(key);
+        boolean added = root.find(0, hash, key) == null;
+        Node updated = root.put(0, new Leaf<K, V>(hash, key, value));
+        if (updated == root) return this;
+        return new PersistentHashMap<K, V>(updated, added ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without the key, or this map if it doesn't have the
+     * key
+     */
+    public PersistentHashMap<K, V> minus(Object key) {
+        Object updated = root.remove(0, hash(key), key);
+        if (updated == root) return this;
+        return new PersistentHashMap<K, V>((Node) updated, size - 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Leaf<?, ?> leaf = root.find(0, hash(key), key);
+        return (leaf == null) ? null : (V) leaf.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return root.find(0, hash(key), key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator<K, V>(root);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    protected static class EntryIterator<K, V>
+            implements Iterator<Map.Entry<K, V>> {
+        // The nodes on the path to the next leaf and the next slot in each
+        protected Node[] nodes = new Node[8];
+        protected int[] positions = new int[8];
+        protected int depth;
+        protected Leaf<K, V> next;
+
+        protected EntryIterator(Node root) {
+            nodes[0] = root;
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        protected void advance() {
+            next = null;
+            while (depth >= 0) {
+                Node node = nodes[depth];
+                if (positions[depth] == node.slots.length) {
+                    depth--;
+                    continue;
+                }
+                Object slot = node.slots[positions[depth]++];
+                if (slot instanceof Node) {
+                    depth++;
+                    if (depth == nodes.length) {
+                        Node[] n = new Node[depth * 2];
+                        System.arraycopy(nodes, 0, n, 0, depth);
+                        nodes = n;
+                        int[] p = new int[depth * 2];
+                        System.arraycopy(positions, 0, p, 0, depth);
+                        positions = p;
+                    }
+                    nodes[depth] = (Node) slot;
+                    positions[depth] = 0;
+                } else {
+                    next = (Leaf<K, V>) slot;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Leaf<K, V> leaf = next;
+            advance();
+            return leaf;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
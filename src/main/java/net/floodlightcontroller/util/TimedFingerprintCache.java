@@ -0,0 +1,126 @@
+package net.floodlightcontroller.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded set of 64-bit fingerprints with the time each was last
+ * updated, like {@link TimedCache} but without allocating or boxing, safe
+ * to use from any number of threads.
+ *
+ * The table is an array of longs in buckets of 8 entries. An entry is two
+ * slots: the whole fingerprint and the time in milliseconds it was last
+ * updated. The low bits of a fingerprint pick its bucket, and a lookup
+ * compares all 64 bits, so two fingerprints are only taken for the same
+ * if they are equal. Entries are never removed; when a bucket is full the
+ * entry updated the longest ago is replaced.
+ *
+ * The fingerprint and the time of an entry are written one after the
+ * other. A thread that reads an entry in between may write a message a
+ * second time, but never drops one that wasn't written.
+ */
+public class TimedFingerprintCache {
+    protected static final int BUCKET_SIZE = 8;
+
+    protected final AtomicLongArray table;
+    protected final int mask;
+    protected final int timeoutInterval;
+    protected final long base;
+
+    /**
+     * @param capacity the least number of fingerprints to keep, rounded up
+     * to a power of two
+     * @param timeToLive the time in milliseconds a fingerprint is kept for
+     */
+    public TimedFingerprintCache(int capacity, int timeToLive) {
+        int entries = BUCKET_SIZE;
+        while (entries < capacity && entries < (1 << 29))
+            entries <<= 1;
+        table = new AtomicLongArray(entries * 2);
+        mask = entries - 1;
+        timeoutInterval = timeToLive;
+        base = System.nanoTime();
+    }
+
+    public long getTimeoutInterval() {
+        return timeoutInterval;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    protected long now() {
+        return (System.nanoTime() - base) / 1000000L;
+    }
+
+    protected boolean isFresh(long time, long now) {
+        long age = now - time;
+        // A small negative age is a time written by a thread that read the
+        // clock after this one
+        return age <= timeoutInterval && age >= -timeoutInterval;
+    }
+
+    /**
+     * Record a fingerprint
+     * @param fingerprint the fingerprint
+     * @return true if the fingerprint was updated less than the timeout
+     * ago, in which case it keeps its time; false if it is new or expired,
+     * in which case its time is set to now
+     */
+    public boolean update(long fingerprint) {
+        long now = now();
+        long key = (fingerprint == 0) ? 1 : fingerprint; // 0 marks an empty entry
+        int start = ((int) fingerprint & mask & ~(BUCKET_SIZE - 1)) * 2;
+
+        int victim = start;
+        long victimKey = 0;
+        long victimAge = Long.MIN_VALUE;
+        for (int i = start; i < start + BUCKET_SIZE * 2; ) {
+            long k = table.get(i);
+            if (k == 0) {
+                // Entries fill up in order, so the fingerprint isn't in a
+                // later one
+                if (table.compareAndSet(i, 0, key)) {
+                    table.set(i + 1, now);
+                    return false;
+                }
+                continue;
+            }
+            long time = table.get(i + 1);
+            if (k == key) {
+                if (isFresh(time, now)) return true;
+                if (table.compareAndSet(i + 1, time, now)) return false;
+                continue;
+            }
+            long age = now - time;
+            if (age > victimAge) {
+                victim = i;
+                victimKey = k;
+                victimAge = age;
+            }
+            i += 2;
+        }
+        // If another thread changed the victim, the fingerprint isn't
+        // recorded and merely won't be dampened next time
+        if (table.compareAndSet(victim, victimKey, key))
+            table.set(victim + 1, now);
+        return false;
+    }
+
+    /**
+     * @return the number of fingerprints updated less than the timeout ago
+     */
+    public int size() {
+        long now = now();
+        int size = 0;
+        for (int i = 0; i < table.length(); i += 2) {
+            if (table.get(i) != 0 && isFresh(table.get(i + 1), now)) size++;
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (int i = 0; i < table.length(); i++)
+            table.set(i, 0);
+    }
+}
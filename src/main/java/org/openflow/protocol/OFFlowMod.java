@@ -63,6 +63,23 @@ public class OFFlowMod extends OFMessage implements OFActionFactoryAware, Clonea
         this.length = U16.t(MINIMUM_LENGTH);
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        this.length = U16.t(MINIMUM_LENGTH);
+        this.actionFactory = null;
+        this.match = null;
+        this.cookie = 0;
+        this.command = 0;
+        this.idleTimeout = 0;
+        this.hardTimeout = 0;
+        this.priority = 0;
+        this.bufferId = 0;
+        this.outPort = 0;
+        this.flags = 0;
+        this.actions = null;
+    }
+
     /**
      * Get buffer_id
      * @return
@@ -364,6 +381,7 @@ public class OFFlowMod extends OFMessage implements OFActionFactoryAware, Clonea
     public OFFlowMod clone() throws CloneNotSupportedException {
         OFMatch neoMatch = match.clone();
         OFFlowMod flowMod= (OFFlowMod) super.clone();
+        flowMod.setPoolLease(null);
         flowMod.setMatch(neoMatch);
         List<OFAction> neoActions = new LinkedList<OFAction>();
         for(OFAction action: this.actions)
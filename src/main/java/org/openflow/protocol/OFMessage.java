@@ -21,13 +21,16 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.packet.Ethernet;
 
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.openflow.protocol.factory.OFMessagePool;
 import org.openflow.util.HexString;
 import org.openflow.util.U16;
 import org.openflow.util.U32;
@@ -50,11 +53,55 @@ public class OFMessage {
     protected int xid;
     
     private ConcurrentHashMap<String, Object> storage;
+    // Set while the message is owned by an OFMessagePool
+    private volatile OFMessagePool.Lease poolLease;
+    private static final AtomicReferenceFieldUpdater<OFMessage, OFMessagePool.Lease>
+            poolLeaseUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                    OFMessage.class, OFMessagePool.Lease.class, "poolLease");
     
     public OFMessage() {
         storage = null;
         this.version = OFP_VERSION;
     }
+
+    /**
+     * Get the pool lease of this message, or null if it is not pooled
+     * @return
+     */
+    @JsonIgnore
+    public OFMessagePool.Lease getPoolLease() {
+        return poolLease;
+    }
+
+    /**
+     * Set the pool lease of this message. Used by OFMessagePool.
+     * @param poolLease
+     */
+    public void setPoolLease(OFMessagePool.Lease poolLease) {
+        this.poolLease = poolLease;
+    }
+
+    /**
+     * Atomically replace the pool lease of this message if it is the
+     * expected one. Used by OFMessagePool.
+     * @param expected
+     * @param poolLease
+     * @return true if the lease was replaced
+     */
+    public boolean compareAndSetPoolLease(OFMessagePool.Lease expected,
+                                          OFMessagePool.Lease poolLease) {
+        return poolLeaseUpdater.compareAndSet(this, expected, poolLease);
+    }
+
+    /**
+     * Restore the state of a newly constructed message so that the instance
+     * can be reused. Subclasses that are pooled must reset their own fields.
+     */
+    public void reset() {
+        this.storage = null;
+        this.version = OFP_VERSION;
+        this.xid = 0;
+    }
     
     protected synchronized ConcurrentHashMap<String, Object> getMessageStore() {
         if (storage == null) {
@@ -20,6 +20,7 @@ package org.openflow.protocol;
 import java.util.Arrays;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.openflow.util.U16;
 import org.openflow.util.U32;
 import org.openflow.util.U8;
@@ -41,6 +42,9 @@ public class OFPacketIn extends OFMessage {
     protected short inPort;
     protected OFPacketInReason reason;
     protected byte[] packetData;
+    // Set instead of packetData when the message was read with
+    // readFromSlice(); packetData is then materialized on demand
+    protected ChannelBuffer packetDataBuffer;
 
     public OFPacketIn() {
         super();
@@ -66,19 +70,55 @@ public class OFPacketIn extends OFMessage {
     }
 
     /**
-     * Returns the packet data
+     * Returns the packet data. If this message was read with
+     * readFromSlice() the bytes are copied out of the inbound buffer on
+     * the first call.
      * @return
      */
     public byte[] getPacketData() {
+        if (this.packetData == null && this.packetDataBuffer != null) {
+            byte[] data = new byte[this.packetDataBuffer.readableBytes()];
+            this.packetDataBuffer.getBytes(
+                    this.packetDataBuffer.readerIndex(), data);
+            this.packetData = data;
+        }
         return this.packetData;
     }
 
+    /**
+     * Returns the packet data as a ChannelBuffer without copying it. The
+     * returned buffer has its own reader and writer indexes but shares its
+     * content with the message and, after readFromSlice(), with the
+     * inbound frame. Callers must not modify it.
+     * @return the packet data, or null if none is set
+     */
+    public ChannelBuffer getPacketDataBuffer() {
+        if (this.packetDataBuffer != null)
+            return this.packetDataBuffer.duplicate();
+        if (this.packetData != null)
+            return ChannelBuffers.wrappedBuffer(this.packetData);
+        return null;
+    }
+
+    /**
+     * Returns the length of the packet data without materializing it
+     * @return
+     */
+    public int getPacketDataLength() {
+        if (this.packetDataBuffer != null)
+            return this.packetDataBuffer.readableBytes();
+        if (this.packetData != null)
+            return this.packetData.length;
+        return 0;
+    }
+
     /**
      * Sets the packet data, and updates the length of this message
      * @param packetData
      */
     public OFPacketIn setPacketData(byte[] packetData) {
         this.packetData = packetData;
+        this.packetDataBuffer = null;
         this.length = U16.t(OFPacketIn.MINIMUM_LENGTH + packetData.length);
         return this;
     }
@@ -136,14 +176,32 @@ public class OFPacketIn extends OFMessage {
 
     @Override
     public void readFrom(ChannelBuffer data) {
+        readHeaderFrom(data);
+        this.packetData = new byte[getLengthU() - MINIMUM_LENGTH];
+        this.packetDataBuffer = null;
+        data.readBytes(this.packetData);
+    }
+
+    /**
+     * Read this message off the wire, keeping the packet data as a slice
+     * of the given buffer instead of copying it. The caller must guarantee
+     * that the content of the buffer is not modified for as long as this
+     * message is in use.
+     * @param data
+     */
+    public void readFromSlice(ChannelBuffer data) {
+        readHeaderFrom(data);
+        this.packetData = null;
+        this.packetDataBuffer = data.readSlice(getLengthU() - MINIMUM_LENGTH);
+    }
+
+    protected void readHeaderFrom(ChannelBuffer data) {
         super.readFrom(data);
         this.bufferId = data.readInt();
         this.totalLength = data.readShort();
         this.inPort = data.readShort();
         this.reason = OFPacketInReason.values()[U8.f(data.readByte())];
         data.readByte(); // pad
-        this.packetData = new byte[getLengthU() - MINIMUM_LENGTH];
-        data.readBytes(this.packetData);
     }
 
     @Override
@@ -154,7 +212,13 @@ public class OFPacketIn extends OFMessage {
         data.writeShort(inPort);
         data.writeByte((byte) reason.ordinal());
         data.writeByte((byte) 0x0); // pad
-        data.writeBytes(this.packetData);
+        if (this.packetData == null && this.packetDataBuffer != null) {
+            data.writeBytes(this.packetDataBuffer,
+                            this.packetDataBuffer.readerIndex(),
+                            this.packetDataBuffer.readableBytes());
+        } else {
+            data.writeBytes(this.packetData);
+        }
     }
 
     @Override
@@ -163,7 +227,7 @@ public class OFPacketIn extends OFMessage {
         int result = super.hashCode();
         result = prime * result + bufferId;
         result = prime * result + inPort;
-        result = prime * result + Arrays.hashCode(packetData);
+        result = prime * result + Arrays.hashCode(getPacketData());
         result = prime * result + ((reason == null) ? 0 : reason.hashCode());
         result = prime * result + totalLength;
         return result;
@@ -187,7 +251,7 @@ public class OFPacketIn extends OFMessage {
         if (inPort != other.inPort) {
             return false;
         }
-        if (!Arrays.equals(packetData, other.packetData)) {
+        if (!Arrays.equals(getPacketData(), other.getPacketData())) {
             return false;
         }
         if (reason == null) {
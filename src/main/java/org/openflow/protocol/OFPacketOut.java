@@ -48,6 +48,18 @@ public class OFPacketOut extends OFMessage implements OFActionFactoryAware {
         this.length = U16.t(MINIMUM_LENGTH);
     }
 
+    @Override
+    public void reset() {
+        super.reset();
+        this.length = U16.t(MINIMUM_LENGTH);
+        this.actionFactory = null;
+        this.bufferId = 0;
+        this.inPort = 0;
+        this.actionsLength = 0;
+        this.actions = null;
+        this.packetData = null;
+    }
+
     /**
      * Get buffer_id
      * @return
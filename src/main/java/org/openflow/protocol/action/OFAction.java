@@ -18,7 +18,11 @@
 package org.openflow.protocol.action;
 
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.codehaus.jackson.annotate.JsonIgnore;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.openflow.protocol.factory.OFMessagePool;
 import org.openflow.util.U16;
 
 /**
@@ -40,6 +44,47 @@ public class OFAction implements Cloneable {
 
     protected OFActionType type;
     protected short length;
+    // Set while the action is owned by an OFMessagePool
+    private volatile OFMessagePool.Lease poolLease;
+    private static final AtomicReferenceFieldUpdater<OFAction, OFMessagePool.Lease>
+            poolLeaseUpdater = AtomicReferenceFieldUpdater.newUpdater(
+                    OFAction.class, OFMessagePool.Lease.class, "poolLease");
+
+    /**
+     * Get the pool lease of this action, or null if it is not pooled
+     * @return
+     */
+    @JsonIgnore
+    public OFMessagePool.Lease getPoolLease() {
+        return poolLease;
+    }
+
+    /**
+     * Set the pool lease of this action. Used by OFMessagePool.
+     * @param poolLease
+     */
+    public void setPoolLease(OFMessagePool.Lease poolLease) {
+        this.poolLease = poolLease;
+    }
+
+    /**
+     * Atomically replace the pool lease of this action if it is the
+     * expected one. Used by OFMessagePool.
+     * @param expected
+     * @param poolLease
+     * @return true if the lease was replaced
+     */
+    public boolean compareAndSetPoolLease(OFMessagePool.Lease expected,
+                                          OFMessagePool.Lease poolLease) {
+        return poolLeaseUpdater.compareAndSet(this, expected, poolLease);
+    }
+
+    /**
+     * Restore the state of a newly constructed action so that the instance
+     * can be reused. Subclasses that are pooled must reset their own fields.
+     */
+    public void reset() {
+    }
 
     /**
      * Get the length of this message
@@ -167,7 +212,9 @@ public class OFAction implements Cloneable {
      */
     @Override
     public OFAction clone() throws CloneNotSupportedException {
-        return (OFAction) super.clone();
+        OFAction action = (OFAction) super.clone();
+        action.poolLease = null;
+        return action;
     }
     
 }
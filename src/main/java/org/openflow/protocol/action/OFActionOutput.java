@@ -69,6 +69,13 @@ public class OFActionOutput extends OFAction implements Cloneable {
         this.maxLength = maxLength;
     }
 
+    @Override
+    public void reset() {
+        super.setLength((short) MINIMUM_LENGTH);
+        this.port = 0;
+        this.maxLength = 0;
+    }
+
     /**
      * Get the output port
      * @return
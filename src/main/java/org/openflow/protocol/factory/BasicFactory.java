@@ -22,6 +22,7 @@ import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionType;
@@ -44,11 +45,73 @@ import org.openflow.protocol.vendor.OFVendorId;
  */
 public class BasicFactory implements OFMessageFactory, OFActionFactory,
         OFStatisticsFactory, OFVendorDataFactory {
+    // If set, PACKET_IN payloads are kept as slices of the parsed buffer
+    // instead of being copied into a byte[]
+    protected boolean zeroCopyPacketIn = false;
+    // If set, getPooledMessage()/getPooledAction() recycle instances
+    protected OFMessagePool messagePool = null;
+
+    /**
+     * Enable or disable zero-copy parsing of PACKET_IN payloads. When
+     * enabled, parsed OFPacketIn messages reference the buffer passed to
+     * parseMessage(), so the caller must not modify or reuse that buffer
+     * while the messages are in use.
+     * @param zeroCopyPacketIn
+     */
+    public void setZeroCopyPacketIn(boolean zeroCopyPacketIn) {
+        this.zeroCopyPacketIn = zeroCopyPacketIn;
+    }
+
+    public boolean isZeroCopyPacketIn() {
+        return zeroCopyPacketIn;
+    }
+
+    /**
+     * Set the pool used by getPooledMessage() and getPooledAction(), or
+     * null to disable pooling
+     * @param messagePool
+     */
+    public void setMessagePool(OFMessagePool messagePool) {
+        this.messagePool = messagePool;
+    }
+
+    public OFMessagePool getMessagePool() {
+        return messagePool;
+    }
+
     @Override
     public OFMessage getMessage(OFType t) {
         return t.newInstance();
     }
 
+    /**
+     * Get a message that is returned to the message pool once it has been
+     * written to a switch. The caller must not use the message after
+     * writing it, must release it if it is not written and must detach it
+     * from the pool if it is kept. See {@link OFMessagePool}. Without a pool
+     * this is the same as getMessage().
+     * @param t the message type
+     * @return
+     */
+    public OFMessage getPooledMessage(OFType t) {
+        if (messagePool == null)
+            return getMessage(t);
+        return messagePool.acquire(t);
+    }
+
+    /**
+     * Get an action that is returned to the message pool together with the
+     * pooled message it is added to. Without a pool this is the same as
+     * getAction().
+     * @param t the action type
+     * @return
+     */
+    public OFAction getPooledAction(OFActionType t) {
+        if (messagePool == null)
+            return getAction(t);
+        return messagePool.acquireAction(t);
+    }
+
     @Override
     public List<OFMessage> parseMessage(ChannelBuffer data) throws MessageParseException {
         List<OFMessage> msglist = new ArrayList<OFMessage>();
@@ -75,20 +138,19 @@ public class BasicFactory implements OFMessageFactory, OFActionFactory,
 
     public OFMessage parseMessageOne(ChannelBuffer data) throws MessageParseException {
         try {
-            OFMessage demux = new OFMessage();
             OFMessage ofm = null;
 
             if (data.readableBytes() < OFMessage.MINIMUM_LENGTH)
                 return ofm;
 
+            // Peek at the ofp_header in place rather than demuxing it
+            // through a throwaway OFMessage
             data.markReaderIndex();
-            demux.readFrom(data);
-            data.resetReaderIndex();
-
-            if (demux.getLengthU() > data.readableBytes())
+            int start = data.readerIndex();
+            if (data.getUnsignedShort(start + 2) > data.readableBytes())
                 return ofm;
 
-            ofm = getMessage(demux.getType());
+            ofm = getMessage(OFType.valueOf(data.getByte(start + 1)));
             if (ofm == null)
                 return null;
 
@@ -104,7 +166,11 @@ public class BasicFactory implements OFMessageFactory, OFActionFactory,
             if (ofm instanceof OFVendorDataFactoryAware) {
                 ((OFVendorDataFactoryAware)ofm).setVendorDataFactory(this);
             }
-            ofm.readFrom(data);
+            if (zeroCopyPacketIn && ofm instanceof OFPacketIn) {
+                ((OFPacketIn)ofm).readFromSlice(data);
+            } else {
+                ofm.readFrom(data);
+            }
             if (OFMessage.class.equals(ofm.getClass())) {
                 // advance the position for un-implemented messages
                 data.readerIndex(data.readerIndex()+(ofm.getLengthU() -
@@ -0,0 +1,342 @@
+/**
+*    Copyright 2012, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package org.openflow.protocol.factory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded free lists of FLOW_MOD and PACKET_OUT messages and OUTPUT actions.
+ *
+ * Objects handed out by {@link #acquire(OFType)} and
+ * {@link #acquireAction(OFActionType)} carry a {@link Lease}. A message with
+ * a lease is returned to the pool together with its pooled actions by
+ * {@link #release(OFMessage)}, which the OFMessageEncoder calls once the
+ * message has been serialized. Code that holds on to a pooled message after
+ * writing it must call {@link #detach(OFMessage)} first; code that decides
+ * not to write it must release it.
+ *
+ * With leak detection enabled every lease records where the object was
+ * acquired, and pooled objects that are garbage collected without having
+ * been released or detached are logged and counted.
+ */
+public class OFMessagePool {
+    protected static Logger log = LoggerFactory.getLogger(OFMessagePool.class);
+
+    /**
+     * Marks an object as owned by a pool
+     */
+    public static class Lease {
+        protected OFMessagePool pool;
+
+        protected Lease(OFMessagePool pool) {
+            this.pool = pool;
+        }
+
+        public OFMessagePool getPool() {
+            return pool;
+        }
+    }
+
+    /**
+     * Lease that tracks whether its object is collected while still leased
+     */
+    protected static class TrackedLease extends Lease {
+        protected LeakTracker tracker;
+
+        protected TrackedLease(OFMessagePool pool, LeakTracker tracker) {
+            super(pool);
+            this.tracker = tracker;
+        }
+    }
+
+    protected static class LeakTracker extends WeakReference<Object> {
+        protected String description;
+        protected Throwable acquiredAt;
+
+        protected LeakTracker(Object referent, ReferenceQueue<Object> q) {
+            super(referent, q);
+            this.description = referent.getClass().getSimpleName();
+            this.acquiredAt = new Throwable("Acquired at");
+        }
+    }
+
+    protected int capacity;
+    protected Map<OFType, BlockingQueue<OFMessage>> messages;
+    protected BlockingQueue<OFAction> outputActions;
+    protected Lease lease;
+
+    protected boolean leakDetection;
+    protected ReferenceQueue<Object> collected;
+    protected Set<LeakTracker> live;
+
+    protected AtomicLong acquired = new AtomicLong();
+    protected AtomicLong reused = new AtomicLong();
+    protected AtomicLong released = new AtomicLong();
+    protected AtomicLong leaked = new AtomicLong();
+
+    /**
+     * Create a pool
+     * @param capacity the max number of free objects kept per type
+     * @param leakDetection whether to track objects that are never released
+     */
+    public OFMessagePool(int capacity, boolean leakDetection) {
+        this.capacity = capacity;
+        this.messages = new EnumMap<OFType, BlockingQueue<OFMessage>>(
+                OFType.class);
+        this.messages.put(OFType.FLOW_MOD,
+                          new ArrayBlockingQueue<OFMessage>(capacity));
+        this.messages.put(OFType.PACKET_OUT,
+                          new ArrayBlockingQueue<OFMessage>(capacity));
+        this.outputActions = new ArrayBlockingQueue<OFAction>(capacity);
+        this.lease = new Lease(this);
+        this.leakDetection = leakDetection;
+        if (leakDetection) {
+            this.collected = new ReferenceQueue<Object>();
+            this.live = Collections.newSetFromMap(
+                    new ConcurrentHashMap<LeakTracker, Boolean>());
+        }
+    }
+
+    /**
+     * Get a message of the given type, reusing a released one if possible.
+     * Types that are not pooled are simply instantiated.
+     * @param t the message type
+     * @return
+     */
+    public OFMessage acquire(OFType t) {
+        BlockingQueue<OFMessage> free = messages.get(t);
+        if (free == null)
+            return t.newInstance();
+        OFMessage m = free.poll();
+        if (m == null) {
+            m = t.newInstance();
+        } else {
+            reused.incrementAndGet();
+        }
+        acquired.incrementAndGet();
+        m.setPoolLease(newLease(m));
+        return m;
+    }
+
+    /**
+     * Get an action of the given type, reusing a released one if possible.
+     * Types that are not pooled are simply instantiated.
+     * @param t the action type
+     * @return
+     */
+    public OFAction acquireAction(OFActionType t) {
+        if (t != OFActionType.OUTPUT)
+            return t.newInstance();
+        OFAction a = outputActions.poll();
+        if (a == null) {
+            a = t.newInstance();
+        } else {
+            reused.incrementAndGet();
+        }
+        acquired.incrementAndGet();
+        a.setPoolLease(newLease(a));
+        return a;
+    }
+
+    /**
+     * Return a message and its pooled actions to the pool. Does nothing if
+     * the message is not leased from this pool.
+     * @param m
+     */
+    public void release(OFMessage m) {
+        if (!endLease(m))
+            return;
+
+        List<OFAction> actions = null;
+        if (m instanceof OFFlowMod) {
+            actions = ((OFFlowMod)m).getActions();
+        } else if (m instanceof OFPacketOut) {
+            actions = ((OFPacketOut)m).getActions();
+        }
+        if (actions != null) {
+            for (OFAction a : actions) {
+                release(a);
+            }
+        }
+
+        m.reset();
+        messages.get(m.getType()).offer(m);
+        released.incrementAndGet();
+    }
+
+    /**
+     * Return an action to the pool. Does nothing if the action is not
+     * leased from this pool.
+     * @param a
+     */
+    public void release(OFAction a) {
+        if (!endLease(a))
+            return;
+        a.reset();
+        outputActions.offer(a);
+        released.incrementAndGet();
+    }
+
+    /**
+     * Take a message and its actions out of the pool's ownership so that
+     * it can be kept after it has been written
+     * @param m
+     */
+    public void detach(OFMessage m) {
+        if (!endLease(m))
+            return;
+        List<OFAction> actions = null;
+        if (m instanceof OFFlowMod) {
+            actions = ((OFFlowMod)m).getActions();
+        } else if (m instanceof OFPacketOut) {
+            actions = ((OFPacketOut)m).getActions();
+        }
+        if (actions != null) {
+            for (OFAction a : actions) {
+                endLease(a);
+            }
+        }
+    }
+
+    /**
+     * Release a message if it was leased from a pool
+     * @param m
+     */
+    public static void releaseIfPooled(OFMessage m) {
+        Lease l = m.getPoolLease();
+        if (l != null)
+            l.getPool().release(m);
+    }
+
+    /**
+     * Detach a message if it was leased from a pool
+     * @param m
+     */
+    public static void detachIfPooled(OFMessage m) {
+        Lease l = m.getPoolLease();
+        if (l != null)
+            l.getPool().detach(m);
+    }
+
+    protected Lease newLease(Object o) {
+        if (!leakDetection)
+            return lease;
+        reportLeaks();
+        LeakTracker tracker = new LeakTracker(o, collected);
+        live.add(tracker);
+        return new TrackedLease(this, tracker);
+    }
+
+    /**
+     * End the lease of a message leased from this pool. Only the first of
+     * several concurrent calls succeeds, so a message released twice is
+     * recycled once.
+     * @return true if the lease was ended by this call
+     */
+    protected boolean endLease(OFMessage m) {
+        Lease l = m.getPoolLease();
+        if (l == null || l.getPool() != this ||
+                !m.compareAndSetPoolLease(l, null))
+            return false;
+        untrack(l);
+        return true;
+    }
+
+    /**
+     * End the lease of an action leased from this pool
+     * @return true if the lease was ended by this call
+     */
+    protected boolean endLease(OFAction a) {
+        Lease l = a.getPoolLease();
+        if (l == null || l.getPool() != this ||
+                !a.compareAndSetPoolLease(l, null))
+            return false;
+        untrack(l);
+        return true;
+    }
+
+    protected void untrack(Lease l) {
+        if (l instanceof TrackedLease) {
+            LeakTracker tracker = ((TrackedLease)l).tracker;
+            live.remove(tracker);
+            tracker.clear();
+        }
+    }
+
+    /**
+     * Log pooled objects that were collected without being released
+     * @return the number of leaks found
+     */
+    public int reportLeaks() {
+        if (!leakDetection)
+            return 0;
+        int count = 0;
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker)collected.poll()) != null) {
+            if (!live.remove(tracker))
+                continue;
+            count++;
+            leaked.incrementAndGet();
+            log.warn("Pooled " + tracker.description + " was garbage " +
+                     "collected without being released", tracker.acquiredAt);
+        }
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public long getReleased() {
+        return released.get();
+    }
+
+    public long getLeaked() {
+        return leaked.get();
+    }
+}
@@ -195,6 +195,7 @@ public class ControllerTest extends FloodlightTestCase {
 
         IOFSwitch sw = createMock(IOFSwitch.class);
         expect(sw.getStringId()).andReturn("00:00:00:00:00:00:00").anyTimes();
+        expect(sw.getId()).andReturn(0L).anyTimes();
 
         // Build our test packet
         IPacket testPacket = new Ethernet()
@@ -248,6 +249,7 @@ public class ControllerTest extends FloodlightTestCase {
         expect(test1.receive(eq(sw), eq(pi), isA(FloodlightContext.class))).andReturn(Command.STOP);       
         //expect(test1.getId()).andReturn(0).anyTimes();
         expect(sw.getStringId()).andReturn("00:00:00:00:00:00:00").anyTimes();
+        expect(sw.getId()).andReturn(0L).anyTimes();
         replay(test1, test2, sw);
         controller.handleMessage(sw, pi, null);
         verify(test1, test2, sw);
@@ -0,0 +1,145 @@
+/**
+*    Copyright 2012, Big Switch Networks, Inc.
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.core.internal;
+
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.internal.OFMessageDispatchEngine.IDispatchTarget;
+import net.floodlightcontroller.core.internal.OFMessageDispatchEngine.OverflowPolicy;
+import net.floodlightcontroller.core.internal.OFMessageDispatchEngine.SwitchQueue;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+import org.junit.After;
+import org.junit.Test;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPortStatus;
+
+public class OFMessageDispatchEngineTest extends FloodlightTestCase {
+    protected OFMessageDispatchEngine engine;
+
+    @After
+    public void tearDown() throws Exception {
+        if (engine != null)
+            engine.shutdown();
+    }
+
+    protected class RecordingTarget implements IDispatchTarget {
+        List<Integer> xids =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        CountDownLatch done;
+        CountDownLatch release;
+
+        public RecordingTarget(int expected, CountDownLatch release) {
+            this.done = new CountDownLatch(expected);
+            this.release = release;
+        }
+
+        @Override
+        public void dispatchMessage(OFMessage m) throws Exception {
+            if (release != null)
+                release.await();
+            xids.add(m.getXid());
+            done.countDown();
+        }
+    }
+
+    protected OFMessage packetIn(int xid) {
+        OFMessage m = new OFPacketIn();
+        m.setXid(xid);
+        return m;
+    }
+
+    @Test
+    public void testPerSwitchOrdering() throws Exception {
+        engine = new OFMessageDispatchEngine(4, 100000,
+                                             OverflowPolicy.DROP_PACKET_IN);
+        int count = 5000;
+        RecordingTarget[] targets = new RecordingTarget[4];
+        SwitchQueue[] queues = new SwitchQueue[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = new RecordingTarget(count, null);
+            queues[i] = engine.createQueue(createNiceMock(IOFSwitch.class),
+                                           null, targets[i]);
+        }
+        for (int xid = 0; xid < count; xid++) {
+            for (SwitchQueue queue : queues) {
+                assertTrue(queue.offer(packetIn(xid)));
+            }
+        }
+        for (RecordingTarget target : targets) {
+            assertTrue(target.done.await(10, TimeUnit.SECONDS));
+            for (int xid = 0; xid < count; xid++) {
+                assertEquals(xid, target.xids.get(xid).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void testDropPacketInsOnly() throws Exception {
+        engine = new OFMessageDispatchEngine(1, 2,
+                                             OverflowPolicy.DROP_PACKET_IN);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingTarget target = new RecordingTarget(1, release);
+        SwitchQueue queue =
+                engine.createQueue(createNiceMock(IOFSwitch.class),
+                                   null, target);
+
+        // The first message may already be held by the blocked worker,
+        // so fill the queue until a packet-in is refused
+        int xid = 0;
+        while (queue.offer(packetIn(xid)))
+            xid++;
+        int accepted = xid;
+        assertTrue(accepted >= 2);
+        assertEquals(1L, queue.getStats().get("dropped-packet-ins"));
+
+        OFPortStatus ps = new OFPortStatus();
+        ps.setXid(1000);
+        assertTrue("PORT_STATUS must never be dropped", queue.offer(ps));
+
+        target.done = new CountDownLatch(accepted + 1);
+        release.countDown();
+        assertTrue(target.done.await(10, TimeUnit.SECONDS));
+        assertEquals(accepted + 1, target.xids.size());
+        assertEquals(Integer.valueOf(1000),
+                     target.xids.get(target.xids.size() - 1));
+    }
+
+    @Test
+    public void testDispatchInfoBeforeFeaturesReply() throws Exception {
+        engine = new OFMessageDispatchEngine(1, 10,
+                                             OverflowPolicy.DROP_PACKET_IN);
+        // No string ID until the features reply arrives
+        IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        replay(sw);
+        engine.createQueue(sw, null, new RecordingTarget(0, null));
+
+        Map<String, Object> info = engine.getInfo("dispatch");
+        assertEquals(1, info.size());
+        assertTrue(info.containsKey("00:00:00:00:00:00:00:01"));
+    }
+}
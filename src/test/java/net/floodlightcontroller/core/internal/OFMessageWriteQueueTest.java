@@ -0,0 +1,118 @@
+package net.floodlightcontroller.core.internal;
+
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.easymock.EasyMock.verify;
+
+import java.util.List;
+
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+import org.easymock.Capture;
+import org.easymock.CaptureType;
+import org.jboss.netty.channel.Channel;
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+
+public class OFMessageWriteQueueTest extends FloodlightTestCase {
+    protected Channel channel;
+    protected OFMessageWriteQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        channel = createMock(Channel.class);
+        queue = new OFMessageWriteQueue(channel);
+    }
+
+    protected OFMessage packetOut(int xid) {
+        OFMessage m = new OFPacketOut();
+        m.setXid(xid);
+        return m;
+    }
+
+    @Test
+    public void testCoalesceUntilFlush() throws Exception {
+        Capture<List<OFMessage>> batch = new Capture<List<OFMessage>>();
+        expect(channel.write(capture(batch))).andReturn(null);
+        replay(channel);
+
+        queue.write(new OFFlowMod(), false);
+        queue.write(packetOut(1), false);
+        assertEquals(2, queue.getPending());
+        // Anything but PACKET_OUT/FLOW_MOD is written with the pending batch
+        queue.write(new OFEchoRequest(), true);
+        verify(channel);
+
+        assertEquals(3, batch.getValue().size());
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    public void testFlushOnBatchSize() throws Exception {
+        Capture<List<OFMessage>> batches =
+                new Capture<List<OFMessage>>(CaptureType.ALL);
+        expect(channel.write(capture(batches))).andReturn(null).times(2);
+        replay(channel);
+
+        queue.setBatchSize(10);
+        for (int i = 0; i < 25; i++) {
+            queue.write(packetOut(i), false);
+        }
+        verify(channel);
+        assertEquals(10, batches.getValues().get(0).size());
+        assertEquals(10, batches.getValues().get(1).size());
+        assertEquals(5, queue.getPending());
+    }
+
+    @Test
+    public void testHoldBackWhileNotWritable() throws Exception {
+        replay(channel);
+        queue.setCapacity(5);
+        queue.setWritable(false);
+        for (int i = 0; i < 10; i++) {
+            queue.write(packetOut(i), true);
+        }
+        // Only PACKET_OUTs are dropped once the queue is at capacity
+        assertTrue(queue.write(new OFFlowMod(), true));
+        verify(channel);
+        assertEquals(6, queue.getPending());
+        assertEquals(5L, queue.getStats().get("dropped-packet-outs"));
+
+        reset(channel);
+        Capture<List<OFMessage>> batch = new Capture<List<OFMessage>>();
+        expect(channel.write(capture(batch))).andReturn(null);
+        replay(channel);
+        queue.setWritable(true);
+        verify(channel);
+        assertEquals(6, batch.getValue().size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, batch.getValue().get(i).getXid());
+        }
+    }
+
+    @Test
+    public void testDisconnectOnOverflow() throws Exception {
+        expect(channel.getRemoteAddress()).andReturn(null).anyTimes();
+        expect(channel.close()).andReturn(null).once();
+        replay(channel);
+        queue.setCapacity(5);
+        queue.setWritable(false);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.write(new OFFlowMod(), false));
+        }
+        // Past twice the capacity the switch is disconnected
+        assertFalse(queue.write(new OFFlowMod(), false));
+        assertFalse(queue.write(new OFFlowMod(), false));
+        verify(channel);
+        assertEquals(0, queue.getPending());
+        assertEquals(1L, queue.getStats().get("overflow-disconnects"));
+    }
+}
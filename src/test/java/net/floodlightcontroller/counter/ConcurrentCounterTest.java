@@ -0,0 +1,63 @@
+package net.floodlightcontroller.counter;
+
+import java.util.Date;
+
+import net.floodlightcontroller.counter.ICounter.DateSpan;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+import org.junit.Test;
+
+public class ConcurrentCounterTest extends FloodlightTestCase {
+
+    protected long sum(long[] series) {
+        long sum = 0;
+        for (long v : series) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        final ConcurrentCounter c =
+                (ConcurrentCounter) ConcurrentCounter.createCounter(new Date());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        c.increment();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(80000, c.getCounterValue().getLong());
+        CountSeries minutes = c.snapshot(DateSpan.MINUTES);
+        assertEquals(80000, sum(minutes.getSeries()));
+        CountSeries seconds = c.snapshot(DateSpan.SECONDS);
+        assertEquals(80000, sum(seconds.getSeries()));
+        ConcurrentCounter.destroyCounter(c);
+    }
+
+    @Test
+    public void testDatedIncrementAndReset() throws Exception {
+        Date start = new Date();
+        ConcurrentCounter c =
+                (ConcurrentCounter) ConcurrentCounter.createCounter(start);
+        c.increment(new Date(start.getTime() + 1000), 5);
+        c.increment();
+        assertEquals(6, c.getCounterValue().getLong());
+        assertEquals(6, sum(c.snapshot(DateSpan.HOURS).getSeries()));
+
+        c.reset(new Date());
+        assertEquals(0, c.getCounterValue().getLong());
+        assertEquals(0, sum(c.snapshot(DateSpan.HOURS).getSeries()));
+        ConcurrentCounter.destroyCounter(c);
+    }
+}
@@ -0,0 +1,129 @@
+package net.floodlightcontroller.counter;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import java.util.List;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.counter.CounterStore.NetworkLayer;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.BasicFactory;
+
+public class CounterStoreTest extends FloodlightTestCase {
+    protected CounterStore counterStore;
+    protected IOFSwitch sw;
+    protected String dpid = "00:00:00:00:00:00:00:01";
+
+    @Override
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        counterStore = new CounterStore();
+        sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        expect(sw.getStringId()).andReturn(dpid).anyTimes();
+        replay(sw);
+    }
+
+    protected OFPacketIn packetIn(Ethernet eth, short inPort) {
+        byte[] data = eth.serialize();
+        return ((OFPacketIn) new BasicFactory().getMessage(OFType.PACKET_IN))
+                .setBufferId(-1)
+                .setInPort(inPort)
+                .setPacketData(data)
+                .setTotalLength((short) data.length);
+    }
+
+    protected long value(String name) {
+        ICounter c = counterStore.getCounter(name);
+        assertNotNull(name, c);
+        return c.getCounterValue().getLong();
+    }
+
+    @Test
+    public void testPacketInCounters() throws Exception {
+        Ethernet eth = (Ethernet) new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(new IPv4()
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.2")
+                .setProtocol(IPv4.PROTOCOL_UDP)
+                .setPayload(new UDP()
+                    .setSourcePort((short) 5000)
+                    .setDestinationPort((short) 5001)
+                    .setPayload(new Data(new byte[] {1, 2, 3}))));
+        OFPacketIn pi = packetIn(eth, (short) 3);
+        Ethernet parsed = new Ethernet();
+        parsed.deserialize(pi.getPacketData(), 0, pi.getPacketData().length);
+
+        counterStore.updatePacketInCounters(sw, pi, parsed);
+        counterStore.updatePacketInCounters(sw, pi, parsed);
+        verify(sw);
+
+        String c = ICounterStoreService.CONTROLLER_NAME;
+        String d = ICounterStoreService.TitleDelimitor;
+        assertEquals(2, value(c + d + "OFPacketIn"));
+        assertEquals(2, value(dpid + d + "OFPacketIn"));
+        assertEquals(2, value(dpid + d + "3" + d + "OFPacketIn"));
+        assertEquals(2, value(c + d + "OFPacketIn" + d + "unicast"));
+        assertEquals(2, value(dpid + d + "3" + d + "OFPacketIn" + d +
+                              "L3_IPv4"));
+        assertEquals(2, value(dpid + d + "OFPacketIn" + d + "L4_UDP"));
+
+        List<String> categories =
+                counterStore.getAllCategories(dpid + d + "OFPacketIn",
+                                              NetworkLayer.L4);
+        assertTrue(categories.contains("L4_UDP"));
+    }
+
+    @Test
+    public void testEtherTypes() throws Exception {
+        String d = ICounterStoreService.TitleDelimitor;
+        String prefix = dpid + d + "OFPacketIn" + d;
+        Ethernet eth = (Ethernet) new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("ff:ff:ff:ff:ff:ff")
+            .setEtherType((short) 0x88cc)
+            .setPayload(new Data(new byte[] {1, 2, 3}));
+        OFPacketIn pi = packetIn(eth, (short) 1);
+        counterStore.updatePacketInCounters(sw, pi, eth);
+        assertEquals(1, value(prefix + "L3_LLDP"));
+        assertEquals(1, value(prefix + "broadcast"));
+
+        eth.setEtherType((short) 0x1234);
+        counterStore.updatePacketInCounters(sw, pi, eth);
+        assertEquals(1, value(prefix + "L3_1234"));
+
+        eth.setEtherType((short) 0x0100);
+        counterStore.updatePacketInCounters(sw, pi, eth);
+        assertEquals(1, value(prefix + "L3_V1Ether"));
+    }
+
+    @Test
+    public void testPktOutFMCounters() throws Exception {
+        OFFlowMod fm = (OFFlowMod) new BasicFactory()
+                .getMessage(OFType.FLOW_MOD);
+        counterStore.updatePktOutFMCounterStore(sw, fm);
+        counterStore.updatePktOutFMCounterStore(sw, fm);
+
+        String d = ICounterStoreService.TitleDelimitor;
+        assertEquals(2, value(ICounterStoreService.CONTROLLER_NAME + d +
+                              "OFFlowMod"));
+        assertEquals(2, value(dpid + d + "OFFlowMod"));
+    }
+}
@@ -0,0 +1,197 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import net.floodlightcontroller.devicemanager.DeviceUpdate;
+import net.floodlightcontroller.devicemanager.DeviceUpdate.Change;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceBatchListener;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+public class DeviceEventBusTest extends TestCase {
+    protected ScheduledExecutorService ses;
+    protected DeviceManagerImpl deviceManager;
+
+    /**
+     * A batch listener that records the batches it receives
+     */
+    protected static class BatchListener implements IDeviceBatchListener {
+        protected List<List<DeviceUpdate>> batches =
+                new ArrayList<List<DeviceUpdate>>();
+        protected CountDownLatch received = new CountDownLatch(1);
+
+        @Override
+        public void devicesUpdated(List<DeviceUpdate> updates) {
+            batches.add(new ArrayList<DeviceUpdate>(updates));
+            received.countDown();
+        }
+
+        @Override
+        public void deviceAdded(IDevice device) {
+            fail("Batch listeners only get batches");
+        }
+
+        @Override
+        public void deviceRemoved(IDevice device) {
+            fail("Batch listeners only get batches");
+        }
+
+        @Override
+        public void deviceMoved(IDevice device) {
+            fail("Batch listeners only get batches");
+        }
+
+        @Override
+        public void deviceIPV4AddrChanged(IDevice device) {
+            fail("Batch listeners only get batches");
+        }
+
+        @Override
+        public void deviceVlanChanged(IDevice device) {
+            fail("Batch listeners only get batches");
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ses = Executors.newSingleThreadScheduledExecutor();
+        deviceManager = new DeviceManagerImpl();
+        deviceManager.deviceListeners = new HashSet<IDeviceListener>();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ses.shutdownNow();
+        super.tearDown();
+    }
+
+    protected IDevice createDevice(long deviceKey) {
+        IDevice device = createNiceMock(IDevice.class);
+        expect(device.getDeviceKey()).andReturn(deviceKey).anyTimes();
+        replay(device);
+        return device;
+    }
+
+    @Test
+    public void testOrderingAndMerging() throws Exception {
+        IDevice d1 = createDevice(1L);
+        IDevice d2 = createDevice(2L);
+        IDevice d2b = createDevice(2L);
+
+        IDeviceListener listener = createStrictMock(IDeviceListener.class);
+        listener.deviceAdded(d1);
+        listener.deviceIPV4AddrChanged(d1);
+        listener.deviceVlanChanged(d1);
+        listener.deviceAdded(d2);
+        listener.deviceMoved(d2b);
+        replay(listener);
+        BatchListener batchListener = new BatchListener();
+        deviceManager.deviceListeners.add(listener);
+        deviceManager.deviceListeners.add(batchListener);
+
+        // The window is long enough that only flush dispatches
+        DeviceEventBus bus = new DeviceEventBus(deviceManager, ses, 3600000);
+        bus.post(new DeviceUpdate(d1, Change.ADD, null));
+        bus.post(new DeviceUpdate(d1, Change.CHANGE,
+                                  EnumSet.of(DeviceField.IPV4)));
+        bus.post(new DeviceUpdate(d2, Change.ADD, null));
+        bus.post(new DeviceUpdate(d1, Change.CHANGE,
+                                  EnumSet.of(DeviceField.VLAN)));
+        bus.post(new DeviceUpdate(d2, Change.MOVED, null));
+        bus.post(new DeviceUpdate(d2b, Change.MOVED, null));
+        assertEquals(4, bus.getPendingCount());
+
+        bus.flush();
+        verify(listener);
+        assertEquals(1, batchListener.batches.size());
+        List<DeviceUpdate> batch = batchListener.batches.get(0);
+        assertEquals(4, batch.size());
+        assertSame(d1, batch.get(0).getDevice());
+        assertEquals(Change.ADD, batch.get(0).getChange());
+        assertEquals(Change.CHANGE, batch.get(1).getChange());
+        assertEquals(EnumSet.of(DeviceField.IPV4, DeviceField.VLAN),
+                     batch.get(1).getFieldsChanged());
+        assertSame(d2, batch.get(2).getDevice());
+        assertEquals(Change.ADD, batch.get(2).getChange());
+        assertSame(d2b, batch.get(3).getDevice());
+        assertEquals(Change.MOVED, batch.get(3).getChange());
+
+        assertEquals(0, bus.getPendingCount());
+        assertEquals(6, bus.getPostedCount());
+        assertEquals(2, bus.getMergedCount());
+        assertEquals(1, bus.getBatchCount());
+
+        // Nothing left to dispatch
+        bus.flush();
+        assertEquals(1, batchListener.batches.size());
+    }
+
+    @Test
+    public void testDispatchAfterWindow() throws Exception {
+        BatchListener batchListener = new BatchListener();
+        deviceManager.deviceListeners.add(batchListener);
+
+        DeviceEventBus bus = new DeviceEventBus(deviceManager, ses, 10);
+        IDevice d1 = createDevice(1L);
+        bus.post(new DeviceUpdate(d1, Change.ADD, null));
+        bus.post(new DeviceUpdate(d1, Change.DELETE, null));
+
+        assertTrue(batchListener.received.await(5, TimeUnit.SECONDS));
+        assertEquals(1, batchListener.batches.size());
+        assertEquals(2, batchListener.batches.get(0).size());
+        assertEquals(Change.DELETE,
+                     batchListener.batches.get(0).get(1).getChange());
+    }
+
+    @Test
+    public void testThrowingListener() throws Exception {
+        IDevice d1 = createDevice(1L);
+        IDevice d2 = createDevice(2L);
+
+        IDeviceListener failing = createStrictMock(IDeviceListener.class);
+        failing.deviceAdded(d1);
+        expectLastCall().andThrow(new RuntimeException("listener bug"));
+        failing.deviceAdded(d2);
+        IDeviceListener listener = createStrictMock(IDeviceListener.class);
+        listener.deviceAdded(d1);
+        listener.deviceAdded(d2);
+        replay(failing, listener);
+        BatchListener failingBatchListener = new BatchListener() {
+            @Override
+            public void devicesUpdated(List<DeviceUpdate> updates) {
+                super.devicesUpdated(updates);
+                throw new RuntimeException("batch listener bug");
+            }
+        };
+        BatchListener batchListener = new BatchListener();
+        deviceManager.deviceListeners.add(failing);
+        deviceManager.deviceListeners.add(listener);
+        deviceManager.deviceListeners.add(failingBatchListener);
+        deviceManager.deviceListeners.add(batchListener);
+
+        DeviceEventBus bus = new DeviceEventBus(deviceManager, ses, 3600000);
+        bus.post(new DeviceUpdate(d1, Change.ADD, null));
+        bus.post(new DeviceUpdate(d2, Change.ADD, null));
+        bus.flush();
+
+        // Every listener got every update despite the exceptions
+        verify(failing, listener);
+        assertEquals(1, failingBatchListener.batches.size());
+        assertEquals(1, batchListener.batches.size());
+        assertEquals(2, batchListener.batches.get(0).size());
+    }
+}
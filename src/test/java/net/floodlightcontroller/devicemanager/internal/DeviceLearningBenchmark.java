@@ -0,0 +1,185 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockFloodlightProvider;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.devicemanager.IEntityClassifierService;
+import net.floodlightcontroller.flowcache.FlowReconcileManager;
+import net.floodlightcontroller.flowcache.IFlowReconcileService;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+import net.floodlightcontroller.topology.ITopologyService;
+
+/**
+ * Measures the throughput of learning the source of packet-ins from hosts
+ * the device manager already knows, through the known entity fast path
+ * and through the full learning path, along with the bytes allocated per
+ * packet where the JVM can report them.
+ *
+ * Not run as part of the unit tests. Run it with
+ * java -cp target/bin:target/bin-test:lib/* \
+ *     net.floodlightcontroller.devicemanager.internal.DeviceLearningBenchmark \
+ *     [hosts] [packets]
+ */
+public class DeviceLearningBenchmark {
+    protected static final int PORTS = 48;
+    protected static final int ROUNDS = 5;
+
+    /**
+     * A topology with a single L2 domain. A plain proxy is much cheaper to
+     * call than a mock, which would otherwise dominate the measurements.
+     */
+    protected static ITopologyService createTopology() {
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getL2DomainId"))
+                    return 1L;
+                if (method.getReturnType() == boolean.class)
+                    return Boolean.FALSE;
+                return null;
+            }
+        };
+        return (ITopologyService) Proxy.newProxyInstance(
+                ITopologyService.class.getClassLoader(),
+                new Class<?>[] { ITopologyService.class }, handler);
+    }
+
+    protected static MockThreadPoolService tp;
+
+    protected static DeviceManagerImpl createDeviceManager() throws Exception {
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        tp = new MockThreadPoolService();
+        DeviceManagerImpl deviceManager = new DeviceManagerImpl() {
+            // Every port is an attachment point. This keeps the cost of
+            // calling the topology out of the measurements.
+            @Override
+            public boolean isValidAttachmentPoint(long switchDPID,
+                                                  int switchPort) {
+                return true;
+            }
+        };
+        FlowReconcileManager flowReconcileMgr = new FlowReconcileManager();
+        DefaultEntityClassifier entityClassifier =
+                new DefaultEntityClassifier();
+        fmc.addService(IThreadPoolService.class, tp);
+        fmc.addService(IFloodlightProviderService.class,
+                       new MockFloodlightProvider());
+        fmc.addService(IFlowReconcileService.class, flowReconcileMgr);
+        fmc.addService(IEntityClassifierService.class, entityClassifier);
+        fmc.addService(ITopologyService.class, createTopology());
+        tp.init(fmc);
+        deviceManager.init(fmc);
+        flowReconcileMgr.init(fmc);
+        entityClassifier.init(fmc);
+        deviceManager.startUp(fmc);
+        flowReconcileMgr.startUp(fmc);
+        tp.startUp(fmc);
+        entityClassifier.startUp(fmc);
+        return deviceManager;
+    }
+
+    protected static Ethernet createPacket(int host) {
+        byte[] mac = Ethernet.toByteArray(0x020000000000L + host);
+        return (Ethernet) new Ethernet()
+            .setSourceMACAddress(mac)
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(new IPv4()
+                .setSourceAddress(0x0a000000 + host)
+                .setDestinationAddress("10.255.255.254")
+                .setProtocol(IPv4.PROTOCOL_UDP)
+                .setPayload(new UDP()
+                    .setSourcePort((short) 5000)
+                    .setDestinationPort((short) 5001)
+                    .setPayload(new Data(new byte[] {1, 2, 3}))));
+    }
+
+    protected static long allocatedBytes(ThreadMXBean bean) {
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean b =
+                    (com.sun.management.ThreadMXBean) bean;
+            if (b.isThreadAllocatedMemorySupported() &&
+                    b.isThreadAllocatedMemoryEnabled())
+                return b.getThreadAllocatedBytes(
+                        Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Learn the sources of the packets round robin
+     * @return the time taken in nanoseconds and the bytes allocated
+     */
+    protected static long[] run(DeviceManagerImpl deviceManager,
+                                Ethernet[] packets, int count,
+                                boolean fastPath) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long bytes = allocatedBytes(bean);
+        long start = System.nanoTime();
+        long keys = 0; // keeps the lookups from being optimized away
+        for (int i = 0; i < count; i++) {
+            int host = i % packets.length;
+            long sw = 1 + host / PORTS;
+            int port = 1 + host % PORTS;
+            Device d;
+            if (fastPath) {
+                d = deviceManager.learnSourceDevice(packets[host], sw, port);
+            } else {
+                d = deviceManager.learnDeviceByEntity(
+                        deviceManager.getSourceEntityFromPacket(packets[host],
+                                                                sw, port));
+            }
+            keys += d.getDeviceKey();
+        }
+        long ns = System.nanoTime() - start;
+        if (keys == 42) System.out.print("");
+        long allocated = allocatedBytes(bean);
+        return new long[] { ns, (bytes < 0) ? -1 : allocated - bytes };
+    }
+
+    public static void main(String[] args) throws Exception {
+        int hosts = 10000;
+        int count = 2000000;
+        if (args.length > 0) hosts = Integer.parseInt(args[0]);
+        if (args.length > 1) count = Integer.parseInt(args[1]);
+
+        DeviceManagerImpl deviceManager = createDeviceManager();
+        Ethernet[] packets = new Ethernet[hosts];
+        for (int i = 0; i < hosts; i++) {
+            packets[i] = createPacket(i);
+        }
+        // Learn every host, then warm up both paths
+        run(deviceManager, packets, hosts * 2, true);
+        run(deviceManager, packets, count, false);
+        run(deviceManager, packets, count, true);
+
+        System.out.println("hosts " + hosts + ", packets " + count);
+        System.out.println("path      packets/s  ns/packet  bytes/packet");
+        for (int r = 0; r < ROUNDS; r++) {
+            for (boolean fastPath : new boolean[] { false, true }) {
+                long[] result = run(deviceManager, packets, count, fastPath);
+                System.out.println(String.format(
+                        "%-8s %10.0f %10.1f %13s",
+                        fastPath ? "known" : "full",
+                        count / (result[0] / 1e9),
+                        (double) result[0] / count,
+                        (result[1] < 0) ? "n/a" :
+                            String.format("%.1f",
+                                          (double) result[1] / count)));
+            }
+        }
+        tp.getScheduledExecutor().shutdownNow();
+    }
+}
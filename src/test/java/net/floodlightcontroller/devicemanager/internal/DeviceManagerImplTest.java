@@ -29,7 +29,6 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static org.easymock.EasyMock.expectLastCall;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -61,6 +60,7 @@ import net.floodlightcontroller.storage.memory.MemoryStorageSource;
 import net.floodlightcontroller.test.FloodlightTestCase;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
+import net.floodlightcontroller.util.ConcurrentLongHashMap;
 import static org.junit.Assert.*;
 
 import org.easymock.EasyMock;
@@ -126,6 +126,8 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
         tp.init(fmc);
         restApi.init(fmc);
         storageSource.init(fmc);
+        // Notify the mock listeners before the learning calls return
+        fmc.addConfigParam(deviceManager, "asyncnotification", "false");
         deviceManager.init(fmc);
         flowReconcileMgr.init(fmc);
         entityClassifier.init(fmc);
@@ -918,7 +920,7 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
     }
     
     /*
-     * A ConcurrentHashMap for devices (deviceMap) that can be used to test 
+     * A ConcurrentLongHashMap for devices (deviceMap) that can be used to test 
      * code that specially handles concurrent modification situations. In
      * particular, we overwrite values() and will replace / remove all the
      * elements returned by values. 
@@ -927,8 +929,7 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
      * values() should be removed or replaced.
      */
     protected static class ConcurrentlyModifiedDeviceMap
-                            extends ConcurrentHashMap<Long, Device> {
-        private static final long serialVersionUID = 7784938535441180562L;
+                            extends ConcurrentLongHashMap<Device> {
         protected boolean remove;
         public ConcurrentlyModifiedDeviceMap(boolean remove) {
             super();
@@ -960,7 +961,7 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
                                                      e.ipv4Address,
                                                      e.switchDPID,
                                                      e.switchPort,
-                                                     e.lastSeenTimestamp);
+                                                     e.getLastSeenTimestamp());
                         if (e.vlan == null) 
                             curEntities[i].vlan = (short)1;
                         else 
@@ -977,6 +978,68 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
         }
     }
    
+    @Test
+    public void testKnownEntityRefresh() throws Exception {
+        ITopologyService mockTopology = createMock(ITopologyService.class);
+        expect(mockTopology.isAttachmentPointPort(anyLong(), anyShort())).
+        andReturn(true).anyTimes();
+        expect(mockTopology.getL2DomainId(anyLong())).andReturn(1L).anyTimes();
+        expect(mockTopology.isConsistent(anyLong(), anyShort(), anyLong(),
+                                         anyShort())).
+                                         andReturn(false).anyTimes();
+        expect(mockTopology.isBroadcastDomainPort(anyLong(), anyShort())).
+        andReturn(false).anyTimes();
+        expect(mockTopology.isInSameBroadcastDomain(anyLong(), anyShort(),
+                                                    anyLong(), anyShort())).
+                                                    andReturn(false).anyTimes();
+        replay(mockTopology);
+        deviceManager.topology = mockTopology;
+
+        Ethernet eth = (Ethernet) new Ethernet()
+            .setSourceMACAddress("00:44:33:22:11:00")
+            .setDestinationMACAddress("00:11:22:33:44:55")
+            .setVlanID((short) 5)
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(new IPv4()
+                .setSourceAddress("192.168.1.1")
+                .setDestinationAddress("192.168.1.2"));
+        long mac = Ethernet.toLong(eth.getSourceMACAddress());
+
+        Device d = deviceManager.learnSourceDevice(eth, 1L, 1);
+        assertNotNull(d);
+        Entity entity = d.getEntities()[0];
+
+        // The same source is refreshed in place
+        long now = entity.getLastSeen() + 1000;
+        assertSame(d, deviceManager.learnKnownEntity(mac, (short) 5, 0,
+                                                     1L, 1, now));
+        assertEquals(now, entity.getLastSeen());
+        assertEquals(now, d.attachmentPoints.get(0).getLastSeen());
+        assertSame(d, deviceManager.learnSourceDevice(eth, 1L, 1));
+        assertSame(d, deviceManager.getDevice(d.getDeviceKey()));
+
+        // Anything new goes through the indices
+        assertNull(deviceManager.learnKnownEntity(mac, (short) 5, 1,
+                                                  1L, 1, now));
+        assertNull(deviceManager.learnKnownEntity(mac, (short) 6, 0,
+                                                  1L, 1, now));
+        assertNull(deviceManager.learnKnownEntity(mac, (short) 5, 0,
+                                                  1L, 2, now));
+        Device moved = deviceManager.learnSourceDevice(eth, 5L, 2);
+        assertEquals(d.getDeviceKey(), moved.getDeviceKey());
+        assertEquals(2, moved.getEntities().length);
+        // The old entity now resolves to the new device object
+        assertSame(moved, deviceManager.learnKnownEntity(mac, (short) 5, 0,
+                                                         1L, 1, now));
+
+        // Deleted devices are not refreshed
+        deviceManager.deleteDevice(moved);
+        assertNull(deviceManager.learnKnownEntity(mac, (short) 5, 0,
+                                                  5L, 2, now));
+        Device relearned = deviceManager.learnSourceDevice(eth, 5L, 2);
+        assertFalse(d.getDeviceKey().equals(relearned.getDeviceKey()));
+    }
+
     @Test
     public void testEntityExpiration() throws Exception {
         doTestEntityExpiration();
@@ -0,0 +1,75 @@
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class EntityExpiryWheelTest extends TestCase {
+
+    protected long[] sorted(long[] keys) {
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    @Test
+    public void testAdvance() throws Exception {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(1000, 10, 5000);
+        wheel.schedule(1L, 5025);
+        wheel.schedule(2L, 5051);
+        wheel.schedule(3L, 5059);
+        assertEquals(3, wheel.size());
+
+        assertEquals(0, wheel.advance(5015).length);
+        assertTrue(Arrays.equals(new long[] { 1L }, wheel.advance(5030)));
+        assertEquals(0, wheel.advance(5030).length);
+        assertTrue(Arrays.equals(new long[] { 2L, 3L },
+                                 sorted(wheel.advance(5055))));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testKeepsEarliestDeadline() throws Exception {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(1000, 10, 5000);
+        wheel.schedule(1L, 5500);
+        wheel.schedule(1L, 5100);
+        wheel.schedule(1L, 5300);
+        assertEquals(1, wheel.size());
+
+        assertTrue(Arrays.equals(new long[] { 1L }, wheel.advance(5100)));
+        // The entry left at the later deadline is stale
+        assertEquals(0, wheel.advance(5600).length);
+    }
+
+    @Test
+    public void testOverdueAndFarDeadlines() throws Exception {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(1000, 10, 5000);
+        wheel.advance(5000);
+        // Already past, comes due at the next tick
+        wheel.schedule(1L, 10);
+        // Beyond the horizon, comes due at the horizon
+        wheel.schedule(2L, 100000);
+
+        assertTrue(Arrays.equals(new long[] { 1L }, wheel.advance(5010)));
+        assertEquals(0, wheel.advance(5500).length);
+        assertTrue(Arrays.equals(new long[] { 2L }, wheel.advance(6100)));
+    }
+
+    @Test
+    public void testWrapAround() throws Exception {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(100, 10, 0);
+        long now = 0;
+        for (long key = 0; key < 100; key++) {
+            wheel.schedule(key, now + 95);
+            long[] due = wheel.advance(now);
+            for (long k : due) {
+                assertTrue(k <= key - 9);
+            }
+            now += 10;
+        }
+        // Skipping past every slot drains the whole wheel
+        assertTrue(wheel.advance(now + 10000).length > 0);
+        assertEquals(0, wheel.size());
+    }
+}
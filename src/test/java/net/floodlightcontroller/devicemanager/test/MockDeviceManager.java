@@ -6,6 +6,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Set;
 
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IEntityClass;
@@ -20,6 +21,14 @@ import net.floodlightcontroller.devicemanager.internal.Entity;
  * @author readams
  */
 public class MockDeviceManager extends DeviceManagerImpl {
+    @Override
+    public void init(FloodlightModuleContext fmc) {
+        super.init(fmc);
+        // Tests expect the listeners to be notified before learnEntity
+        // returns
+        asyncNotification = false;
+    }
+
     /**
      * Set a new IEntityClassifier
      * Use this as a quick way to use a particular entity classifier in a 
@@ -0,0 +1,132 @@
+package net.floodlightcontroller.firewall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+
+/**
+ * Measures the time to find the rule matching a packet by trying every
+ * rule in order and with the compiled classifier, for rule sets of
+ * increasing size. The rules are service ACLs: each allows or denies a
+ * TCP or UDP port, some of them only on one switch, and most packets
+ * match none of them.
+ *
+ * Not run as part of the unit tests. Run it with
+ * java -cp target/bin:target/bin-test:lib/* \
+ *     net.floodlightcontroller.firewall.FirewallClassifierBenchmark [sizes]
+ */
+public class FirewallClassifierBenchmark {
+    protected static final int PACKETS = 10000;
+    protected static final int ROUNDS = 20;
+    protected static final int SERVICES = 2000;
+
+    protected static List<FirewallRule> createRules(int count, Random rand) {
+        List<FirewallRule> rules = new ArrayList<FirewallRule>(count);
+        for (int i = 0; i < count; i++) {
+            FirewallRule rule = new FirewallRule();
+            if (rand.nextBoolean()) {
+                rule.dpid = rand.nextInt(FirewallRuleClassifierTest.SWITCHES) + 1;
+                rule.wildcard_dpid = false;
+            }
+            rule.dl_type = Ethernet.TYPE_IPv4;
+            rule.wildcard_dl_type = false;
+            rule.nw_proto = rand.nextBoolean() ?
+                    IPv4.PROTOCOL_TCP : IPv4.PROTOCOL_UDP;
+            rule.wildcard_nw_proto = false;
+            rule.tp_dst = (short) (rand.nextInt(SERVICES) + 1);
+            rule.wildcard_tp_dst = false;
+            rule.priority = count - i;
+            rule.action = rand.nextBoolean() ?
+                    FirewallRule.FirewallAction.ALLOW :
+                    FirewallRule.FirewallAction.DENY;
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    protected static Ethernet createPacket(Random rand) {
+        short port = (short) (rand.nextInt(4 * SERVICES) + 1);
+        IPacket transport = rand.nextBoolean() ?
+                new TCP().setSourcePort((short) 40000)
+                         .setDestinationPort(port) :
+                new UDP().setSourcePort((short) 40000)
+                         .setDestinationPort(port);
+        transport.setPayload(new Data(new byte[] {0x01}));
+        return (Ethernet) new Ethernet()
+            .setSourceMACAddress("00:00:00:00:00:01")
+            .setDestinationMACAddress("00:00:00:00:00:02")
+            .setEtherType(Ethernet.TYPE_IPv4)
+            .setPayload(new IPv4()
+                .setSourceAddress("10.0.0.1")
+                .setDestinationAddress("10.0.0.2")
+                .setProtocol(transport instanceof TCP ?
+                             IPv4.PROTOCOL_TCP : IPv4.PROTOCOL_UDP)
+                .setPayload(transport));
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = { 10, 100, 1000, 5000 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("rules  scan(ns)  tree(ns)  nodes  leaves  " +
+                           "max-leaf  build(ms)");
+        Random rand = new Random(42);
+        for (int size : sizes) {
+            List<FirewallRule> rules = createRules(size, rand);
+            long[] dpids = new long[PACKETS];
+            short[] ports = new short[PACKETS];
+            List<Ethernet> packets = new ArrayList<Ethernet>(PACKETS);
+            for (int i = 0; i < PACKETS; i++) {
+                dpids[i] = rand.nextInt(FirewallRuleClassifierTest.SWITCHES) + 1;
+                ports[i] = (short)
+                        (rand.nextInt(FirewallRuleClassifierTest.PORTS) + 1);
+                packets.add(createPacket(rand));
+            }
+
+            long start = System.nanoTime();
+            FirewallRuleClassifier classifier =
+                    new FirewallRuleClassifier(rules);
+            double buildMs = (System.nanoTime() - start) / 1000000.0;
+
+            int found = 0;
+            long scanNanos = Long.MAX_VALUE;
+            long treeNanos = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                start = System.nanoTime();
+                for (int i = 0; i < PACKETS; i++) {
+                    if (FirewallRuleClassifierTest.scan(rules, dpids[i],
+                            ports[i], packets.get(i)) != null)
+                        found++;
+                }
+                scanNanos = Math.min(scanNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < PACKETS; i++) {
+                    if (classifier.match(dpids[i], ports[i],
+                                         packets.get(i)).rule != null)
+                        found--;
+                }
+                treeNanos = Math.min(treeNanos, System.nanoTime() - start);
+            }
+            if (found != 0)
+                throw new IllegalStateException("Classifier and scan differ");
+
+            System.out.println(String.format(
+                    "%5d  %8d  %8d  %5d  %6d  %8d  %9.1f",
+                    size, scanNanos / PACKETS, treeNanos / PACKETS,
+                    classifier.getNodeCount(), classifier.getLeafCount(),
+                    classifier.getMaxLeafSize(), buildMs));
+        }
+    }
+}
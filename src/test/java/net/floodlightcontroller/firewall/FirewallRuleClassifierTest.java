@@ -0,0 +1,230 @@
+package net.floodlightcontroller.firewall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPacket;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+import org.junit.Test;
+import org.openflow.protocol.OFMatch;
+
+public class FirewallRuleClassifierTest extends FloodlightTestCase {
+    protected static final int SWITCHES = 8;
+    protected static final int PORTS = 16;
+    protected static final short[] TP_PORTS = { 22, 53, 80, 443, 8080 };
+
+    /**
+     * Create random rules over a small set of switches, ports, hosts and
+     * services, so that rules overlap and packets match them
+     */
+    public static List<FirewallRule> createRules(int count, Random rand) {
+        List<FirewallRule> rules = new ArrayList<FirewallRule>(count);
+        for (int i = 0; i < count; i++) {
+            FirewallRule rule = new FirewallRule();
+            if (rand.nextInt(4) == 0) {
+                rule.dpid = rand.nextInt(SWITCHES) + 1;
+                rule.wildcard_dpid = false;
+            }
+            if (rand.nextInt(4) == 0) {
+                rule.in_port = (short) (rand.nextInt(PORTS) + 1);
+                rule.wildcard_in_port = false;
+            }
+            if (rand.nextInt(8) == 0) {
+                rule.dl_src = rand.nextInt(256) + 1;
+                rule.wildcard_dl_src = false;
+            }
+            int type = rand.nextInt(10);
+            if (type == 0) {
+                rule.dl_type = Ethernet.TYPE_ARP;
+                rule.wildcard_dl_type = false;
+            } else if (type == 1 && rand.nextBoolean()) {
+                // Not supported by the rules, so it matches no packet
+                rule.dl_type = (short) 0x86dd;
+                rule.wildcard_dl_type = false;
+            } else if (type > 1) {
+                rule.dl_type = Ethernet.TYPE_IPv4;
+                rule.wildcard_dl_type = false;
+                if (rand.nextBoolean()) {
+                    rule.nw_src_prefix = (10 << 24) | (rand.nextInt(16) << 8);
+                    rule.nw_src_maskbits = 24;
+                    rule.wildcard_nw_src = false;
+                }
+                if (rand.nextInt(4) == 0) {
+                    rule.nw_dst_prefix = (10 << 24) | rand.nextInt(256);
+                    rule.nw_dst_maskbits = 32;
+                    rule.wildcard_nw_dst = false;
+                }
+                int proto = rand.nextInt(6);
+                if (proto < 5) {
+                    rule.nw_proto = (proto == 0) ? IPv4.PROTOCOL_ICMP :
+                            (proto < 3) ? IPv4.PROTOCOL_TCP : IPv4.PROTOCOL_UDP;
+                    rule.wildcard_nw_proto = false;
+                    if (proto > 0 && rand.nextInt(5) > 0) {
+                        rule.tp_dst = TP_PORTS[rand.nextInt(TP_PORTS.length)];
+                        rule.wildcard_tp_dst = false;
+                    }
+                }
+            }
+            rule.priority = rand.nextInt(count);
+            rule.action = rand.nextBoolean() ?
+                    FirewallRule.FirewallAction.ALLOW :
+                    FirewallRule.FirewallAction.DENY;
+            rules.add(rule);
+        }
+        Collections.sort(rules);
+        return rules;
+    }
+
+    /**
+     * Create a random TCP, UDP, ICMP or ARP packet
+     */
+    public static Ethernet createPacket(Random rand) {
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(Ethernet.toByteArray(rand.nextInt(256) + 1));
+        eth.setDestinationMACAddress(Ethernet.toByteArray(rand.nextInt(256) + 1));
+        int kind = rand.nextInt(8);
+        if (kind == 0) {
+            eth.setEtherType(Ethernet.TYPE_ARP);
+            eth.setPayload(new ARP().setOpCode(ARP.OP_REPLY));
+            return eth;
+        }
+        IPacket transport;
+        byte proto;
+        if (kind == 1) {
+            proto = IPv4.PROTOCOL_ICMP;
+            transport = new ICMP();
+        } else if (kind < 5) {
+            proto = IPv4.PROTOCOL_TCP;
+            transport = new TCP()
+                .setSourcePort((short) (1024 + rand.nextInt(1000)))
+                .setDestinationPort(TP_PORTS[rand.nextInt(TP_PORTS.length)]);
+        } else {
+            proto = IPv4.PROTOCOL_UDP;
+            transport = new UDP()
+                .setSourcePort((short) (1024 + rand.nextInt(1000)))
+                .setDestinationPort(TP_PORTS[rand.nextInt(TP_PORTS.length)]);
+        }
+        transport.setPayload(new Data(new byte[] {0x01}));
+        eth.setEtherType(Ethernet.TYPE_IPv4);
+        eth.setPayload(new IPv4()
+            .setSourceAddress((10 << 24) | (rand.nextInt(16) << 8) |
+                              rand.nextInt(256))
+            .setDestinationAddress((10 << 24) | rand.nextInt(256))
+            .setProtocol(proto)
+            .setPayload(transport));
+        return eth;
+    }
+
+    /**
+     * Find the first matching rule by trying every rule in order
+     */
+    public static FirewallRule scan(List<FirewallRule> rules, long dpid,
+                                    short inPort, Ethernet eth) {
+        WildcardsPair wildcards = new WildcardsPair();
+        for (FirewallRule rule : rules) {
+            if (rule.matchesFlow(dpid, inPort, eth, wildcards))
+                return rule;
+        }
+        return null;
+    }
+
+    @Test
+    public void testNoRules() {
+        FirewallRuleClassifier classifier = new FirewallRuleClassifier(
+                new ArrayList<FirewallRule>());
+        Ethernet eth = createPacket(new Random(1));
+        RuleWildcardsPair ret = classifier.match(1L, (short) 1, eth);
+        assertNull(ret.rule);
+        assertEquals(OFMatch.OFPFW_ALL, ret.wildcards);
+    }
+
+    @Test
+    public void testMatchesLikeScan() {
+        Random rand = new Random(7);
+        for (int count : new int[] { 5, 50, 500 }) {
+            List<FirewallRule> rules = createRules(count, rand);
+            FirewallRuleClassifier classifier =
+                    new FirewallRuleClassifier(rules);
+            assertEquals(count, classifier.getRuleCount());
+            if (count > FirewallRuleClassifier.LEAF_SIZE)
+                assertTrue(classifier.getMaxLeafSize() < count);
+
+            for (int i = 0; i < 5000; i++) {
+                long dpid = rand.nextInt(SWITCHES + 1) + 1;
+                short inPort = (short) (rand.nextInt(PORTS + 1) + 1);
+                Ethernet eth = createPacket(rand);
+                RuleWildcardsPair ret = classifier.match(dpid, inPort, eth);
+                assertSame(scan(rules, dpid, inPort, eth), ret.rule);
+            }
+        }
+    }
+
+    @Test
+    public void testExaminedFieldsNotWildcarded() {
+        // Enough rules on different ports that the tree cuts on the port
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        for (short port = 1; port <= 20; port++) {
+            FirewallRule rule = new FirewallRule();
+            rule.in_port = port;
+            rule.wildcard_in_port = false;
+            rule.priority = port;
+            rules.add(rule);
+        }
+        FirewallRuleClassifier classifier = new FirewallRuleClassifier(rules);
+        Ethernet eth = createPacket(new Random(3));
+
+        RuleWildcardsPair ret = classifier.match(1L, (short) 5, eth);
+        assertSame(rules.get(4), ret.rule);
+        assertEquals(0, ret.wildcards & OFMatch.OFPFW_IN_PORT);
+
+        // No rule for the port, and the flow must still be per port
+        ret = classifier.match(1L, (short) 30, eth);
+        assertNull(ret.rule);
+        assertEquals(0, ret.wildcards & OFMatch.OFPFW_IN_PORT);
+    }
+
+    @Test
+    public void testUnsupportedEtherType() {
+        // Enough ARP and IPv4 rules that the tree cuts on the ethertype,
+        // none of them for a MAC address packets come from
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        for (int i = 1; i <= 20; i++) {
+            FirewallRule rule = new FirewallRule();
+            rule.dl_src = 1000 + i;
+            rule.wildcard_dl_src = false;
+            rule.dl_type = (i % 2 == 0) ? Ethernet.TYPE_ARP :
+                                           Ethernet.TYPE_IPv4;
+            rule.wildcard_dl_type = false;
+            rule.priority = i;
+            rules.add(rule);
+        }
+        // Matches no packet, but every packet has to be checked against it
+        FirewallRule other = new FirewallRule();
+        other.dl_type = (short) 0x86dd;
+        other.wildcard_dl_type = false;
+        other.action = FirewallRule.FirewallAction.DENY;
+        rules.add(other);
+        Collections.sort(rules);
+
+        FirewallRuleClassifier classifier = new FirewallRuleClassifier(rules);
+        Random rand = new Random(5);
+        for (int i = 0; i < 100; i++) {
+            Ethernet eth = createPacket(rand);
+            RuleWildcardsPair ret = classifier.match(1L, (short) 1, eth);
+            assertNull(scan(rules, 1L, (short) 1, eth));
+            assertNull(ret.rule);
+            // Checking the rule looks at the MAC addresses, as in a scan
+            assertEquals(0, ret.wildcards & OFMatch.OFPFW_DL_SRC);
+        }
+    }
+}
@@ -14,6 +14,8 @@ import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.test.MockFloodlightProvider;
+import net.floodlightcontroller.counter.CounterStore;
+import net.floodlightcontroller.counter.ICounterStoreService;
 import net.floodlightcontroller.packet.ARP;
 import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.Ethernet;
@@ -54,6 +56,7 @@ public class FirewallTest extends FloodlightTestCase {
     protected IPacket tcpPacketReply;
     protected IPacket broadcastMalformedPacket;
     private Firewall firewall;
+    private CounterStore counterStore;
     public static String TestSwitch1DPID = "00:00:00:00:00:00:00:01";
 
     @Before
@@ -64,6 +67,7 @@ public class FirewallTest extends FloodlightTestCase {
         firewall = new Firewall();
         IStorageSourceService storageService = new MemoryStorageSource();
         RestApiServer restApi = new RestApiServer();
+        counterStore = new CounterStore();
 
         // Mock switches
         long dpid = HexString.toLong(TestSwitch1DPID);
@@ -82,6 +86,7 @@ public class FirewallTest extends FloodlightTestCase {
         fmc.addService(IFirewallService.class, firewall);
         fmc.addService(IStorageSourceService.class, storageService);
         fmc.addService(IRestApiService.class, restApi);
+        fmc.addService(ICounterStoreService.class, counterStore);
 
         try {
             restApi.init(fmc);
@@ -365,6 +370,61 @@ public class FirewallTest extends FloodlightTestCase {
         assertEquals(decision.getRoutingAction(), IRoutingDecision.RoutingAction.DROP);
     }
 
+    protected long getCounter(String name) {
+        return counterStore.getCounter(CounterStore.createCounterName(
+                ICounterStoreService.CONTROLLER_NAME, -1, name))
+                .getCounterValue().getLong();
+    }
+
+    @Test
+    public void testVerdictCache() throws Exception {
+        firewall.enableFirewall(true);
+
+        FirewallRule rule = new FirewallRule();
+        rule.dl_type = Ethernet.TYPE_IPv4;
+        rule.wildcard_dl_type = false;
+        rule.nw_proto = IPv4.PROTOCOL_TCP;
+        rule.wildcard_nw_proto = false;
+        rule.priority = 1;
+        firewall.addRule(rule);
+
+        // the first packet-in of the flow evaluates the rules
+        this.setPacketIn(tcpPacket);
+        firewall.receive(sw, this.packetIn, cntx);
+        IRoutingDecision decision = IRoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+        assertEquals(IRoutingDecision.RoutingAction.FORWARD_OR_FLOOD, decision.getRoutingAction());
+        int wildcards = decision.getWildcards();
+        assertEquals(0, getCounter(FirewallVerdictCache.HIT_COUNTER_NAME));
+        assertEquals(1, getCounter(FirewallVerdictCache.MISS_COUNTER_NAME));
+
+        // the next one gets the cached verdict
+        IRoutingDecision.rtStore.remove(cntx, IRoutingDecision.CONTEXT_DECISION);
+        this.setPacketIn(tcpPacket);
+        firewall.receive(sw, this.packetIn, cntx);
+        decision = IRoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+        assertEquals(IRoutingDecision.RoutingAction.FORWARD_OR_FLOOD, decision.getRoutingAction());
+        assertEquals(wildcards, (int) decision.getWildcards());
+        assertEquals(1, getCounter(FirewallVerdictCache.HIT_COUNTER_NAME));
+        assertEquals(1, firewall.verdictCache.size());
+
+        // a different flow misses
+        IRoutingDecision.rtStore.remove(cntx, IRoutingDecision.CONTEXT_DECISION);
+        this.setPacketIn(tcpPacketReply);
+        firewall.receive(sw, this.packetIn, cntx);
+        assertEquals(2, getCounter(FirewallVerdictCache.MISS_COUNTER_NAME));
+
+        // removing the rule invalidates the cached verdict
+        firewall.deleteRule(rule.ruleid);
+        IRoutingDecision.rtStore.remove(cntx, IRoutingDecision.CONTEXT_DECISION);
+        this.setPacketIn(tcpPacket);
+        firewall.receive(sw, this.packetIn, cntx);
+        decision = IRoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+        assertEquals(IRoutingDecision.RoutingAction.DROP, decision.getRoutingAction());
+        assertEquals(1, getCounter(FirewallVerdictCache.HIT_COUNTER_NAME));
+        assertEquals(1, getCounter(FirewallVerdictCache.STALE_COUNTER_NAME));
+        assertEquals(3, getCounter(FirewallVerdictCache.MISS_COUNTER_NAME));
+    }
+
     @Test
     public void testOverlappingRules() throws Exception {
         firewall.enableFirewall(true);
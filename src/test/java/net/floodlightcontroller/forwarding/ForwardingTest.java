@@ -393,6 +393,131 @@ public class ForwardingTest extends FloodlightTestCase {
         assertTrue(m.equals(fm2));
     }
 
+    @Test
+    public void testForwardMultiSwitchPathWithBarriers() throws Exception {
+        learnDevices(DestDeviceToLearn.DEVICE1);
+        forwarding.getRouteInstaller().setUseBarriers(true);
+
+        Capture<OFMessage> wc1 = new Capture<OFMessage>(CaptureType.ALL);
+        Capture<OFMessage> wc2 = new Capture<OFMessage>(CaptureType.ALL);
+
+        Route route = new Route(1L, 2L);
+        List<NodePortTuple> nptList = new ArrayList<NodePortTuple>();
+        nptList.add(new NodePortTuple(1L, (short)1));
+        nptList.add(new NodePortTuple(1L, (short)3));
+        nptList.add(new NodePortTuple(2L, (short)1));
+        nptList.add(new NodePortTuple(2L, (short)3));
+        route.setPath(nptList);
+        expect(routingEngine.getRoute(1L, (short)1, 2L, (short)3)).andReturn(route).atLeastOnce();
+
+        sw1.write(capture(wc1), (FloodlightContext) anyObject());
+        expectLastCall().anyTimes();
+        sw2.write(capture(wc2), (FloodlightContext) anyObject());
+        expectLastCall().anyTimes();
+        expect(sw1.getNextTransactionId()).andReturn(11).once();
+        expect(sw2.getNextTransactionId()).andReturn(22).once();
+        // one flush with the route, one with the packet-out
+        sw1.flush();
+        expectLastCall().times(2);
+        sw2.flush();
+        expectLastCall().once();
+
+        reset(topology);
+        expect(topology.getL2DomainId(1L)).andReturn(1L).anyTimes();
+        expect(topology.getL2DomainId(2L)).andReturn(1L).anyTimes();
+        expect(topology.isAttachmentPointPort(1L,  (short)1)).andReturn(true).anyTimes();
+        expect(topology.isAttachmentPointPort(2L,  (short)3)).andReturn(true).anyTimes();
+        expect(topology.isIncomingBroadcastAllowed(anyLong(), anyShort())).andReturn(true).anyTimes();
+
+        replay(sw1, sw2, routingEngine, topology);
+        forwarding.receive(sw1, this.packetIn, cntx);
+
+        // each switch gets its flow mod followed by a barrier
+        assertEquals(2, wc1.getValues().size());
+        assertTrue(wc1.getValues().get(0) instanceof OFFlowMod);
+        assertEquals(OFType.BARRIER_REQUEST, wc1.getValues().get(1).getType());
+        assertEquals(11, wc1.getValues().get(1).getXid());
+        assertEquals(2, wc2.getValues().size());
+        assertTrue(wc2.getValues().get(0) instanceof OFFlowMod);
+        assertEquals(OFType.BARRIER_REQUEST, wc2.getValues().get(1).getType());
+        assertEquals(22, wc2.getValues().get(1).getXid());
+        assertEquals(2, forwarding.getRouteInstaller().getPendingCount());
+
+        // another packet-in of the flow waits for the same route
+        forwarding.receive(sw1, this.packetIn, cntx);
+        assertEquals(2, wc1.getValues().size());
+        assertEquals(2, wc2.getValues().size());
+
+        OFMessage reply = mockFloodlightProvider.getOFMessageFactory().
+                getMessage(OFType.BARRIER_REPLY);
+        reply.setXid(11);
+        forwarding.receive(sw1, reply, cntx);
+        // the downstream switch hasn't confirmed yet
+        assertEquals(2, wc1.getValues().size());
+        assertEquals(1, forwarding.getRouteInstaller().getPendingCount());
+
+        reply.setXid(22);
+        forwarding.receive(sw2, reply, cntx);
+        assertEquals(4, wc1.getValues().size());
+        assertEquals(packetOut, wc1.getValues().get(2));
+        assertEquals(packetOut, wc1.getValues().get(3));
+        assertEquals(0, forwarding.getRouteInstaller().getPendingCount());
+        assertEquals(1, forwarding.getRouteInstaller().getConfirmedCount());
+        Map<String, Object> info = forwarding.getInfo("routeinstaller");
+        assertEquals(2L, info.get("barriers"));
+        assertEquals(1L, info.get("confirmed"));
+        assertEquals(0L, info.get("timed-out"));
+        verify(sw1, sw2, routingEngine);
+    }
+
+    @Test
+    public void testBarrierTimeoutDropsWaitingPacketIns() throws Exception {
+        learnDevices(DestDeviceToLearn.DEVICE1);
+        forwarding.getRouteInstaller().setUseBarriers(true);
+        forwarding.getRouteInstaller().setBarrierTimeout(1);
+
+        Route route = new Route(1L, 2L);
+        List<NodePortTuple> nptList = new ArrayList<NodePortTuple>();
+        nptList.add(new NodePortTuple(1L, (short)1));
+        nptList.add(new NodePortTuple(1L, (short)3));
+        nptList.add(new NodePortTuple(2L, (short)1));
+        nptList.add(new NodePortTuple(2L, (short)3));
+        route.setPath(nptList);
+        expect(routingEngine.getRoute(1L, (short)1, 2L, (short)3)).andReturn(route).atLeastOnce();
+
+        // flow mods and barriers only, the packet-outs are never sent
+        sw1.write(anyObject(OFMessage.class), (FloodlightContext) anyObject());
+        expectLastCall().times(2);
+        sw2.write(anyObject(OFMessage.class), (FloodlightContext) anyObject());
+        expectLastCall().times(2);
+        expect(sw1.getNextTransactionId()).andReturn(11).once();
+        expect(sw2.getNextTransactionId()).andReturn(22).once();
+        sw1.flush();
+        expectLastCall().once();
+        sw2.flush();
+        expectLastCall().once();
+
+        reset(topology);
+        expect(topology.getL2DomainId(1L)).andReturn(1L).anyTimes();
+        expect(topology.getL2DomainId(2L)).andReturn(1L).anyTimes();
+        expect(topology.isAttachmentPointPort(1L,  (short)1)).andReturn(true).anyTimes();
+        expect(topology.isAttachmentPointPort(2L,  (short)3)).andReturn(true).anyTimes();
+        expect(topology.isIncomingBroadcastAllowed(anyLong(), anyShort())).andReturn(true).anyTimes();
+
+        replay(sw1, sw2, routingEngine, topology);
+        forwarding.receive(sw1, this.packetIn, cntx);
+        // waits for the route
+        forwarding.receive(sw1, this.packetIn, cntx);
+
+        Thread.sleep(10);
+        forwarding.getRouteInstaller().expire();
+        assertEquals(1, forwarding.getRouteInstaller().getTimedOutCount());
+        Map<String, Object> info = forwarding.getInfo("routeinstaller");
+        assertEquals(1L, info.get("packet-ins-dropped"));
+        assertEquals(0, forwarding.getFlowCoalescer().size());
+        verify(sw1, sw2, routingEngine);
+    }
+
     @Test
     public void testForwardSingleSwitchPath() throws Exception {        
         learnDevices(DestDeviceToLearn.DEVICE2);
@@ -474,7 +599,7 @@ public class ForwardingTest extends FloodlightTestCase {
     
         // Record expected packet-outs/flow-mods
         // We will inject the packet_in 3 times and expect 1 flow mod and
-        // 3 packet outs due to flow mod dampening
+        // 3 packet outs due to flow mod dampening and packet-in coalescing
         sw1.write(fm1, cntx);
         expectLastCall().once();
         sw1.write(packetOut, cntx);
@@ -494,6 +619,37 @@ public class ForwardingTest extends FloodlightTestCase {
         verify(sw1, routingEngine);
     }
 
+    @Test
+    public void testPacketInCoalescing() throws Exception {
+        learnDevices(DestDeviceToLearn.DEVICE2);
+
+        Route route = new  Route(1L, 1L);
+        route.getPath().add(new NodePortTuple(1L, (short)1));
+        route.getPath().add(new NodePortTuple(1L, (short)3));
+        // The route is only computed for the first packet-in
+        expect(routingEngine.getRoute(1L, (short)1, 1L, (short)3)).andReturn(route).once();
+
+        sw1.write(anyObject(OFFlowMod.class), eq(cntx));
+        expectLastCall().once();
+        sw1.write(packetOut, cntx);
+        expectLastCall().times(3);
+
+        reset(topology);
+        expect(topology.isIncomingBroadcastAllowed(anyLong(), anyShort())).andReturn(true).anyTimes();
+        expect(topology.getL2DomainId(1L)).andReturn(1L).anyTimes();
+        expect(topology.isAttachmentPointPort(1L,  (short)1)).andReturn(true).anyTimes();
+        expect(topology.isAttachmentPointPort(1L,  (short)3)).andReturn(true).anyTimes();
+
+        replay(sw1, routingEngine, topology);
+        forwarding.receive(sw1, this.packetIn, cntx);
+        forwarding.receive(sw1, this.packetIn, cntx);
+        forwarding.receive(sw1, this.packetIn, cntx);
+        verify(sw1, routingEngine);
+
+        assertEquals(1, forwarding.getFlowCoalescer().getRegisteredCount());
+        assertEquals(2, forwarding.getFlowCoalescer().getCoalescedCount());
+    }
+
     @Test
     public void testForwardNoPath() throws Exception {
         learnDevices(DestDeviceToLearn.NONE);
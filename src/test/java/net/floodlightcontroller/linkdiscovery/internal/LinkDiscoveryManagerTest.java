@@ -18,18 +18,28 @@
 package net.floodlightcontroller.linkdiscovery.internal;
 
 import static org.easymock.EasyMock.*;
+import static org.junit.Assert.assertArrayEquals;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
+import org.easymock.Capture;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPhysicalPort;
+import org.openflow.protocol.action.OFActionOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IFloodlightProviderService.Role;
 import net.floodlightcontroller.core.IOFSwitch;
@@ -39,6 +49,8 @@ import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryListener;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.linkdiscovery.LinkInfo;
 import net.floodlightcontroller.linkdiscovery.internal.LinkDiscoveryManager;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.LLDP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.restserver.RestApiServer;
 import net.floodlightcontroller.routing.IRoutingService;
@@ -150,6 +162,52 @@ public class LinkDiscoveryManagerTest extends FloodlightTestCase {
         assertTrue(topology.links.containsKey(lt));
     }
 
+    @Test
+    public void testLinkStateSnapshot() throws Exception {
+        LinkDiscoveryManager topology = getTopology();
+        Map<Link, LinkInfo> empty = topology.getLinks();
+
+        Link lt = new Link(1L, 2, 2L, 1);
+        LinkInfo info = new LinkInfo(1000L, 1000L, null, 0, 0);
+        assertTrue(topology.addOrUpdateLink(lt, info));
+        Map<Link, LinkInfo> added = topology.getLinks();
+        assertTrue(empty.isEmpty());
+        assertSame(info, added.get(lt));
+        assertTrue(topology.getSwitchLinks().get(1L).contains(lt));
+        assertTrue(topology.getPortLinks().get(new NodePortTuple(2L, 1)).contains(lt));
+
+        // A refresh updates the valid time in place
+        LinkInfo refresh = new LinkInfo(2000L, 2000L, null, 0, 0);
+        assertFalse(topology.addOrUpdateLink(lt, refresh));
+        assertSame(added, topology.getLinks());
+        assertEquals(Long.valueOf(2000L), info.getUnicastValidTime());
+        assertEquals(Long.valueOf(1000L), info.getFirstSeenTime());
+
+        // A change of port state replaces the snapshot
+        LinkInfo blocked = new LinkInfo(3000L, 3000L, null,
+                OFPhysicalPort.OFPortState.OFPPS_STP_BLOCK.getValue(), 0);
+        assertTrue(topology.addOrUpdateLink(lt, blocked));
+        assertNotSame(added, topology.getLinks());
+        assertSame(blocked, topology.getLinks().get(lt));
+        assertSame(info, added.get(lt));
+
+        // Adding a link only replaces the index entries of its ports and
+        // switches
+        Set<Link> sw1Links = topology.getSwitchLinks().get(1L);
+        Link lt2 = new Link(3L, 1, 4L, 1);
+        assertTrue(topology.addOrUpdateLink(lt2,
+                new LinkInfo(3000L, 3000L, null, 0, 0)));
+        assertSame(sw1Links, topology.getSwitchLinks().get(1L));
+        assertTrue(topology.getSwitchLinks().get(3L).contains(lt2));
+        assertEquals(2, topology.getLinks().size());
+
+        topology.deleteLinks(Arrays.asList(lt, lt2), "Test");
+        assertTrue(topology.getLinks().isEmpty());
+        assertTrue(topology.getSwitchLinks().isEmpty());
+        assertTrue(topology.getPortLinks().isEmpty());
+        assertTrue(added.containsKey(lt));
+    }
+
     @Test
     public void testDeleteLink() throws Exception {
         LinkDiscoveryManager topology = getTopology();
@@ -429,4 +487,46 @@ public class LinkDiscoveryManagerTest extends FloodlightTestCase {
         assertTrue(ldm.isClearLinksCalled);
         ldm.reset();
     }
+
+    @Test
+    public void testDiscoverOnSwitch() throws Exception {
+        byte[] mac = new byte[] {0, 1, 2, 3, 4, 5};
+        OFPhysicalPort p1 = new OFPhysicalPort();
+        p1.setPortNumber((short) 1);
+        p1.setHardwareAddress(mac);
+        OFPhysicalPort p2 = new OFPhysicalPort();
+        p2.setPortNumber((short) 2);
+        p2.setHardwareAddress(mac);
+        long dpid = 0x0102030405060708L;
+
+        IOFSwitch sw = createMockSwitch(dpid);
+        expect(sw.getEnabledPorts()).andReturn(Arrays.asList(p1, p2)).anyTimes();
+        expect(sw.getPort((short) 1)).andReturn(p1).anyTimes();
+        expect(sw.getPort((short) 2)).andReturn(p2).anyTimes();
+        Capture<List<OFMessage>> written = new Capture<List<OFMessage>>();
+        sw.write(capture(written), (FloodlightContext) isNull());
+        expectLastCall().once();
+        sw.flush();
+        expectLastCall().once();
+        replay(sw);
+
+        // One write for all the ports of the switch
+        ldm.AddToSuppressLLDPs(dpid, (short) 2);
+        assertEquals(1, ldm.discoverOnSwitch(sw));
+        verify(sw);
+        assertEquals(1, written.getValue().size());
+
+        // The frame is the one the template was built from, with the
+        // switch and port filled in
+        Ethernet expected = ldm.createDiscoveryPacket(true, false);
+        expected.setSourceMACAddress(mac);
+        LLDP lldp = (LLDP) expected.getPayload();
+        lldp.getChassisId().setValue(new byte[] {4, 3, 4, 5, 6, 7, 8});
+        lldp.getPortId().setValue(new byte[] {2, 0, 1});
+        lldp.getOptionalTLVList().get(0).setValue(
+                new byte[] {0x0, 0x26, (byte) 0xe1, 0, 1, 2, 3, 4, 5, 6, 7, 8});
+        OFPacketOut po = (OFPacketOut) written.getValue().get(0);
+        assertArrayEquals(expected.serialize(), po.getPacketData());
+        assertEquals(1, ((OFActionOutput) po.getActions().get(0)).getPort());
+    }
 }
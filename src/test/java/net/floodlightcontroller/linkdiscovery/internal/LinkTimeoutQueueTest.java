@@ -0,0 +1,51 @@
+package net.floodlightcontroller.linkdiscovery.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import net.floodlightcontroller.routing.Link;
+
+public class LinkTimeoutQueueTest extends TestCase {
+
+    @Test
+    public void testPoll() throws Exception {
+        Link l1 = new Link(1L, 1, 2L, 1);
+        Link l2 = new Link(2L, 1, 1L, 1);
+        Link l3 = new Link(1L, 2, 3L, 1);
+        LinkTimeoutQueue queue = new LinkTimeoutQueue();
+        queue.schedule(l3, 5059);
+        queue.schedule(l1, 5025);
+        queue.schedule(l2, 5051);
+        assertEquals(3, queue.size());
+
+        assertFalse(queue.hasDue(5015));
+        assertTrue(queue.poll(5015).isEmpty());
+        assertTrue(queue.hasDue(5025));
+        assertEquals(Collections.singletonList(l1), queue.poll(5030));
+        assertTrue(queue.poll(5030).isEmpty());
+        assertEquals(Arrays.asList(l2, l3), queue.poll(5060));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testKeepsEarliestDeadline() throws Exception {
+        Link l1 = new Link(1L, 1, 2L, 1);
+        LinkTimeoutQueue queue = new LinkTimeoutQueue();
+        queue.schedule(l1, 5500);
+        queue.schedule(l1, 5100);
+        queue.schedule(l1, 5300);
+        assertEquals(1, queue.size());
+
+        assertEquals(Collections.singletonList(l1), queue.poll(5100));
+        // The entry for the later deadline is stale
+        assertTrue(queue.poll(6000).isEmpty());
+
+        // Filed again after coming due
+        queue.schedule(l1, 6500);
+        assertFalse(queue.hasDue(6000));
+        assertEquals(Collections.singletonList(l1), queue.poll(6500));
+    }
+}
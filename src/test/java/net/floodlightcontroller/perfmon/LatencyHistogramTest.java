@@ -0,0 +1,108 @@
+package net.floodlightcontroller.perfmon;
+
+import static org.easymock.EasyMock.createNiceMock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest extends FloodlightTestCase {
+
+    @Test
+    public void testBuckets() {
+        long prevHighest = -1;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long lowest = LatencyHistogram.lowestValue(i);
+            assertEquals(prevHighest + 1, lowest);
+            assertEquals(i, LatencyHistogram.bucketIndex(lowest));
+            long highest = LatencyHistogram.highestValue(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(highest));
+            // Buckets are never wider than 1/16th of their values
+            assertTrue(highest - lowest <= Math.max(lowest / 16, 1));
+            prevHighest = highest;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10000; v++) {
+            h.record(v * 1000);
+        }
+        LatencyHistogram.Totals totals = new LatencyHistogram.Totals();
+        totals.add(h);
+        assertEquals(10000, totals.getCount());
+        assertEquals(5000500, totals.getMean());
+        assertEquals(10000000, totals.getMax());
+        assertEquals(1000, totals.getMin());
+        assertWithin(5000000, totals.getValueAtPercentile(50));
+        assertWithin(9900000, totals.getValueAtPercentile(99));
+        assertWithin(9990000, totals.getValueAtPercentile(99.9));
+
+        LatencyHistogram.Totals baseline = totals;
+        h.record(42);
+        totals = new LatencyHistogram.Totals();
+        totals.add(h);
+        totals.subtract(baseline);
+        assertEquals(1, totals.getCount());
+        // Only the bucket of the max is known after a reset
+        assertWithin(42, totals.getValueAtPercentile(99.9));
+        assertWithin(42, totals.getMax());
+    }
+
+    protected void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+                   Math.abs(expected - actual) <= expected / 16);
+    }
+
+    @Test
+    public void testMergeThreads() throws Exception {
+        final IOFMessageListener listener =
+                createNiceMock(IOFMessageListener.class);
+        List<IOFMessageListener> listeners =
+                new ArrayList<IOFMessageListener>();
+        listeners.add(listener);
+        final CumulativeTimeBucket ctb = new CumulativeTimeBucket(listeners);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long switchId = t % 2;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        ctb.updateOneComponent(listener, 100);
+                        ctb.updatePerPacketCounters(switchId, 200);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        ctb.computeAverages();
+        assertEquals(4000, ctb.getTotalPktCnt());
+        assertEquals(200, ctb.getP99TotalProcTimeNs());
+        OneComponentTime oct = ctb.getModules().iterator().next();
+        assertEquals(4000, oct.getPktCnt());
+        assertEquals(100, oct.getMaxProcTimeNs());
+        assertEquals(2, ctb.getSwitches().size());
+        for (OneSwitchTime ost : ctb.getSwitches()) {
+            assertEquals(2000, ost.getPktCnt());
+        }
+
+        ctb.reset();
+        assertEquals(0, ctb.getTotalPktCnt());
+        assertEquals(0, ctb.getSwitches().size());
+        ctb.updatePerPacketCounters(1L, 300);
+        ctb.computeAverages();
+        assertEquals(1, ctb.getTotalPktCnt());
+        assertEquals(1, ctb.getSwitches().size());
+    }
+}
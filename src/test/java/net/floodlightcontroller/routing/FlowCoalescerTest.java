@@ -0,0 +1,104 @@
+package net.floodlightcontroller.routing;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketIn;
+
+public class FlowCoalescerTest {
+    protected IOFSwitch sw;
+    protected FlowCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        sw = createMock(IOFSwitch.class);
+        expect(sw.getId()).andReturn(1L).anyTimes();
+        replay(sw);
+        coalescer = new FlowCoalescer();
+    }
+
+    protected OFMatch match(short inPort) {
+        return new OFMatch().setInputPort(inPort);
+    }
+
+    @Test
+    public void testWindowStartsWhenInstalled() throws Exception {
+        FlowCoalescer.InFlightFlow flow =
+                coalescer.register(sw, match((short) 1), (short) 2, 1000, 50);
+        // Waiting for the route longer than the window
+        Thread.sleep(80);
+        assertSame(flow, coalescer.get(sw, match((short) 1)));
+        coalescer.installed(flow);
+        assertSame(flow, coalescer.get(sw, match((short) 1)));
+        Thread.sleep(80);
+        assertNull(coalescer.get(sw, match((short) 1)));
+    }
+
+    @Test
+    public void testNeverInstalled() throws Exception {
+        coalescer.register(sw, match((short) 1), (short) 2, 50, 1000);
+        Thread.sleep(80);
+        assertNull(coalescer.get(sw, match((short) 1)));
+    }
+
+    @Test
+    public void testReregisteredFlowDoesNotBlockExpiry() throws Exception {
+        FlowCoalescer.InFlightFlow old =
+                coalescer.register(sw, match((short) 1), (short) 2, 50, 50);
+        coalescer.installed(old);
+        FlowCoalescer.InFlightFlow other =
+                coalescer.register(sw, match((short) 4), (short) 2, 50, 50);
+        coalescer.installed(other);
+        // A newer flow of the same key as the old one, kept for long
+        FlowCoalescer.InFlightFlow flow =
+                coalescer.register(sw, match((short) 1), (short) 3, 50, 5000);
+        coalescer.installed(flow);
+        assertEquals(2, coalescer.size());
+
+        Thread.sleep(80);
+        coalescer.register(sw, match((short) 5), (short) 2, 50, 50);
+        // The other flow expired behind the stale entry of the old one
+        assertEquals(2, coalescer.size());
+        assertSame(flow, coalescer.get(sw, match((short) 1)));
+    }
+
+    @Test
+    public void testWaitingLimitAndTimeout() throws Exception {
+        FlowCoalescer.InFlightFlow flow =
+                coalescer.register(sw, match((short) 1), (short) 2, 1000, 50);
+        OFPacketIn pi = new OFPacketIn();
+        for (int i = 0; i < FlowCoalescer.MAX_WAITING; i++)
+            assertEquals(FlowCoalescer.QueueResult.QUEUED,
+                         coalescer.queue(flow, pi));
+        // Too many waiting, the packet-in is processed as usual
+        assertEquals(FlowCoalescer.QueueResult.REJECTED,
+                     coalescer.queue(flow, pi));
+
+        assertEquals(FlowCoalescer.MAX_WAITING, coalescer.timedOut(flow));
+        assertEquals(FlowCoalescer.MAX_WAITING, coalescer.getDroppedCount());
+        assertNull(coalescer.get(sw, match((short) 1)));
+        assertEquals(FlowCoalescer.QueueResult.REJECTED,
+                     coalescer.queue(flow, pi));
+        assertEquals(2, coalescer.getRejectedCount());
+        assertTrue(coalescer.installed(flow).isEmpty());
+    }
+
+    @Test
+    public void testTimeoutAfterInstall() throws Exception {
+        FlowCoalescer.InFlightFlow flow =
+                coalescer.register(sw, match((short) 1), (short) 2, 1000, 1000);
+        OFPacketIn pi = new OFPacketIn();
+        assertEquals(FlowCoalescer.QueueResult.QUEUED,
+                     coalescer.queue(flow, pi));
+        assertEquals(1, coalescer.installed(flow).size());
+        assertEquals(0, coalescer.timedOut(flow));
+        assertSame(flow, coalescer.get(sw, match((short) 1)));
+        assertEquals(FlowCoalescer.QueueResult.INSTALLED,
+                     coalescer.queue(flow, pi));
+    }
+}
@@ -0,0 +1,170 @@
+package net.floodlightcontroller.routing;
+
+import static org.easymock.EasyMock.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.util.OFMessageDamper;
+
+import org.easymock.IAnswer;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.factory.BasicFactory;
+
+/**
+ * Measures the time from writing the flow mods of a route until every
+ * switch on it confirmed them with a barrier reply, installing the route
+ * one hop after the other and on all switches at once, for paths of
+ * increasing length.
+ *
+ * The switches are simulated: each answers a barrier after a fixed delay,
+ * which stands for the round trip to the switch plus the time it takes
+ * to program its flow table.
+ *
+ * Not run as part of the unit tests. Run it with
+ * java -cp target/bin:target/bin-test:lib/* \
+ *     net.floodlightcontroller.routing.RouteInstallBenchmark [lengths]
+ */
+public class RouteInstallBenchmark {
+    protected static final long SWITCH_DELAY_US = 2000;
+    protected static final int ROUTES = 50;
+
+    protected static ScheduledExecutorService ses =
+            Executors.newScheduledThreadPool(4);
+    protected static int cookie = 0;
+
+    protected static IOFSwitch createSwitch(final long dpid,
+                                            final RouteInstaller installer) {
+        final IOFSwitch sw = createNiceMock(IOFSwitch.class);
+        final AtomicInteger xid = new AtomicInteger();
+        expect(sw.getId()).andReturn(dpid).anyTimes();
+        expect(sw.getStringId()).andReturn(Long.toString(dpid)).anyTimes();
+        expect(sw.getNextTransactionId()).andAnswer(new IAnswer<Integer>() {
+            @Override
+            public Integer answer() {
+                return xid.incrementAndGet();
+            }
+        }).anyTimes();
+        try {
+            sw.write(anyObject(OFMessage.class),
+                     anyObject(FloodlightContext.class));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                OFMessage m = (OFMessage) getCurrentArguments()[0];
+                if (m.getType() != OFType.BARRIER_REQUEST) return null;
+                final OFMessage reply = new BasicFactory()
+                        .getMessage(OFType.BARRIER_REPLY);
+                reply.setXid(m.getXid());
+                ses.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        installer.barrierReplied(sw, reply);
+                    }
+                }, SWITCH_DELAY_US, TimeUnit.MICROSECONDS);
+                return null;
+            }
+        }).anyTimes();
+        replay(sw);
+        return sw;
+    }
+
+    protected static OFFlowMod createFlowMod(BasicFactory factory) {
+        OFFlowMod fm = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+        // A new cookie for every route, so the damper doesn't drop it
+        fm.setMatch(new OFMatch()).setCookie(++cookie);
+        return fm;
+    }
+
+    /**
+     * Install a route and wait until it is confirmed
+     * @return the time it took in nanoseconds
+     */
+    protected static long install(RouteInstaller installer,
+                                  List<Map<IOFSwitch, List<OFFlowMod>>> steps)
+                                          throws InterruptedException {
+        long start = System.nanoTime();
+        for (Map<IOFSwitch, List<OFFlowMod>> step : steps) {
+            final CountDownLatch done = new CountDownLatch(1);
+            installer.install(step, null, false, new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            if (!done.await(5, TimeUnit.SECONDS))
+                throw new IllegalStateException("Route not confirmed");
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] lengths = { 1, 2, 4, 8, 16 };
+        if (args.length > 0) {
+            lengths = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                lengths[i] = Integer.parseInt(args[i]);
+        }
+
+        BasicFactory factory = new BasicFactory();
+        OFMessageDamper damper =
+                new OFMessageDamper(100000, EnumSet.of(OFType.FLOW_MOD), 250);
+        RouteInstaller installer = new RouteInstaller(factory, damper, null);
+        installer.setUseBarriers(true);
+
+        System.out.println("hops  hop-by-hop(ms)  batched(ms)");
+        for (int length : lengths) {
+            List<IOFSwitch> switches = new ArrayList<IOFSwitch>();
+            for (int i = 0; i < length; i++)
+                switches.add(createSwitch(i + 1, installer));
+
+            long hopNanos = 0;
+            long batchNanos = 0;
+            for (int r = 0; r < ROUTES; r++) {
+                // Hop by hop: each switch is programmed after the one
+                // downstream of it confirmed
+                List<Map<IOFSwitch, List<OFFlowMod>>> steps =
+                        new ArrayList<Map<IOFSwitch, List<OFFlowMod>>>();
+                for (int i = length - 1; i >= 0; i--) {
+                    Map<IOFSwitch, List<OFFlowMod>> step =
+                            new LinkedHashMap<IOFSwitch, List<OFFlowMod>>();
+                    step.put(switches.get(i),
+                             Collections.singletonList(createFlowMod(factory)));
+                    steps.add(step);
+                }
+                hopNanos += install(installer, steps);
+
+                // Batched: all switches at once
+                Map<IOFSwitch, List<OFFlowMod>> all =
+                        new LinkedHashMap<IOFSwitch, List<OFFlowMod>>();
+                for (int i = length - 1; i >= 0; i--) {
+                    all.put(switches.get(i),
+                            Collections.singletonList(createFlowMod(factory)));
+                }
+                batchNanos += install(installer,
+                                      Collections.singletonList(all));
+            }
+            System.out.println(String.format("%4d  %14.2f  %11.2f", length,
+                    hopNanos / 1000000.0 / ROUTES,
+                    batchNanos / 1000000.0 / ROUTES));
+        }
+        ses.shutdown();
+    }
+}
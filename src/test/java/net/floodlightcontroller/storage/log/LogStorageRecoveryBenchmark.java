@@ -0,0 +1,149 @@
+package net.floodlightcontroller.storage.log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.storage.IResultSet;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+/**
+ * Measures how long LogStorageSource takes to write a table of switch
+ * ports and to recover it after a restart, once by replaying the log and
+ * once from a snapshot.
+ *
+ * Not run as part of the unit tests. Run it with
+ * java -Xmx2g -cp target/bin:target/bin-test:lib/* \
+ *     net.floodlightcontroller.storage.log.LogStorageRecoveryBenchmark \
+ *     [rows] [directory]
+ */
+public class LogStorageRecoveryBenchmark {
+    protected static final String TABLE_NAME = "controller_port";
+    protected static final int BATCH = 1000;
+
+    protected static LogStorageSource start(File directory) throws Exception {
+        LogStorageSource source = new LogStorageSource();
+        RestApiServer restApi = new RestApiServer();
+        MockThreadPoolService tp = new MockThreadPoolService();
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addService(IRestApiService.class, restApi);
+        fmc.addService(IThreadPoolService.class, tp);
+        fmc.addConfigParam(source, "dir", directory.getPath());
+        // Only compact when asked to
+        fmc.addConfigParam(source, "compactbytes",
+                           Long.toString(Long.MAX_VALUE));
+        restApi.init(fmc);
+        tp.init(fmc);
+        source.init(fmc);
+        restApi.startUp(fmc);
+        source.startUp(fmc);
+        return source;
+    }
+
+    protected static Map<String, Object> createRow(int i) {
+        long dpid = i / 48 + 1;
+        short port = (short) (i % 48 + 1);
+        String switchId = String.format("00:00:00:00:00:%02x:%02x:%02x",
+                (dpid >> 16) & 0xff, (dpid >> 8) & 0xff, dpid & 0xff);
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("id", switchId + "|" + port);
+        row.put("switch_id", switchId);
+        row.put("number", port);
+        row.put("hardware_address", String.format(
+                "00:11:22:%02x:%02x:%02x",
+                (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff));
+        row.put("name", "eth" + port);
+        row.put("config", 0);
+        row.put("state", 0);
+        row.put("current_features", 192);
+        return row;
+    }
+
+    protected static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    protected static int countRows(LogStorageSource source) {
+        IResultSet resultSet =
+                source.executeQuery(TABLE_NAME, null, null, null);
+        int count = 0;
+        while (resultSet.next())
+            count++;
+        resultSet.close();
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        File directory;
+        if (args.length > 1) {
+            directory = new File(args[1]);
+        } else {
+            directory = File.createTempFile("storage", ".db");
+            directory.delete();
+        }
+        delete(directory);
+
+        LogStorageSource source = start(directory);
+        source.createTable(TABLE_NAME, null);
+        long start = System.nanoTime();
+        List<Map<String, Object>> batch =
+                new ArrayList<Map<String, Object>>(BATCH);
+        for (int i = 0; i < rows; i++) {
+            batch.add(createRow(i));
+            if (batch.size() == BATCH) {
+                source.updateRows(TABLE_NAME, batch);
+                batch = new ArrayList<Map<String, Object>>(BATCH);
+            }
+        }
+        if (!batch.isEmpty())
+            source.updateRows(TABLE_NAME, batch);
+        long writeNs = System.nanoTime() - start;
+        long logBytes = source.getLogBytes();
+        source.close();
+
+        source = start(directory);
+        long logRecoveryNs = source.getRecoveryNanos();
+        int logRows = countRows(source);
+
+        start = System.nanoTime();
+        source.compact();
+        long compactNs = System.nanoTime() - start;
+        long snapshotBytes = source.getSnapshotBytes();
+        source.close();
+
+        source = null;
+        System.gc();
+        source = start(directory);
+        long snapshotRecoveryNs = source.getRecoveryNanos();
+        int snapshotRows = countRows(source);
+        source.close();
+        delete(directory);
+
+        System.out.println(String.format(
+                "rows %d: write %.0f ms (%.0f rows/s), log %.1f MB",
+                rows, writeNs / 1e6, rows / (writeNs / 1e9),
+                logBytes / 1e6));
+        System.out.println(String.format(
+                "recover from log: %.0f ms, %d rows",
+                logRecoveryNs / 1e6, logRows));
+        System.out.println(String.format(
+                "compact: %.0f ms, snapshot %.1f MB",
+                compactNs / 1e6, snapshotBytes / 1e6));
+        System.out.println(String.format(
+                "recover from snapshot: %.0f ms, %d rows (%.0f rows/s)",
+                snapshotRecoveryNs / 1e6, snapshotRows,
+                snapshotRows / (snapshotRecoveryNs / 1e9)));
+    }
+}
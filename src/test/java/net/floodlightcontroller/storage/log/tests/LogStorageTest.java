@@ -0,0 +1,149 @@
+package net.floodlightcontroller.storage.log.tests;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.test.MockThreadPoolService;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.storage.IResultSet;
+import net.floodlightcontroller.storage.RowOrdering;
+import net.floodlightcontroller.storage.log.LogStorageSource;
+import net.floodlightcontroller.storage.nosql.NoSqlStorageSource;
+import net.floodlightcontroller.storage.tests.StorageTest;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogStorageTest extends StorageTest {
+    protected File directory;
+
+    protected LogStorageSource createStorageSource() throws Exception {
+        LogStorageSource source = new LogStorageSource();
+        RestApiServer restApi = new RestApiServer();
+        MockThreadPoolService tp = new MockThreadPoolService();
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addService(IRestApiService.class, restApi);
+        fmc.addService(IThreadPoolService.class, tp);
+        fmc.addConfigParam(source, "dir", directory.getPath());
+        restApi.init(fmc);
+        tp.init(fmc);
+        source.init(fmc);
+        restApi.startUp(fmc);
+        source.startUp(fmc);
+        return source;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("storage", ".db");
+        directory.delete();
+        storageSource = createStorageSource();
+        restApi = new RestApiServer();
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ((LogStorageSource) storageSource).close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Restart the storage source from the files on disk
+     */
+    protected void restart() throws Exception {
+        ((LogStorageSource) storageSource).close();
+        storageSource = createStorageSource();
+    }
+
+    protected void checkPersons(Object[][] expectedResults) {
+        IResultSet resultSet = storageSource.executeQuery(PERSON_TABLE_NAME,
+                PERSON_COLUMN_LIST, null, new RowOrdering(PERSON_SSN));
+        checkExpectedResults(resultSet, PERSON_COLUMN_LIST, expectedResults);
+    }
+
+    @Test
+    public void testRecoverFromLog() throws Exception {
+        Map<String,Object> updateValues = new HashMap<String,Object>();
+        updateValues.put(PERSON_AGE, 41);
+        storageSource.updateRow(PERSON_TABLE_NAME, "111-11-1111", updateValues);
+        storageSource.deleteRow(PERSON_TABLE_NAME, "222-22-2222");
+        for (int i = 3; i <= 8; i++) {
+            String ssn = String.format("%d%d%d-%d%d-%d%d%d%d",
+                                       i, i, i, i, i, i, i, i, i);
+            storageSource.deleteRow(PERSON_TABLE_NAME, ssn);
+        }
+
+        restart();
+        Object[][] expectedResults = {
+                {"111-11-1111", "John", "Smith", 41, true}
+        };
+        checkPersons(expectedResults);
+        assertTrue(((LogStorageSource) storageSource).getRecoveredRecords() > 0);
+        // The primary key was recovered too
+        IResultSet resultSet = storageSource.getRow(PERSON_TABLE_NAME,
+                                                    "111-11-1111");
+        assertTrue(resultSet.next());
+        assertEquals("Smith", resultSet.getString(PERSON_LAST_NAME));
+        resultSet.close();
+    }
+
+    @Test
+    public void testRecoverFromSnapshot() throws Exception {
+        storageSource.setColumnIndexMode(PERSON_TABLE_NAME, PERSON_AGE,
+                NoSqlStorageSource.ColumnIndexMode.RANGE_INDEXED);
+        LogStorageSource source = (LogStorageSource) storageSource;
+        source.compact();
+        assertEquals(1, source.getCompactionCount());
+        assertTrue(source.getSnapshotBytes() > 0);
+
+        // Changes after the snapshot are replayed on top of it
+        Map<String,Object> updateValues = new HashMap<String,Object>();
+        updateValues.put(PERSON_FIRST_NAME, "Tennis");
+        storageSource.updateRow(PERSON_TABLE_NAME, "888-88-8888", updateValues);
+        storageSource.deleteRow(PERSON_TABLE_NAME, "777-77-7777");
+
+        restart();
+        String[] files = directory.list();
+        assertEquals(3, files.length);
+        Object[][] expectedResults = {
+                {"111-11-1111", "John", "Smith", 40, true},
+                {"222-22-2222", "Jim", "White", 24, false},
+                {"333-33-3333", "Lisa", "Jones", 27, true},
+                {"444-44-4444", "Susan", "Jones", 14, false},
+                {"555-55-5555", "Jose", "Garcia", 31, true},
+                {"666-66-6666", "Abigail", "Johnson", 35, false},
+                {"888-88-8888", "Tennis", "McEnroe", 53, false}
+        };
+        checkPersons(expectedResults);
+        testIndexedQueriesFollowWrites();
+    }
+
+    @Test
+    public void testRecoverFromTornLog() throws Exception {
+        LogStorageSource source = (LogStorageSource) storageSource;
+        source.close();
+        File segment = new File(directory, "log-0.dat");
+        long length = segment.length();
+        // A crash in the middle of writing a record leaves part of it
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(length + 5);
+        raf.close();
+
+        storageSource = createStorageSource();
+        assertEquals(length, segment.length());
+        testInsertRows();
+    }
+}
@@ -376,6 +376,51 @@ public abstract class StorageTest extends FloodlightTestCase {
         checkExpectedResults(resultSet, PERSON_COLUMN_LIST, expectedResults);
     }
     
+    @Test
+    public void testIndexedQueriesFollowWrites() {
+        storageSource.setColumnIndexMode(PERSON_TABLE_NAME, PERSON_AGE,
+                NoSqlStorageSource.ColumnIndexMode.RANGE_INDEXED);
+        String[] columnList = {PERSON_SSN, PERSON_LAST_NAME, PERSON_AGE};
+        IPredicate jones = new OperatorPredicate(PERSON_LAST_NAME, OperatorPredicate.Operator.EQ, "Jones");
+        IPredicate thirties = new CompoundPredicate(CompoundPredicate.Operator.AND, false,
+                new OperatorPredicate(PERSON_AGE, OperatorPredicate.Operator.GTE, 30),
+                new OperatorPredicate(PERSON_AGE, OperatorPredicate.Operator.LT, 40));
+        
+        // Move a person into both result sets and another one out of them
+        Map<String,Object> updateValues = new HashMap<String,Object>();
+        updateValues.put(PERSON_LAST_NAME, "Jones");
+        updateValues.put(PERSON_AGE, 33);
+        storageSource.updateRow(PERSON_TABLE_NAME, "111-11-1111", updateValues);
+        storageSource.deleteRow(PERSON_TABLE_NAME, "333-33-3333");
+        updateValues = new HashMap<String,Object>();
+        updateValues.put(PERSON_AGE, 41);
+        storageSource.updateRow(PERSON_TABLE_NAME, "666-66-6666", updateValues);
+        
+        Object[][] expectedJones = {
+                {"111-11-1111", "Jones", 33},
+                {"444-44-4444", "Jones", 14}
+        };
+        IResultSet resultSet = storageSource.executeQuery(PERSON_TABLE_NAME, columnList, jones, new RowOrdering(PERSON_SSN));
+        checkExpectedResults(resultSet, columnList, expectedJones);
+        
+        Object[][] expectedThirties = {
+                {"111-11-1111", "Jones", 33},
+                {"555-55-5555", "Garcia", 31}
+        };
+        resultSet = storageSource.executeQuery(PERSON_TABLE_NAME, columnList, thirties, new RowOrdering(PERSON_SSN));
+        checkExpectedResults(resultSet, columnList, expectedThirties);
+        
+        // Rows inserted after the index was built are found too
+        insertPerson(new Object[] {"999-99-9999", "Martina", "Jones", 30, true});
+        Object[][] expectedInserted = {
+                {"111-11-1111", "Jones", 33},
+                {"444-44-4444", "Jones", 14},
+                {"999-99-9999", "Jones", 30}
+        };
+        resultSet = storageSource.executeQuery(PERSON_TABLE_NAME, columnList, jones, new RowOrdering(PERSON_SSN));
+        checkExpectedResults(resultSet, columnList, expectedInserted);
+    }
+    
     @Test
     public void testUpdateRowsFromResultSet() {
         
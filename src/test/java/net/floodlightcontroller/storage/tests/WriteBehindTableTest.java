@@ -0,0 +1,129 @@
+package net.floodlightcontroller.storage.tests;
+
+import static org.easymock.EasyMock.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.storage.IResultSet;
+import net.floodlightcontroller.storage.IStorageSourceListener;
+import net.floodlightcontroller.storage.WriteBehindTable;
+import net.floodlightcontroller.storage.memory.MemoryStorageSource;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+public class WriteBehindTableTest extends FloodlightTestCase {
+    protected static final String TABLE_NAME = "test_table";
+    protected static final String ID = "id";
+    protected static final String NAME = "name";
+    protected static final String STATE = "state";
+
+    protected MemoryStorageSource storageSource;
+    protected ScheduledExecutorService ses;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        storageSource = new MemoryStorageSource();
+        RestApiServer restApi = new RestApiServer();
+        FloodlightModuleContext fmc = new FloodlightModuleContext();
+        fmc.addService(IRestApiService.class, restApi);
+        restApi.init(fmc);
+        storageSource.init(fmc);
+        restApi.startUp(fmc);
+        storageSource.startUp(fmc);
+        storageSource.createTable(TABLE_NAME, null);
+        storageSource.setTablePrimaryKeyName(TABLE_NAME, ID);
+        ses = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        ses.shutdownNow();
+        super.tearDown();
+    }
+
+    protected Map<String, Object> row(String id, String column, Object value) {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put(ID, id);
+        row.put(column, value);
+        return row;
+    }
+
+    protected Map<String, Object> read(String id) {
+        IResultSet resultSet = storageSource.getRow(TABLE_NAME, id);
+        try {
+            return resultSet.next() ? resultSet.getRow() : null;
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    @Test
+    public void testCoalesceAndFlush() throws Exception {
+        storageSource.insertRow(TABLE_NAME, row("c", NAME, "old"));
+        IStorageSourceListener listener =
+                createMock(IStorageSourceListener.class);
+        // One notification for the deletes and one for the updates
+        Set<Object> deleted = new HashSet<Object>();
+        deleted.add("b");
+        deleted.add("c");
+        Set<Object> updated = new HashSet<Object>();
+        updated.add("a");
+        updated.add("c");
+        listener.rowsDeleted(TABLE_NAME, deleted);
+        listener.rowsModified(TABLE_NAME, updated);
+        replay(listener);
+        storageSource.addListener(TABLE_NAME, listener);
+
+        // The window is long enough that only flush writes
+        WriteBehindTable writer =
+                new WriteBehindTable(storageSource, TABLE_NAME, ID,
+                                     ses, 3600000);
+        writer.updateRow(row("a", NAME, "a1"));
+        writer.updateRow(row("a", STATE, 1));
+        writer.updateRow(row("a", STATE, 2));
+        writer.updateRow(row("b", NAME, "b1"));
+        writer.deleteRow("b");
+        writer.deleteRow("c");
+        writer.updateRow(row("c", STATE, 3));
+        assertEquals(3, writer.getPendingCount());
+        assertNull(read("a"));
+
+        writer.flush();
+        verify(listener);
+        assertEquals(0, writer.getPendingCount());
+        assertEquals(7, writer.getQueuedCount());
+        assertEquals(3, writer.getCoalescedCount());
+        assertEquals(1, writer.getFlushCount());
+
+        Map<String, Object> a = read("a");
+        assertEquals("a1", a.get(NAME));
+        assertEquals(2, a.get(STATE));
+        assertNull(read("b"));
+        // The delete of c went before its update
+        Map<String, Object> c = read("c");
+        assertNull(c.get(NAME));
+        assertEquals(3, c.get(STATE));
+    }
+
+    @Test
+    public void testFlushAfterWindow() throws Exception {
+        WriteBehindTable writer =
+                new WriteBehindTable(storageSource, TABLE_NAME, ID, ses, 10);
+        writer.updateRow(row("a", NAME, "a1"));
+        for (int i = 0; i < 500 && writer.getFlushCount() == 0; i++)
+            Thread.sleep(10);
+        assertEquals(1, writer.getFlushCount());
+        assertEquals("a1", read("a").get(NAME));
+    }
+}
@@ -2,8 +2,12 @@ package net.floodlightcontroller.topology;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import static org.junit.Assert.*;
 
@@ -12,6 +16,9 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.test.MockFloodlightProvider;
 import net.floodlightcontroller.core.test.MockThreadPoolService;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscovery;
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
 import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.NodePortTuple;
 import net.floodlightcontroller.topology.TopologyInstance;
@@ -515,4 +522,154 @@ public class TopologyInstanceTest {
             verifyExpectedBroadcastPortsInClusters(expectedBroadcastPorts);
         }
     }
+
+    protected TopologyInstance createInstance(int numSwitches,
+                                              Set<Link> links) {
+        Map<Long, Set<Short>> switchPorts = new HashMap<Long, Set<Short>>();
+        Map<NodePortTuple, Set<Link>> switchPortLinks =
+                new HashMap<NodePortTuple, Set<Link>>();
+        for (long sw = 1; sw <= numSwitches; sw++) {
+            switchPorts.put(sw, new HashSet<Short>());
+        }
+        for (Link link : links) {
+            NodePortTuple src =
+                    new NodePortTuple(link.getSrc(), link.getSrcPort());
+            NodePortTuple dst =
+                    new NodePortTuple(link.getDst(), link.getDstPort());
+            switchPorts.get(link.getSrc()).add(link.getSrcPort());
+            switchPorts.get(link.getDst()).add(link.getDstPort());
+            for (NodePortTuple npt : new NodePortTuple[] { src, dst }) {
+                if (!switchPortLinks.containsKey(npt))
+                    switchPortLinks.put(npt, new HashSet<Link>());
+                switchPortLinks.get(npt).add(link);
+            }
+        }
+        return new TopologyInstance(switchPorts,
+                                    new HashSet<NodePortTuple>(),
+                                    switchPortLinks,
+                                    new HashSet<NodePortTuple>(),
+                                    new HashSet<NodePortTuple>());
+    }
+
+    protected void verifySameCosts(TopologyInstance expected,
+                                   TopologyInstance actual) {
+        for (long dst : expected.getSwitches()) {
+            for (long src : expected.getSwitches()) {
+                int cost = expected.getCost(src, dst);
+                assertEquals(cost, actual.getCost(src, dst));
+                if (src == dst || cost < 0 ||
+                        cost >= TopologyInstance.MAX_PATH_WEIGHT)
+                    continue;
+                // The route follows the tree and has one hop per unit cost
+                Route r = actual.getRoute(src, dst);
+                assertNotNull(r);
+                assertEquals(2 * cost, r.getPath().size());
+                assertEquals(src, r.getPath().get(0).getNodeId());
+                assertEquals(dst, r.getPath().get(r.getPath().size() - 1)
+                                              .getNodeId());
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalCompute() throws Exception {
+        int numSwitches = 30;
+        Random rand = new Random(42);
+        Set<Link> links = new HashSet<Link>();
+        TopologyInstance prev = createInstance(numSwitches, links);
+        prev.compute();
+        int notComputed = 0;
+
+        for (int round = 0; round < 200; round++) {
+            long s1 = rand.nextInt(numSwitches) + 1;
+            long s2 = rand.nextInt(numSwitches) + 1;
+            if (s1 == s2) continue;
+            Link l1 = new Link(s1, (short) s2, s2, (short) s1);
+            Link l2 = new Link(s2, (short) s1, s1, (short) s2);
+            // Add links more often than remove them so clusters form
+            if (links.contains(l1) && rand.nextInt(3) == 0) {
+                links.remove(l1);
+                links.remove(l2);
+            } else {
+                links.add(l1);
+                links.add(l2);
+            }
+
+            TopologyInstance incremental = createInstance(numSwitches, links);
+            incremental.compute(prev);
+            TopologyInstance full = createInstance(numSwitches, links);
+            full.compute();
+            verifySameCosts(full, incremental);
+            notComputed += incremental.treesReused +
+                           incremental.treesRepaired;
+            prev = incremental;
+        }
+        assertTrue(notComputed > 0);
+    }
+
+    @Test
+    public void testRouteCache() throws Exception {
+        // A line of 5 switches and a standalone switch 6
+        Set<Link> links = new HashSet<Link>();
+        for (long sw = 1; sw < 5; sw++) {
+            links.add(new Link(sw, (short) 2, sw + 1, (short) 1));
+            links.add(new Link(sw + 1, (short) 1, sw, (short) 2));
+        }
+        final TopologyInstance ti = createInstance(6, links);
+        RouteCache.Counters counters = new RouteCache.Counters();
+        ti.setPathCache(new RouteCache(ti, 10, counters));
+        ti.compute();
+
+        assertNull(ti.getRoute(1L, 6L));
+        assertNull(ti.getRoute(1L, 6L));
+        assertEquals(1, counters.getMisses());
+        assertEquals(1, counters.getHits());
+
+        // Look routes up from several threads at once
+        Thread[] threads = new Thread[4];
+        final List<Throwable> errors =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            long src = (i % 5) + 1;
+                            long dst = ((i / 5) % 5) + 1;
+                            Route r = ti.getRoute(src, dst);
+                            if (src == dst)
+                                assertNull(r);
+                            else
+                                assertEquals(2 * Math.abs(src - dst),
+                                             r.getPath().size());
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue(ti.getPathCache().size() <= 10);
+        assertTrue(counters.getEvictions() > 0);
+        assertEquals(4002, counters.getHits() + counters.getMisses());
+
+        // A new instance builds the most recently used routes ahead
+        TopologyInstance next = createInstance(6, links);
+        next.setPathCache(new RouteCache(next, 10, counters));
+        next.compute(ti);
+        next.getPathCache().precompute(ti.getPathCache().getHotRouteIds(5));
+        assertEquals(5, next.getPathCache().size());
+        assertEquals(5, counters.getPrecomputed());
+        for (RouteId id : ti.getPathCache().getHotRouteIds(5)) {
+            long misses = counters.getMisses();
+            next.getRoute(id.getSrc(), id.getDst());
+            assertEquals(misses, counters.getMisses());
+        }
+    }
 }
@@ -0,0 +1,156 @@
+package net.floodlightcontroller.topology;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import net.floodlightcontroller.routing.Link;
+import net.floodlightcontroller.routing.Route;
+import net.floodlightcontroller.routing.RouteId;
+
+/**
+ * Measures how long it takes to compute a new topology instance after a
+ * single link flap, from scratch and incrementally from the previous
+ * instance, and how long it takes to build a route, for fabrics of
+ * increasing size.
+ *
+ * Not run as part of the unit tests. Run it with
+ * java -cp target/bin:target/bin-test:lib/* \
+ *     net.floodlightcontroller.topology.TopologyRecomputeBenchmark [sizes]
+ */
+public class TopologyRecomputeBenchmark {
+    protected static final int DEGREE = 4;
+    protected static final int FLAPS = 20;
+
+    protected static TopologyInstance createInstance(int numSwitches,
+                                                     Set<Link> links) {
+        Map<Long, Set<Short>> switchPorts = new HashMap<Long, Set<Short>>();
+        Map<NodePortTuple, Set<Link>> switchPortLinks =
+                new HashMap<NodePortTuple, Set<Link>>();
+        for (long sw = 1; sw <= numSwitches; sw++) {
+            switchPorts.put(sw, new HashSet<Short>());
+        }
+        for (Link link : links) {
+            NodePortTuple src =
+                    new NodePortTuple(link.getSrc(), link.getSrcPort());
+            NodePortTuple dst =
+                    new NodePortTuple(link.getDst(), link.getDstPort());
+            switchPorts.get(link.getSrc()).add(link.getSrcPort());
+            switchPorts.get(link.getDst()).add(link.getDstPort());
+            for (NodePortTuple npt : new NodePortTuple[] { src, dst }) {
+                if (!switchPortLinks.containsKey(npt))
+                    switchPortLinks.put(npt, new HashSet<Link>());
+                switchPortLinks.get(npt).add(link);
+            }
+        }
+        return new TopologyInstance(switchPorts,
+                                    new HashSet<NodePortTuple>(),
+                                    switchPortLinks,
+                                    new HashSet<NodePortTuple>(),
+                                    new HashSet<NodePortTuple>());
+    }
+
+    /**
+     * A ring, so the fabric is one cluster, plus random chords so that
+     * every switch has about DEGREE neighbors
+     */
+    protected static List<Link[]> createFabric(int numSwitches, Random rand) {
+        List<Link[]> pairs = new ArrayList<Link[]>();
+        Set<Link> seen = new HashSet<Link>();
+        for (long s1 = 1; s1 <= numSwitches; s1++) {
+            long s2 = (s1 % numSwitches) + 1;
+            addPair(pairs, seen, s1, s2);
+        }
+        while (pairs.size() < numSwitches * DEGREE / 2) {
+            long s1 = rand.nextInt(numSwitches) + 1;
+            long s2 = rand.nextInt(numSwitches) + 1;
+            if (s1 != s2)
+                addPair(pairs, seen, s1, s2);
+        }
+        return pairs;
+    }
+
+    protected static void addPair(List<Link[]> pairs, Set<Link> seen,
+                                  long s1, long s2) {
+        Link l1 = new Link(s1, (short) s2, s2, (short) s1);
+        if (!seen.add(l1)) return;
+        Link l2 = new Link(s2, (short) s1, s1, (short) s2);
+        seen.add(l2);
+        pairs.add(new Link[] { l1, l2 });
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = new int[] { 50, 100, 200, 400 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("switches  full(ms)  incremental(ms)  " +
+                           "computed  repaired  reused  route(ns)");
+        for (int n : sizes) {
+            Random rand = new Random(n);
+            List<Link[]> pairs = createFabric(n, rand);
+            Set<Link> links = new HashSet<Link>();
+            for (Link[] pair : pairs) {
+                links.add(pair[0]);
+                links.add(pair[1]);
+            }
+            TopologyInstance prev = createInstance(n, links);
+            prev.compute();
+
+            long fullNs = 0;
+            long incrementalNs = 0;
+            long computed = 0, repaired = 0, reused = 0;
+            for (int i = 0; i < 2 * FLAPS; i++) {
+                // Take a chord down, then bring it back up. The ring
+                // keeps the fabric connected.
+                Link[] pair = pairs.get(n + (i / 2) % (pairs.size() - n));
+                if (i % 2 == 0) {
+                    links.remove(pair[0]);
+                    links.remove(pair[1]);
+                } else {
+                    links.add(pair[0]);
+                    links.add(pair[1]);
+                }
+
+                TopologyInstance full = createInstance(n, links);
+                long start = System.nanoTime();
+                full.compute();
+                fullNs += System.nanoTime() - start;
+
+                TopologyInstance incremental = createInstance(n, links);
+                start = System.nanoTime();
+                incremental.compute(prev);
+                incrementalNs += System.nanoTime() - start;
+                computed += incremental.treesComputed;
+                repaired += incremental.treesRepaired;
+                reused += incremental.treesReused;
+                prev = incremental;
+            }
+
+            // Build the route between every pair of switches
+            long start = System.nanoTime();
+            long hops = 0; // keeps the routes from being optimized away
+            for (long dst = 1; dst <= n; dst++) {
+                for (long src = 1; src <= n; src++) {
+                    Route r = prev.buildroute(new RouteId(src, dst), src, dst);
+                    if (r != null) hops += r.getPath().size();
+                }
+            }
+            long routeNs = (System.nanoTime() - start) / ((long) n * n);
+
+            int runs = 2 * FLAPS;
+            System.out.println(String.format(
+                    "%8d  %8.2f  %15.2f  %8d  %8d  %6d  %9d",
+                    n, fullNs / 1e6 / runs, incrementalNs / 1e6 / runs,
+                    computed / runs, repaired / runs, reused / runs,
+                    routeNs));
+        }
+    }
+}
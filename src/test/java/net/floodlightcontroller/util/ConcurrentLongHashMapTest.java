@@ -0,0 +1,86 @@
+package net.floodlightcontroller.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentLongHashMapTest {
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1L, "a"));
+        assertNull(map.put(-5L, "b"));
+        assertNull(map.put(0L, "c"));
+        assertEquals("a", map.put(1L, "d"));
+        assertEquals(3, map.size());
+        assertEquals("d", map.get(1L));
+        assertEquals("b", map.get(-5L));
+        assertEquals("c", map.get(0L));
+        assertNull(map.get(2L));
+
+        assertEquals("b", map.putIfAbsent(-5L, "e"));
+        assertEquals("b", map.get(-5L));
+        assertFalse(map.replace(0L, "x", "y"));
+        assertTrue(map.replace(0L, "c", "y"));
+        assertEquals("y", map.get(0L));
+
+        assertFalse(map.remove(1L, "a"));
+        assertTrue(map.remove(1L, "d"));
+        assertNull(map.get(1L));
+        assertEquals("b", map.remove(-5L));
+        assertNull(map.remove(-5L));
+        assertEquals(1, map.size());
+
+        // A removed key can come back
+        assertNull(map.putIfAbsent(1L, "f"));
+        assertEquals("f", map.get(1L));
+        assertEquals(2, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(0L));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testReservedKey() {
+        new ConcurrentLongHashMap<String>().put(Long.MIN_VALUE, "a");
+    }
+
+    @Test
+    public void testGrowAndValues() {
+        ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>(4);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        Random r = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            long key = r.nextInt(5000) * 0x10001L;
+            if (r.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Long value = Long.valueOf(i);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        assertEquals(new HashSet<Long>(expected.values()),
+                     new HashSet<Long>(map.values()));
+
+        // Remove everything through the iterator
+        Iterator<Long> it = map.values().iterator();
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        assertTrue(map.isEmpty());
+        assertFalse(map.values().iterator().hasNext());
+    }
+}
@@ -0,0 +1,129 @@
+package net.floodlightcontroller.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.factory.BasicFactory;
+
+/**
+ * Measures the time it takes to check whether a flow mod is dampened,
+ * comparing the cache of whole messages the damper used for every type
+ * with the fingerprint cache it now uses for flow mods, from a number of
+ * threads at once.
+ *
+ * Every thread checks the flow mods of a fixed set of flows over and over,
+ * so with a timeout longer than the run most of them are dampened.
+ *
+ * Not run as part of the unit tests. Run it with
+ * java -cp target/bin:target/bin-test:lib/* \
+ *     net.floodlightcontroller.util.OFMessageDamperBenchmark [threads]
+ */
+public class OFMessageDamperBenchmark {
+    protected static final int FLOWS = 10000;
+    protected static final int ROUNDS = 200;
+    protected static final int CAPACITY = 50000;
+    protected static final int TIMEOUT = 60000;
+
+    protected interface Check {
+        boolean update(IOFSwitch sw, OFFlowMod fm);
+    }
+
+    protected static List<OFFlowMod> createFlowMods(BasicFactory factory) {
+        List<OFFlowMod> flowMods = new ArrayList<OFFlowMod>();
+        for (int i = 0; i < FLOWS; i++) {
+            OFFlowMod fm = (OFFlowMod) factory.getMessage(OFType.FLOW_MOD);
+            OFMatch match = new OFMatch();
+            match.setInputPort((short) (i % 48 + 1))
+                 .setDataLayerSource(new byte[] { 0, 0, 0, 0,
+                                                  (byte) (i >> 8), (byte) i })
+                 .setDataLayerDestination(new byte[] { 0, 0, 0, 1,
+                                                  (byte) (i >> 8), (byte) i })
+                 .setDataLayerType((short) 0x800)
+                 .setNetworkSource(0x0a000000 | i)
+                 .setNetworkDestination(0x0a010000 | i);
+            List<OFAction> actions = new ArrayList<OFAction>();
+            actions.add(new OFActionOutput((short) (i % 47 + 2), (short) -1));
+            fm.setMatch(match)
+              .setCookie(1L << 52)
+              .setIdleTimeout((short) 5)
+              .setBufferId(-1)
+              .setActions(actions)
+              .setLengthU(OFFlowMod.MINIMUM_LENGTH +
+                          OFActionOutput.MINIMUM_LENGTH);
+            flowMods.add(fm);
+        }
+        return flowMods;
+    }
+
+    /**
+     * @return the mean time of a check in nanoseconds
+     */
+    protected static double run(final Check check, final IOFSwitch sw,
+                                final List<OFFlowMod> flowMods,
+                                int threads) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * FLOWS / threads;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int r = 0; r < ROUNDS; r++) {
+                        for (int i = 0; i < FLOWS; i++)
+                            check.update(sw, flowMods.get((offset + i) % FLOWS));
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (System.nanoTime() - begin) / ((double) ROUNDS * FLOWS);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        List<OFFlowMod> flowMods = createFlowMods(new BasicFactory());
+        IOFSwitch sw = new OFMessageDamperMockSwitch();
+
+        System.out.println("run  messages(ns/check)  fingerprints(ns/check)");
+        for (int run = 1; run <= 5; run++) {
+            final TimedCache<OFMessageDamper.DamperEntry> cache =
+                    new TimedCache<OFMessageDamper.DamperEntry>(CAPACITY,
+                                                                TIMEOUT);
+            double messages = run(new Check() {
+                @Override
+                public boolean update(IOFSwitch sw, OFFlowMod fm) {
+                    return cache.update(new OFMessageDamper.DamperEntry(fm, sw));
+                }
+            }, sw, flowMods, threads);
+
+            final TimedFingerprintCache fingerprints =
+                    new TimedFingerprintCache(CAPACITY, TIMEOUT);
+            double fingerprinted = run(new Check() {
+                @Override
+                public boolean update(IOFSwitch sw, OFFlowMod fm) {
+                    return fingerprints.update(
+                            OFMessageDamper.fingerprint(sw, fm));
+                }
+            }, sw, flowMods, threads);
+
+            System.out.println(String.format("%3d  %20.1f  %22.1f", run,
+                    messages, fingerprinted));
+        }
+    }
+}
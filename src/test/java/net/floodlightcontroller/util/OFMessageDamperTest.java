@@ -7,14 +7,20 @@ import net.floodlightcontroller.core.FloodlightContext;
 import org.junit.Before;
 import org.junit.Test;
 import org.openflow.protocol.OFEchoRequest;
+import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFHello;
+import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.factory.BasicFactory;
 import org.openflow.protocol.factory.OFMessageFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
 
 public class OFMessageDamperTest {
     OFMessageFactory factory;
@@ -147,4 +153,65 @@ public class OFMessageDamperTest {
         doWrite(true, sw1, hello2, cntx);
     }
     
+    protected OFFlowMod createFlowMod(short outPort) {
+        OFFlowMod fm = (OFFlowMod)factory.getMessage(OFType.FLOW_MOD);
+        OFMatch match = new OFMatch();
+        match.fromString("in_port=1,dl_src=00:11:22:33:44:55," +
+                         "dl_dst=00:11:22:33:44:66,dl_type=0x800," +
+                         "nw_src=10.0.0.1,nw_dst=10.0.0.2");
+        List<OFAction> actions = new ArrayList<OFAction>();
+        actions.add(new OFActionOutput(outPort, (short) 0xffff));
+        fm.setMatch(match)
+          .setCookie(42)
+          .setIdleTimeout((short) 5)
+          .setBufferId(-1)
+          .setActions(actions)
+          .setLengthU(OFFlowMod.MINIMUM_LENGTH +
+                      OFActionOutput.MINIMUM_LENGTH);
+        return fm;
+    }
+    
+    @Test
+    public void testFlowMods() throws IOException, InterruptedException {
+        int timeout = 50;
+        int sleepTime = 60;
+        damper = new OFMessageDamper(100, 
+                                     EnumSet.of(OFType.FLOW_MOD),
+                                     timeout);
+        
+        OFFlowMod fm1 = createFlowMod((short) 2);
+        OFFlowMod fm1Clone = createFlowMod((short) 2);
+        OFFlowMod fm2 = createFlowMod((short) 3);
+        OFFlowMod fm3 = createFlowMod((short) 2);
+        fm3.getMatch().setTransportDestination((short) 80);
+        OFFlowMod fm4 = createFlowMod((short) 2);
+        fm4.setCommand(OFFlowMod.OFPFC_DELETE);
+        assertEquals(OFMessageDamper.fingerprint(sw1, fm1),
+                     OFMessageDamper.fingerprint(sw1, fm1Clone));
+        
+        // equal flow mods are dampened, ones with a different action, 
+        // match or command aren't
+        doWrite(true, sw1, fm1, cntx);
+        doWrite(false, sw1, fm1, cntx);
+        doWrite(false, sw1, fm1Clone, cntx);
+        doWrite(true, sw1, fm2, cntx);
+        doWrite(false, sw1, fm2, cntx);
+        doWrite(true, sw1, fm3, cntx);
+        doWrite(true, sw1, fm4, cntx);
+        doWrite(false, sw1, fm4, cntx);
+        
+        // nor are the same flow mods to another switch
+        doWrite(true, sw2, fm1, cntx);
+        doWrite(false, sw2, fm1Clone, cntx);
+        
+        assertEquals(5, damper.getDampedCount());
+        assertEquals(5, damper.getPassedCount());
+        
+        Thread.sleep(sleepTime);
+        doWrite(true, sw1, fm1, cntx);
+        doWrite(true, sw2, fm1, cntx);
+        doWrite(false, sw1, fm1Clone, cntx);
+        assertEquals(6, damper.getDampedCount());
+        assertEquals(7, damper.getPassedCount());
+    }
 }
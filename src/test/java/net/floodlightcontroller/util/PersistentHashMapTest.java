@@ -0,0 +1,114 @@
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PersistentHashMapTest {
+    /**
+     * A key with a chosen hash code, to force collisions
+     */
+    protected static class Key {
+        protected final int id;
+        protected final int hash;
+
+        protected Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof Key) && ((Key) obj).id == id;
+        }
+    }
+
+    protected void assertSameContents(Map<Key, Integer> expected,
+                                      PersistentHashMap<Key, Integer> map) {
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+        assertEquals(expected.hashCode(), map.hashCode());
+        int entries = 0;
+        for (Map.Entry<Key, Integer> e : map.entrySet()) {
+            assertEquals(expected.get(e.getKey()), e.getValue());
+            entries++;
+        }
+        assertEquals(expected.size(), entries);
+    }
+
+    @Test
+    public void testPlusMinus() {
+        PersistentHashMap<String, Integer> empty = PersistentHashMap.empty();
+        PersistentHashMap<String, Integer> one = empty.plus("a", 1);
+        PersistentHashMap<String, Integer> two = one.plus("b", 2);
+        assertTrue(empty.isEmpty());
+        assertEquals(1, one.size());
+        assertEquals(Integer.valueOf(1), two.get("a"));
+        assertEquals(Integer.valueOf(2), two.get("b"));
+        assertNull(one.get("b"));
+        assertSame(two, two.plus("a", two.get("a")));
+        assertSame(two, two.minus("c"));
+        PersistentHashMap<String, Integer> removed = two.minus("a");
+        assertFalse(removed.containsKey("a"));
+        assertTrue(two.containsKey("a"));
+        assertEquals(1, removed.size());
+        try {
+            two.put("c", 3);
+            fail("Expected UnsupportedOperationException");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testRandomOperations() {
+        Random rand = new Random(7);
+        // Few hash values, so there are collisions and deep paths
+        int[] hashes = new int[64];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = rand.nextInt();
+        hashes[1] = hashes[0];
+        hashes[2] = hashes[0] ^ (1 << 31);
+
+        Map<Key, Integer> expected = new HashMap<Key, Integer>();
+        PersistentHashMap<Key, Integer> map = PersistentHashMap.empty();
+        for (int op = 0; op < 20000; op++) {
+            int id = rand.nextInt(500);
+            Key key = new Key(id, hashes[id % hashes.length]);
+            PersistentHashMap<Key, Integer> before = map;
+            Map<Key, Integer> beforeExpected =
+                    (op % 1000 == 0) ? new HashMap<Key, Integer>(expected)
+                                     : null;
+            if (rand.nextInt(3) == 0) {
+                map = map.minus(key);
+                expected.remove(key);
+            } else {
+                Integer value = rand.nextInt(10);
+                map = map.plus(key, value);
+                expected.put(key, value);
+            }
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+            if (beforeExpected != null) {
+                // the old map is unchanged
+                assertSameContents(beforeExpected, before);
+                assertSameContents(expected, map);
+            }
+        }
+        assertSameContents(expected, map);
+        for (Key key : new HashMap<Key, Integer>(expected).keySet()) {
+            map = map.minus(key);
+            expected.remove(key);
+        }
+        assertSameContents(expected, map);
+        assertTrue(map.isEmpty());
+    }
+}
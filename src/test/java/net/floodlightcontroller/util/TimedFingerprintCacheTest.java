@@ -0,0 +1,60 @@
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TimedFingerprintCacheTest {
+
+    @Test
+    public void testUpdate() throws InterruptedException {
+        TimedFingerprintCache cache = new TimedFingerprintCache(100, 50);
+        assertEquals(128, cache.getCapacity());
+
+        assertFalse(cache.update(1L));
+        assertTrue(cache.update(1L));
+        // same bucket, other tag
+        assertFalse(cache.update((5L << 32) | 1L));
+        assertTrue(cache.update((5L << 32) | 1L));
+        // other bucket
+        assertFalse(cache.update((5L << 32) | 9L));
+        // same bucket and high bits, other fingerprint
+        assertFalse(cache.update((5L << 32) | (1L << 16) | 1L));
+        assertTrue(cache.update((5L << 32) | (1L << 16) | 1L));
+        // 0 is stored as 1
+        assertTrue(cache.update(0L));
+        assertEquals(4, cache.size());
+
+        Thread.sleep(60);
+        assertEquals(0, cache.size());
+        assertFalse(cache.update(1L));
+        assertTrue(cache.update(1L));
+        assertFalse(cache.update((5L << 32) | 1L));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertFalse(cache.update(1L));
+    }
+
+    @Test
+    public void testFullBucket() throws InterruptedException {
+        TimedFingerprintCache cache = new TimedFingerprintCache(8, 1000);
+        assertEquals(8, cache.getCapacity());
+
+        // fill the only bucket, the first entry being the oldest
+        assertFalse(cache.update(1L << 32));
+        Thread.sleep(5);
+        for (long tag = 2; tag <= 8; tag++)
+            assertFalse(cache.update(tag << 32));
+        for (long tag = 1; tag <= 8; tag++)
+            assertTrue(cache.update(tag << 32));
+        assertEquals(8, cache.size());
+
+        // a new fingerprint replaces the oldest
+        assertFalse(cache.update(9L << 32));
+        assertTrue(cache.update(9L << 32));
+        assertTrue(cache.update(2L << 32));
+        assertFalse(cache.update(1L << 32));
+        assertEquals(8, cache.size());
+    }
+}
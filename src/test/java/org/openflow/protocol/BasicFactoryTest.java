@@ -17,6 +17,7 @@
 
 package org.openflow.protocol;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -78,4 +79,36 @@ public class BasicFactoryTest extends TestCase {
         }
     }
 
+    public void testZeroCopyPacketInParse() throws MessageParseException {
+        byte[] packetData = new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05 };
+        OFPacketIn pi = new OFPacketIn();
+        pi.setBufferId(-1);
+        pi.setInPort((short) 1);
+        pi.setReason(OFPacketIn.OFPacketInReason.NO_MATCH);
+        pi.setTotalLength((short) packetData.length);
+        pi.setPacketData(packetData);
+        pi.setXid(0xdeadbeef);
+        ChannelBuffer bb = ChannelBuffers.dynamicBuffer();
+        pi.writeTo(bb);
+
+        BasicFactory factory = new BasicFactory();
+        factory.setZeroCopyPacketIn(true);
+        List<OFMessage> message = factory.parseMessage(bb);
+        TestCase.assertNotNull(message);
+        TestCase.assertEquals(1, message.size());
+        OFPacketIn parsed = (OFPacketIn) message.get(0);
+        TestCase.assertEquals(packetData.length,
+                              parsed.getPacketDataLength());
+
+        // The payload is a view of the parsed buffer, not a copy
+        ChannelBuffer data = parsed.getPacketDataBuffer();
+        TestCase.assertEquals(packetData.length, data.readableBytes());
+        bb.setByte(OFPacketIn.MINIMUM_LENGTH, 0x7f);
+        TestCase.assertEquals(0x7f, data.getByte(data.readerIndex()));
+
+        bb.setByte(OFPacketIn.MINIMUM_LENGTH, 0x01);
+        TestCase.assertTrue(Arrays.equals(packetData,
+                                         parsed.getPacketData()));
+        TestCase.assertEquals(pi, parsed);
+    }
 }
@@ -0,0 +1,130 @@
+package org.openflow.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionType;
+import org.openflow.protocol.factory.BasicFactory;
+import org.openflow.protocol.factory.OFMessagePool;
+
+public class OFMessagePoolTest extends TestCase {
+
+    protected OFFlowMod newFlowMod(BasicFactory factory) {
+        OFFlowMod fm = (OFFlowMod) factory.getPooledMessage(OFType.FLOW_MOD);
+        OFActionOutput action = (OFActionOutput)
+                factory.getPooledAction(OFActionType.OUTPUT);
+        action.setPort((short) 3);
+        List<OFAction> actions = new ArrayList<OFAction>();
+        actions.add(action);
+        fm.setMatch(new OFMatch()).setActions(actions).setCookie(42L);
+        fm.setXid(7);
+        return fm;
+    }
+
+    public void testUnpooledByDefault() {
+        BasicFactory factory = new BasicFactory();
+        OFFlowMod fm = newFlowMod(factory);
+        assertNull(fm.getPoolLease());
+        assertNull(fm.getActions().get(0).getPoolLease());
+    }
+
+    public void testReleaseAndReuse() {
+        BasicFactory factory = new BasicFactory();
+        OFMessagePool pool = new OFMessagePool(4, false);
+        factory.setMessagePool(pool);
+
+        OFFlowMod fm = newFlowMod(factory);
+        OFAction action = fm.getActions().get(0);
+        assertNotNull(fm.getPoolLease());
+        OFMessagePool.releaseIfPooled(fm);
+        assertNull(fm.getPoolLease());
+        assertEquals(new OFFlowMod(), fm);
+        assertEquals(new OFActionOutput(), action);
+
+        // A second release is ignored
+        OFMessagePool.releaseIfPooled(fm);
+        assertEquals(2, pool.getReleased());
+
+        assertSame(fm, factory.getPooledMessage(OFType.FLOW_MOD));
+        assertSame(action, factory.getPooledAction(OFActionType.OUTPUT));
+        assertEquals(2, pool.getReused());
+
+        // Types that are not pooled are plain instances
+        assertNull(factory.getPooledMessage(OFType.HELLO).getPoolLease());
+    }
+
+    public void testConcurrentRelease() throws Exception {
+        BasicFactory factory = new BasicFactory();
+        OFMessagePool pool = new OFMessagePool(16, false);
+        factory.setMessagePool(pool);
+
+        for (int i = 0; i < 1000; i++) {
+            final OFFlowMod fm = newFlowMod(factory);
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[2];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        OFMessagePool.releaseIfPooled(fm);
+                    }
+                };
+                threads[t].start();
+            }
+            start.countDown();
+            for (Thread t : threads)
+                t.join();
+            // Recycled once, so it is only handed out once
+            assertEquals(2L * (i + 1), pool.getReleased());
+            OFMessage first = factory.getPooledMessage(OFType.FLOW_MOD);
+            OFMessage second = factory.getPooledMessage(OFType.FLOW_MOD);
+            assertNotSame(first, second);
+            OFMessagePool.detachIfPooled(first);
+            OFMessagePool.detachIfPooled(second);
+        }
+    }
+
+    public void testDetach() {
+        BasicFactory factory = new BasicFactory();
+        OFMessagePool pool = new OFMessagePool(4, true);
+        factory.setMessagePool(pool);
+
+        OFFlowMod fm = newFlowMod(factory);
+        OFMessagePool.detachIfPooled(fm);
+        assertNull(fm.getPoolLease());
+        assertNull(fm.getActions().get(0).getPoolLease());
+        OFMessagePool.releaseIfPooled(fm);
+        assertEquals(42L, fm.getCookie());
+        assertEquals(0, pool.getReleased());
+    }
+
+    public void testLeakDetection() throws Exception {
+        OFMessagePool pool = new OFMessagePool(4, true);
+        pool.acquire(OFType.PACKET_OUT);
+        OFMessage kept = pool.acquire(OFType.PACKET_OUT);
+
+        for (int i = 0; i < 50 && pool.getLeaked() == 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.reportLeaks();
+        }
+        assertEquals(1, pool.getLeaked());
+
+        pool.release(kept);
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            pool.reportLeaks();
+        }
+        assertEquals(1, pool.getLeaked());
+    }
+}